@@ -1,8 +1,9 @@
 package com.sora.util.akatsuki;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 import android.app.Activity;
 import android.app.Service;
@@ -21,9 +22,13 @@ import com.sora.util.akatsuki.AkatsukiConfig.LoggingLevel;
 @SuppressWarnings("ALL")
 public class Akatsuki {
 
-	private static final Map<String, BundleRetainer<?>> CLASS_CACHE = new WeakHashMap<>();
+	private static final WeakClassMap<BundleRetainer<?>> RETAINED_RETAINERS = new WeakClassMap<>();
 
-	private static final Map<Class<? extends TypeConverter<?>>, TypeConverter<?>> CACHED_CONVERTERS = new WeakHashMap<>();
+	private static final WeakClassMap<BundleRetainer<?>> ARG_RETAINERS = new WeakClassMap<>();
+
+	private static final WeakClassMap<TypeConverter<?>> CACHED_CONVERTERS = new WeakClassMap<>();
+
+	private static final WeakClassMap<StreamRetainer<?>> STREAM_RETAINERS = new WeakClassMap<>();
 
 	static final String RETAINER_CACHE_NAME = "AkatsukiMapping";
 	static final String RETAINER_CACHE_PACKAGE = "com.sora.util.akatsuki";
@@ -32,24 +37,16 @@ public class Akatsuki {
 
 	static LoggingLevel loggingLevel = AkatsukiConfig.LoggingLevel.ERROR_ONLY;
 
-	private static RetainerCache retainerCache;
+	static volatile AkatsukiMetrics metrics;
 
-	static {
-		Class<?> retainerCacheClass = null;
+	private static volatile OffloadStore offloadStore;
 
-		try {
-			retainerCacheClass = Class.forName(RETAINER_CACHE_PACKAGE + "." + RETAINER_CACHE_NAME);
-		} catch (ClassNotFoundException ignored) {
-			// we don't have it, that's fine
-		}
-		if (retainerCacheClass != null) {
-			try {
-				retainerCache = (RetainerCache) retainerCacheClass.newInstance();
-			} catch (Exception e) {
-				// we have it but it's broken, not good
-				throw new RuntimeException("Unable to instantiate RetainerCache", e);
-			}
-		}
+	// the table is only loaded when the first retainer is requested rather
+	// than when Akatsuki is initialized
+	private static final class RetainerCacheHolder {
+
+		static final RetainerCache RETAINER_CACHE = Internal
+				.loadRetainerCache(Akatsuki.class.getClassLoader());
 	}
 
 	/**
@@ -63,6 +60,23 @@ public class Akatsuki {
 		return loggingLevel;
 	}
 
+	/**
+	 * Sets the listener that receives runtime measurements, pass null to stop
+	 * measuring
+	 */
+	public static void setMetrics(AkatsukiMetrics listener) {
+		metrics = listener;
+	}
+
+	/**
+	 * Sets the store used for fields annotated with
+	 * {@code @Retained(offload = true)}, this has to be done before any of
+	 * those fields is saved or restored
+	 */
+	public static void setOffloadStore(OffloadStore store) {
+		offloadStore = store;
+	}
+
 	/**
 	 * Saves all fields annotated with {@link Retained} into the provided bundle
 	 *
@@ -78,7 +92,120 @@ public class Akatsuki {
 	static void save(ClassLoader loader, Object instance, Bundle outState) {
 		checkInstance(instance, "instance");
 		checkInstance(outState, "outState");
-		findRetainerInstance(loader, instance, Retained.class).save(instance, outState);
+		saveWith(findRetainerInstance(loader, instance, Retained.class), instance, outState);
+	}
+
+	/**
+	 * Same as {@link #save(Object, Bundle)} but the size of the saved fields
+	 * is estimated first and checked against the given budget, see
+	 * {@link SaveBudget}. Instances with retainers that cannot estimate their
+	 * size (retainers generated without
+	 * {@link AkatsukiConfig.OptFlags#SIZE_ESTIMATES} or not generated by
+	 * Akatsuki) are saved without a check
+	 *
+	 * @param instance
+	 *            the object that contains the annotated fields
+	 * @param outState
+	 *            the bundle for saving, not null
+	 * @param budget
+	 *            the budget, not null
+	 */
+	public static void save(Object instance, Bundle outState, SaveBudget budget) {
+		save(classLoader(), instance, outState, budget);
+	}
+
+	static void save(ClassLoader loader, Object instance, Bundle outState, SaveBudget budget) {
+		checkInstance(instance, "instance");
+		checkInstance(outState, "outState");
+		checkInstance(budget, "budget");
+		final BundleRetainer<Object> retainer = findRetainerInstance(loader, instance,
+				Retained.class);
+		final SizeEstimate estimate = estimate(retainer, instance);
+		if (estimate != null && estimate.total() > budget.bytes) {
+			switch (budget.policy) {
+			case WARN:
+				Log.w(TAG, overBudgetMessage(instance, estimate, budget));
+				break;
+			case THROW:
+				throw new RuntimeException(overBudgetMessage(instance, estimate, budget));
+			case CALLBACK:
+				budget.callback.onOverBudget(instance, estimate, budget.bytes);
+				break;
+			}
+		}
+		saveWith(retainer, instance, outState);
+	}
+
+	/**
+	 * Writes all fields annotated with {@link Retained} to the output, the
+	 * class of the instance must have {@link RetainConfig#stream()} enabled
+	 *
+	 * @param instance
+	 *            the object that contains the annotated fields
+	 * @param output
+	 *            the output, not null
+	 */
+	public static void write(Object instance, DataOutput output) throws IOException {
+		write(classLoader(), instance, output);
+	}
+
+	static void write(ClassLoader loader, Object instance, DataOutput output)
+			throws IOException {
+		checkInstance(instance, "instance");
+		checkInstance(output, "output");
+		findStreamRetainer(loader, instance).write(instance, output);
+	}
+
+	/**
+	 * Reads what {@link #write(Object, DataOutput)} wrote back into the
+	 * instance; fields that were not written are left as they are
+	 *
+	 * @param instance
+	 *            the object that contains the annotated fields
+	 * @param input
+	 *            the input, not null
+	 */
+	public static void read(Object instance, DataInput input) throws IOException {
+		read(classLoader(), instance, input);
+	}
+
+	static void read(ClassLoader loader, Object instance, DataInput input) throws IOException {
+		checkInstance(instance, "instance");
+		checkInstance(input, "input");
+		findStreamRetainer(loader, instance).read(instance, input);
+	}
+
+	/**
+	 * Estimates the size of the {@link Retained} fields of the given instance
+	 * once saved, see {@link BundleSizes} for how accurate that is
+	 *
+	 * @return the estimate or null if the retainer cannot estimate its size,
+	 *         see {@link AkatsukiConfig.OptFlags#SIZE_ESTIMATES}
+	 */
+	public static SizeEstimate estimateSize(Object instance) {
+		return estimateSize(classLoader(), instance);
+	}
+
+	static SizeEstimate estimateSize(ClassLoader loader, Object instance) {
+		checkInstance(instance, "instance");
+		return estimate(findRetainerInstance(loader, instance, Retained.class), instance);
+	}
+
+	// the retainer of T estimates T
+	@SuppressWarnings("unchecked")
+	private static <T> SizeEstimate estimate(BundleRetainer<T> retainer, T instance) {
+		if (!(retainer instanceof BundleSizeEstimator))
+			return null;
+		final SizeEstimate estimate = new SizeEstimate();
+		((BundleSizeEstimator<T>) retainer).estimate(instance, estimate);
+		return estimate;
+	}
+
+	private static String overBudgetMessage(Object instance, SizeEstimate estimate,
+			SaveBudget budget) {
+		return "Saved state of " + instance.getClass().getName() + " is estimated at "
+				+ estimate.total() + " bytes which is over the budget of " + budget.bytes
+				+ " bytes, heaviest fields: " + estimate.heaviest(SaveBudget.HEAVIEST_FIELDS);
 	}
 
 	// all restores below work with @Retained and @Arg
@@ -128,7 +255,8 @@ public class Akatsuki {
 
 	static void restore(ClassLoader loader, Service service, Intent intent) {
 		checkInstance(service, "service");
-		findRetainerInstance(loader, service, Arg.class).restore(service, intent.getExtras());
+		restoreWith(findRetainerInstance(loader, service, Arg.class), service, intent.getExtras(),
+				Arg.class);
 	}
 
 	/**
@@ -145,9 +273,36 @@ public class Akatsuki {
 	static void restore(ClassLoader loader, Object instance, Bundle state, Bundle argument) {
 		checkInstance(instance, "instance");
 		if (state != null)
-			findRetainerInstance(loader, instance, Retained.class).restore(instance, state);
+			restoreWith(findRetainerInstance(loader, instance, Retained.class), instance, state,
+					Retained.class);
 		if (argument != null)
-			findRetainerInstance(loader, instance, Arg.class).restore(instance, argument);
+			restoreWith(findRetainerInstance(loader, instance, Arg.class), instance, argument,
+					Arg.class);
+	}
+
+	private static <T> void saveWith(BundleRetainer<T> retainer, T instance, Bundle bundle) {
+		final AkatsukiMetrics metrics = Akatsuki.metrics;
+		if (metrics == null) {
+			retainer.save(instance, bundle);
+			return;
+		}
+		final long start = System.nanoTime();
+		retainer.save(instance, bundle);
+		final long duration = System.nanoTime() - start;
+		metrics.onSave(instance.getClass(), duration, retainer instanceof BundleKeyCounter
+				? ((BundleKeyCounter) retainer).keyCount() : -1);
+	}
+
+	private static <T> void restoreWith(BundleRetainer<T> retainer, T instance, Bundle bundle,
+			Class<? extends Annotation> type) {
+		final AkatsukiMetrics metrics = Akatsuki.metrics;
+		if (metrics == null) {
+			retainer.restore(instance, bundle);
+			return;
+		}
+		final long start = System.nanoTime();
+		retainer.restore(instance, bundle);
+		metrics.onRestore(instance.getClass(), type, System.nanoTime() - start);
 	}
 
 	/**
@@ -267,6 +422,25 @@ public class Akatsuki {
 		return deserialize(t, bundle);
 	}
 
+	/**
+	 * Saves a {@link Retained} {@link Lazy} field. <b>This is not the method
+	 * you are looking for</b>
+	 */
+	public static Bundle serializeLazy(Lazy<?> lazy) {
+		checkInstance(lazy, "lazy");
+		return lazy.save();
+	}
+
+	/**
+	 * Hands the saved state to a {@link Retained} {@link Lazy} field, the
+	 * state is restored on first use. <b>This is not the method you are
+	 * looking for</b>
+	 */
+	public static void deserializeLazy(Lazy<?> lazy, Bundle bundle) {
+		checkInstance(lazy, "lazy");
+		lazy.restore(bundle);
+	}
+
 	private static void checkInstance(Object object, String name) {
 		if (object == null)
 			throw new IllegalArgumentException(name + " == null!");
@@ -286,42 +460,115 @@ public class Akatsuki {
 		T create();
 	}
 
+	// retainers are cached by the class of the instance
+	@SuppressWarnings("unchecked")
 	static <T> BundleRetainer<T> findRetainerInstance(ClassLoader loader, T instance,
 			Class<? extends Annotation> type) {
-		final String fqcn = instance.getClass().getName();
-		String retainerKey = generateRetainerKey(instance.getClass(), type);
-		if (loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
-			Log.i(TAG, "looking through cache with key " + retainerKey);
-		BundleRetainer<T> retainer = (BundleRetainer<T>) CLASS_CACHE.get(retainerKey);
+		final Class<?> clazz = instance.getClass();
+		final WeakClassMap<BundleRetainer<?>> retainers = retainersOf(type);
+		BundleRetainer<T> retainer = (BundleRetainer<T>) retainers.get(clazz);
+		final AkatsukiMetrics metrics = Akatsuki.metrics;
+		if (metrics != null)
+			metrics.onRetainerLookup(clazz, type, retainer != null);
 		if (retainer == null) {
-			retainer = Internal.createRetainer(loader, retainerCache, instance.getClass(), type);
-			CLASS_CACHE.put(retainerKey, retainer);
+			retainer = (BundleRetainer<T>) retainers.putIfAbsent(clazz,
+					Internal.<T> createRetainer(loader, RetainerCacheHolder.RETAINER_CACHE, clazz,
+							type));
 			if (loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
-				Log.i(TAG, "cache miss for class " + fqcn + " for type " + type + " retainer is "
-						+ retainer.getClass());
+				Log.i(TAG, "cache miss for class " + clazz.getName() + " for type " + type
+						+ " retainer is " + retainer.getClass());
 		} else {
 			if (loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
-				Log.i(TAG, "cache hit for class " + fqcn + " for type " + type + " retainer is "
-						+ retainer.getClass());
+				Log.i(TAG, "cache hit for class " + clazz.getName() + " for type " + type
+						+ " retainer is " + retainer.getClass());
 		}
 		return retainer;
 	}
 
-	private static ClassLoader classLoader() {
-		return Thread.currentThread().getContextClassLoader();
+	// stream retainers are cached by the class of the instance as well
+	@SuppressWarnings("unchecked")
+	static <T> StreamRetainer<T> findStreamRetainer(ClassLoader loader, T instance) {
+		final Class<?> clazz = instance.getClass();
+		StreamRetainer<T> retainer = (StreamRetainer<T>) STREAM_RETAINERS.get(clazz);
+		if (retainer == null)
+			retainer = (StreamRetainer<T>) STREAM_RETAINERS.putIfAbsent(clazz,
+					Internal.<T> createStreamRetainer(loader, clazz));
+		return retainer;
 	}
 
-	private static String generateRetainerKey(Class<?> clazz, Class<? extends Annotation> type) {
-		return clazz.getName() + "_" + type.getName();
+	private static WeakClassMap<BundleRetainer<?>> retainersOf(Class<? extends Annotation> type) {
+		if (type == Retained.class)
+			return RETAINED_RETAINERS;
+		if (type == Arg.class)
+			return ARG_RETAINERS;
+		throw new AssertionError("Unable to create retainer for unknown class " + type);
+	}
+
+	static ClassLoader classLoader() {
+		return Thread.currentThread().getContextClassLoader();
 	}
 
 	private static void discardCache() {
-		CLASS_CACHE.clear();
+		RETAINED_RETAINERS.clear();
+		ARG_RETAINERS.clear();
+		STREAM_RETAINERS.clear();
+		Internal.discardCache();
+	}
+
+	/**
+	 * Writes an offloaded field to the {@link OffloadStore}, replacing the
+	 * value last written or read for the field. <b>This is not the method you
+	 * are looking for</b>
+	 *
+	 * @param owner
+	 *            the object declaring the field
+	 * @param key
+	 *            the key of the field
+	 * @return the token to be saved in place of the value
+	 */
+	public static String offload(Object owner, String key, Object value) {
+		try {
+			return requireOffloadStore().put(owner, key, value);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to offload value of type " + value.getClass(), e);
+		}
+	}
+
+	/**
+	 * Reads an offloaded field back from the {@link OffloadStore}. <b>This is
+	 * not the method you are looking for</b>
+	 *
+	 * @param owner
+	 *            the object declaring the field
+	 * @param key
+	 *            the key of the field
+	 * @param token
+	 *            the token returned by {@link #offload(Object, String, Object)}
+	 * @return the value or null if it is no longer in the store
+	 */
+	public static <T> T restoreOffloaded(Object owner, String key, String token) {
+		try {
+			final T value = requireOffloadStore().get(owner, key, token);
+			if (value == null && token != null && loggingLevel != LoggingLevel.ERROR_ONLY)
+				Log.w(TAG, "Offloaded value " + token + " has been evicted, restoring null");
+			return value;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException("Unable to restore offloaded value " + token, e);
+		}
+	}
+
+	private static OffloadStore requireOffloadStore() {
+		final OffloadStore store = offloadStore;
+		if (store == null)
+			throw new IllegalStateException("@Retained(offload = true) requires an OffloadStore,"
+					+ " see Akatsuki.setOffloadStore()");
+		return store;
 	}
 
 	/**
-	 * Finds the converter from the cache or create one. <b>This is not the
-	 * method you are looking for</b>
+	 * Finds the converter from the cache or create one, safe to call from any
+	 * thread. Generated retainers call this once per converter and keep the
+	 * result. <b>This is not the method you are looking for</b>
 	 *
 	 * @param key
 	 *            the class of the converter
@@ -329,13 +576,16 @@ public class Akatsuki {
 	@SuppressWarnings("unchecked")
 	public static <T> TypeConverter<T> converter(Class<? extends TypeConverter<T>> key) {
 		TypeConverter<T> converter = (TypeConverter<T>) CACHED_CONVERTERS.get(key);
+		final AkatsukiMetrics metrics = Akatsuki.metrics;
+		if (metrics != null)
+			metrics.onConverterLookup(key, converter != null);
 		if (converter == null) {
 			try {
 				converter = key.newInstance();
 			} catch (Exception e) {
 				converter = new InvalidTypeConverter(e);
 			}
-			CACHED_CONVERTERS.put(key, converter);
+			converter = (TypeConverter<T>) CACHED_CONVERTERS.putIfAbsent(key, converter);
 		}
 		return converter;
 	}
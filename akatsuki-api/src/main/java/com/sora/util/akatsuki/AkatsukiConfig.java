@@ -64,8 +64,9 @@ public @interface AkatsukiConfig {
 		VECTORIZE_INHERITANCE,
 
 		/**
-		 * Caches created instances in memory; instances are weakly referenced
-		 * to prevent memory leak
+		 * Retainers handed out by the look up table are created once and then
+		 * shared. To be used in conjunction with {@link #CLASS_LUT} only,
+		 * without this flag the table creates a new retainer for every look up
 		 */
 		CACHE_INSTANCES,
 
@@ -73,7 +74,37 @@ public @interface AkatsukiConfig {
 		 * Compacts the source by using inheritance(following the original
 		 * inheritance tree)
 		 */
-		TREE_COMPACTION
+		TREE_COMPACTION,
+
+		/**
+		 * Nested types with {@link Retained} fields are written into the
+		 * bundle of the enclosing object under keys prefixed with the field
+		 * name instead of a bundle of their own, the generated retainer of the
+		 * nested type is called directly. A boolean under the field name tells
+		 * whether the field was null; a null field is restored by creating
+		 * the nested type with its public no argument constructor if there is
+		 * one. The prefixed keys are built once per retainer class. Only
+		 * applies to fields whose declared type has no subclass with
+		 * {@link Retained} fields in the same compilation and does not contain
+		 * the enclosing type itself; other nested fields are saved as usual
+		 */
+		FLATTEN_NESTED,
+
+		/**
+		 * Generates a final {@code X$$Akatsuki} class with static
+		 * {@code save} and {@code restore} methods for every class with
+		 * {@link Retained} fields so that callers can skip the runtime look
+		 * up. Adds a class and three methods per retained class
+		 */
+		ENTRY_POINTS,
+
+		/**
+		 * Generated retainers can estimate the size of what they save, see
+		 * {@link Akatsuki#estimateSize(Object)} and
+		 * {@link Akatsuki#save(Object, android.os.Bundle, SaveBudget)}. Adds an
+		 * {@code estimate} method per retained class
+		 */
+		SIZE_ESTIMATES
 
 	}
 
@@ -142,4 +173,24 @@ public @interface AkatsukiConfig {
 	 */
 	Flags[]flags() default {};
 
+	/**
+	 * Name of the module being compiled. When set, the look up table generated
+	 * for {@link OptFlags#CLASS_LUT} gets a name unique to the module so that
+	 * multiple modules can each ship their own table; all tables found at
+	 * runtime are merged. Compilation fails if the table of this module would
+	 * clash with one that is already on the classpath. Can also be set with
+	 * the {@code akatsuki.moduleName} processor option
+	 */
+	String moduleName() default "";
+
+	/**
+	 * Writes {@code akatsuki-cost-report.json} to the class output, listing
+	 * every generated {@link BundleRetainer} with its fields, the analyzer
+	 * chosen for each field, whether the field falls back to Java
+	 * serialization or loops over its elements and an estimate of the saved
+	 * size. Can also be set with the {@code akatsuki.costReport} processor
+	 * option
+	 */
+	boolean costReport() default false;
+
 }
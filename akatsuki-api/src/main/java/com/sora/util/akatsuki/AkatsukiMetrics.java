@@ -0,0 +1,109 @@
+package com.sora.util.akatsuki;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * Receives measurements from {@link Akatsuki} at runtime, register one with
+ * {@link Akatsuki#setMetrics(AkatsukiMetrics)}. Nothing is measured while no
+ * listener is registered.
+ * <p>
+ * Callbacks are invoked on the thread doing the work, implementations must be
+ * thread safe and should return quickly. Calls made through the generated
+ * static entry points bypass {@link Akatsuki} and are not measured.
+ */
+public interface AkatsukiMetrics {
+
+	/**
+	 * Called after the {@link Retained} fields of an instance are saved
+	 *
+	 * @param clazz
+	 *            the class of the instance
+	 * @param durationNanos
+	 *            time spent in the retainer
+	 * @param keysWritten
+	 *            number of keys the fields are saved under, see
+	 *            {@link BundleKeyCounter}; -1 for retainers that don't tell
+	 */
+	void onSave(Class<?> clazz, long durationNanos, int keysWritten);
+
+	/**
+	 * Called after an instance is restored
+	 *
+	 * @param clazz
+	 *            the class of the instance
+	 * @param type
+	 *            {@link Retained} or {@link Arg}
+	 * @param durationNanos
+	 *            time spent in the retainer
+	 */
+	void onRestore(Class<?> clazz, Class<? extends Annotation> type, long durationNanos);
+
+	/**
+	 * Called for every retainer requested from {@link Akatsuki}'s instance
+	 * cache
+	 *
+	 * @param hit
+	 *            false if a retainer had to be created
+	 */
+	void onRetainerLookup(Class<?> clazz, Class<? extends Annotation> type, boolean hit);
+
+	/**
+	 * Called when a retainer is looked up in the generated {@link RetainerCache}
+	 *
+	 * @param hit
+	 *            false if the table does not have it, the class hierarchy is
+	 *            traversed next
+	 */
+	void onRegistryLookup(Class<?> clazz, Class<? extends Annotation> type, boolean hit);
+
+	/**
+	 * Called after the class hierarchy is traversed to find a retainer
+	 *
+	 * @param classesVisited
+	 *            number of classes that were looked up with reflection
+	 */
+	void onHierarchyTraversal(Class<?> clazz, int classesVisited);
+
+	/**
+	 * Called for every {@link Akatsuki#converter(Class)} call
+	 *
+	 * @param hit
+	 *            false if the converter had to be instantiated
+	 */
+	void onConverterLookup(Class<?> converterClass, boolean hit);
+
+	/**
+	 * An {@link AkatsukiMetrics} that ignores everything, extend this to only
+	 * receive the callbacks you need
+	 */
+	class Adapter implements AkatsukiMetrics {
+
+		@Override
+		public void onSave(Class<?> clazz, long durationNanos, int keysWritten) {
+		}
+
+		@Override
+		public void onRestore(Class<?> clazz, Class<? extends Annotation> type,
+				long durationNanos) {
+		}
+
+		@Override
+		public void onRetainerLookup(Class<?> clazz, Class<? extends Annotation> type,
+				boolean hit) {
+		}
+
+		@Override
+		public void onRegistryLookup(Class<?> clazz, Class<? extends Annotation> type,
+				boolean hit) {
+		}
+
+		@Override
+		public void onHierarchyTraversal(Class<?> clazz, int classesVisited) {
+		}
+
+		@Override
+		public void onConverterLookup(Class<?> converterClass, boolean hit) {
+		}
+	}
+
+}
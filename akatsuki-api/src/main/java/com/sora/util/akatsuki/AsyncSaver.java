@@ -0,0 +1,138 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.sora.util.akatsuki.StreamRetainer.Snapshot;
+
+/**
+ * Saves in two steps: the {@link Retained} fields are captured on the calling
+ * thread and encoded into a byte array on the given executor, which takes
+ * large and {@link java.io.Serializable} fields off the caller. Classes must
+ * have {@link RetainConfig#stream()} enabled, see
+ * {@link StreamRetainer#snapshot(Object)} for what is captured and what must
+ * not change until the save is done. The bytes can
+ * be kept in a bundle with {@link android.os.Bundle#putByteArray} and read
+ * back with {@link Akatsuki#read(Object, java.io.DataInput)}.
+ */
+public final class AsyncSaver {
+
+	/**
+	 * Receives the result of a save, called on the executor
+	 */
+	public interface Callback {
+
+		void onSaved(Object instance, byte[] state);
+
+		void onFailed(Object instance, Throwable throwable);
+	}
+
+	private final Executor executor;
+	private final int capacity;
+	private final Semaphore permits;
+
+	/**
+	 * @param executor
+	 *            where the fields are encoded
+	 * @param capacity
+	 *            the number of saves that can be pending at once
+	 */
+	public AsyncSaver(Executor executor, int capacity) {
+		if (executor == null)
+			throw new IllegalArgumentException("executor == null!");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1, got " + capacity);
+		this.executor = executor;
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity);
+	}
+
+	/**
+	 * Same as {@link #save(Object, Callback)} without a callback
+	 */
+	public Future<byte[]> save(Object instance) {
+		return save(Akatsuki.classLoader(), instance, null);
+	}
+
+	/**
+	 * Captures the fields of the instance and encodes them on the executor
+	 *
+	 * @param callback
+	 *            notified once the encoding is done, may be null
+	 * @return the encoded fields once done
+	 * @throws RejectedExecutionException
+	 *             if there are as many pending saves as the capacity or the
+	 *             executor rejected the save; nothing is captured and the
+	 *             caller can fall back to saving synchronously
+	 */
+	public Future<byte[]> save(Object instance, Callback callback) {
+		return save(Akatsuki.classLoader(), instance, callback);
+	}
+
+	Future<byte[]> save(ClassLoader loader, final Object instance, final Callback callback) {
+		if (instance == null)
+			throw new IllegalArgumentException("instance == null!");
+		final StreamRetainer<Object> retainer = Akatsuki.findStreamRetainer(loader, instance);
+		if (!permits.tryAcquire())
+			throw new RejectedExecutionException(
+					capacity + " saves are pending already, " + instance + " was not saved");
+		final Snapshot snapshot;
+		try {
+			snapshot = retainer.snapshot(instance);
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				snapshot.write(new DataOutputStream(bytes));
+				return bytes.toByteArray();
+			}
+		}) {
+			@Override
+			protected void done() {
+				permits.release();
+				if (callback != null)
+					dispatch(callback, instance, this);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			// a task that is done released the permit already, the callback
+			// may throw when the executor runs the task in place
+			if (!task.isDone())
+				permits.release();
+			throw e;
+		}
+		return task;
+	}
+
+	/**
+	 * @return the number of saves that are not done yet
+	 */
+	public int pending() {
+		return capacity - permits.availablePermits();
+	}
+
+	private static void dispatch(Callback callback, Object instance, Future<byte[]> future) {
+		try {
+			callback.onSaved(instance, future.get());
+		} catch (ExecutionException e) {
+			callback.onFailed(instance, e.getCause());
+		} catch (CancellationException | InterruptedException e) {
+			callback.onFailed(instance, e);
+		}
+	}
+
+}
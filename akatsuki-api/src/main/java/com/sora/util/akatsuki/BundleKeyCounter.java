@@ -0,0 +1,17 @@
+package com.sora.util.akatsuki;
+
+/**
+ * Implemented by generated {@link BundleRetainer}s that save, tells how many
+ * keys they save fields under so that {@link AkatsukiMetrics} doesn't have to
+ * look into the bundle
+ */
+public interface BundleKeyCounter {
+
+	/**
+	 * The number of fields saved, inherited ones included. This is known at
+	 * compile time: a field counts once even if it spans several keys, and
+	 * fields skipped by change tracking are still counted
+	 */
+	int keyCount();
+
+}
@@ -0,0 +1,17 @@
+package com.sora.util.akatsuki;
+
+/**
+ * Implemented by generated {@link BundleRetainer}s that are able to estimate
+ * the size of what they save, see {@link BundleSizes}
+ *
+ * @param <T>
+ *            the type of annotated field's enclosing instance
+ */
+public interface BundleSizeEstimator<T> {
+
+	/**
+	 * Adds the estimated size of every saved field to the given estimate
+	 */
+	void estimate(T source, SizeEstimate estimate);
+
+}
@@ -0,0 +1,404 @@
+package com.sora.util.akatsuki;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Estimates how many bytes a value takes up once the {@link Bundle} holding it
+ * is parceled. Primitives, strings and arrays of them follow the layout of
+ * {@link Parcel} exactly; {@link Parcelable} and {@link Serializable} values
+ * are written out to be measured so they are only as accurate as the object's
+ * own implementation is stable. <b>This is not the
+ * class you are looking for</b>, see {@link Akatsuki#estimateSize(Object)}
+ */
+public final class BundleSizes {
+
+	// everything in a parcel is padded to 4 bytes
+	private static final int WORD = 4;
+	private static final int NULL = WORD;
+
+	// elements of bundled arrays are each saved in a bundle under this key
+	private static final String ELEMENT_KEY = "e";
+	private static final int BUNDLE_HEADER = ofString(Bundle.class.getName()) + 2 * WORD;
+
+	/**
+	 * How the elements of an array are saved
+	 */
+	public enum Encoding {
+
+		/**
+		 * Boxed primitives packed into a primitive array, see
+		 * {@link PackedCollections}
+		 */
+		PACKED,
+
+		/**
+		 * Every element in a bundle of its own
+		 */
+		BUNDLED,
+
+		/**
+		 * An array type that bundle supports, such as {@code String[]}
+		 */
+		NATIVE
+	}
+
+	private BundleSizes() {
+	}
+
+	/**
+	 * The size of a bundle entry without the value, that is the key and the
+	 * type tag
+	 */
+	public static int ofEntry(String key) {
+		return ofString(key) + WORD;
+	}
+
+	public static int of(boolean value) {
+		return WORD;
+	}
+
+	public static int of(byte value) {
+		return WORD;
+	}
+
+	public static int of(char value) {
+		return WORD;
+	}
+
+	public static int of(short value) {
+		return WORD;
+	}
+
+	public static int of(int value) {
+		return WORD;
+	}
+
+	public static int of(float value) {
+		return WORD;
+	}
+
+	public static int of(long value) {
+		return 2 * WORD;
+	}
+
+	public static int of(double value) {
+		return 2 * WORD;
+	}
+
+	public static int of(boolean[] values) {
+		return values == null ? NULL : WORD + values.length * WORD;
+	}
+
+	public static int of(byte[] values) {
+		return values == null ? NULL : WORD + pad(values.length);
+	}
+
+	public static int of(char[] values) {
+		return values == null ? NULL : WORD + values.length * WORD;
+	}
+
+	public static int of(short[] values) {
+		return values == null ? NULL : WORD + values.length * WORD;
+	}
+
+	public static int of(int[] values) {
+		return values == null ? NULL : WORD + values.length * WORD;
+	}
+
+	public static int of(float[] values) {
+		return values == null ? NULL : WORD + values.length * WORD;
+	}
+
+	public static int of(long[] values) {
+		return values == null ? NULL : WORD + values.length * 2 * WORD;
+	}
+
+	public static int of(double[] values) {
+		return values == null ? NULL : WORD + values.length * 2 * WORD;
+	}
+
+	public static int ofString(CharSequence value) {
+		// length followed by UTF-16 chars and a null terminator
+		return value == null ? NULL : WORD + pad((value.length() + 1) * 2);
+	}
+
+	/**
+	 * The size of the token saved in place of an offloaded value, see
+	 * {@link OffloadStore}
+	 */
+	public static int ofOffloaded(Object value) {
+		// tokens are UUIDs
+		return value == null ? NULL : WORD + pad((36 + 1) * 2);
+	}
+
+	/**
+	 * The size of a collection of boxed primitives saved as a primitive array
+	 * under the given key, see {@link PackedCollections}
+	 */
+	public static int ofPacked(String key, Collection<?> values) {
+		if (values == null)
+			return NULL;
+		int width = WORD;
+		int nulls = 0;
+		for (Object value : values) {
+			if (value == null)
+				nulls++;
+			else if (value instanceof Long || value instanceof Double)
+				width = 2 * WORD;
+			else if (value instanceof Byte)
+				width = 1;
+		}
+		int size = WORD + (width == 1 ? pad(values.size()) : values.size() * width);
+		// the null indices have an entry of their own
+		if (nulls != 0)
+			size += ofEntry(PackedCollections.nullsKey(key)) + WORD + nulls * WORD;
+		return size;
+	}
+
+	/**
+	 * Same as {@link #ofPacked(String, Collection)} for arrays of boxed
+	 * primitives
+	 */
+	public static int ofPacked(String key, Object[] values) {
+		return values == null ? NULL : ofPacked(key, Arrays.asList(values));
+	}
+
+	/**
+	 * The size of an array saved as an array of bundles holding one element
+	 * each
+	 */
+	public static int ofBundled(Object[] values) {
+		return values == null ? NULL : ofBundled(Arrays.asList(values));
+	}
+
+	/**
+	 * Same as {@link #ofBundled(Object[])} for the elements of a collection
+	 */
+	public static int ofBundled(Collection<?> values) {
+		if (values == null)
+			return NULL;
+		int size = WORD;
+		for (Object value : values) {
+			// every bundle is written with its class name, length and magic
+			// number followed by the single entry
+			size += value == null ? NULL
+					: BUNDLE_HEADER + ofEntry(ELEMENT_KEY) + ofObject(value);
+		}
+		return size;
+	}
+
+	/**
+	 * The size of a multidimensional array saved as a flat array and a shape
+	 * under the given key, see {@link FlatArrays}. The array is walked without
+	 * being flattened
+	 */
+	public static int ofFlattened(String key, Object[] values) {
+		if (values == null)
+			return NULL;
+		final Shape shape = new Shape();
+		shape.walk(values);
+		Class<?> type = values.getClass();
+		while (type.isArray())
+			type = type.getComponentType();
+		final int flat;
+		if (type == byte.class)
+			flat = pad(shape.elements);
+		else if (type == long.class || type == double.class)
+			flat = shape.elements * 2 * WORD;
+		else if (type.isPrimitive())
+			flat = shape.elements * WORD;
+		else
+			flat = shape.strings;
+		// the shape has an entry of its own
+		return WORD + flat + ofEntry(FlatArrays.shapeKey(key)) + WORD + shape.lengths * WORD;
+	}
+
+	/**
+	 * The size of a map saved as its size followed by parallel arrays of keys
+	 * and values under the given key, see {@link PackedCollections#zip}
+	 *
+	 * @param keys
+	 *            how the keys are saved
+	 * @param values
+	 *            how the values are saved
+	 */
+	public static int ofMap(String key, Map<?, ?> map, Encoding keys, Encoding values) {
+		if (map == null)
+			return WORD;
+		return WORD + ofSide(key + "$keys", map.keySet(), keys)
+				+ ofSide(key + "$values", map.values(), values);
+	}
+
+	private static int ofSide(String key, Collection<?> elements, Encoding encoding) {
+		final int entry = ofEntry(key);
+		switch (encoding) {
+		case PACKED:
+			return entry + ofPacked(key, elements);
+		case BUNDLED:
+			return entry + ofBundled(elements);
+		default:
+			return entry + ofObject(elements);
+		}
+	}
+
+	/**
+	 * Estimates a value whose type is only known at runtime
+	 */
+	public static int ofObject(Object value) {
+		if (value == null)
+			return NULL;
+		if (value instanceof CharSequence)
+			return ofString((CharSequence) value);
+		if (value instanceof Long || value instanceof Double)
+			return 2 * WORD;
+		if (value instanceof Number || value instanceof Boolean || value instanceof Character)
+			return WORD;
+		if (value instanceof boolean[])
+			return of((boolean[]) value);
+		if (value instanceof byte[])
+			return of((byte[]) value);
+		if (value instanceof char[])
+			return of((char[]) value);
+		if (value instanceof short[])
+			return of((short[]) value);
+		if (value instanceof int[])
+			return of((int[]) value);
+		if (value instanceof float[])
+			return of((float[]) value);
+		if (value instanceof long[])
+			return of((long[]) value);
+		if (value instanceof double[])
+			return of((double[]) value);
+		if (value instanceof Bundle)
+			return ofBundle((Bundle) value);
+		if (value instanceof Parcelable)
+			return ofParcelable((Parcelable) value);
+		if (value instanceof Object[]) {
+			int size = WORD;
+			for (Object element : (Object[]) value) {
+				size += WORD + ofObject(element);
+			}
+			return size;
+		}
+		if (value instanceof Collection) {
+			int size = WORD;
+			for (Object element : (Collection<?>) value) {
+				size += WORD + ofObject(element);
+			}
+			return size;
+		}
+		if (value instanceof Map) {
+			int size = WORD;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += 2 * WORD + ofObject(entry.getKey()) + ofObject(entry.getValue());
+			}
+			return size;
+		}
+		if (value instanceof Serializable)
+			return ofSerializable((Serializable) value);
+		// nothing we know of, the save would fail anyway
+		return NULL;
+	}
+
+	public static int ofBundle(Bundle bundle) {
+		if (bundle == null)
+			return NULL;
+		// length and magic number
+		int size = 2 * WORD;
+		for (String key : bundle.keySet()) {
+			size += ofEntry(key) + ofObject(bundle.get(key));
+		}
+		return size;
+	}
+
+	public static int ofParcelable(Parcelable value) {
+		if (value == null)
+			return NULL;
+		final Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeParcelable(value, 0);
+			return parcel.dataSize();
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/**
+	 * The class name followed by the serialized bytes. The value is
+	 * serialized into a stream that only counts, which costs as much as the
+	 * save itself; a value that fails to serialize only counts its name
+	 */
+	public static int ofSerializable(Serializable value) {
+		if (value == null)
+			return NULL;
+		final CountingOutputStream counter = new CountingOutputStream();
+		try {
+			final ObjectOutputStream output = new ObjectOutputStream(counter);
+			output.writeObject(value);
+			output.close();
+		} catch (IOException e) {
+			// the save fails the same way
+			counter.count = 0;
+		}
+		return ofString(value.getClass().getName()) + WORD + pad(counter.count);
+	}
+
+	private static int pad(int size) {
+		return (size + WORD - 1) & ~(WORD - 1);
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+
+		int count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	// walks a multidimensional array the way FlatArrays would flatten it
+	private static final class Shape {
+
+		int lengths;
+		int elements;
+		int strings;
+
+		void walk(Object[] array) {
+			lengths++;
+			final boolean leaf = !array.getClass().getComponentType().getComponentType()
+					.isArray();
+			for (Object row : array) {
+				if (row == null) {
+					lengths++;
+				} else if (!leaf) {
+					walk((Object[]) row);
+				} else {
+					lengths++;
+					elements += Array.getLength(row);
+					if (row instanceof Object[]) {
+						for (Object element : (Object[]) row)
+							strings += ofString((CharSequence) element);
+					}
+				}
+			}
+		}
+	}
+
+}
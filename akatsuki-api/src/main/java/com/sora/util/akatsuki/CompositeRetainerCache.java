@@ -0,0 +1,27 @@
+package com.sora.util.akatsuki;
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+
+/**
+ * Merges the {@link RetainerCache}s generated for each module, the first
+ * cache that has the retainer wins
+ */
+final class CompositeRetainerCache implements RetainerCache {
+
+	private final RetainerCache[] caches;
+
+	CompositeRetainerCache(List<RetainerCache> caches) {
+		this.caches = caches.toArray(new RetainerCache[caches.size()]);
+	}
+
+	@Override
+	public <T> BundleRetainer<T> getCached(Class<? extends Annotation> type, String clazz) {
+		for (RetainerCache cache : caches) {
+			final BundleRetainer<T> retainer = cache.getCached(type, clazz);
+			if (retainer != null)
+				return retainer;
+		}
+		return null;
+	}
+}
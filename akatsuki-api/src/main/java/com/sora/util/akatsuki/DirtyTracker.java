@@ -0,0 +1,149 @@
+package com.sora.util.akatsuki;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+import android.os.Bundle;
+
+/**
+ * Remembers a copy of every tracked field from the last save into a bundle so
+ * that saving the same object into the same bundle again can skip fields that
+ * haven't changed, see {@link RetainConfig#trackChanges()}. Only arrays,
+ * collections and maps of immutable values are tracked so a shallow copy of
+ * the elements covers the whole content.
+ * <b>This is not the class you are looking for</b>
+ */
+public final class DirtyTracker {
+
+	private final int fieldCount;
+
+	// guarded by this; bundles don't override equals so this is by identity
+	private final Map<Bundle, Snapshot> snapshots = new WeakHashMap<>();
+
+	public DirtyTracker(int fieldCount) {
+		this.fieldCount = fieldCount;
+	}
+
+	/**
+	 * @return the copies of the last save of the source into the bundle,
+	 *         every field is considered changed if there wasn't one
+	 */
+	public synchronized Snapshot begin(Object source, Bundle bundle) {
+		Snapshot snapshot = snapshots.get(bundle);
+		if (snapshot == null || snapshot.source.get() != source) {
+			snapshot = new Snapshot(source, fieldCount);
+			snapshots.put(bundle, snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * The copies of one source saved into one bundle; the retainer and with it
+	 * the tracker may be shared so this is guarded by itself
+	 */
+	public static final class Snapshot {
+
+		private final WeakReference<Object> source;
+		private final Object[] copies;
+		private final boolean[] saved;
+
+		Snapshot(Object source, int fieldCount) {
+			this.source = new WeakReference<>(source);
+			this.copies = new Object[fieldCount];
+			this.saved = new boolean[fieldCount];
+		}
+
+		/**
+		 * Records a copy of the field
+		 *
+		 * @return false if the field was saved with the same content before
+		 *         and the bundle still has the key, true if the field has to
+		 *         be saved
+		 */
+		public synchronized boolean changed(int index, Object value, Bundle bundle, String key) {
+			if (saved[index] && same(copies[index], value) && bundle.containsKey(key))
+				return false;
+			copies[index] = copy(value);
+			saved[index] = true;
+			return true;
+		}
+	}
+
+	// arrays are copied down to the innermost one, collections and maps into
+	// an array of their elements in iteration order
+	static Object copy(Object value) {
+		if (value instanceof Object[]) {
+			final Object[] copy = ((Object[]) value).clone();
+			for (int i = 0; i < copy.length; i++)
+				copy[i] = copy(copy[i]);
+			return copy;
+		} else if (value instanceof int[])
+			return ((int[]) value).clone();
+		else if (value instanceof long[])
+			return ((long[]) value).clone();
+		else if (value instanceof byte[])
+			return ((byte[]) value).clone();
+		else if (value instanceof char[])
+			return ((char[]) value).clone();
+		else if (value instanceof short[])
+			return ((short[]) value).clone();
+		else if (value instanceof float[])
+			return ((float[]) value).clone();
+		else if (value instanceof double[])
+			return ((double[]) value).clone();
+		else if (value instanceof boolean[])
+			return ((boolean[]) value).clone();
+		else if (value instanceof Collection)
+			return ((Collection<?>) value).toArray();
+		else if (value instanceof Map) {
+			final Object[] copy = new Object[((Map<?, ?>) value).size() * 2];
+			int i = 0;
+			for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				copy[i++] = entry.getKey();
+				copy[i++] = entry.getValue();
+			}
+			return copy;
+		}
+		return value;
+	}
+
+	static boolean same(Object copy, Object value) {
+		if (copy == null || value == null)
+			return copy == value;
+		if (value instanceof Collection) {
+			final Object[] elements = (Object[]) copy;
+			final Collection<?> collection = (Collection<?>) value;
+			if (elements.length != collection.size())
+				return false;
+			int i = 0;
+			for (Object element : collection) {
+				if (!equal(elements[i++], element))
+					return false;
+			}
+			return true;
+		} else if (value instanceof Map) {
+			final Object[] entries = (Object[]) copy;
+			final Map<?, ?> map = (Map<?, ?>) value;
+			if (entries.length != map.size() * 2)
+				return false;
+			int i = 0;
+			for (Entry<?, ?> entry : map.entrySet()) {
+				if (!equal(entries[i++], entry.getKey()) || !equal(entries[i++], entry.getValue()))
+					return false;
+			}
+			return true;
+		}
+		if (value instanceof Object[])
+			return Arrays.deepEquals((Object[]) copy, (Object[]) value);
+		return copy.equals(value);
+	}
+
+	private static boolean equal(Object left, Object right) {
+		return left == null ? right == null : left.equals(right);
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.sora.util.akatsuki;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates an {@link Externalizer} for a {@link java.io.Serializable} class
+ * so that {@link Retained} fields of the class are saved field by field into a
+ * byte array instead of going through Java serialization, which is slow and
+ * writes a class descriptor into every bundle. The class must have an
+ * accessible no argument constructor and fields that are not private; static
+ * and transient fields are skipped. Fields are written with
+ * {@link StateStreams}, fields that can't be are still serialized. Values of a
+ * subclass are serialized as a whole as they would lose their fields. Fields
+ * of other externalized types are written in place, so a value referenced
+ * twice is restored as two copies; fields whose type can lead back to the
+ * class are serialized instead, which keeps cycles intact.
+ * Classes that customise serialization with {@code writeObject},
+ * {@code readObject}, {@code readObjectNoData}, {@code writeReplace},
+ * {@code readResolve} or {@link java.io.Externalizable} are rejected as the
+ * externalizer would bypass them
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface Externalized {
+
+	/**
+	 * Identifies the field in the bytes written by the {@link Externalizer}.
+	 * Fields without one take their position among the fields of the class
+	 * and its serializable superclasses, which breaks bytes written before
+	 * fields are removed or reordered. Ordinals must be unique within the
+	 * hierarchy
+	 */
+	@Target(ElementType.FIELD)
+	@Retention(RetentionPolicy.CLASS)
+	@interface Ordinal {
+
+		int value();
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+
+import android.os.Bundle;
+
+/**
+ * Base class of the generated externalizers of {@link Externalized} classes.
+ * <b>This is not the class you are looking for</b>
+ *
+ * @param <T>
+ *            the externalized type
+ */
+public abstract class Externalizer<T> {
+
+	private final Class<T> type;
+
+	protected Externalizer(Class<T> type) {
+		this.type = type;
+	}
+
+	protected abstract T create();
+
+	public abstract void write(T source, DataOutput output) throws IOException;
+
+	public abstract void read(T source, DataInput input) throws IOException;
+
+	/**
+	 * Puts the fields of the value as a byte array, a subclass is put as
+	 * {@link Serializable} instead as it would lose its fields
+	 */
+	public final void save(Bundle bundle, String key, T value) {
+		if (value == null || value.getClass() == type)
+			bundle.putByteArray(key, toBytes(value));
+		else
+			bundle.putSerializable(key, (Serializable) value);
+	}
+
+	/**
+	 * @return the value put with {@link #save(Bundle, String, Object)}
+	 */
+	public final T restore(Bundle bundle, String key) {
+		final Object value = bundle.get(key);
+		return value instanceof byte[] ? fromBytes((byte[]) value) : type.cast(value);
+	}
+
+	/**
+	 * Writes the fields of the value as a field of an enclosing stream, a
+	 * subclass is written with
+	 * {@link StateStreams#writeSerializable(DataOutput, int, Serializable)}
+	 * instead as it would lose its fields
+	 */
+	public final void writeField(DataOutput output, int ordinal, T value) throws IOException {
+		if (value == null || value.getClass() == type)
+			StateStreams.writeBytes(output, ordinal, toBytes(value));
+		else
+			StateStreams.writeSerializable(output, ordinal, (Serializable) value);
+	}
+
+	/**
+	 * @return the value written with {@link #writeField(DataOutput, int, Object)}
+	 */
+	public final T readField(DataInput input, int tag) throws IOException {
+		final byte[] bytes = StateStreams.readBytes(input, tag);
+		if (!isSerialized(bytes))
+			return fromBytes(bytes);
+		final ObjectInputStream stream = new TypeObjectInputStream(bytes);
+		try {
+			return type.cast(stream.readObject());
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to read field " + StateStreams.ordinal(tag), e);
+		} finally {
+			stream.close();
+		}
+	}
+
+	// subclasses are looked up next to the externalized type first
+	private final class TypeObjectInputStream extends ObjectInputStream {
+
+		TypeObjectInputStream(byte[] bytes) throws IOException {
+			super(new ByteArrayInputStream(bytes));
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, type.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
+
+	// our bytes start with a tag, which is either positive or END, never with
+	// the stream magic of serialization
+	private static boolean isSerialized(byte[] bytes) {
+		return bytes != null && bytes.length >= 2
+				&& bytes[0] == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8)
+				&& bytes[1] == (byte) ObjectStreamConstants.STREAM_MAGIC;
+	}
+
+	/**
+	 * @return the fields of the value or null if the value is null
+	 * @throws IllegalArgumentException
+	 *             if the value is a subclass, it would lose its fields, see
+	 *             {@link #save(Bundle, String, Object)}
+	 */
+	public final byte[] toBytes(T value) {
+		if (value == null)
+			return null;
+		if (value.getClass() != type)
+			throw new IllegalArgumentException(value.getClass() + " is a subclass of the "
+					+ "@Externalized " + type + " and can't be externalized as one");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(value, new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to externalize " + value, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return a new instance with the fields read from the bytes or null if
+	 *         the bytes are null
+	 */
+	public final T fromBytes(byte[] bytes) {
+		if (bytes == null)
+			return null;
+		final T value = create();
+		try {
+			read(value, new DataInputStream(new ByteArrayInputStream(bytes)));
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read externalized " + value.getClass(), e);
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.sora.util.akatsuki;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Saves multidimensional arrays as a single flat array of the innermost
+ * component type, in row-major order, along with a shape. The shape lists the
+ * length of every array in the tree in pre-order with {@code -1} for nulls so
+ * jagged arrays come back as they were. <b>This is not the class you are
+ * looking for</b>
+ */
+public final class FlatArrays {
+
+	private static final String SHAPE_SUFFIX = "$shape";
+	private static final int NULL = -1;
+
+	private FlatArrays() {
+	}
+
+	/**
+	 * @return the key of the shape saved along with the given key
+	 */
+	public static String shapeKey(String key) {
+		return key + SHAPE_SUFFIX;
+	}
+
+	/**
+	 * @return the shape of the given array or null if the array is null
+	 */
+	public static int[] shape(Object[] array) {
+		if (array == null)
+			return null;
+		final Cursor cursor = new Cursor(new int[16]);
+		shape(array, cursor);
+		return Arrays.copyOf(cursor.shape, cursor.index);
+	}
+
+	/**
+	 * @param type
+	 *            the innermost component type, such as {@code int.class} for
+	 *            an {@code int[][]}
+	 * @return an array of the given component type holding all elements of
+	 *         the given array or null if the array is null
+	 */
+	public static Object flatten(Object[] array, Class<?> type) {
+		if (array == null)
+			return null;
+		final Object flat = Array.newInstance(type, count(array));
+		flatten(array, flat, 0);
+		return flat;
+	}
+
+	/**
+	 * Rebuilds an array from the flat array and shape, each row is allocated
+	 * exactly once
+	 *
+	 * @param type
+	 *            the type of the array such as {@code int[][].class}
+	 * @return the array or null if either the flat array or the shape is null
+	 */
+	public static Object unflatten(Object flat, int[] shape, Class<?> type) {
+		if (flat == null || shape == null)
+			return null;
+		final Cursor cursor = new Cursor(shape);
+		final Object array = unflatten(flat, cursor, type);
+		if (cursor.index != shape.length || cursor.offset != Array.getLength(flat))
+			throw new IllegalArgumentException("Shape " + Arrays.toString(shape)
+					+ " does not match the " + Array.getLength(flat) + " elements saved");
+		return array;
+	}
+
+	private static void shape(Object[] array, Cursor cursor) {
+		cursor.append(array.length);
+		final boolean leaf = !array.getClass().getComponentType().getComponentType().isArray();
+		for (Object row : array) {
+			if (row == null)
+				cursor.append(NULL);
+			else if (leaf)
+				cursor.append(Array.getLength(row));
+			else
+				shape((Object[]) row, cursor);
+		}
+	}
+
+	private static int count(Object[] array) {
+		final boolean leaf = !array.getClass().getComponentType().getComponentType().isArray();
+		int count = 0;
+		for (Object row : array) {
+			if (row != null)
+				count += leaf ? Array.getLength(row) : count((Object[]) row);
+		}
+		return count;
+	}
+
+	private static int flatten(Object[] array, Object flat, int offset) {
+		final boolean leaf = !array.getClass().getComponentType().getComponentType().isArray();
+		for (Object row : array) {
+			if (row == null)
+				continue;
+			if (leaf) {
+				final int length = Array.getLength(row);
+				System.arraycopy(row, 0, flat, offset, length);
+				offset += length;
+			} else {
+				offset = flatten((Object[]) row, flat, offset);
+			}
+		}
+		return offset;
+	}
+
+	private static Object unflatten(Object flat, Cursor cursor, Class<?> type) {
+		final int length = cursor.next();
+		if (length == NULL)
+			return null;
+		final Class<?> component = type.getComponentType();
+		final Object array = Array.newInstance(component, length);
+		if (component.isArray()) {
+			final Object[] rows = (Object[]) array;
+			for (int i = 0; i < length; i++) {
+				rows[i] = unflatten(flat, cursor, component);
+			}
+		} else {
+			System.arraycopy(flat, cursor.offset, array, 0, length);
+			cursor.offset += length;
+		}
+		return array;
+	}
+
+	// position in the shape and the flat array
+	private static final class Cursor {
+
+		int[] shape;
+		int index;
+		int offset;
+
+		Cursor(int[] shape) {
+			this.shape = shape;
+		}
+
+		void append(int length) {
+			if (index == shape.length)
+				shape = Arrays.copyOf(shape, shape.length * 2);
+			shape[index++] = length;
+		}
+
+		int next() {
+			if (index == shape.length)
+				throw new IllegalArgumentException(
+						"Shape " + Arrays.toString(shape) + " ended early");
+			return shape[index++];
+		}
+	}
+
+}
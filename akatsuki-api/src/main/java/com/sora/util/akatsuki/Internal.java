@@ -2,6 +2,12 @@ package com.sora.util.akatsuki;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
 
 import android.os.Bundle;
 import android.util.Log;
@@ -16,6 +22,16 @@ class Internal {
 	static final String BUILDER_CLASS_NAME = "Builders";
 	static final String BUILDER_CLASS_SUFFIX = "Builder";
 
+	// marks classes with no retainer anywhere in their hierarchy
+	private static final Class<?> NO_RETAINER = Void.class;
+
+	// class -> retainer class of the class itself or the closest ancestor that
+	// has one, or NO_RETAINER; this spares us from walking up the hierarchy
+	// with Class.forName(and exceptions) more than once per class. The result
+	// depends on the loader, so only lookups made with the loader of the class
+	// itself are recorded
+	static final WeakClassMap<Class<?>> RESOLVED_RETAINERS = new WeakClassMap<>();
+
 	private static String getPackageNameString(Class<?> clazz) {
 		Package pkg = clazz.getPackage();
 		String packageName = null;
@@ -33,9 +49,10 @@ class Internal {
 
 	/**
 	 * Finds the {@link BundleRetainer} class and instantiate it. You would not
-	 * normally need this, this method does not do any caching and is designed
-	 * to be used from classes that require access to a fresh
-	 * {@link BundleRetainer} instance
+	 * normally need this, this method does not do any caching by itself. If
+	 * the given {@link RetainerCache} has the retainer, the cached one is
+	 * returned instead, which is shared when
+	 * {@link AkatsukiConfig.OptFlags#CACHE_INSTANCES} is enabled
 	 *
 	 * @param <T>
 	 *            the type of the annotated instance
@@ -57,9 +74,17 @@ class Internal {
 			throw new AssertionError("Unable to create retainer for unknown class " + type);
 		}
 
+		if (cache != null) {
+			BundleRetainer<T> retainer = cache.getCached(type, clazz.getName());
+			final AkatsukiMetrics metrics = Akatsuki.metrics;
+			if (metrics != null)
+				metrics.onRegistryLookup(clazz, type, retainer != null);
+			if (retainer != null)
+				return retainer;
+		}
+
 		Class<? extends BundleRetainer<?>> retainerClass = type == Retained.class
-				? findRetainedRetainerClass(loader, cache, clazz)
-				: findArgRetainerClass(loader, cache, clazz);
+				? findRetainedRetainerClass(loader, clazz) : findArgRetainerClass(loader, clazz);
 
 		try {
 			return (BundleRetainer<T>) retainerClass.newInstance();
@@ -73,49 +98,71 @@ class Internal {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	static <T> Class<? extends BundleRetainer<?>> findRetainedRetainerClass(ClassLoader loader,
-			RetainerCache cache, Class<?> clazz) {
-		final BundleRetainer<T> instance;
-		final String fqcn = clazz.getName();
-
-		Class<? extends BundleRetainer<T>> retainerClass = null;
-		// TODO we didn't cache Arg.class , implement it
-		if (cache != null)
-			retainerClass = cache.getCached(fqcn);
+	/**
+	 * Finds all {@link RetainerCache}s visible to the given class loader,
+	 * modules register theirs through {@link ServiceLoader}. The unnamed table
+	 * is looked up directly as well for classes compiled before tables were
+	 * registered.
+	 *
+	 * @return the merged cache or null if there are none
+	 */
+	static RetainerCache loadRetainerCache(ClassLoader loader) {
+		final List<RetainerCache> caches = new ArrayList<>();
+		final Set<Class<?>> found = new HashSet<>();
+		try {
+			for (RetainerCache cache : ServiceLoader.load(RetainerCache.class, loader)) {
+				if (found.add(cache.getClass()))
+					caches.add(cache);
+			}
+		} catch (ServiceConfigurationError e) {
+			// we have it but it's broken, not good
+			throw new RuntimeException("Unable to instantiate RetainerCache", e);
+		}
 
-		if (retainerClass == null) {
-			String className = generateRetainerClassName(fqcn);
+		Class<?> legacyClass = null;
+		try {
+			legacyClass = Class.forName(
+					Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME, true,
+					loader);
+		} catch (ClassNotFoundException ignored) {
+			// we don't have it, that's fine
+		}
+		if (legacyClass != null && found.add(legacyClass)) {
 			try {
-				retainerClass = (Class<? extends BundleRetainer<T>>) Class.forName(className, true,
-						loader);
-			} catch (ClassNotFoundException ignored) {
-				Log.i(Akatsuki.TAG, "Retainer class does not exist for " + clazz
-						+ ", was looking for " + className + "; trying inheritance next");
-				// can't find it, moving on
+				caches.add((RetainerCache) legacyClass.newInstance());
+			} catch (Exception e) {
+				throw new RuntimeException("Unable to instantiate RetainerCache", e);
 			}
 		}
 
-		// search the tree
+		if (Akatsuki.loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
+			Log.i(Akatsuki.TAG, "RetainerCache found: " + found);
+
+		if (caches.isEmpty())
+			return null;
+		return caches.size() == 1 ? caches.get(0) : new CompositeRetainerCache(caches);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> Class<? extends BundleRetainer<?>> findRetainedRetainerClass(ClassLoader loader,
+			Class<?> clazz) {
+		Class<?> retainerClass = resolved(loader, clazz);
 		if (retainerClass == null)
-			retainerClass = (Class<? extends BundleRetainer<T>>) findClass(loader, clazz);
+			retainerClass = findClass(loader, clazz);
 
-		if (retainerClass == null) {
-			throw new RuntimeException("Unable to find generated class for " + fqcn
+		if (retainerClass == NO_RETAINER) {
+			throw new RuntimeException("Unable to find generated class for " + clazz.getName()
 					+ " while traversing the class hierarchy."
 					+ "\nYou cannot call Akatsuki.save/restore with classes that does not have fields annotated with @Retained."
 					+ "\nIf proguard is turned on, please add the respective rules for Akatsuki.");
 
 		}
-		return retainerClass;
+		return (Class<? extends BundleRetainer<?>>) retainerClass;
 	}
 
 	@SuppressWarnings("unchecked")
 	static <T> Class<? extends BundleRetainer<T>> findArgRetainerClass(ClassLoader loader,
-			RetainerCache cache, Class<T> clazz) {
-
-		final BundleRetainer<T> instance;
-		final String fqcn = clazz.getName();
+			Class<T> clazz) {
 
 		Class<? extends BundleRetainer<T>> retainerClass;
 
@@ -160,20 +207,80 @@ class Internal {
 	}
 
 	/**
-	 * Traverse the class hierarchy to find correct BundleRetainer
+	 * Traverse the class hierarchy to find correct BundleRetainer, the result
+	 * is recorded for every class visited
 	 */
 	private static Class<?> findClass(ClassLoader loader, Class<?> clazz) {
-		final String name = clazz.getName();
-		if (name.startsWith("android.") || name.startsWith("java."))
-			return null;
-		String generatedClassName = generateRetainerClassName(name);
+		final List<Class<?>> visited = new ArrayList<>();
+		Class<?> retainerClass = null;
+		for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+			// an ancestor might have been resolved by another subclass
+			retainerClass = resolved(loader, current);
+			if (retainerClass != null)
+				break;
+			visited.add(current);
+			final String name = current.getName();
+			if (current != clazz && (name.startsWith("android.") || name.startsWith("java.")))
+				break;
+			retainerClass = loadRetainerClass(loader, current);
+			if (retainerClass != null)
+				break;
+		}
+		if (retainerClass == null)
+			retainerClass = NO_RETAINER;
+		for (Class<?> type : visited) {
+			if (type.getClassLoader() == loader)
+				RESOLVED_RETAINERS.putIfAbsent(type, retainerClass);
+		}
+		final AkatsukiMetrics metrics = Akatsuki.metrics;
+		if (metrics != null)
+			metrics.onHierarchyTraversal(clazz, visited.size());
+		return retainerClass;
+	}
+
+	private static Class<?> resolved(ClassLoader loader, Class<?> clazz) {
+		return clazz.getClassLoader() == loader ? RESOLVED_RETAINERS.get(clazz) : null;
+	}
+
+	private static Class<?> loadRetainerClass(ClassLoader loader, Class<?> clazz) {
+		String generatedClassName = generateRetainerClassName(clazz.getName());
 		try {
-			if (Akatsuki.loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
-				Log.i(Akatsuki.TAG, "traversing hierarchy to find retainer for class " + clazz);
 			return Class.forName(generatedClassName, true, loader);
 		} catch (ClassNotFoundException e) {
-			return findClass(loader, clazz.getSuperclass());
+			if (Akatsuki.loggingLevel == AkatsukiConfig.LoggingLevel.VERBOSE)
+				Log.i(Akatsuki.TAG, "Retainer class does not exist for " + clazz
+						+ ", was looking for " + generatedClassName + "; trying inheritance next");
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the {@link StreamRetainer} of the class or the closest ancestor
+	 * that has one and instantiates it
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> StreamRetainer<T> createStreamRetainer(ClassLoader loader, Class<?> clazz) {
+		for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+			final String name = current.getName();
+			if (name.startsWith("android.") || name.startsWith("java."))
+				break;
+			try {
+				return (StreamRetainer<T>) Class
+						.forName(generateStreamRetainerClassName(name), true, loader)
+						.newInstance();
+			} catch (ClassNotFoundException ignored) {
+				// try the superclass next
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new RuntimeException("Unable to access/instantiate stream retainer class",
+						e);
+			}
 		}
+		throw new RuntimeException("No StreamRetainer found for " + clazz
+				+ ", did you enable @RetainConfig(stream = true)?");
+	}
+
+	static void discardCache() {
+		RESOLVED_RETAINERS.clear();
 	}
 
 	/**
@@ -187,6 +294,33 @@ class Internal {
 		return prefix + "$$" + BundleRetainer.class.getSimpleName();
 	}
 
+	/**
+	 * Create the name for the generated {@link StreamRetainer}. <b>This is not
+	 * the method you are looking for</b>
+	 */
+	static String generateStreamRetainerClassName(CharSequence prefix) {
+		return prefix + "$$" + StreamRetainer.class.getSimpleName();
+	}
+
+	/**
+	 * Create the name for the generated {@link Externalizer}. <b>This is not
+	 * the method you are looking for</b>
+	 */
+	static String generateExternalizerClassName(CharSequence prefix) {
+		return prefix + "$$" + Externalizer.class.getSimpleName();
+	}
+
+	/**
+	 * Create the name for the generated static entry point class that sits next
+	 * to the retainer. <b>This is not the method you are looking for</b>
+	 *
+	 * @param prefix
+	 *            the class name
+	 */
+	static String generateEntryPointClassName(CharSequence prefix) {
+		return prefix + "$$" + Akatsuki.class.getSimpleName();
+	}
+
 	public static abstract class ArgBuilder<T> {
 
 		protected Bundle bundle;
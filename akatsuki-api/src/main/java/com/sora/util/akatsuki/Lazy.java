@@ -0,0 +1,96 @@
+package com.sora.util.akatsuki;
+
+import android.os.Bundle;
+
+import com.sora.util.akatsuki.Akatsuki.InstanceSupplier;
+
+/**
+ * Holds a nested object with {@link Retained} fields that is only restored
+ * when it is first used. Annotating a {@code Lazy<T>} field with
+ * {@link Retained} keeps the saved state of {@code T} as is during restore
+ * and restores it on the first call to {@link #get()}; if {@link #get()} is
+ * never called, the state is saved again without ever being restored. An
+ * instance that is yet to be created is not created to be saved, nothing is
+ * saved for it.
+ * <p>
+ * {@link #get()} is thread safe, the state is restored exactly once.
+ *
+ * @param <T>
+ *            the type of the nested object
+ */
+public final class Lazy<T> {
+
+	private final InstanceSupplier<T> supplier;
+
+	// guarded by this, visible once initialized is set
+	private T value;
+	private Bundle pending;
+	private volatile boolean initialized;
+
+	private Lazy(T value, InstanceSupplier<T> supplier, boolean initialized) {
+		this.value = value;
+		this.supplier = supplier;
+		this.initialized = initialized;
+	}
+
+	/**
+	 * Holds the given instance, the saved state is restored into it
+	 */
+	public static <T> Lazy<T> of(T value) {
+		if (value == null)
+			throw new IllegalArgumentException("value == null!");
+		return new Lazy<>(value, null, true);
+	}
+
+	/**
+	 * Creates the instance with the given supplier when it is first used
+	 */
+	public static <T> Lazy<T> of(InstanceSupplier<T> supplier) {
+		if (supplier == null)
+			throw new IllegalArgumentException("supplier == null!");
+		return new Lazy<>(null, supplier, false);
+	}
+
+	/**
+	 * @return the instance, restored from the saved state if there is one
+	 */
+	public T get() {
+		if (initialized)
+			return value;
+		synchronized (this) {
+			if (!initialized) {
+				if (value == null)
+					value = supplier.create();
+				if (pending != null) {
+					Akatsuki.deserialize(value, pending);
+					pending = null;
+				}
+				initialized = true;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * @return true if {@link #get()} has nothing left to do
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	synchronized Bundle save() {
+		// never used since the restore or since it was created, nothing could
+		// have changed
+		if (!initialized)
+			return pending;
+		return Akatsuki.serialize(value);
+	}
+
+	synchronized void restore(Bundle bundle) {
+		if (bundle == null)
+			return;
+		pending = bundle;
+		initialized = false;
+	}
+
+}
@@ -0,0 +1,322 @@
+package com.sora.util.akatsuki;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A file backed store for values of fields annotated with
+ * {@code @Retained(offload = true)}; the value is written to a file and only
+ * a token is saved in the bundle. Register one with
+ * {@link Akatsuki#setOffloadStore(OffloadStore)}, typically in
+ * {@code Application.onCreate()} with a directory under
+ * {@code Context.getCacheDir()}.
+ * <p>
+ * Values are written with Java serialization through buffered file streams,
+ * the store doesn't sync them to the disk as they are only a cache. The store is bounded by size, the least recently used values
+ * are evicted first; values older than the maximum age are removed when the
+ * store is created and when it is {@link #trim()}ed. A value that has been
+ * evicted restores as null. Values written for a field of an object replace
+ * the last value written or read for the same field of the same object. All
+ * methods are thread safe.
+ */
+public class OffloadStore {
+
+	private static final String SUFFIX = ".offload";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+
+	// token -> size in bytes, in access order
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+
+	// guarded by this, identity hash -> tokens of the owners with that hash;
+	// owners are held weakly and told apart by identity, not equals
+	private final Map<Integer, Tokens> owners = new HashMap<>();
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+	/**
+	 * @param directory
+	 *            a directory used by this store only, created if needed
+	 * @param maxBytes
+	 *            the total size of the values kept
+	 * @param maxAgeMillis
+	 *            values not used for this long are removed
+	 */
+	public OffloadStore(File directory, long maxBytes, long maxAgeMillis) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes must be positive, was " + maxBytes);
+		if (maxAgeMillis <= 0)
+			throw new IllegalArgumentException(
+					"maxAgeMillis must be positive, was " + maxAgeMillis);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("unable to create directory " + directory);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		load();
+	}
+
+	/**
+	 * Writes the value to the store
+	 *
+	 * @return the token for {@link #get(String)}, null if the value is null
+	 */
+	public String put(Object value) throws IOException {
+		if (value == null)
+			return null;
+		final String token = UUID.randomUUID().toString();
+		final File temp = new File(directory, token + TEMP_SUFFIX);
+		final ObjectOutputStream stream = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			stream.writeObject(value);
+		} catch (IOException e) {
+			stream.close();
+			temp.delete();
+			throw e;
+		}
+		stream.close();
+		final long length = temp.length();
+		// readers never see a partially written value
+		if (!temp.renameTo(fileOf(token))) {
+			temp.delete();
+			throw new IOException("unable to move " + temp + " into place");
+		}
+		synchronized (this) {
+			entries.put(token, length);
+			size += length;
+			evict(token);
+		}
+		return token;
+	}
+
+	/**
+	 * Writes the value of a field to the store, the value last written or
+	 * read for the same field of the same owner is removed
+	 *
+	 * @param owner
+	 *            the object declaring the field
+	 * @param key
+	 *            the key of the field
+	 * @return the token for {@link #get(Object, String, String)}, null if the
+	 *         value is null
+	 */
+	public String put(Object owner, String key, Object value) throws IOException {
+		final String token = put(value);
+		final String previous;
+		synchronized (this) {
+			previous = tokensOf(owner).put(key, token);
+		}
+		if (previous != null && !previous.equals(token))
+			remove(previous);
+		return token;
+	}
+
+	/**
+	 * Reads the value of a field back, the token is remembered so that the
+	 * next {@link #put(Object, String, Object)} of the same field replaces it
+	 *
+	 * @return the value or null if the token is null or the value has been
+	 *         evicted
+	 */
+	public <T> T get(Object owner, String key, String token)
+			throws IOException, ClassNotFoundException {
+		synchronized (this) {
+			tokensOf(owner).put(key, token);
+		}
+		return get(token);
+	}
+
+	/**
+	 * Reads the value back
+	 *
+	 * @return the value or null if the token is null or the value has been
+	 *         evicted
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String token) throws IOException, ClassNotFoundException {
+		if (token == null)
+			return null;
+		final File file = fileOf(token);
+		synchronized (this) {
+			if (entries.get(token) == null)
+				return null;
+		}
+		final FileInputStream input;
+		try {
+			input = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			// evicted in the mean time
+			return null;
+		}
+		try {
+			final ObjectInputStream stream = new ObjectInputStream(
+					new BufferedInputStream(input));
+			final T value = (T) stream.readObject();
+			file.setLastModified(System.currentTimeMillis());
+			return value;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Removes the value, nothing happens if there isn't one
+	 */
+	public synchronized void remove(String token) {
+		final Long removed = entries.remove(token);
+		if (removed != null) {
+			size -= removed;
+			fileOf(token).delete();
+		}
+	}
+
+	/**
+	 * Removes values older than the maximum age
+	 */
+	public synchronized void trim() {
+		final long threshold = System.currentTimeMillis() - maxAgeMillis;
+		final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, Long> entry = iterator.next();
+			final File file = fileOf(entry.getKey());
+			if (file.lastModified() < threshold) {
+				size -= entry.getValue();
+				file.delete();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes everything
+	 */
+	public synchronized void clear() {
+		for (String token : entries.keySet()) {
+			fileOf(token).delete();
+		}
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the total size of the values kept in bytes
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	private synchronized void load() {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		final long threshold = System.currentTimeMillis() - maxAgeMillis;
+		// oldest first so that the access order matches
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l < r ? -1 : l == r ? 0 : 1;
+			}
+		});
+		for (File file : files) {
+			final String name = file.getName();
+			// a temp file is a write that never finished
+			if (name.endsWith(TEMP_SUFFIX) || file.lastModified() < threshold) {
+				file.delete();
+			} else if (name.endsWith(SUFFIX)) {
+				entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+				size += file.length();
+			}
+		}
+		evict(null);
+	}
+
+	// the value just written is kept even if it is larger than the store
+	private void evict(String keep) {
+		final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (size > maxBytes && iterator.hasNext()) {
+			final Map.Entry<String, Long> entry = iterator.next();
+			if (entry.getKey().equals(keep))
+				continue;
+			size -= entry.getValue();
+			fileOf(entry.getKey()).delete();
+			iterator.remove();
+		}
+	}
+
+	private Map<String, String> tokensOf(Object owner) {
+		expungeCollectedOwners();
+		final Integer hash = System.identityHashCode(owner);
+		final Tokens head = owners.get(hash);
+		for (Tokens tokens = head; tokens != null; tokens = tokens.next) {
+			if (tokens.get() == owner)
+				return tokens.keys;
+		}
+		final Tokens tokens = new Tokens(owner, hash, head, collected);
+		owners.put(hash, tokens);
+		return tokens.keys;
+	}
+
+	private void expungeCollectedOwners() {
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null) {
+			final Tokens stale = (Tokens) reference;
+			Tokens previous = null;
+			for (Tokens tokens = owners.get(stale.hash); tokens != null; tokens = tokens.next) {
+				if (tokens != stale) {
+					previous = tokens;
+					continue;
+				}
+				if (previous != null)
+					previous.next = tokens.next;
+				else if (tokens.next != null)
+					owners.put(stale.hash, tokens.next);
+				else
+					owners.remove(stale.hash);
+				break;
+			}
+		}
+	}
+
+	private File fileOf(String token) {
+		return new File(directory, token + SUFFIX);
+	}
+
+	// the last token of every field of an owner, chained with the other
+	// owners of the same identity hash
+	private static final class Tokens extends WeakReference<Object> {
+
+		final Integer hash;
+		final Map<String, String> keys = new HashMap<>();
+		Tokens next;
+
+		Tokens(Object owner, Integer hash, Tokens next, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+			this.hash = hash;
+			this.next = next;
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+package com.sora.util.akatsuki;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * Saves collections of boxed primitives as primitive arrays; indices of null
+ * elements are saved as an {@code int[]} under a second key, which is only
+ * there when the collection contains nulls. Maps are saved as parallel arrays
+ * of keys and values. <b>This is not the class you are looking for</b>
+ */
+public final class PackedCollections {
+
+	private static final String NULLS_SUFFIX = "$nulls";
+	private static final int[] NO_NULLS = {};
+
+	private PackedCollections() {
+	}
+
+	/**
+	 * @return the key of the null indices saved along with the given key
+	 */
+	public static String nullsKey(String key) {
+		return key + NULLS_SUFFIX;
+	}
+
+	/**
+	 * @return the capacity of a hash based collection that holds the given
+	 *         number of elements without resizing
+	 */
+	public static int hashCapacity(int size) {
+		return Math.max((int) (size / .75f) + 1, 16);
+	}
+
+	public static void putBooleans(Bundle bundle, String key, Collection<Boolean> values) {
+		if (values == null) {
+			bundle.putBooleanArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final boolean[] packed = new boolean[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Boolean value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putBooleanArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putBytes(Bundle bundle, String key, Collection<Byte> values) {
+		if (values == null) {
+			bundle.putByteArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final byte[] packed = new byte[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Byte value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putByteArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putChars(Bundle bundle, String key, Collection<Character> values) {
+		if (values == null) {
+			bundle.putCharArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final char[] packed = new char[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Character value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putCharArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putShorts(Bundle bundle, String key, Collection<Short> values) {
+		if (values == null) {
+			bundle.putShortArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final short[] packed = new short[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Short value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putShortArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putInts(Bundle bundle, String key, Collection<Integer> values) {
+		if (values == null) {
+			bundle.putIntArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final int[] packed = new int[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Integer value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putIntArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putLongs(Bundle bundle, String key, Collection<Long> values) {
+		if (values == null) {
+			bundle.putLongArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final long[] packed = new long[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Long value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putLongArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putFloats(Bundle bundle, String key, Collection<Float> values) {
+		if (values == null) {
+			bundle.putFloatArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final float[] packed = new float[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Float value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putFloatArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	public static void putDoubles(Bundle bundle, String key, Collection<Double> values) {
+		if (values == null) {
+			bundle.putDoubleArray(key, null);
+			putNulls(bundle, key, NO_NULLS, 0);
+			return;
+		}
+		final double[] packed = new double[values.size()];
+		int[] nulls = NO_NULLS;
+		int nullCount = 0;
+		int i = 0;
+		for (Double value : values) {
+			if (value == null)
+				nulls = addNull(nulls, nullCount++, i);
+			else
+				packed[i] = value;
+			i++;
+		}
+		bundle.putDoubleArray(key, packed);
+		putNulls(bundle, key, nulls, nullCount);
+	}
+
+	/**
+	 * Adds the packed values to the given collection, the null indices may be
+	 * null and nothing is added if the values are null
+	 *
+	 * @return the given collection
+	 */
+	public static <C extends Collection<Boolean>> C unpackBooleans(boolean[] values, int[] nulls,
+			C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Byte>> C unpackBytes(byte[] values, int[] nulls, C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Character>> C unpackChars(char[] values, int[] nulls,
+			C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Short>> C unpackShorts(short[] values, int[] nulls,
+			C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Integer>> C unpackInts(int[] values, int[] nulls, C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Long>> C unpackLongs(long[] values, int[] nulls, C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Float>> C unpackFloats(float[] values, int[] nulls,
+			C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	public static <C extends Collection<Double>> C unpackDoubles(double[] values, int[] nulls,
+			C into) {
+		if (values == null)
+			return into;
+		int next = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (nulls != null && next < nulls.length && nulls[next] == i) {
+				into.add(null);
+				next++;
+			} else {
+				into.add(values[i]);
+			}
+		}
+		return into;
+	}
+
+	/**
+	 * Puts keys and values saved as parallel arrays into the given map,
+	 * nothing is put if either of them is null
+	 *
+	 * @return the given map
+	 */
+	public static <K, V, M extends Map<K, V>> M zip(M into, K[] keys, V[] values) {
+		if (keys == null || values == null)
+			return into;
+		for (int i = 0; i < keys.length; i++) {
+			into.put(keys[i], values[i]);
+		}
+		return into;
+	}
+
+	public static <K, V, M extends Map<K, V>> M zip(M into, List<K> keys, V[] values) {
+		if (keys == null || values == null)
+			return into;
+		for (int i = 0; i < values.length; i++) {
+			into.put(keys.get(i), values[i]);
+		}
+		return into;
+	}
+
+	public static <K, V, M extends Map<K, V>> M zip(M into, K[] keys, List<V> values) {
+		if (keys == null || values == null)
+			return into;
+		for (int i = 0; i < keys.length; i++) {
+			into.put(keys[i], values.get(i));
+		}
+		return into;
+	}
+
+	public static <K, V, M extends Map<K, V>> M zip(M into, List<K> keys, List<V> values) {
+		if (keys == null || values == null)
+			return into;
+		for (int i = 0; i < keys.size(); i++) {
+			into.put(keys.get(i), values.get(i));
+		}
+		return into;
+	}
+
+	// indices are added in order so the array stays sorted
+	private static int[] addNull(int[] nulls, int count, int index) {
+		if (count == nulls.length)
+			nulls = Arrays.copyOf(nulls, Math.max(4, count * 2));
+		nulls[count] = index;
+		return nulls;
+	}
+
+	private static void putNulls(Bundle bundle, String key, int[] nulls, int count) {
+		// a previous save into the same bundle might have left some behind
+		if (count == 0)
+			bundle.remove(nullsKey(key));
+		else
+			bundle.putIntArray(nullsKey(key), Arrays.copyOf(nulls, count));
+	}
+
+}
@@ -15,6 +15,26 @@ import com.sora.util.akatsuki.Retained.RestorePolicy;
 @Retention(RetentionPolicy.CLASS)
 public @interface RetainConfig {
 
+	/**
+	 * How fields are keyed in the bundle
+	 */
+	enum KeyStrategy {
+
+		/**
+		 * The name of the field; hidden fields are suffixed with the name of
+		 * the declaring class
+		 */
+		FIELD_NAME,
+
+		/**
+		 * The depth of the declaring class in its hierarchy and the ordinal of
+		 * the field, e.g {@code 2:1}; keys can be decoded with the
+		 * {@code .akatsuki-keys} file written next to the class. Bundles saved
+		 * with a different strategy can't be restored
+		 */
+		SHORT
+	}
+
 	/**
 	 * Default {@link RestorePolicy} setting for the class, see
 	 * {@link Retained#restorePolicy()}
@@ -26,4 +46,30 @@ public @interface RetainConfig {
 	 */
 	boolean enabled() default true;
 
+	/**
+	 * Whether a {@link StreamRetainer} is generated as well so that the class
+	 * can be written to a binary stream with
+	 * {@link Akatsuki#write(Object, java.io.DataOutput)}. Superclasses with
+	 * {@link Retained} fields must enable this too, subclasses inherit it.
+	 * Every streamed field needs an explicit {@link Retained#ordinal()}
+	 */
+	boolean stream() default false;
+
+	/**
+	 * Whether arrays, collections and maps are skipped when the same object is
+	 * saved into the same bundle again and the field is unchanged since, see
+	 * {@link DirtyTracker}. Only arrays, collections and maps of boxed
+	 * primitives, strings and enums and nested primitive arrays are tracked,
+	 * other types are always saved. Changes are detected by comparing with a
+	 * copy of the content that was saved, which costs a copy for every save
+	 * that does change the field. Fields of nested types flattened with
+	 * {@link AkatsukiConfig.OptFlags#FLATTEN_NESTED} are always saved
+	 */
+	boolean trackChanges() default false;
+
+	/**
+	 * How fields are keyed in the bundle, see {@link KeyStrategy}
+	 */
+	KeyStrategy keyStrategy() default KeyStrategy.FIELD_NAME;
+
 }
@@ -46,4 +46,22 @@ public @interface Retained {
 	 */
 	RestorePolicy restorePolicy() default RestorePolicy.DEFAULT;
 
+	/**
+	 * Keeps the value out of the bundle, it is written to the
+	 * {@link OffloadStore} set with {@link Akatsuki#setOffloadStore} and only
+	 * a token is saved. Use this for large values that shouldn't go through
+	 * the binder; the field must be {@link java.io.Serializable}
+	 */
+	boolean offload() default false;
+
+	/**
+	 * Identifies the field in the stream written by a {@link StreamRetainer},
+	 * see {@link RetainConfig#stream()}. Required for every streamed field,
+	 * keep it when fields are removed or reordered so that streams written
+	 * before are still read into the right fields. Ordinals must be unique
+	 * within a class; {@link RetainConfig.KeyStrategy#SHORT} keys default to
+	 * the position of the field among the retained fields of its class
+	 */
+	int ordinal() default -1;
+
 }
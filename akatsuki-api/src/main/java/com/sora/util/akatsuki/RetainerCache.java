@@ -1,11 +1,24 @@
 package com.sora.util.akatsuki;
 
+import java.lang.annotation.Annotation;
+
 /**
- * Used for caching class names to avoid reflection. This interface should be
+ * Used for caching retainers to avoid reflection. This interface should be
  * implemented only by generated classes.
  */
 public interface RetainerCache {
 
-	<T> Class<? extends BundleRetainer<T>> getCached(String clazz);
+	/**
+	 * Finds the cached retainer
+	 *
+	 * @param type
+	 *            the annotation type the retainer is generated for, either
+	 *            {@link Retained} or {@link Arg}
+	 * @param clazz
+	 *            the fully qualified name of the annotated class
+	 * @return the retainer or null if none was cached, the instance is shared
+	 *         if {@link AkatsukiConfig.OptFlags#CACHE_INSTANCES} is enabled
+	 */
+	<T> BundleRetainer<T> getCached(Class<? extends Annotation> type, String clazz);
 
 }
@@ -0,0 +1,77 @@
+package com.sora.util.akatsuki;
+
+import android.os.Bundle;
+
+/**
+ * Limits the estimated size of the state saved by
+ * {@link Akatsuki#save(Object, Bundle, SaveBudget)}. Saved state that gets
+ * too large fails the binder transaction holding it with a
+ * {@code TransactionTooLargeException}; the transaction buffer is 1MB and is
+ * shared with everything else in flight, so the budget should be well below
+ * that.
+ */
+public final class SaveBudget {
+
+	/**
+	 * What to do when the estimate is over budget
+	 */
+	public enum Policy {
+		/**
+		 * Logs a warning naming the heaviest fields and saves anyway
+		 */
+		WARN,
+		/**
+		 * Throws a {@link RuntimeException} naming the heaviest fields, nothing
+		 * is saved
+		 */
+		THROW,
+		/**
+		 * Calls the {@link Callback} and saves anyway
+		 */
+		CALLBACK
+	}
+
+	/**
+	 * Receives instances with saved state over budget
+	 */
+	public interface Callback {
+		void onOverBudget(Object instance, SizeEstimate estimate, int budget);
+	}
+
+	// number of fields named when over budget
+	static final int HEAVIEST_FIELDS = 3;
+
+	final int bytes;
+	final Policy policy;
+	final Callback callback;
+
+	private SaveBudget(int bytes, Policy policy, Callback callback) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("budget must be positive, was " + bytes);
+		this.bytes = bytes;
+		this.policy = policy;
+		this.callback = callback;
+	}
+
+	public static SaveBudget warn(int bytes) {
+		return new SaveBudget(bytes, Policy.WARN, null);
+	}
+
+	public static SaveBudget fail(int bytes) {
+		return new SaveBudget(bytes, Policy.THROW, null);
+	}
+
+	public static SaveBudget callback(int bytes, Callback callback) {
+		if (callback == null)
+			throw new IllegalArgumentException("callback == null!");
+		return new SaveBudget(bytes, Policy.CALLBACK, callback);
+	}
+
+	public int bytes() {
+		return bytes;
+	}
+
+	public Policy policy() {
+		return policy;
+	}
+}
@@ -0,0 +1,84 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The estimated size of the fields saved for an instance, see
+ * {@link Akatsuki#estimateSize(Object)}
+ */
+public final class SizeEstimate {
+
+	private final List<Field> fields = new ArrayList<>();
+	private int total;
+
+	/**
+	 * A saved field and the bytes it takes up including its key
+	 */
+	public static final class Field {
+
+		public final String name;
+		public final int bytes;
+
+		Field(String name, int bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + bytes;
+		}
+	}
+
+	/**
+	 * Records a field, called by generated code
+	 *
+	 * @param name
+	 *            the name of the field
+	 * @param key
+	 *            the key the field is saved under
+	 * @param bytes
+	 *            the size of the value from {@link BundleSizes}
+	 */
+	public void add(String name, String key, int bytes) {
+		final Field field = new Field(name, BundleSizes.ofEntry(key) + bytes);
+		fields.add(field);
+		total += field.bytes;
+	}
+
+	/**
+	 * @return the estimated size of all fields in bytes
+	 */
+	public int total() {
+		return total;
+	}
+
+	/**
+	 * @return all recorded fields in the order they are saved
+	 */
+	public List<Field> fields() {
+		return Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * @return at most {@code count} fields, largest first
+	 */
+	public List<Field> heaviest(int count) {
+		final List<Field> sorted = new ArrayList<>(fields);
+		Collections.sort(sorted, new Comparator<Field>() {
+			@Override
+			public int compare(Field lhs, Field rhs) {
+				return lhs.bytes < rhs.bytes ? 1 : lhs.bytes == rhs.bytes ? 0 : -1;
+			}
+		});
+		return sorted.subList(0, Math.min(count, sorted.size()));
+	}
+
+	@Override
+	public String toString() {
+		return "SizeEstimate{total=" + total + ", fields=" + fields + "}";
+	}
+}
@@ -0,0 +1,579 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reads and writes fields for {@link StreamRetainer}s. Every class in the
+ * hierarchy writes its fields, each as an {@code int} tag followed by the
+ * value, and then {@link #END}. The tag holds the ordinal of the field and
+ * how the value is laid out: values are either 4 or 8 bytes, prefixed with
+ * their length or absent when null, so fields a reader does not know of are
+ * skipped and fields missing from the stream are left as they are. <b>This is
+ * not the class you are looking for</b>
+ */
+public final class StateStreams {
+
+	/**
+	 * The tag written after the last field of a class
+	 */
+	public static final int END = -1;
+
+	private static final int FIXED32 = 0;
+	private static final int FIXED64 = 1;
+	private static final int BYTES = 2;
+	private static final int NULL = 3;
+
+	private static final int WIRE_BITS = 2;
+	private static final int WIRE_MASK = (1 << WIRE_BITS) - 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private StateStreams() {
+	}
+
+	public static int readTag(DataInput input) throws IOException {
+		return input.readInt();
+	}
+
+	/**
+	 * @return the ordinal of the field the tag belongs to
+	 */
+	public static int ordinal(int tag) {
+		return tag >>> WIRE_BITS;
+	}
+
+	/**
+	 * @return whether the field of the tag was null when written
+	 */
+	public static boolean isNull(int tag) {
+		return (tag & WIRE_MASK) == NULL;
+	}
+
+	/**
+	 * Skips the value of a field that is unknown to the reader
+	 */
+	public static void skip(DataInput input, int tag) throws IOException {
+		switch (tag & WIRE_MASK) {
+		case FIXED32:
+			skipFully(input, 4);
+			break;
+		case FIXED64:
+			skipFully(input, 8);
+			break;
+		case BYTES:
+			skipFully(input, input.readInt());
+			break;
+		default:
+			break;
+		}
+	}
+
+	public static void writeEnd(DataOutput output) throws IOException {
+		output.writeInt(END);
+	}
+
+	public static void writeNull(DataOutput output, int ordinal) throws IOException {
+		writeTag(output, ordinal, NULL);
+	}
+
+	public static void writeBoolean(DataOutput output, int ordinal, boolean value)
+			throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeInt(value ? 1 : 0);
+	}
+
+	public static void writeByte(DataOutput output, int ordinal, byte value) throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeInt(value);
+	}
+
+	public static void writeChar(DataOutput output, int ordinal, char value) throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeInt(value);
+	}
+
+	public static void writeShort(DataOutput output, int ordinal, short value)
+			throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeInt(value);
+	}
+
+	public static void writeInt(DataOutput output, int ordinal, int value) throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeInt(value);
+	}
+
+	public static void writeFloat(DataOutput output, int ordinal, float value)
+			throws IOException {
+		writeTag(output, ordinal, FIXED32);
+		output.writeFloat(value);
+	}
+
+	public static void writeLong(DataOutput output, int ordinal, long value) throws IOException {
+		writeTag(output, ordinal, FIXED64);
+		output.writeLong(value);
+	}
+
+	public static void writeDouble(DataOutput output, int ordinal, double value)
+			throws IOException {
+		writeTag(output, ordinal, FIXED64);
+		output.writeDouble(value);
+	}
+
+	public static boolean readBoolean(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return input.readInt() != 0;
+	}
+
+	public static byte readByte(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return (byte) input.readInt();
+	}
+
+	public static char readChar(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return (char) input.readInt();
+	}
+
+	public static short readShort(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return (short) input.readInt();
+	}
+
+	public static int readInt(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return input.readInt();
+	}
+
+	public static float readFloat(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED32);
+		return input.readFloat();
+	}
+
+	public static long readLong(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED64);
+		return input.readLong();
+	}
+
+	public static double readDouble(DataInput input, int tag) throws IOException {
+		expect(tag, FIXED64);
+		return input.readDouble();
+	}
+
+	public static void writeString(DataOutput output, int ordinal, String value)
+			throws IOException {
+		if (value == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		final byte[] bytes = value.getBytes(UTF_8);
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	public static String readString(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Enums are written by name
+	 *
+	 * @return the constant or null if the enum no longer has it
+	 */
+	public static <E extends Enum<E>> E readEnum(DataInput input, int tag, Class<E> type)
+			throws IOException {
+		final String name = readString(input, tag);
+		if (name == null)
+			return null;
+		try {
+			return Enum.valueOf(type, name);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public static void writeBooleans(DataOutput output, int ordinal, boolean[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length);
+		for (boolean value : values)
+			output.writeBoolean(value);
+	}
+
+	public static void writeBytes(DataOutput output, int ordinal, byte[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length);
+		output.write(values);
+	}
+
+	public static void writeChars(DataOutput output, int ordinal, char[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 2);
+		for (char value : values)
+			output.writeChar(value);
+	}
+
+	public static void writeShorts(DataOutput output, int ordinal, short[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 2);
+		for (short value : values)
+			output.writeShort(value);
+	}
+
+	public static void writeInts(DataOutput output, int ordinal, int[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 4);
+		for (int value : values)
+			output.writeInt(value);
+	}
+
+	public static void writeFloats(DataOutput output, int ordinal, float[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 4);
+		for (float value : values)
+			output.writeFloat(value);
+	}
+
+	public static void writeLongs(DataOutput output, int ordinal, long[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 8);
+		for (long value : values)
+			output.writeLong(value);
+	}
+
+	public static void writeDoubles(DataOutput output, int ordinal, double[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(values.length * 8);
+		for (double value : values)
+			output.writeDouble(value);
+	}
+
+	public static boolean[] readBooleans(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final boolean[] values = new boolean[input.readInt()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readBoolean();
+		return values;
+	}
+
+	public static byte[] readBytes(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final byte[] values = new byte[input.readInt()];
+		input.readFully(values);
+		return values;
+	}
+
+	public static char[] readChars(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final char[] values = new char[input.readInt() / 2];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readChar();
+		return values;
+	}
+
+	public static short[] readShorts(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final short[] values = new short[input.readInt() / 2];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readShort();
+		return values;
+	}
+
+	public static int[] readInts(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final int[] values = new int[input.readInt() / 4];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readInt();
+		return values;
+	}
+
+	public static float[] readFloats(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final float[] values = new float[input.readInt() / 4];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readFloat();
+		return values;
+	}
+
+	public static long[] readLongs(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final long[] values = new long[input.readInt() / 8];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readLong();
+		return values;
+	}
+
+	public static double[] readDoubles(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		final double[] values = new double[input.readInt() / 8];
+		for (int i = 0; i < values.length; i++)
+			values[i] = input.readDouble();
+		return values;
+	}
+
+	/**
+	 * String arrays are written as the element count followed by every
+	 * element prefixed with its length, {@code -1} for nulls
+	 */
+	public static void writeStrings(DataOutput output, int ordinal, String[] values)
+			throws IOException {
+		if (values == null) {
+			writeNull(output, ordinal);
+			return;
+		}
+		final byte[][] encoded = new byte[values.length][];
+		int length = 4;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				encoded[i] = values[i].getBytes(UTF_8);
+				length += encoded[i].length;
+			}
+			length += 4;
+		}
+		writeTag(output, ordinal, BYTES);
+		output.writeInt(length);
+		output.writeInt(values.length);
+		for (byte[] bytes : encoded) {
+			if (bytes == null) {
+				output.writeInt(-1);
+			} else {
+				output.writeInt(bytes.length);
+				output.write(bytes);
+			}
+		}
+	}
+
+	public static String[] readStrings(DataInput input, int tag) throws IOException {
+		if (isNull(tag))
+			return null;
+		expect(tag, BYTES);
+		input.readInt();
+		final String[] values = new String[input.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			final int length = input.readInt();
+			if (length != -1) {
+				final byte[] bytes = new byte[length];
+				input.readFully(bytes);
+				values[i] = new String(bytes, UTF_8);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Anything else has to be {@link Serializable}, it is written with an
+	 * {@link ObjectOutputStream}
+	 */
+	public static void writeSerializable(DataOutput output, int ordinal, Serializable value)
+			throws IOException {
+		writeBytes(output, ordinal, value == null ? null : serialize(value));
+	}
+
+	/**
+	 * Captures a collection or map for a {@link StreamRetainer.Snapshot} so
+	 * that the caller can keep changing it: a shallow clone for the common JDK
+	 * collections and maps, a shallow copy into an {@link ArrayList},
+	 * {@link LinkedHashSet}, {@link LinkedHashMap} or their sorted
+	 * counterparts if the field can hold one and the serialized value
+	 * otherwise. The elements are not copied
+	 *
+	 * @param type
+	 *            the declared type of the field the value is restored into
+	 * @throws IllegalArgumentException
+	 *             if the value had to be serialized and couldn't be
+	 */
+	public static Object capture(Serializable value, Class<?> type) {
+		if (value == null)
+			return null;
+		final Object copy = copy(value);
+		if (copy != null && type.isInstance(copy))
+			return copy;
+		try {
+			return new Serialized(serialize(value));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to capture " + value.getClass(), e);
+		}
+	}
+
+	// public clone methods are called directly, anything else is copied into
+	// a JDK type of the same kind
+	private static Object copy(Object value) {
+		if (value instanceof ArrayList)
+			return ((ArrayList<?>) value).clone();
+		if (value instanceof LinkedList)
+			return ((LinkedList<?>) value).clone();
+		if (value instanceof ArrayDeque)
+			return ((ArrayDeque<?>) value).clone();
+		if (value instanceof HashSet)
+			return ((HashSet<?>) value).clone();
+		if (value instanceof TreeSet)
+			return ((TreeSet<?>) value).clone();
+		if (value instanceof HashMap)
+			return ((HashMap<?, ?>) value).clone();
+		if (value instanceof TreeMap)
+			return ((TreeMap<?, ?>) value).clone();
+		if (value instanceof SortedSet)
+			return new TreeSet<>((SortedSet<?>) value);
+		if (value instanceof Set)
+			return new LinkedHashSet<>((Set<?>) value);
+		if (value instanceof Collection)
+			return new ArrayList<>((Collection<?>) value);
+		if (value instanceof SortedMap)
+			return new TreeMap<>((SortedMap<?, ?>) value);
+		if (value instanceof Map)
+			return new LinkedHashMap<>((Map<?, ?>) value);
+		return null;
+	}
+
+	/**
+	 * Writes a value returned by {@link #capture(Serializable, Class)}, same as
+	 * {@link #writeSerializable(DataOutput, int, Serializable)}
+	 */
+	public static void writeCaptured(DataOutput output, int ordinal, Object captured)
+			throws IOException {
+		if (captured instanceof Serialized)
+			writeBytes(output, ordinal, ((Serialized) captured).bytes);
+		else
+			writeSerializable(output, ordinal, (Serializable) captured);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> T readSerializable(DataInput input, int tag) throws IOException {
+		final byte[] bytes = readBytes(input, tag);
+		if (bytes == null)
+			return null;
+		final ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (T) stream.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to read field " + ordinal(tag), e);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static byte[] serialize(Serializable value) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final ObjectOutputStream stream = new ObjectOutputStream(buffer);
+		stream.writeObject(value);
+		stream.close();
+		return buffer.toByteArray();
+	}
+
+	private static final class Serialized {
+
+		final byte[] bytes;
+
+		Serialized(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	private static void writeTag(DataOutput output, int ordinal, int wireType)
+			throws IOException {
+		output.writeInt(ordinal << WIRE_BITS | wireType);
+	}
+
+	private static void expect(int tag, int wireType) throws IOException {
+		if ((tag & WIRE_MASK) != wireType)
+			throw new IOException("Field " + ordinal(tag)
+					+ " was written as a different type than the one it is read as");
+	}
+
+	private static void skipFully(DataInput input, int length) throws IOException {
+		while (length > 0) {
+			final int skipped = input.skipBytes(length);
+			if (skipped <= 0) {
+				// skipBytes may give up early, reading never does
+				input.readByte();
+				length--;
+			} else {
+				length -= skipped;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.sora.util.akatsuki;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Interface for generated classes that write {@link Retained} fields to a
+ * binary stream instead of a {@link android.os.Bundle}, see
+ * {@link RetainConfig#stream()} and {@link StateStreams} for the format
+ *
+ * @param <T>
+ *            the type of annotated field's enclosing instance
+ */
+public interface StreamRetainer<T> {
+
+	void write(T source, DataOutput output) throws IOException;
+
+	void read(T source, DataInput input) throws IOException;
+
+	/**
+	 * Captures the fields of the source, arrays are copied, collections and
+	 * maps are captured with {@link StateStreams#capture} and everything else
+	 * is referenced. The snapshot writes what {@link #write} would have written
+	 * at the time of the capture as long as the referenced values and the
+	 * elements of arrays, collections and maps aren't changed until then
+	 */
+	Snapshot snapshot(T source);
+
+	/**
+	 * The captured fields of an instance, see {@link AsyncSaver}
+	 */
+	interface Snapshot {
+
+		void write(DataOutput output) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,145 @@
+package com.sora.util.akatsuki;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small hash table keyed by {@link Class} identity. Reads are lock free and
+ * do not allocate, writes are serialized. Keys and values are both weakly
+ * referenced: a value such as a {@link BundleRetainer} references its own
+ * class loader and would otherwise keep it alive when Akatsuki is loaded by a
+ * parent of that loader. An entry whose value was collected simply reads as
+ * absent, so values that nothing else holds may have to be created again.
+ *
+ * @param <V>
+ *            the type of the value
+ */
+final class WeakClassMap<V> {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	// buckets are immutable chains, a new entry is always prepended so readers
+	// either see the old chain or the new one but never a partial one
+	private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(
+			INITIAL_CAPACITY);
+
+	// guarded by this
+	private int size;
+
+	private static final class Entry<V> extends WeakReference<Class<?>> {
+
+		final int hash;
+		final WeakReference<V> value;
+		final Entry<V> next;
+
+		Entry(Class<?> key, int hash, WeakReference<V> value, Entry<V> next,
+				ReferenceQueue<Object> queue) {
+			super(key, queue);
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Finds the value associated with the given class
+	 *
+	 * @return the value or null if none or if it has been collected
+	 */
+	V get(Class<?> key) {
+		final AtomicReferenceArray<Entry<V>> table = this.table;
+		Entry<V> entry = table.get(indexFor(hash(key), table.length()));
+		while (entry != null) {
+			// newer entries come first so an older one can't be alive
+			if (entry.get() == key)
+				return entry.value.get();
+			entry = entry.next;
+		}
+		return null;
+	}
+
+	/**
+	 * Associates the value with the given class if no value is present
+	 *
+	 * @return the value that ends up in the map, this may not be the value
+	 *         given if another thread got there first
+	 */
+	synchronized V putIfAbsent(Class<?> key, V value) {
+		if (key == null)
+			throw new NullPointerException("key == null");
+		if (value == null)
+			throw new NullPointerException("value == null");
+		expungeStaleEntries();
+		final V existing = get(key);
+		if (existing != null)
+			return existing;
+		AtomicReferenceArray<Entry<V>> table = this.table;
+		if (size >= table.length() - (table.length() >>> 2)) {
+			table = rehash(table, table.length() << 1);
+			this.table = table;
+		}
+		final int hash = hash(key);
+		final int index = indexFor(hash, table.length());
+		table.set(index, new Entry<>(key, hash, new WeakReference<V>(value, queue),
+				table.get(index), queue));
+		size++;
+		return value;
+	}
+
+	synchronized void clear() {
+		while (queue.poll() != null) {
+			// drain
+		}
+		table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+		size = 0;
+	}
+
+	synchronized int size() {
+		expungeStaleEntries();
+		return size;
+	}
+
+	private void expungeStaleEntries() {
+		boolean stale = false;
+		while (queue.poll() != null) {
+			stale = true;
+		}
+		if (stale) {
+			// this is rare enough, just rebuild the whole table
+			table = rehash(table, table.length());
+		}
+	}
+
+	private AtomicReferenceArray<Entry<V>> rehash(AtomicReferenceArray<Entry<V>> source,
+			int capacity) {
+		final AtomicReferenceArray<Entry<V>> target = new AtomicReferenceArray<>(capacity);
+		int live = 0;
+		for (int i = 0; i < source.length(); i++) {
+			for (Entry<V> entry = source.get(i); entry != null; entry = entry.next) {
+				final Class<?> key = entry.get();
+				if (key == null || entry.value.get() == null)
+					continue;
+				final int index = indexFor(entry.hash, capacity);
+				target.set(index, new Entry<>(key, entry.hash, entry.value, target.get(index),
+						queue));
+				live++;
+			}
+		}
+		size = live;
+		return target;
+	}
+
+	private static int hash(Class<?> key) {
+		final int h = System.identityHashCode(key);
+		// identity hashes tend to cluster on the lower bits
+		return h ^ (h >>> 16);
+	}
+
+	private static int indexFor(int hash, int length) {
+		return hash & (length - 1);
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// time spent on the caller by an asynchronous save against a synchronous write
+public class AsyncSaveBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 200;
+
+	public static void main(String[] args) throws Exception {
+		new AsyncSaveBenchmark().callerTimeAgainstSynchronousWrite();
+	}
+
+	void callerTimeAgainstSynchronousWrite() throws Exception {
+		TestSource source = StreamRetainerBenchmark.createSource(
+				new TestField(int[].class, "a", "new int[4096]"),
+				new TestField(ArrayList.class, "b",
+						"new java.util.ArrayList<String>(java.util.Collections.nCopies(2048, "
+								+ "\"some text\"))",
+						String.class));
+		BaseTestEnvironment environment = environment(source);
+		ClassLoader loader = environment.classLoader();
+		Object instance = environment.findClass(source.fqcn()).newInstance();
+
+		// tasks are run after the measurement, on a single core machine a real
+		// executor thread would preempt the caller and skew the caller time
+		List<Runnable> queued = new ArrayList<>();
+		AsyncSaver saver = new AsyncSaver(queued::add, ITERATIONS);
+		Block runQueued = () -> {
+			for (Runnable runnable : queued)
+				runnable.run();
+			queued.clear();
+		};
+		// warm up
+		for (int n = 0; n < ITERATIONS; n++) {
+			Akatsuki.write(loader, instance, new DataOutputStream(new ByteArrayOutputStream()));
+			saver.save(loader, instance, null);
+		}
+		runQueued.run();
+
+		long sync = 0;
+		long caller = 0;
+		for (int n = 0; n < ITERATIONS; n++) {
+			sync += time(() -> Akatsuki.write(loader, instance,
+					new DataOutputStream(new ByteArrayOutputStream())));
+			caller += time(() -> saver.save(loader, instance, null));
+			runQueued.run();
+		}
+		report("int[4096] and ArrayList<String>(2048), synchronous write", ITERATIONS, sync);
+		report("int[4096] and ArrayList<String>(2048), asynchronous time on caller", ITERATIONS,
+				caller);
+	}
+
+}
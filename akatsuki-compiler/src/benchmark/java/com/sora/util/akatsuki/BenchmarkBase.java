@@ -0,0 +1,25 @@
+package com.sora.util.akatsuki;
+
+import java.util.concurrent.TimeUnit;
+
+// base class of the main based timing harnesses, nothing in here asserts
+// anything; run them with the benchmark task instead of the tests
+public abstract class BenchmarkBase extends IntegrationTestBase {
+
+	public interface Block {
+		void run() throws Exception;
+	}
+
+	public static long time(Block block) throws Exception {
+		long begin = System.nanoTime();
+		block.run();
+		return System.nanoTime() - begin;
+	}
+
+	public static void report(String label, long operations, long elapsed) {
+		System.out.println(label + ": " + operations + " operations in "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms ("
+				+ (elapsed / Math.max(operations, 1)) + "ns/op)");
+	}
+
+}
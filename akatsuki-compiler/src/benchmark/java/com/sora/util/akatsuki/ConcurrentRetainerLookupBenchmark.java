@@ -0,0 +1,83 @@
+package com.sora.util.akatsuki;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Modifier;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+// contended save/restore through the shared retainer lookup
+public class ConcurrentRetainerLookupBenchmark extends BenchmarkBase {
+
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		new ConcurrentRetainerLookupBenchmark().contendedSaveRestore();
+	}
+
+	void contendedSaveRestore() throws Exception {
+		List<TestSource> sources = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			sources.add(new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+					.appendTestFields(new RetainedTestField(String.class, "a"),
+							new RetainedTestField(int.class, "b")));
+		}
+		TestSource base = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(Parcelable.class, "c"));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(long.class, "d")).superClass(base);
+		TestSource unannotated = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC).superClass(child);
+		sources.add(child);
+		sources.add(unannotated);
+
+		BaseTestEnvironment environment = environment(base,
+				sources.toArray(new TestSource[sources.size()]));
+		ClassLoader loader = environment.classLoader();
+		Class<?>[] classes = environment.sourceClasses();
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final Object[] instances = new Object[classes.length];
+			for (int i = 0; i < classes.length; i++) {
+				instances[i] = classes[i].newInstance();
+			}
+			final Bundle bundle = mock(Bundle.class, withSettings().stubOnly());
+			final Random random = new Random(t);
+			futures.add(executor.submit(() -> {
+				start.await();
+				for (int i = 0; i < ITERATIONS; i++) {
+					Object instance = instances[random.nextInt(instances.length)];
+					Akatsuki.save(loader, instance, bundle);
+					Akatsuki.restore(loader, instance, bundle, null);
+				}
+				return null;
+			}));
+		}
+
+		long elapsed = time(() -> {
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(2, TimeUnit.MINUTES);
+			}
+		});
+		executor.shutdown();
+		report("Contended save/restore with " + THREADS + " threads",
+				(long) THREADS * ITERATIONS * 2, elapsed);
+	}
+
+}
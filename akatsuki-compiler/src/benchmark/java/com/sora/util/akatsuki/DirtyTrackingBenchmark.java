@@ -0,0 +1,65 @@
+package com.sora.util.akatsuki;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+
+import javax.lang.model.element.Modifier;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+import android.os.Bundle;
+
+// repeated saves of an unchanged instance with and without change tracking
+public class DirtyTrackingBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		new DirtyTrackingBenchmark().repeatedSaves();
+	}
+
+	private Object[] createInstance(boolean trackChanges, TestField... fields)
+			throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (TestField field : fields)
+			source.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		source.appendTransformation((builder, s) -> builder.addAnnotation(AnnotationSpec
+				.builder(RetainConfig.class).addMember("trackChanges", "$L", trackChanges)
+				.build()));
+		BaseTestEnvironment environment = environment(source);
+		return new Object[] { environment.classLoader(),
+				environment.findClass(source.fqcn()).newInstance() };
+	}
+
+	void repeatedSaves() throws Exception {
+		TestField[] fields = { new TestField(int.class, "a", "1"),
+				new TestField(String.class, "b", "\"b\""),
+				new TestField(int[].class, "c", "new int[1024]"),
+				new TestField(Integer[].class, "d", "new Integer[256]"),
+				new TestField(float[][].class, "e", "new float[32][32]"),
+				new TestField(ArrayList.class, "f",
+						"new java.util.ArrayList<Integer>(java.util.Collections.nCopies(256, 1))",
+						Integer.class) };
+		Object[] tracked = createInstance(true, fields);
+		Object[] untracked = createInstance(false, fields);
+
+		// stub only so that the mocks don't record every call
+		Bundle bundle = mock(Bundle.class, withSettings().stubOnly());
+		when(bundle.containsKey(anyString())).thenReturn(true);
+		for (Object[] pair : new Object[][] { tracked, untracked }) {
+			Block saves = () -> {
+				for (int n = 0; n < ITERATIONS; n++)
+					Akatsuki.save((ClassLoader) pair[0], pair[1], bundle);
+			};
+			// warm up
+			saves.run();
+			report("Repeated save into the same bundle, "
+					+ (pair == tracked ? "tracked" : "untracked"), ITERATIONS, time(saves));
+		}
+	}
+
+}
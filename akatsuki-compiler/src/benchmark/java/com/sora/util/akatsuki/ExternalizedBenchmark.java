@@ -0,0 +1,80 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import javax.lang.model.element.Modifier;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+// an externalizer round trip against a serialization round trip
+public class ExternalizedBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		new ExternalizedBenchmark().externalizerAgainstSerialization();
+	}
+
+	@SuppressWarnings("unchecked")
+	void externalizerAgainstSerialization() throws Exception {
+		TestSource externalized = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC)
+						.appendTestFields(new TestField(int.class, "x"),
+								new TestField(String.class, "label"),
+								new TestField(long[].class, "values"),
+								new TestField(double.class, "ratio"),
+								new TestField(String[].class, "tags"))
+						.appendTransformation((builder, s) -> builder
+								.addSuperinterface(Serializable.class).addAnnotation(
+										AnnotationSpec.builder(Externalized.class).build()));
+		BaseTestEnvironment environment = environment(externalized);
+		Class<?> type = environment.findClass(externalized.fqcn());
+		Object value = type.newInstance();
+		write(value, "x", 42);
+		write(value, "label", "label");
+		write(value, "values", new long[64]);
+		write(value, "tags", new String[] { "a", "b", "c" });
+		Externalizer<Object> externalizer = (Externalizer<Object>) environment
+				.findClass(Internal.generateExternalizerClassName(externalized.fqcn()))
+				.getField("INSTANCE").get(null);
+
+		Block externalize = () -> {
+			for (int n = 0; n < ITERATIONS; n++)
+				externalizer.fromBytes(externalizer.toBytes(value));
+		};
+		Block serialize = () -> {
+			for (int n = 0; n < ITERATIONS; n++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream output = new ObjectOutputStream(bytes);
+				output.writeObject(value);
+				output.close();
+				// the type only exists in the class loader of the environment
+				new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) {
+					@Override
+					protected Class<?> resolveClass(ObjectStreamClass desc)
+							throws IOException, ClassNotFoundException {
+						return Class.forName(desc.getName(), false, type.getClassLoader());
+					}
+				}.readObject();
+			}
+		};
+		// warm up
+		externalize.run();
+		serialize.run();
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(serialized)) {
+			output.writeObject(value);
+		}
+		report("Externalizer round trip (" + externalizer.toBytes(value).length + " bytes)",
+				ITERATIONS, time(externalize));
+		report("Serialization round trip (" + serialized.size() + " bytes)", ITERATIONS,
+				time(serialize));
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.sora.util.akatsuki;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// the flat layout of multidimensional arrays against one entry per row
+public class MultidimensionalArrayBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		new MultidimensionalArrayBenchmark().flatLayoutAgainstPerRowLayout();
+	}
+
+	void flatLayoutAgainstPerRowLayout() throws Exception {
+		float[][] grid = new float[64][64];
+		for (int i = 0; i < grid.length; i++)
+			for (int j = 0; j < grid[i].length; j++)
+				grid[i][j] = i * j;
+
+		// a map stands in for the bundle since the stubs can't hold values
+		Map<String, Object> bundle = new HashMap<>();
+		report("64x64 float[][], flat save (2 entries)", ITERATIONS, time(() -> {
+			for (int n = 0; n < ITERATIONS; n++) {
+				bundle.put("a$shape", FlatArrays.shape(grid));
+				bundle.put("a", FlatArrays.flatten(grid, float.class));
+			}
+		}));
+		report("64x64 float[][], flat restore", ITERATIONS, time(() -> {
+			for (int n = 0; n < ITERATIONS; n++)
+				FlatArrays.unflatten(bundle.get("a"), (int[]) bundle.get("a$shape"),
+						float[][].class);
+		}));
+
+		// what the generated code did for arrays of arrays before, one key per
+		// row and one for the length; the parcel entry per row isn't measured
+		report("64x64 float[][], per-row save (" + (grid.length + 1) + " entries)", ITERATIONS,
+				time(() -> {
+					for (int n = 0; n < ITERATIONS; n++) {
+						bundle.put("length_a_0_r", grid.length);
+						for (int i = 0; i < grid.length; i++)
+							bundle.put("a_" + i, grid[i]);
+					}
+				}));
+		report("64x64 float[][], per-row restore", ITERATIONS, time(() -> {
+			for (int n = 0; n < ITERATIONS; n++) {
+				float[][] restored = new float[(Integer) bundle.get("length_a_0_r")][];
+				for (int i = 0; i < restored.length; i++)
+					restored[i] = (float[]) bundle.get("a_" + i);
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.sora.util.akatsuki;
+
+import javax.lang.model.element.Modifier;
+
+// retainer lookup through the generated cache against the reflective lookup
+public class RetainerLookupBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		new RetainerLookupBenchmark().lookupCostAgainstReflection();
+	}
+
+	static TestSource createSource(String packageName) {
+		return new TestSource(packageName, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+	}
+
+	static RetainerCache loadCache(ClassLoader loader) throws Exception {
+		return (RetainerCache) loader
+				.loadClass(Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME)
+				.newInstance();
+	}
+
+	void lookupCostAgainstReflection() throws Exception {
+		// separate classes so that neither path benefits from the other
+		// having loaded the retainer class already
+		TestSource reflected = createSource(TEST_PACKAGE);
+		TestSource cached = createSource(TEST_PACKAGE);
+		BaseTestEnvironment environment = environment(reflected, cached);
+		ClassLoader loader = environment.classLoader();
+		RetainerCache cache = loadCache(loader);
+		Class<?> reflectedClass = environment.findClass(reflected.fqcn());
+		Class<?> cachedClass = environment.findClass(cached.fqcn());
+
+		report("First lookup, reflection", 1, time(
+				() -> Internal.createRetainer(loader, null, reflectedClass, Retained.class)));
+		report("First lookup, cache", 1,
+				time(() -> Internal.createRetainer(loader, cache, cachedClass, Retained.class)));
+		report("Steady lookup, reflection", ITERATIONS, time(() -> {
+			for (int i = 0; i < ITERATIONS; i++)
+				Internal.createRetainer(loader, null, reflectedClass, Retained.class);
+		}));
+		report("Steady lookup, cache", ITERATIONS, time(() -> {
+			for (int i = 0; i < ITERATIONS; i++)
+				Internal.createRetainer(loader, cache, cachedClass, Retained.class);
+		}));
+	}
+
+}
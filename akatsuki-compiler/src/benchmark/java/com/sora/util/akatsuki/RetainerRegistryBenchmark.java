@@ -0,0 +1,34 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// initialisation and first lookup of the generated cache against the
+// number of entries it holds
+public class RetainerRegistryBenchmark extends BenchmarkBase {
+
+	public static void main(String[] args) throws Exception {
+		new RetainerRegistryBenchmark().initialisationCostAgainstEntryCount();
+	}
+
+	void initialisationCostAgainstEntryCount() throws Exception {
+		for (int count : new int[] { 1, 10, 100 }) {
+			// spread over a few packages like a real app would
+			List<TestSource> sources = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				sources.add(RetainerLookupBenchmark.createSource(TEST_PACKAGE + ".p" + (i % 10)));
+			}
+			// the mapping must not be loaded by the environment beforehand
+			ClassLoader loader = environment(sources.get(0),
+					sources.subList(1, count).toArray(new TestSource[count - 1])).classLoader();
+			TestSource target = sources.get(count / 2);
+
+			RetainerCache[] cache = new RetainerCache[1];
+			report("Registry with " + count + " entries, initialisation", 1,
+					time(() -> cache[0] = RetainerLookupBenchmark.loadCache(loader)));
+			report("Registry with " + count + " entries, first lookup", 1,
+					time(() -> cache[0].getCached(Retained.class, target.fqcn())));
+		}
+	}
+
+}
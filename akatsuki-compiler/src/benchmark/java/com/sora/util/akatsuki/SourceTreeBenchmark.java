@@ -0,0 +1,103 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.testing.compile.JavaFileObjects;
+import com.sora.util.akatsuki.Utils.Defaults;
+import com.sora.util.akatsuki.models.SourceTreeModel;
+
+// time to build the source tree of large class hierarchies
+public class SourceTreeBenchmark extends BenchmarkBase {
+
+	// classes per chain, the first and the third have retained fields
+	private static final int CHAIN_LENGTH = 5;
+
+	public static void main(String[] args) throws Exception {
+		new SourceTreeBenchmark().treeBuildingTimeOfLargeTrees();
+	}
+
+	void treeBuildingTimeOfLargeTrees() throws Exception {
+		for (int classes : new int[] { 500, 1000, 2000, 4000 }) {
+			List<JavaFileObject> sources = createTree(classes, CHAIN_LENGTH);
+			// warm up
+			treeBuildingTime(sources);
+			report("Source tree of " + classes + " classes in chains of " + CHAIN_LENGTH, 1,
+					treeBuildingTime(sources));
+		}
+	}
+
+	// chains of the given length, the first and the third class of every
+	// chain have retained fields
+	static List<JavaFileObject> createTree(int classes, int chainLength) {
+		List<JavaFileObject> sources = new ArrayList<>();
+		String previous = null;
+		for (int i = 0; i < classes; i++) {
+			String name = generateClassName();
+			int depth = i % chainLength;
+			StringBuilder source = new StringBuilder("package " + TEST_PACKAGE + ";\n");
+			source.append("public class ").append(name);
+			if (depth != 0)
+				source.append(" extends ").append(previous);
+			source.append(" {\n");
+			if (depth == 0 || depth == 2)
+				source.append("@com.sora.util.akatsuki.Retained int field").append(i)
+						.append(";\n");
+			source.append("}\n");
+			sources.add(JavaFileObjects.forSourceString(TEST_PACKAGE + "." + name,
+					source.toString()));
+			previous = name;
+		}
+		return sources;
+	}
+
+	// only the tree is built, generating the retainers would dominate
+	private long treeBuildingTime(List<JavaFileObject> sources) {
+		long[] time = { 0 };
+		Processor processor = new AbstractProcessor() {
+
+			@Override
+			public Set<String> getSupportedAnnotationTypes() {
+				return Collections.singleton("*");
+			}
+
+			@Override
+			public SourceVersion getSupportedSourceVersion() {
+				return SourceVersion.latestSupported();
+			}
+
+			@Override
+			public boolean process(Set<? extends TypeElement> annotations,
+					RoundEnvironment roundEnv) {
+				ProcessorContext context = new ProcessorContext(processingEnv);
+				Configuration configuration = new Configuration(
+						Defaults.of(AkatsukiConfig.class));
+				configuration.validate(context);
+				context.setConfigForRound(configuration);
+				long start = System.nanoTime();
+				SourceTreeModel.fromRound(context, roundEnv,
+						ImmutableSet.of(Retained.class, Arg.class, With.class));
+				time[0] += System.nanoTime() - start;
+				return false;
+			}
+		};
+		CompilerUtils.Result result = CompilerUtils.compile(
+				Thread.currentThread().getContextClassLoader(),
+				Collections.singletonList(processor), Collections.emptyList(),
+				sources.toArray(new JavaFileObject[sources.size()]));
+		if (result.compilationException != null)
+			throw new RuntimeException(result.compilationException);
+		return time[0];
+	}
+
+}
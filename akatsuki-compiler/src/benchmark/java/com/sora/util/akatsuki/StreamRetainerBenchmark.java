@@ -0,0 +1,57 @@
+package com.sora.util.akatsuki;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import javax.lang.model.element.Modifier;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+// size and write/read time of a streamed class
+public class StreamRetainerBenchmark extends BenchmarkBase {
+
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		new StreamRetainerBenchmark().streamSize();
+	}
+
+	// a streamed class with the fields numbered in order
+	static TestSource createSource(TestField... fields) {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTransformation((builder, s) -> builder.addAnnotation(AnnotationSpec
+						.builder(RetainConfig.class).addMember("stream", "true").build()));
+		for (int i = 0; i < fields.length; i++) {
+			source.appendFields(fields[i].fieldSpecBuilder().addAnnotation(AnnotationSpec
+					.builder(Retained.class).addMember("ordinal", "$L", i).build()).build());
+		}
+		return source;
+	}
+
+	void streamSize() throws Exception {
+		TestSource source = createSource(new TestField(int.class, "a", "42"),
+				new TestField(String.class, "b", "\"foo\""),
+				new TestField(float[].class, "c", "new float[256]"));
+		BaseTestEnvironment environment = environment(source);
+		ClassLoader loader = environment.classLoader();
+		Object instance = environment.findClass(source.fqcn()).newInstance();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		report("int, String and float[256], write", ITERATIONS, time(() -> {
+			for (int n = 0; n < ITERATIONS; n++) {
+				bytes.reset();
+				Akatsuki.write(loader, instance, new DataOutputStream(bytes));
+			}
+		}));
+		byte[] written = bytes.toByteArray();
+		report("int, String and float[256], read " + written.length + " bytes", ITERATIONS,
+				time(() -> {
+					for (int n = 0; n < ITERATIONS; n++)
+						Akatsuki.read(loader, instance,
+								new DataInputStream(new ByteArrayInputStream(written)));
+				}));
+	}
+
+}
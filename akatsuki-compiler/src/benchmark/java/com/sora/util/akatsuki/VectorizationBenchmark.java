@@ -0,0 +1,55 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import com.google.testing.compile.JavaFileObjects;
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+
+// compile time overhead of OptFlags.VECTORIZE_INHERITANCE on large trees
+public class VectorizationBenchmark extends BenchmarkBase {
+
+	// long chains of mostly unannotated classes are the worst case for
+	// vectorization
+	private static final int VECTORIZED_CHAIN_LENGTH = 8;
+
+	public static void main(String[] args) throws Exception {
+		new VectorizationBenchmark().vectorizationTimeOfLargeTrees();
+	}
+
+	void vectorizationTimeOfLargeTrees() throws Exception {
+		for (int classes : new int[] { 250, 500, 1000 }) {
+			List<JavaFileObject> sources = SourceTreeBenchmark.createTree(classes,
+					VECTORIZED_CHAIN_LENGTH);
+			// warm up
+			compileTime(sources, OptFlags.CLASS_LUT, OptFlags.VECTORIZE_INHERITANCE);
+			String label = classes + " classes in chains of " + VECTORIZED_CHAIN_LENGTH;
+			report(label + ", vectorized", 1,
+					compileTime(sources, OptFlags.CLASS_LUT, OptFlags.VECTORIZE_INHERITANCE));
+			report(label + ", plain", 1, compileTime(sources, OptFlags.CLASS_LUT));
+		}
+	}
+
+	private long compileTime(List<JavaFileObject> tree, OptFlags... flags) throws Exception {
+		StringBuilder config = new StringBuilder();
+		for (OptFlags flag : flags)
+			config.append(config.length() == 0 ? "" : ", ")
+					.append(OptFlags.class.getCanonicalName()).append('.').append(flag);
+		String name = generateClassName();
+		List<JavaFileObject> sources = new ArrayList<>(tree);
+		sources.add(JavaFileObjects.forSourceString(TEST_PACKAGE + "." + name,
+				"package " + TEST_PACKAGE + ";\n@com.sora.util.akatsuki.AkatsukiConfig(optFlags = {"
+						+ config + "})\npublic class " + name + " {}\n"));
+		CompilerUtils.Result[] result = new CompilerUtils.Result[1];
+		long time = time(() -> result[0] = CompilerUtils.compile(
+				Thread.currentThread().getContextClassLoader(), processors(),
+				Collections.emptyList(), sources.toArray(new JavaFileObject[sources.size()])));
+		if (result[0].compilationException != null)
+			throw new RuntimeException(result[0].compilationException);
+		return time;
+	}
+
+}
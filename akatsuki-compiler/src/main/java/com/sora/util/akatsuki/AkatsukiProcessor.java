@@ -1,6 +1,7 @@
 package com.sora.util.akatsuki;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,6 +23,8 @@ import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
 import com.google.auto.service.AutoService;
 import com.google.common.collect.ImmutableSet;
@@ -35,20 +38,26 @@ import com.sora.util.akatsuki.models.SourceTreeModel.Arrangement;
 @AutoService(Processor.class)
 @SupportedSourceVersion(SourceVersion.RELEASE_8)
 @SupportedOptions({ "akatsuki.loggingLevel", "akatsuki.allowTransient", "akatsuki.allowVolatile",
-		"akatsuki.optFlags", "akatsuki.flags" })
+		"akatsuki.optFlags", "akatsuki.flags", "akatsuki.moduleName", "akatsuki.costReport" })
 public class AkatsukiProcessor extends AbstractProcessor {
 
 	private ProcessorContext context;
 
 	private Map<String, String> options;
 
+	// collected over all rounds, written once processing is over
+	private CostReport costReport;
+
+	// the table we wrote, registered as a service once processing is over
+	private String retainerCache;
+
 	private static final Set<Class<? extends Annotation>> FIELD_ANNOTATIONS = ImmutableSet
 			.of(With.class, Retained.class, Arg.class);
 
 	private static final Set<Class<? extends Annotation>> SUPPORTED_ANNOTATIONS = ImmutableSet.of(
 			TransformationTemplate.class, IncludeClasses.class, DeclaredConverter.class,
 			TypeFilter.class, TypeConstraint.class, RetainConfig.class, ArgConfig.class,
-			AkatsukiConfig.class);
+			AkatsukiConfig.class, Externalized.class);
 
 	@Override
 	public synchronized void init(ProcessingEnvironment processingEnv) {
@@ -96,6 +105,13 @@ public class AkatsukiProcessor extends AbstractProcessor {
 		Log.verbose(context, "Configuration loaded: " + configuration);
 		context.setConfigForRound(configuration);
 
+		if (costReport == null && context.config().costReport())
+			costReport = new CostReport();
+		if (roundEnv.processingOver() && costReport != null)
+			writeCostReport();
+		if (roundEnv.processingOver() && retainerCache != null)
+			writeRetainerCacheService();
+
 		// short circuit when compiler disabled
 		if (context.config().flags().contains(Flags.DISABLE_COMPILER)) {
 			Log.verbose(context, "DISABLE_COMPILER flag found, compiler disabled.");
@@ -103,6 +119,18 @@ public class AkatsukiProcessor extends AbstractProcessor {
 			return false;
 		}
 
+		// externalizers don't depend on the tree
+		for (Element element : roundEnv.getElementsAnnotatedWith(Externalized.class)) {
+			try {
+				new ExternalizerModel(context, (TypeElement) element)
+						.writeToFile(processingEnv.getFiler());
+			} catch (IOException e) {
+				context.messager().printMessage(Kind.ERROR,
+						"An error occurred while writing externalizer of " + element);
+				throw new RuntimeException(e);
+			}
+		}
+
 		Log.verbose(context, "Building source tree...");
 		SourceTreeModel model = SourceTreeModel.fromRound(context, roundEnv, FIELD_ANNOTATIONS);
 
@@ -114,6 +142,7 @@ public class AkatsukiProcessor extends AbstractProcessor {
 		if (model.classModels(Arrangement.HEAD).isEmpty()) {
 			Log.verbose(context,
 					"Round has no elements, classes possibly originated from another annotation processor");
+			reportSerializableFallbacks();
 			context.roundFinished();
 			return false;
 		}
@@ -138,7 +167,9 @@ public class AkatsukiProcessor extends AbstractProcessor {
 
 		List<RetainedStateModel> retainedStateModels = model.classModels(Arrangement.HEAD).stream()
 				.filter(m -> m.containsAnyAnnotation(Retained.class))
-				.map(cm -> new RetainedStateModel(context, cm, model)).collect(Collectors.toList());
+				.map(cm -> new RetainedStateModel(context, cm, model,
+						Optional.ofNullable(costReport)))
+				.collect(Collectors.toList());
 		Log.verbose(context, "Generated " + retainedStateModels.size() + ":");
 		retainedStateModels.forEach(m -> Log.verbose(context, "\t" + m.classInfo().className));
 
@@ -152,20 +183,6 @@ public class AkatsukiProcessor extends AbstractProcessor {
 			}
 		}
 
-		if (context.config().optFlags().contains(OptFlags.CLASS_LUT)
-				&& !retainedStateModels.isEmpty()) {
-			Log.verbose(context, "Generating additional classes for OptFlags.CLASS_LUT...");
-			try {
-				new RetainerLUTModel(context, retainedStateModels, roundEnv.getRootElements())
-						.writeToFile(processingEnv.getFiler());
-			} catch (IOException e) {
-				context.messager().printMessage(Kind.ERROR,
-						"An error occurred while writing cache class, "
-								+ "try disabling OptFlags.VECTORIZE_INHERITANCE");
-				throw new RuntimeException(e);
-			}
-		}
-
 		Log.verbose(context, "Generating classes for @Arg...");
 		List<ArgumentBuilderModel> argumentBuilderModels = model.classModels(Arrangement.FLATTENED)
 				.stream()
@@ -187,10 +204,77 @@ public class AkatsukiProcessor extends AbstractProcessor {
 					"An error occurred while writing argument builder");
 			throw new RuntimeException(e);
 		}
+
+		// the LUT goes last as it needs to know every generated retainer
+		if (context.config().optFlags().contains(OptFlags.CLASS_LUT)
+				&& !(retainedStateModels.isEmpty() && argumentBuilderModels.isEmpty())) {
+			Log.verbose(context, "Generating additional classes for OptFlags.CLASS_LUT...");
+			RetainerLUTModel lutModel = new RetainerLUTModel(context, retainedStateModels,
+					argumentBuilderModels, model.hierarchy());
+			String lutName = lutModel.classInfo().fullyQualifiedClassName();
+			// a table on the classpath that wasn't generated for our classes
+			// comes from another module
+			TypeElement existing = context.elements().getTypeElement(lutName);
+			if (retainerCache == null && existing != null && !lutModel.generatedFor(existing)) {
+				context.messager().printMessage(Kind.ERROR, lutName
+						+ " already exists on the classpath, another module has generated it. "
+						+ "Give every module its own name with AkatsukiConfig.moduleName or "
+						+ "the akatsuki.moduleName processor option");
+				context.roundFinished();
+				return true;
+			}
+			try {
+				lutModel.writeToFile(processingEnv.getFiler());
+				retainerCache = lutName;
+			} catch (IOException e) {
+				context.messager().printMessage(Kind.ERROR,
+						"An error occurred while writing cache class, "
+								+ "try disabling OptFlags.VECTORIZE_INHERITANCE");
+				throw new RuntimeException(e);
+			}
+		}
+		reportSerializableFallbacks();
 		context.roundFinished();
 		return true;
 	}
 
+	private void writeCostReport() {
+		try {
+			final FileObject file = processingEnv.getFiler()
+					.createResource(StandardLocation.CLASS_OUTPUT, "", CostReport.FILE_NAME);
+			try (Writer writer = file.openWriter()) {
+				costReport.writeTo(writer);
+			}
+		} catch (IOException e) {
+			context.messager().printMessage(Kind.ERROR,
+					"An error occurred while writing " + CostReport.FILE_NAME);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeRetainerCacheService() {
+		try {
+			final FileObject file = processingEnv.getFiler().createResource(
+					StandardLocation.CLASS_OUTPUT, "", RetainerLUTModel.SERVICE_RESOURCE);
+			try (Writer writer = file.openWriter()) {
+				writer.write(retainerCache + "\n");
+			}
+		} catch (IOException e) {
+			context.messager().printMessage(Kind.ERROR,
+					"An error occurred while writing " + RetainerLUTModel.SERVICE_RESOURCE);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void reportSerializableFallbacks() {
+		final Set<String> fields = context.serializableFallbacks();
+		if (fields.isEmpty())
+			return;
+		context.messager().printMessage(Kind.WARNING, fields.size()
+				+ " field(s) are saved with Java serialization, annotate their types with "
+				+ "@Externalized or use a converter to avoid it: " + String.join(", ", fields));
+	}
+
 	private <T extends Annotation> List<T> findAnnotations(Set<? extends Element> elements,
 			Class<T> clazz) {
 		return elements.stream().map(e -> e.getAnnotation(clazz)).collect(Collectors.toList());
@@ -21,7 +21,9 @@ import java.util.stream.Stream;
 import javax.annotation.processing.Filer;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 
 import com.google.common.base.Strings;
@@ -32,9 +34,11 @@ import com.sora.util.akatsuki.ArgConfig.Sort;
 import com.sora.util.akatsuki.BundleContext.SimpleBundleContext;
 import com.sora.util.akatsuki.BundleRetainerClassBuilder.Direction;
 import com.sora.util.akatsuki.Internal.ClassArgBuilder;
+import com.sora.util.akatsuki.analyzers.ArrayTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.InvocationType;
+import com.sora.util.akatsuki.analyzers.CollectionTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.Element;
 import com.sora.util.akatsuki.models.ClassInfo;
 import com.sora.util.akatsuki.models.FieldModel;
@@ -60,6 +64,7 @@ class ArgumentBuilderModel extends SourceMappingModel {
 	private final TypeName bundleTypeName;
 	private final ClassInfo info;
 	private final Optional<String> enclosingClass;
+	private Optional<ClassInfo> retainerClassInfo = Optional.empty();
 
 	protected ArgumentBuilderModel(ProcessorContext context, SourceClassModel classModel,
 			SourceTreeModel treeModel, Optional<String> enclosingClass) {
@@ -106,6 +111,14 @@ class ArgumentBuilderModel extends SourceMappingModel {
 		return info;
 	}
 
+	/**
+	 * @return the class info of the generated retainer, only present after
+	 *         {@link #build()} has generated a builder for this model
+	 */
+	public Optional<ClassInfo> retainerClassInfo() {
+		return retainerClassInfo;
+	}
+
 	@Override
 	public void writeToFile(Filer filer) throws IOException {
 		if (enclosingClass.isPresent())
@@ -177,17 +190,18 @@ class ArgumentBuilderModel extends SourceMappingModel {
 
 		}
 
-		BundleRetainerClassBuilder retainerClassBuilder = new BundleRetainerClassBuilder(context,
-				model, EnumSet.of(Direction.RESTORE), classInfo -> {
+		Function<ClassInfo, ClassInfo> retainerInfoFunction = classInfo -> {
+			ClassInfo info = classInfo.withNameTransform(
+					name -> Internal.generateRetainerClassName(name + Internal.BUILDER_CLASS_SUFFIX));
+			if (enclosingClass.isPresent())
+				info = info.withEnclosingClasses(enclosingClass.get());
 
-					ClassInfo info = classInfo.withNameTransform(name -> Internal
-							.generateRetainerClassName(name + Internal.BUILDER_CLASS_SUFFIX));
-					if (enclosingClass.isPresent())
-						info = info.withEnclosingClasses(enclosingClass.get());
+			info = info.withEnclosingClasses(classInfo().className);
+			return info;
+		};
 
-					info = info.withEnclosingClasses(classInfo().className);
-					return info;
-				} , classInfo -> {
+		BundleRetainerClassBuilder retainerClassBuilder = new BundleRetainerClassBuilder(context,
+				model, EnumSet.of(Direction.RESTORE), retainerInfoFunction, classInfo -> {
 					String className = classInfo.className;
 					ClassInfo info = classInfo.withNameTransform(name -> Internal
 							.generateRetainerClassName(name + Internal.BUILDER_CLASS_SUFFIX));
@@ -198,12 +212,17 @@ class ArgumentBuilderModel extends SourceMappingModel {
 				}).withFieldPredicate(modelPredicate);
 
 
-		// discard the value so that we don't overwrite them if value also stored with @Retained
+		// discard the value so that we don't overwrite them if value also stored with @Retained,
+		// packed values have their nulls under a key of their own
 		retainerClassBuilder.withAnalysisTransformation((context1, direction, element,
-				analysis) -> analysis.transform(s -> s + ";\n{{bundle}}.remove({{keyName}})\n"));
+				analysis) -> analysis.transform(s -> s + ";\n{{bundle}}.remove({{keyName}})"
+						+ (isPacked(element) ? ";\n{{bundle}}.remove(" + PackedCollections.class
+								.getName() + ".nullsKey({{keyName}}))" : "")
+						+ "\n"));
 
 		builderTypeBuilder
 				.addType(retainerClassBuilder.build().addModifiers(Modifier.STATIC).build());
+		retainerClassInfo = Optional.of(retainerInfoFunction.apply(model.asClassInfo()));
 
 		if (config.order() == Order.DSC)
 			Collections.reverse(fields);
@@ -246,6 +265,16 @@ class ArgumentBuilderModel extends SourceMappingModel {
 		return Optional.of(builderTypeBuilder);
 	}
 
+	// collections and arrays of boxed primitives, see PackedCollections
+	private boolean isPacked(Element<?> element) {
+		final CascadingTypeAnalyzer<?, ?, ?> strategy = context.resolver().resolve(element);
+		if (strategy instanceof CollectionTypeAnalyzer)
+			return ((CollectionTypeAnalyzer) strategy).isPacked(element);
+		final TypeMirror mirror = element.refinedMirror();
+		return strategy instanceof ArrayTypeAnalyzer && mirror.getKind() == TypeKind.ARRAY
+				&& context.utils().isBoxedType(((ArrayType) mirror).getComponentType());
+	}
+
 	private static class PartialModel {
 
 		final ArgConfig config;
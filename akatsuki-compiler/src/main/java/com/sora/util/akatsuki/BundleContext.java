@@ -1,5 +1,7 @@
 package com.sora.util.akatsuki;
 
+import java.util.Optional;
+
 import com.google.common.base.MoreObjects;
 
 
@@ -9,14 +11,58 @@ public interface BundleContext {
 
 	String bundleObjectName();
 
+	/**
+	 * @return where converters used by the class being generated are declared,
+	 *         empty if converters should be looked up on every call
+	 */
+	default Optional<ConverterFields> converterFields() {
+		return Optional.empty();
+	}
+
+	/**
+	 * @return where retainers of nested types that are written into this
+	 *         bundle are declared, empty if nested types get a bundle of their
+	 *         own
+	 */
+	default Optional<NestedRetainerFields> nestedRetainerFields() {
+		return Optional.empty();
+	}
+
+	/**
+	 * @return the table prefixed keys are looked up from, empty if keys are
+	 *         used as is
+	 */
+	default Optional<KeyTable> keyTable() {
+		return Optional.empty();
+	}
+
 	class SimpleBundleContext implements BundleContext {
 
 		private final String sourceObjectName;
 		private final String bundleObjectName;
+		private final Optional<ConverterFields> converterFields;
+		private final Optional<NestedRetainerFields> nestedRetainerFields;
+		private final Optional<KeyTable> keyTable;
 
 		SimpleBundleContext(String sourceObjectName, String bundleObjectName) {
+			this(sourceObjectName, bundleObjectName, Optional.empty());
+		}
+
+		SimpleBundleContext(String sourceObjectName, String bundleObjectName,
+				Optional<ConverterFields> converterFields) {
+			this(sourceObjectName, bundleObjectName, converterFields, Optional.empty(),
+					Optional.empty());
+		}
+
+		SimpleBundleContext(String sourceObjectName, String bundleObjectName,
+				Optional<ConverterFields> converterFields,
+				Optional<NestedRetainerFields> nestedRetainerFields,
+				Optional<KeyTable> keyTable) {
 			this.sourceObjectName = sourceObjectName;
 			this.bundleObjectName = bundleObjectName;
+			this.converterFields = converterFields;
+			this.nestedRetainerFields = nestedRetainerFields;
+			this.keyTable = keyTable;
 		}
 
 		@Override
@@ -29,10 +75,26 @@ public interface BundleContext {
 			return bundleObjectName;
 		}
 
+		@Override
+		public Optional<ConverterFields> converterFields() {
+			return converterFields;
+		}
+
+		@Override
+		public Optional<NestedRetainerFields> nestedRetainerFields() {
+			return nestedRetainerFields;
+		}
+
+		@Override
+		public Optional<KeyTable> keyTable() {
+			return keyTable;
+		}
+
 		@Override
 		public String toString() {
 			return MoreObjects.toStringHelper(this).add("sourceObjectName", sourceObjectName)
-					.add("bundleObjectName", bundleObjectName).toString();
+					.add("bundleObjectName", bundleObjectName).add("keyTable", keyTable)
+					.toString();
 		}
 	}
 
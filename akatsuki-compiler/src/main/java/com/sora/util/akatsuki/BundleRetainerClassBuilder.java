@@ -3,28 +3,45 @@ package com.sora.util.akatsuki;
 import static com.sora.util.akatsuki.SourceUtils.T;
 import static com.sora.util.akatsuki.SourceUtils.type;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.tools.Diagnostic.Kind;
 
 import com.sora.util.akatsuki.BundleContext.SimpleBundleContext;
+import com.sora.util.akatsuki.BundleSizes.Encoding;
+import com.sora.util.akatsuki.analyzers.ArrayTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.InvocationType;
+import com.sora.util.akatsuki.analyzers.CollectionTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.Element;
+import com.sora.util.akatsuki.analyzers.Element.Builder.SetterMode;
+import com.sora.util.akatsuki.analyzers.MapTypeAnalyzer;
+import com.sora.util.akatsuki.analyzers.NestedTypeAnalyzer;
+import com.sora.util.akatsuki.analyzers.ObjectTypeAnalyzer;
+import com.sora.util.akatsuki.analyzers.OffloadAnalyzer;
 import com.sora.util.akatsuki.models.BaseModel;
 import com.sora.util.akatsuki.models.ClassInfo;
 import com.sora.util.akatsuki.models.FieldModel;
 import com.sora.util.akatsuki.models.SourceClassModel;
 import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.MethodSpec.Builder;
 import com.squareup.javapoet.ParameterSpec;
@@ -54,6 +71,11 @@ public class BundleRetainerClassBuilder extends BaseModel {
 	private Optional<Predicate<FieldModel>> fieldModelPredicate = Optional.empty();
 	private Optional<AnalysisTransformation> analysisTransformation = Optional.empty();
 	private Optional<BundleContext> bundleContext = Optional.empty();
+	private Optional<NestedRetainerFields> nestedRetainerFields = Optional.empty();
+	private Map<FieldModel, String> keyNames = Collections.emptyMap();
+	private boolean trackChanges;
+	private boolean sizeEstimates;
+	private Optional<CostReport.Retainer> costReport = Optional.empty();
 
 	BundleRetainerClassBuilder(ProcessorContext context, SourceClassModel classModel,
 			EnumSet<Direction> direction, Function<ClassInfo, ClassInfo> classInfoFunction,
@@ -81,14 +103,70 @@ public class BundleRetainerClassBuilder extends BaseModel {
 		return this;
 	}
 
+	/**
+	 * Nested types are written into the same bundle, this adds overloads that
+	 * take a {@link KeyTable} for parent retainers to call
+	 */
+	public BundleRetainerClassBuilder withNestedRetainerFields(NestedRetainerFields fields) {
+		this.nestedRetainerFields = Optional.of(fields);
+		return this;
+	}
+
+	/**
+	 * Fields in the map are keyed with the given key instead of their name
+	 */
+	public BundleRetainerClassBuilder withKeyNames(Map<FieldModel, String> keyNames) {
+		this.keyNames = keyNames;
+		return this;
+	}
+
+	/**
+	 * Arrays, collections and maps are only saved when they changed since the
+	 * last save into the same bundle, see {@link DirtyTracker}. The prefixed
+	 * overloads of nested types always save, the same object may be saved
+	 * under more than one key table into the same bundle
+	 */
+	public BundleRetainerClassBuilder withChangeTracking() {
+		this.trackChanges = true;
+		return this;
+	}
+
+	/**
+	 * Adds an {@code estimate} method that adds the size of every saved field
+	 * to a {@link SizeEstimate}, see {@link BundleSizeEstimator}
+	 */
+	public BundleRetainerClassBuilder withSizeEstimates() {
+		this.sizeEstimates = true;
+		return this;
+	}
+
+	/**
+	 * Every saved field is added to the report along with the analyzer that
+	 * saves it
+	 */
+	public BundleRetainerClassBuilder withCostReport(CostReport.Retainer retainer) {
+		this.costReport = Optional.of(retainer);
+		return this;
+	}
+
 	// public ClassInfo classInfo() {
 	// return classInfo;
 	// }
 
 	public TypeSpec.Builder build() {
 
-		BundleContext bundleContext = this.bundleContext
+		final ConverterFields converterFields = new ConverterFields(context);
+		final BundleContext givenContext = this.bundleContext
 				.orElse(new SimpleBundleContext("source", "bundle"));
+		BundleContext bundleContext = new SimpleBundleContext(givenContext.sourceObjectName(),
+				givenContext.bundleObjectName(), Optional.of(converterFields),
+				nestedRetainerFields, Optional.empty());
+		// same as above but every key is looked up from the table
+		final Optional<KeyTable> keyTable = nestedRetainerFields.map(KeyTable::new);
+		final Optional<BundleContext> prefixedContext = keyTable
+				.map(table -> new SimpleBundleContext(givenContext.sourceObjectName(),
+						givenContext.bundleObjectName(), Optional.of(converterFields),
+						nestedRetainerFields, keyTable));
 
 		final ClassName sourceClassName = ClassName.get(classModel.originatingElement());
 
@@ -103,7 +181,13 @@ public class BundleRetainerClassBuilder extends BaseModel {
 						bundleContext.bundleObjectName(), Modifier.FINAL)
 				.build();
 
+		final ParameterSpec keysSpec = ParameterSpec
+				.builder(String[].class, KeyTable.KEYS, Modifier.FINAL).build();
+		final ParameterSpec offsetSpec = ParameterSpec
+				.builder(int.class, KeyTable.OFFSET, Modifier.FINAL).build();
+
 		EnumMap<Direction, Builder> actionBuilderMap = new EnumMap<>(Direction.class);
+		EnumMap<Direction, Builder> prefixedBuilderMap = new EnumMap<>(Direction.class);
 
 		// we implement the interface here, all methods action must actually be
 		// there
@@ -117,9 +201,48 @@ public class BundleRetainerClassBuilder extends BaseModel {
 				saveMethodBuilder.addStatement(superInvocation, direction.methodName,
 						bundleContext.sourceObjectName(), bundleContext.bundleObjectName());
 			}
+			if (prefixedContext.isPresent()) {
+				final Builder prefixedBuilder = MethodSpec.methodBuilder(direction.methodName)
+						.addModifiers(Modifier.PUBLIC).returns(void.class)
+						.addParameter(sourceSpec).addParameter(bundleSpec)
+						.addParameter(keysSpec).addParameter(offsetSpec);
+				prefixedBuilderMap.put(direction, prefixedBuilder);
+				if (classModel.directSuperModel().isPresent()) {
+					prefixedBuilder.addStatement("super.$L($L, $L, $L, $L + $L)",
+							direction.methodName, bundleContext.sourceObjectName(),
+							bundleContext.bundleObjectName(), KeyTable.KEYS, KeyTable.OFFSET,
+							KeyTable.SUPER_OFFSET);
+				}
+			}
 		}
 
-		List<Element<TypeMirror>> elements = classModel.fields().stream().map(Element::new)
+		// only retainers that save can tell how much they save
+		final ParameterSpec estimateSpec = ParameterSpec
+				.builder(SizeEstimate.class, "estimate", Modifier.FINAL).build();
+		final Optional<Builder> estimateBuilder = sizeEstimates
+				&& directions.contains(Direction.SAVE)
+						? Optional.of(MethodSpec.methodBuilder("estimate")
+								.addModifiers(Modifier.PUBLIC).returns(void.class)
+								.addParameter(sourceSpec).addParameter(estimateSpec))
+						: Optional.empty();
+		final Optional<Builder> prefixedEstimateBuilder = estimateBuilder
+				.filter(builder -> prefixedContext.isPresent())
+				.map(builder -> MethodSpec.methodBuilder("estimate")
+						.addModifiers(Modifier.PUBLIC).returns(void.class)
+						.addParameter(sourceSpec).addParameter(estimateSpec)
+						.addParameter(keysSpec).addParameter(offsetSpec));
+		if (estimateBuilder.isPresent() && classModel.directSuperModel().isPresent()) {
+			estimateBuilder.get().addStatement("super.estimate($L, estimate)",
+					bundleContext.sourceObjectName());
+			prefixedEstimateBuilder.ifPresent(builder -> builder.addStatement(
+					"super.estimate($L, estimate, $L, $L + $L)", bundleContext.sourceObjectName(),
+					KeyTable.KEYS, KeyTable.OFFSET, KeyTable.SUPER_OFFSET));
+		}
+
+		List<Element<TypeMirror>> elements = classModel.fields().stream()
+				.map(fm -> keyNames.containsKey(fm) ? new Element<TypeMirror>(fm).toBuilder()
+						.keyName(SetterMode.REPLACE, "\"" + keyNames.get(fm) + "\"").build()
+						: new Element<TypeMirror>(fm))
 				.collect(Collectors.toList());
 
 		EnumSet<Direction> emptyDirections = EnumSet.complementOf(this.directions);
@@ -127,8 +250,26 @@ public class BundleRetainerClassBuilder extends BaseModel {
 		for (Direction direction : emptyDirections) {
 			actionBuilderMap.get(direction).addCode("throw new $T($S);", AssertionError.class,
 					"Unused action, should not be called at all");
+			if (prefixedBuilderMap.containsKey(direction))
+				prefixedBuilderMap.get(direction).addCode("throw new $T($S);",
+						AssertionError.class, "Unused action, should not be called at all");
+		}
+
+		final List<Element<TypeMirror>> trackedElements = trackChanges
+				&& directions.contains(Direction.SAVE)
+						? elements.stream()
+								.filter(e -> fieldModelPredicate.orElseGet(() -> fm -> true)
+										.test(e.model()) && tracked(e))
+								.collect(Collectors.toList())
+						: Collections.emptyList();
+		if (!trackedElements.isEmpty()) {
+			actionBuilderMap.get(Direction.SAVE).addStatement(
+					"final $T.Snapshot snapshot = tracker.begin($L, $L)", DirtyTracker.class,
+					bundleContext.sourceObjectName(), bundleContext.bundleObjectName());
 		}
 
+		// one per saved field, see BundleKeyCounter
+		int keyCount = 0;
 		for (Element<TypeMirror> element : elements) {
 			if (!fieldModelPredicate.orElseGet(() -> fm -> true).test(element.model()))
 				continue;
@@ -140,15 +281,44 @@ public class BundleRetainerClassBuilder extends BaseModel {
 								+ " representing class is " + element.refinedMirror().getClass(),
 						element.originatingElement());
 			} else {
+				keyCount++;
 				try {
 					for (Direction direction : directions) {
 						Analysis analysis = strategy.transform(bundleContext, element,
 								direction.type);
 						analysisTransformation.ifPresent(
 								ft -> ft.transform(context, direction, element, analysis));
+						String code = analysis.preEmitOnce() + analysis.emit()
+								+ analysis.postEmitOnce();
+						final int trackedIndex = trackedElements.indexOf(element);
+						if (direction == Direction.SAVE && trackedIndex != -1) {
+							code = "if (snapshot.changed(" + trackedIndex + ", "
+									+ element.accessor(
+											fn -> bundleContext.sourceObjectName() + "." + fn)
+									+ ", " + bundleContext.bundleObjectName() + ", "
+									+ element.keyName() + ")) {\n" + code + "}\n";
+						}
 						actionBuilderMap.get(direction)
-								.addCode(JavaPoetUtils.escapeStatement(analysis.preEmitOnce()
-										+ analysis.emit() + analysis.postEmitOnce()));
+								.addCode(JavaPoetUtils.escapeStatement(code));
+						if (prefixedContext.isPresent()) {
+							Analysis prefixed = strategy.transform(prefixedContext.get(),
+									element, direction.type);
+							analysisTransformation.ifPresent(
+									ft -> ft.transform(context, direction, element, prefixed));
+							prefixedBuilderMap.get(direction)
+									.addCode(JavaPoetUtils.escapeStatement(prefixed.preEmitOnce()
+											+ prefixed.emit() + prefixed.postEmitOnce()));
+						}
+					}
+					if (costReport.isPresent())
+						costReport.get().add(createFieldCost(strategy, element));
+					if (estimateBuilder.isPresent()) {
+						final String accessor = element
+								.accessor(fn -> bundleContext.sourceObjectName() + "." + fn);
+						estimateBuilder.get().addCode(
+								createEstimate(strategy, element, accessor, Optional.empty()));
+						prefixedEstimateBuilder.ifPresent(builder -> builder.addCode(
+								createEstimate(strategy, element, accessor, keyTable)));
 					}
 				} catch (Exception | Error e) {
 					context.messager().printMessage(Kind.ERROR, "An exception/error occurred",
@@ -162,12 +332,55 @@ public class BundleRetainerClassBuilder extends BaseModel {
 				.classBuilder(classInfoFunction.apply(classModel.asClassInfo()).className)
 				.addModifiers(Modifier.PUBLIC).addTypeVariable(actualClassCapture);
 
+		for (FieldSpec field : converterFields.fields()) {
+			typeSpecBuilder.addField(field);
+		}
+
+		if (nestedRetainerFields.isPresent()) {
+			for (FieldSpec field : nestedRetainerFields.get().fields()) {
+				typeSpecBuilder.addField(field);
+			}
+		}
+
+		final Optional<ClassName> superRetainer = classModel.directSuperModel()
+				.map(model -> superClassInfoFunction.apply(model.asClassInfo()).toClassName());
+		if (keyTable.isPresent()) {
+			for (FieldSpec field : keyTable.get().fields(superRetainer)) {
+				typeSpecBuilder.addField(field);
+			}
+			for (MethodSpec method : keyTable.get().methods(superRetainer)) {
+				typeSpecBuilder.addMethod(method);
+			}
+		}
+
 		for (Builder builder : actionBuilderMap.values()) {
 			typeSpecBuilder.addMethod(builder.build());
 		}
+		for (Builder builder : prefixedBuilderMap.values()) {
+			typeSpecBuilder.addMethod(builder.build());
+		}
+		estimateBuilder.ifPresent(builder -> typeSpecBuilder.addMethod(builder.build()));
+		prefixedEstimateBuilder
+				.ifPresent(builder -> typeSpecBuilder.addMethod(builder.build()));
+		if (!trackedElements.isEmpty()) {
+			typeSpecBuilder.addField(FieldSpec
+					.builder(DirtyTracker.class, "tracker", Modifier.PRIVATE, Modifier.FINAL)
+					.initializer("new $T($L)", DirtyTracker.class, trackedElements.size())
+					.build());
+		}
 
 		Optional<SourceClassModel> superModel = classModel.directSuperModel();
 
+		if (directions.contains(Direction.SAVE)) {
+			final Builder keyCountBuilder = MethodSpec.methodBuilder("keyCount")
+					.addModifiers(Modifier.PUBLIC).returns(int.class);
+			if (superModel.isPresent())
+				keyCountBuilder.addStatement("return super.keyCount() + $L", keyCount);
+			else
+				keyCountBuilder.addStatement("return $L", keyCount);
+			typeSpecBuilder.addMethod(keyCountBuilder.build());
+		}
+
 		if (superModel.isPresent()) {
 			ClassName className = superClassInfoFunction.apply(superModel.get().asClassInfo())
 					.toClassName();
@@ -175,10 +388,147 @@ public class BundleRetainerClassBuilder extends BaseModel {
 		} else {
 			final ParameterizedTypeName interfaceName = type(BundleRetainer.class, T);
 			typeSpecBuilder.addSuperinterface(interfaceName);
+			if (estimateBuilder.isPresent())
+				typeSpecBuilder.addSuperinterface(type(BundleSizeEstimator.class, T));
+			if (directions.contains(Direction.SAVE))
+				typeSpecBuilder.addSuperinterface(BundleKeyCounter.class);
 		}
 		return typeSpecBuilder;
 	}
 
+	// flattened nested types add their own fields under the prefixed key
+	private CodeBlock createEstimate(CascadingTypeAnalyzer<?, ?, ?> strategy,
+			Element<TypeMirror> element, String accessor, Optional<KeyTable> keyTable) {
+		final String key = keyTable.map(table -> table.key(element.keyName()))
+				.orElse(element.keyName());
+		final Optional<String> nestedRetainer = nestedRetainerFields
+				.filter(fields -> strategy instanceof NestedTypeAnalyzer)
+				.flatMap(fields -> fields.fieldFor(element.refinedMirror()));
+		if (nestedRetainer.isPresent()) {
+			final TypeMirror mirror = element.refinedMirror();
+			final String keys = keyTable.map(table -> table.nested(mirror, element.keyName()))
+					.orElseGet(() -> nestedRetainerFields.get().keysFor(mirror,
+							element.keyName()));
+			// along with the marker saved under the key itself
+			return CodeBlock.builder()
+					.addStatement("estimate.add($S, $L, $T.of($L != null))",
+							element.model().name(), key, BundleSizes.class, accessor)
+					.addStatement("if ($L != null) $L.estimate($L, estimate, $L)", accessor,
+							nestedRetainer.get(), accessor, keys)
+					.build();
+		}
+		return CodeBlock.builder().addStatement("estimate.add($S, $L, $L)",
+				element.model().name(), key, createSize(strategy, element, accessor, key))
+				.build();
+	}
+
+	// primitives and their arrays have exact overloads, everything else is
+	// estimated the way the analyzer saves it or dispatched at runtime
+	private CodeBlock createSize(CascadingTypeAnalyzer<?, ?, ?> strategy,
+			Element<TypeMirror> element, String accessor, String key) {
+		final CodeBlock.Builder builder = CodeBlock.builder();
+		if (strategy instanceof OffloadAnalyzer)
+			return builder.add("$T.ofOffloaded($L)", BundleSizes.class, accessor).build();
+		if (strategy instanceof CollectionTypeAnalyzer
+				&& ((CollectionTypeAnalyzer) strategy).isPacked(element))
+			return builder.add("$T.ofPacked($L, $L)", BundleSizes.class, key, accessor).build();
+		final TypeMirror mirror = element.model().type();
+		if (strategy instanceof MapTypeAnalyzer) {
+			final List<? extends TypeMirror> arguments = ((DeclaredType) element
+					.refinedMirror()).getTypeArguments();
+			final ArrayTypeAnalyzer arrays = new ArrayTypeAnalyzer(strategy);
+			return builder.add("$T.ofMap($L, $L, $T.$L, $T.$L)", BundleSizes.class, key,
+					accessor, Encoding.class, arrays.encoding(arguments.get(0)),
+					Encoding.class, arrays.encoding(arguments.get(1))).build();
+		}
+		if (mirror.getKind().isPrimitive())
+			return builder.add("$T.of($L)", BundleSizes.class, accessor).build();
+		if (strategy instanceof ArrayTypeAnalyzer && mirror.getKind() == TypeKind.ARRAY) {
+			final TypeMirror component = ((ArrayType) mirror).getComponentType();
+			if (component.getKind().isPrimitive())
+				return builder.add("$T.of($L)", BundleSizes.class, accessor).build();
+			if (component.getKind() == TypeKind.ARRAY)
+				return builder.add("$T.ofFlattened($L, $L)", BundleSizes.class, key, accessor)
+						.build();
+			switch (((ArrayTypeAnalyzer) strategy).encoding(component)) {
+			case PACKED:
+				return builder.add("$T.ofPacked($L, $L)", BundleSizes.class, key, accessor)
+						.build();
+			case BUNDLED:
+				return builder.add("$T.ofBundled($L)", BundleSizes.class, accessor).build();
+			default:
+				break;
+			}
+		}
+		return builder.add("$T.ofObject($L)", BundleSizes.class, accessor).build();
+	}
+
+	private CostReport.FieldCost createFieldCost(CascadingTypeAnalyzer<?, ?, ?> strategy,
+			Element<TypeMirror> element) {
+		final boolean fallback = context.isSerializableFallback(element.originatingElement());
+		final String analyzer = fallback && strategy instanceof ObjectTypeAnalyzer
+				? "Serializable"
+				: strategy.getClass().getSimpleName().replaceFirst("(Type)?Analyzer$", "");
+		// literal keys are reported as is, anything else as the expression
+		String key = element.keyName();
+		if (key.matches("\"[^\"]*\""))
+			key = key.substring(1, key.length() - 1);
+		final TypeMirror mirror = element.model().type();
+		final boolean primitive = mirror.getKind().isPrimitive();
+		final int bytes = CostReport.entrySize(key, CostReport.valueSize(primitive,
+				mirror.getKind() == TypeKind.LONG || mirror.getKind() == TypeKind.DOUBLE));
+		return new CostReport.FieldCost(element.model().name(), key, analyzer, fallback,
+				elementLoop(strategy, element), bytes, primitive);
+	}
+
+	// elements without an array type of their own are each saved into a
+	// bundle in a loop, see ArrayTypeAnalyzer
+	private boolean elementLoop(CascadingTypeAnalyzer<?, ?, ?> strategy,
+			Element<TypeMirror> element) {
+		if (strategy instanceof MapTypeAnalyzer) {
+			final ArrayTypeAnalyzer arrays = new ArrayTypeAnalyzer(strategy);
+			return ((DeclaredType) element.refinedMirror()).getTypeArguments().stream()
+					.anyMatch(argument -> arrays.encoding(argument) == Encoding.BUNDLED);
+		}
+		final TypeMirror mirror = element.model().type();
+		return strategy instanceof ArrayTypeAnalyzer && mirror.getKind() == TypeKind.ARRAY
+				&& ((ArrayTypeAnalyzer) strategy).encoding(
+						((ArrayType) mirror).getComponentType()) == Encoding.BUNDLED;
+	}
+
+	// only types whose copy covers their content can be skipped, a copy
+	// shares mutable elements
+	private boolean tracked(Element<TypeMirror> element) {
+		final TypeMirror mirror = element.model().type();
+		if (mirror.getKind() == TypeKind.ARRAY)
+			return trackedArray(mirror);
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return false;
+		final TypeMirror erasure = context.types().erasure(mirror);
+		if (!context.utils().isAssignable(erasure, context.utils().of(Collection.class), true)
+				&& !context.utils().isAssignable(erasure, context.utils().of(Map.class), true))
+			return false;
+		final List<? extends TypeMirror> arguments = ((DeclaredType) mirror).getTypeArguments();
+		return !arguments.isEmpty() && arguments.stream().allMatch(this::immutable);
+	}
+
+	// arrays of immutable types and nested arrays of primitives or immutable
+	// types; a flat primitive array is put as is, comparing it costs as much
+	private boolean trackedArray(TypeMirror mirror) {
+		final TypeMirror component = ((ArrayType) mirror).getComponentType();
+		if (component.getKind() == TypeKind.ARRAY)
+			return ((ArrayType) component).getComponentType().getKind().isPrimitive()
+					|| trackedArray(component);
+		return immutable(component);
+	}
+
+	private boolean immutable(TypeMirror mirror) {
+		return context.utils().isBoxedType(mirror)
+				|| context.utils().isSameType(mirror, context.utils().of(String.class), true)
+				|| (mirror.getKind() == TypeKind.DECLARED && context.types().asElement(mirror)
+						.getKind() == ElementKind.ENUM);
+	}
+
 	public interface AnalysisTransformation {
 		void transform(ProcessorContext context, Direction direction, Element<?> element,
 				Analysis analysis);
@@ -47,6 +47,10 @@ public class Configuration {
 			Log.warn(context, "OptFlags.VECTORIZE_INHERITANCE is dependent on OptFlags.CLASS_LUT");
 		}
 
+		if (optFlags.contains(OptFlags.CACHE_INSTANCES) && !optFlags.contains(OptFlags.CLASS_LUT)) {
+			Log.warn(context, "OptFlags.CACHE_INSTANCES is dependent on OptFlags.CLASS_LUT");
+		}
+
 	}
 
 	public LoggingLevel loggingLevel() {
@@ -61,6 +65,10 @@ public class Configuration {
 		return config.allowTransient();
 	}
 
+	public boolean costReport() {
+		return config.costReport();
+	}
+
 	public boolean fieldAllowed(Element element) {
 		Set<Modifier> modifiers = element.getModifiers();
 
@@ -103,6 +111,21 @@ public class Configuration {
 		return config.retainConfig();
 	}
 
+	/**
+	 * Returns the simple name of the generated {@link RetainerCache}, the name
+	 * is unique to the module if {@link AkatsukiConfig#moduleName()} is set
+	 */
+	public String retainerCacheName() {
+		String moduleName = config.moduleName();
+		if (moduleName.isEmpty())
+			return Akatsuki.RETAINER_CACHE_NAME;
+		StringBuilder builder = new StringBuilder(Akatsuki.RETAINER_CACHE_NAME).append('_');
+		for (char c : moduleName.toCharArray()) {
+			builder.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		return builder.toString();
+	}
+
 	private static <E extends Enum<E>> EnumSet<E> of(Class<E> type, E[] array) {
 		EnumSet<E> result = EnumSet.noneOf(type);
 		Collections.addAll(result, array);
@@ -0,0 +1,104 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+/**
+ * Collects the {@link TypeConverter}s used by a generated class so that each
+ * of them is resolved once and kept in a static field instead of being looked
+ * up for every field on every call
+ */
+public class ConverterFields {
+
+	private static final String FIELD_PREFIX = "CONVERTER_";
+
+	private final ProcessorContext context;
+	private final Map<String, FieldSpec> fields = new LinkedHashMap<>();
+
+	ConverterFields(ProcessorContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Declares a field for the given converter if there isn't one already
+	 *
+	 * @return the name of the field or empty if the converted type cannot be
+	 *         expressed in a field declaration (a generic converter), the
+	 *         converter then has to be looked up on every call
+	 */
+	public Optional<String> fieldFor(DeclaredType converter) {
+		final TypeElement element = (TypeElement) converter.asElement();
+		final String key = context.elements().getBinaryName(element).toString();
+		final FieldSpec existing = fields.get(key);
+		if (existing != null)
+			return Optional.of(existing.name);
+
+		final Optional<TypeMirror> convertedType = findConvertedType(converter);
+		if (!convertedType.isPresent())
+			return Optional.empty();
+
+		final TypeName fieldType = ParameterizedTypeName.get(ClassName.get(TypeConverter.class),
+				TypeName.get(convertedType.get()));
+		final FieldSpec field = FieldSpec
+				.builder(fieldType, FIELD_PREFIX + fields.size(), Modifier.PRIVATE,
+						Modifier.STATIC, Modifier.FINAL)
+				.initializer("$T.converter($T.class)", Akatsuki.class, ClassName.get(element))
+				.build();
+		fields.put(key, field);
+		return Optional.of(field.name);
+	}
+
+	List<FieldSpec> fields() {
+		return new ArrayList<>(fields.values());
+	}
+
+	private Optional<TypeMirror> findConvertedType(TypeMirror type) {
+		final TypeMirror converterType = context.types()
+				.erasure(context.utils().of(TypeConverter.class));
+		for (TypeMirror supertype : context.types().directSupertypes(type)) {
+			if (context.types().isSameType(context.types().erasure(supertype), converterType)) {
+				final List<? extends TypeMirror> arguments = ((DeclaredType) supertype)
+						.getTypeArguments();
+				// raw or generic converters are left to the runtime lookup
+				if (arguments.size() != 1 || !isConcrete(arguments.get(0)))
+					return Optional.empty();
+				return Optional.of(arguments.get(0));
+			}
+			final Optional<TypeMirror> found = findConvertedType(supertype);
+			if (found.isPresent())
+				return found;
+		}
+		return Optional.empty();
+	}
+
+	private static boolean isConcrete(TypeMirror mirror) {
+		if (mirror.getKind() == TypeKind.ARRAY)
+			return isConcrete(((ArrayType) mirror).getComponentType());
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return mirror.getKind().isPrimitive();
+		// the field declaration has to name the type
+		if (((DeclaredType) mirror).asElement().getModifiers().contains(Modifier.PRIVATE))
+			return false;
+		for (TypeMirror argument : ((DeclaredType) mirror).getTypeArguments()) {
+			if (!isConcrete(argument))
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.sora.util.akatsuki;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What every generated {@link BundleRetainer} saves and how, written as JSON
+ * when {@link AkatsukiConfig#costReport()} is set so that builds can be
+ * checked for expensive state. Sizes follow {@link BundleSizes}, only fields
+ * of a fixed size have an exact estimate, the rest are a lower bound
+ */
+final class CostReport {
+
+	static final String FILE_NAME = "akatsuki-cost-report.json";
+
+	// everything in a parcel is padded to 4 bytes
+	private static final int WORD = 4;
+
+	private final List<Retainer> retainers = new ArrayList<>();
+
+	Retainer retainer(String className, String retainerName) {
+		final Retainer retainer = new Retainer(className, retainerName);
+		retainers.add(retainer);
+		return retainer;
+	}
+
+	void writeTo(Writer writer) throws IOException {
+		writer.write("{\"retainers\":[");
+		for (int i = 0; i < retainers.size(); i++) {
+			writer.write(i == 0 ? "\n" : ",\n");
+			retainers.get(i).writeTo(writer);
+		}
+		writer.write("\n]}\n");
+	}
+
+	/**
+	 * @return the parceled size of a bundle entry with the given key and a
+	 *         value of the given size
+	 */
+	static int entrySize(String key, int valueSize) {
+		return WORD + pad((key.length() + 1) * 2) + WORD + valueSize;
+	}
+
+	/**
+	 * @return the parceled size of a primitive, the lower bound of every
+	 *         other value is a single word for null
+	 */
+	static int valueSize(boolean primitive, boolean wide) {
+		return primitive && wide ? 2 * WORD : WORD;
+	}
+
+	private static int pad(int size) {
+		return (size + WORD - 1) & ~(WORD - 1);
+	}
+
+	static final class Retainer {
+
+		private final String className;
+		private final String retainerName;
+		private final List<FieldCost> fields = new ArrayList<>();
+
+		Retainer(String className, String retainerName) {
+			this.className = className;
+			this.retainerName = retainerName;
+		}
+
+		void add(FieldCost field) {
+			fields.add(field);
+		}
+
+		void writeTo(Writer writer) throws IOException {
+			int bytes = 0;
+			boolean exact = true;
+			for (FieldCost field : fields) {
+				bytes += field.bytes;
+				exact &= field.exact;
+			}
+			writer.write("{\"class\":" + quote(className) + ",\"retainer\":"
+					+ quote(retainerName) + ",\"fieldCount\":" + fields.size()
+					+ ",\"estimatedBytes\":" + bytes + ",\"exact\":" + exact + ",\"fields\":[");
+			for (int i = 0; i < fields.size(); i++) {
+				writer.write(i == 0 ? "\n  " : ",\n  ");
+				fields.get(i).writeTo(writer);
+			}
+			writer.write("]}");
+		}
+	}
+
+	static final class FieldCost {
+
+		private final String name;
+		private final String key;
+		private final String analyzer;
+		private final boolean serializableFallback;
+		private final boolean elementLoop;
+		private final int bytes;
+		private final boolean exact;
+
+		/**
+		 * @param analyzer
+		 *            the kind of analyzer chosen for the field
+		 * @param elementLoop
+		 *            whether the generated save code loops over the elements,
+		 *            saving each into a bundle of its own
+		 * @param bytes
+		 *            the estimated size of the entry or its lower bound if
+		 *            not exact
+		 */
+		FieldCost(String name, String key, String analyzer, boolean serializableFallback,
+				boolean elementLoop, int bytes, boolean exact) {
+			this.name = name;
+			this.key = key;
+			this.analyzer = analyzer;
+			this.serializableFallback = serializableFallback;
+			this.elementLoop = elementLoop;
+			this.bytes = bytes;
+			this.exact = exact;
+		}
+
+		void writeTo(Writer writer) throws IOException {
+			writer.write("{\"name\":" + quote(name) + ",\"key\":" + quote(key) + ",\"analyzer\":"
+					+ quote(analyzer) + ",\"serializableFallback\":" + serializableFallback
+					+ ",\"elementLoop\":" + elementLoop + ",\"estimatedBytes\":" + bytes
+					+ ",\"exact\":" + exact + "}");
+		}
+	}
+
+	static String quote(String value) {
+		final StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if (c < 0x20)
+				builder.append(String.format("\\u%04x", (int) c));
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.sora.util.akatsuki;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+
+import com.sora.util.akatsuki.models.BaseModel;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeSpec;
+
+/**
+ * Generates the {@link Externalizer} of an {@link Externalized} class, all
+ * fields of the class and its serializable superclasses are written with
+ * {@link StateStreams} in declaration order, superclass fields first, under
+ * their position or {@link Externalized.Ordinal}
+ */
+class ExternalizerModel extends BaseModel {
+
+	private static final Set<String> SERIALIZATION_METHODS = new HashSet<>(Arrays.asList(
+			"writeObject", "readObject", "readObjectNoData", "writeReplace", "readResolve"));
+
+	private final TypeElement element;
+	private final StreamCodecs codecs;
+
+	ExternalizerModel(ProcessorContext context, TypeElement element) {
+		super(context);
+		this.element = element;
+		this.codecs = new StreamCodecs(context);
+	}
+
+	public void writeToFile(Filer filer) throws IOException {
+		if (!validate())
+			return;
+		final ClassName sourceClassName = ClassName.get(element);
+		final ClassName name = StreamCodecs.externalizerName(context, element);
+
+		final MethodSpec.Builder writeBuilder = MethodSpec.methodBuilder("write")
+				.addAnnotation(Override.class).addModifiers(Modifier.PUBLIC)
+				.addParameter(sourceClassName, "source", Modifier.FINAL)
+				.addParameter(DataOutput.class, "output", Modifier.FINAL)
+				.addException(IOException.class);
+		final MethodSpec.Builder readBuilder = MethodSpec.methodBuilder("read")
+				.addAnnotation(Override.class).addModifiers(Modifier.PUBLIC)
+				.addParameter(sourceClassName, "source", Modifier.FINAL)
+				.addParameter(DataInput.class, "input", Modifier.FINAL)
+				.addException(IOException.class);
+
+		final CodeBlock.Builder cases = CodeBlock.builder();
+		final Map<Integer, VariableElement> used = new HashMap<>();
+		boolean valid = true;
+		int position = 0;
+		for (VariableElement field : fields(element)) {
+			final Externalized.Ordinal pinned = field.getAnnotation(Externalized.Ordinal.class);
+			final int ordinal = pinned == null ? position : pinned.value();
+			position++;
+			if (ordinal < 0 || ordinal > FieldOrdinals.MAX_ORDINAL) {
+				context.messager().printMessage(Kind.ERROR,
+						"ordinal must be between 0 and " + FieldOrdinals.MAX_ORDINAL, field);
+				valid = false;
+				continue;
+			}
+			final VariableElement existing = used.putIfAbsent(ordinal, field);
+			if (existing != null) {
+				context.messager().printMessage(Kind.ERROR, "ordinal " + ordinal
+						+ " is already used by " + existing.getSimpleName() + " of " + element,
+						field);
+				valid = false;
+				continue;
+			}
+			final Optional<String> codec = codecs.codecOf(field.asType());
+			if (!isAccessible(field) || !codec.isPresent()) {
+				context.messager().printMessage(Kind.ERROR,
+						"field of " + element + " can't be externalized, fields must not be "
+								+ "final or private and have a type that can be written with "
+								+ StateStreams.class.getSimpleName(),
+						field);
+				valid = false;
+				continue;
+			}
+			// a field that leads back to this class would make the externalizers
+			// recurse without end on a cycle, serialization keeps track of them
+			final String fieldCodec = codec.get().equals(StreamCodecs.EXTERNALIZED)
+					&& reaches(externalizedType(field.asType()), new HashSet<>())
+							? StreamCodecs.SERIALIZABLE : codec.get();
+			if (fieldCodec.equals(StreamCodecs.SERIALIZABLE))
+				context.serializableFallback(field);
+			final String accessor = "source." + field.getSimpleName();
+			writeBuilder.addCode(codecs.write(field.asType(), fieldCodec, ordinal, accessor));
+			cases.add("case $L:\n", ordinal).indent()
+					.add(codecs.read(field.asType(), fieldCodec, accessor))
+					.addStatement("break").unindent();
+		}
+		if (!valid)
+			return;
+		cases.add("default:\n").indent().addStatement("$T.skip(input, tag)", StateStreams.class)
+				.unindent();
+		writeBuilder.addStatement("$T.writeEnd(output)", StateStreams.class);
+		readBuilder
+				.beginControlFlow("for (int tag = $T.readTag(input); tag != $T.END; "
+						+ "tag = $T.readTag(input))", StateStreams.class, StateStreams.class,
+						StateStreams.class)
+				.beginControlFlow("switch ($T.ordinal(tag))", StateStreams.class)
+				.addCode(cases.build()).endControlFlow().endControlFlow();
+
+		final TypeSpec spec = TypeSpec.classBuilder(name.simpleName())
+				.addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+				.superclass(ParameterizedTypeName.get(ClassName.get(Externalizer.class),
+						sourceClassName))
+				.addField(FieldSpec
+						.builder(name, "INSTANCE", Modifier.PUBLIC, Modifier.STATIC,
+								Modifier.FINAL)
+						.initializer("new $T()", name).build())
+				.addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE)
+						.addStatement("super($T.class)", sourceClassName).build())
+				.addMethod(MethodSpec.methodBuilder("create").addAnnotation(Override.class)
+						.addModifiers(Modifier.PROTECTED).returns(sourceClassName)
+						.addStatement("return new $T()", sourceClassName).build())
+				.addMethod(writeBuilder.build()).addMethod(readBuilder.build()).build();
+		JavaFile.builder(name.packageName(), spec).build().writeTo(filer);
+	}
+
+	private boolean validate() {
+		final ProcessorUtils utils = context.utils();
+		String error = null;
+		if (element.getKind() != ElementKind.CLASS
+				|| element.getModifiers().contains(Modifier.ABSTRACT))
+			error = "@Externalized can only be used on concrete classes";
+		else if (!utils.isAssignable(element.asType(), utils.of(Serializable.class), true))
+			error = "@Externalized requires a Serializable class";
+		else if (!element.getTypeParameters().isEmpty())
+			error = "@Externalized does not support generic classes";
+		else if (element.getModifiers().contains(Modifier.PRIVATE)
+				|| (element.getNestingKind() == NestingKind.MEMBER
+						&& !element.getModifiers().contains(Modifier.STATIC)))
+			error = "@Externalized classes must not be private or inner classes";
+		else if (ElementFilter.constructorsIn(element.getEnclosedElements()).stream()
+				.noneMatch(c -> c.getParameters().isEmpty()
+						&& !c.getModifiers().contains(Modifier.PRIVATE)))
+			error = "@Externalized classes must have a no argument constructor that is not "
+					+ "private";
+		else if (utils.isAssignable(element.asType(), utils.of(Externalizable.class), true))
+			error = "@Externalized classes must not be Externalizable";
+		else {
+			final Optional<ExecutableElement> method = serializationMethod();
+			if (method.isPresent())
+				error = "@Externalized classes must not customise serialization, "
+						+ method.get().getEnclosingElement() + "." + method.get()
+						+ " would be bypassed";
+		}
+		if (error != null)
+			context.messager().printMessage(Kind.ERROR, error, element);
+		return error == null;
+	}
+
+	private Optional<ExecutableElement> serializationMethod() {
+		return hierarchy(element).stream()
+				.flatMap(type -> ElementFilter.methodsIn(type.getEnclosedElements()).stream())
+				.filter(method -> !method.getModifiers().contains(Modifier.STATIC)
+						&& SERIALIZATION_METHODS.contains(method.getSimpleName().toString()))
+				.findFirst();
+	}
+
+	// whether the fields of the type lead back to this class through other
+	// externalized types
+	private boolean reaches(TypeElement type, Set<TypeElement> visited) {
+		if (type == null || !visited.add(type))
+			return false;
+		if (type.equals(element))
+			return true;
+		for (VariableElement field : fields(type)) {
+			if (reaches(externalizedType(field.asType()), visited))
+				return true;
+		}
+		return false;
+	}
+
+	private TypeElement externalizedType(TypeMirror mirror) {
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return null;
+		final TypeElement type = (TypeElement) context.types().asElement(mirror);
+		return type.getAnnotation(Externalized.class) != null ? type : null;
+	}
+
+	// the serializable part of the hierarchy, topmost class first
+	private List<TypeElement> hierarchy(TypeElement type) {
+		final List<TypeElement> hierarchy = new ArrayList<>();
+		TypeElement current = type;
+		while (current != null && context.utils().isAssignable(current.asType(),
+				context.utils().of(Serializable.class), true)) {
+			hierarchy.add(0, current);
+			final TypeMirror superclass = current.getSuperclass();
+			current = superclass.getKind() == TypeKind.DECLARED
+					? (TypeElement) context.types().asElement(superclass) : null;
+		}
+		return hierarchy;
+	}
+
+	// fields of serializable superclasses come first, same as serialization
+	private List<VariableElement> fields(TypeElement type) {
+		final List<VariableElement> fields = new ArrayList<>();
+		for (TypeElement current : hierarchy(type)) {
+			for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+				if (!field.getModifiers().contains(Modifier.STATIC)
+						&& !field.getModifiers().contains(Modifier.TRANSIENT))
+					fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	// the externalizer sits in the package of the class
+	private boolean isAccessible(VariableElement field) {
+		if (field.getModifiers().contains(Modifier.FINAL)
+				|| field.getModifiers().contains(Modifier.PRIVATE))
+			return false;
+		return field.getModifiers().contains(Modifier.PUBLIC)
+				|| context.elements().getPackageOf(field).equals(context.elements()
+						.getPackageOf(element));
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.sora.util.akatsuki;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import javax.tools.Diagnostic.Kind;
+
+import com.sora.util.akatsuki.models.FieldModel;
+import com.sora.util.akatsuki.models.SourceClassModel;
+
+/**
+ * Assigns the ordinals of the {@link Retained} fields of a class, see
+ * {@link Retained#ordinal()}
+ */
+final class FieldOrdinals {
+
+	// the stream tag keeps 2 bits for the wire type
+	static final int MAX_ORDINAL = (1 << 29) - 1;
+
+	private FieldOrdinals() {
+		// no instances
+	}
+
+	/**
+	 * @return the ordinal of every field that passes the predicate, in
+	 *         declaration order; fields with an invalid or duplicate ordinal
+	 *         are reported as errors and left out
+	 */
+	static Map<FieldModel, Integer> assign(ProcessorContext context, SourceClassModel classModel,
+			Predicate<FieldModel> predicate) {
+		final Map<FieldModel, Integer> ordinals = new LinkedHashMap<>();
+		final Map<Integer, FieldModel> used = new HashMap<>();
+		int position = 0;
+		for (FieldModel field : classModel.fields()) {
+			if (!predicate.test(field))
+				continue;
+			final Retained retained = field.annotation(Retained.class)
+					.orElseThrow(AssertionError::new);
+			final int ordinal = retained.ordinal() == -1 ? position : retained.ordinal();
+			position++;
+			if (ordinal < 0 || ordinal > MAX_ORDINAL) {
+				context.messager().printMessage(Kind.ERROR,
+						"ordinal must be between 0 and " + MAX_ORDINAL, field.element);
+				continue;
+			}
+			final FieldModel existing = used.putIfAbsent(ordinal, field);
+			if (existing != null) {
+				context.messager().printMessage(Kind.ERROR, "ordinal " + ordinal
+						+ " is already used by " + existing.name() + " in the same class",
+						field.element);
+				continue;
+			}
+			ordinals.put(field, ordinal);
+		}
+		return ordinals;
+	}
+
+}
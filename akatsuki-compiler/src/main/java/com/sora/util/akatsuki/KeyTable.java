@@ -0,0 +1,153 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.TypeMirror;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+
+/**
+ * The keys of a retainer whose fields are written into the bundle of an
+ * enclosing type, see {@link NestedRetainerFields}. The enclosing type builds
+ * the table with its own prefix once and passes it along with the offset of
+ * our keys in it, so prefixed keys are never concatenated on save or restore.
+ * A table holds our own keys followed by the tables of the flattened nested
+ * types and finally the table of the superclass
+ */
+public class KeyTable {
+
+	static final String KEYS = "keys";
+	static final String OFFSET = "offset";
+	static final String METHOD = "keyTable";
+	static final String SUPER_OFFSET = "SUPER_KEYS";
+	private static final String SIZE = "KEY_TABLE_SIZE";
+	private static final String NESTED_PREFIX = "NESTED_KEYS_";
+
+	private final NestedRetainerFields nestedRetainerFields;
+	private final List<String> keys = new ArrayList<>();
+	private final Map<String, Nested> nested = new LinkedHashMap<>();
+
+	private static class Nested {
+		final ClassName retainer;
+		final int keyIndex;
+		final String offsetName;
+
+		Nested(ClassName retainer, int keyIndex, String offsetName) {
+			this.retainer = retainer;
+			this.keyIndex = keyIndex;
+			this.offsetName = offsetName;
+		}
+	}
+
+	KeyTable(NestedRetainerFields nestedRetainerFields) {
+		this.nestedRetainerFields = nestedRetainerFields;
+	}
+
+	/**
+	 * @param key
+	 *            expression of the key without the prefix
+	 * @return an expression that looks up the prefixed key
+	 */
+	public String key(String key) {
+		return element(index(key));
+	}
+
+	/**
+	 * Appends the table of the given nested type, prefixed with the given key
+	 *
+	 * @param key
+	 *            expression of the key the nested type is saved under
+	 * @return the table and offset arguments for the prefixed overloads of
+	 *         the retainer returned by
+	 *         {@link NestedRetainerFields#fieldFor(TypeMirror)}
+	 */
+	public String nested(TypeMirror mirror, String key) {
+		Nested table = nested.get(key);
+		if (table == null) {
+			table = new Nested(nestedRetainerFields.retainerClass(mirror), index(key),
+					NESTED_PREFIX + nested.size());
+			nested.put(key, table);
+		}
+		return KEYS + ", " + OFFSET + " + " + table.offsetName;
+	}
+
+	/**
+	 * @return the size of the table and the offsets of the nested tables
+	 */
+	List<FieldSpec> fields(Optional<ClassName> superRetainer) {
+		final List<FieldSpec> fields = new ArrayList<>();
+		CodeBlock offset = CodeBlock.builder().add("$L", keys.size()).build();
+		for (Nested table : nested.values()) {
+			fields.add(constant(table.offsetName, Modifier.PRIVATE, offset));
+			offset = CodeBlock.builder()
+					.add("$L + $T.$L", table.offsetName, table.retainer, SIZE).build();
+		}
+		if (superRetainer.isPresent()) {
+			fields.add(constant(SUPER_OFFSET, Modifier.PRIVATE, offset));
+			offset = CodeBlock.builder()
+					.add("$L + $T.$L", SUPER_OFFSET, superRetainer.get(), SIZE).build();
+		}
+		fields.add(constant(SIZE, Modifier.PUBLIC, offset));
+		return fields;
+	}
+
+	/**
+	 * @return static methods that fill a table with the keys of this retainer
+	 *         and create one for a key that is known when the enclosing type
+	 *         is generated, see {@link NestedRetainerFields#keysFor(TypeMirror, String)}
+	 */
+	List<MethodSpec> methods(Optional<ClassName> superRetainer) {
+		final MethodSpec.Builder fill = MethodSpec.methodBuilder(METHOD)
+				.addModifiers(Modifier.PUBLIC, Modifier.STATIC).returns(void.class)
+				.addParameter(String.class, "prefix", Modifier.FINAL)
+				.addParameter(String[].class, KEYS, Modifier.FINAL)
+				.addParameter(int.class, OFFSET, Modifier.FINAL);
+		for (int i = 0; i < keys.size(); i++) {
+			fill.addStatement("$L = prefix + $L", element(i), keys.get(i));
+		}
+		for (Nested table : nested.values()) {
+			fill.addStatement("$T.$L($L + \".\", $L, $L + $L)", table.retainer, METHOD,
+					element(table.keyIndex), KEYS, OFFSET, table.offsetName);
+		}
+		superRetainer.ifPresent(retainer -> fill.addStatement("$T.$L(prefix, $L, $L + $L)",
+				retainer, METHOD, KEYS, OFFSET, SUPER_OFFSET));
+
+		final MethodSpec create = MethodSpec.methodBuilder(METHOD)
+				.addModifiers(Modifier.PUBLIC, Modifier.STATIC).returns(String[].class)
+				.addParameter(String.class, "prefix", Modifier.FINAL)
+				.addStatement("final String[] $L = new String[$L]", KEYS, SIZE)
+				.addStatement("$L(prefix, $L, 0)", METHOD, KEYS)
+				.addStatement("return $L", KEYS).build();
+		final List<MethodSpec> methods = new ArrayList<>();
+		methods.add(fill.build());
+		methods.add(create);
+		return methods;
+	}
+
+	private int index(String key) {
+		int index = keys.indexOf(key);
+		if (index == -1) {
+			index = keys.size();
+			keys.add(key);
+		}
+		return index;
+	}
+
+	private static String element(int index) {
+		return KEYS + "[" + OFFSET + " + " + index + "]";
+	}
+
+	private static FieldSpec constant(String name, Modifier modifier, CodeBlock value) {
+		return FieldSpec.builder(int.class, name, modifier, Modifier.STATIC, Modifier.FINAL)
+				.initializer(value).build();
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.sora.util.akatsuki;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+
+import com.sora.util.akatsuki.models.FieldModel;
+
+import com.sora.util.akatsuki.models.ClassInfo;
+import com.sora.util.akatsuki.models.SourceClassModel;
+import com.sora.util.akatsuki.models.SourceTreeModel;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+/**
+ * Collects the retainers of nested types that are written into the bundle of
+ * the generated class under prefixed keys, see
+ * {@link AkatsukiConfig.OptFlags#FLATTEN_NESTED}; each retainer is created once
+ * and kept in a static field. The prefixed keys come from a {@link KeyTable}
+ * that is built once as well
+ */
+public class NestedRetainerFields {
+
+	private static final String FIELD_PREFIX = "RETAINER_";
+	private static final String KEYS_PREFIX = "KEYS_";
+
+	private final ProcessorContext context;
+	private final SourceClassModel owner;
+	private final SourceTreeModel treeModel;
+	private final Function<ClassInfo, ClassInfo> classInfoFunction;
+	private final Map<String, FieldSpec> fields = new LinkedHashMap<>();
+	private final Map<String, FieldSpec> keys = new LinkedHashMap<>();
+
+	/**
+	 * @param owner
+	 *            the type the retainer is generated for
+	 */
+	NestedRetainerFields(ProcessorContext context, SourceClassModel owner,
+			SourceTreeModel treeModel, Function<ClassInfo, ClassInfo> classInfoFunction) {
+		this.context = context;
+		this.owner = owner;
+		this.treeModel = treeModel;
+		this.classInfoFunction = classInfoFunction;
+	}
+
+	/**
+	 * Declares a field for the retainer of the given nested type if there
+	 * isn't one already
+	 *
+	 * @return the name of the field or empty if the nested type has to be saved
+	 *         in a bundle of its own, that is when the retainer of the declared
+	 *         type might not be the one used at runtime
+	 */
+	public Optional<String> fieldFor(TypeMirror mirror) {
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return Optional.empty();
+		final SourceClassModel model = treeModel.findModelWithAssignableMirror(mirror);
+		if (model == null || !canFlatten(model, mirror))
+			return Optional.empty();
+		final String key = model.fullyQualifiedName();
+		final FieldSpec existing = fields.get(key);
+		if (existing != null)
+			return Optional.of(existing.name);
+
+		final TypeName fieldType = ParameterizedTypeName.get(retainerClass(model),
+				ClassName.get(model.originatingElement()));
+		final FieldSpec field = FieldSpec
+				.builder(fieldType, FIELD_PREFIX + fields.size(), Modifier.PRIVATE,
+						Modifier.STATIC, Modifier.FINAL)
+				.initializer("new $T()", fieldType).build();
+		fields.put(key, field);
+		return Optional.of(field.name);
+	}
+
+	/**
+	 * Declares a table with the keys of the given nested type for a key that
+	 * is known when the retainer is generated, see
+	 * {@link KeyTable#nested(TypeMirror, String)} for keys that are not
+	 *
+	 * @param key
+	 *            expression of the key the nested type is saved under
+	 * @return the table and offset arguments for the prefixed overloads of
+	 *         the retainer returned by {@link #fieldFor(TypeMirror)}
+	 */
+	public String keysFor(TypeMirror mirror, String key) {
+		final ClassName retainer = retainerClass(mirror);
+		final String id = retainer + " " + key;
+		FieldSpec field = keys.get(id);
+		if (field == null) {
+			field = FieldSpec
+					.builder(String[].class, KEYS_PREFIX + keys.size(), Modifier.PRIVATE,
+							Modifier.STATIC, Modifier.FINAL)
+					.initializer("$T.$L($L + \".\")", retainer, KeyTable.METHOD, key).build();
+			keys.put(id, field);
+		}
+		return field.name + ", 0";
+	}
+
+	ClassName retainerClass(TypeMirror mirror) {
+		return retainerClass(treeModel.findModelWithAssignableMirror(mirror));
+	}
+
+	List<FieldSpec> fields() {
+		final List<FieldSpec> specs = new ArrayList<>(fields.values());
+		specs.addAll(keys.values());
+		return specs;
+	}
+
+	private ClassName retainerClass(SourceClassModel model) {
+		return classInfoFunction.apply(model.asClassInfo()).toClassName();
+	}
+
+	private boolean canFlatten(SourceClassModel model, TypeMirror mirror) {
+		// a subclass would be saved with the retainer of the declared type and
+		// lose its own fields
+		if (!context.types().isSameType(context.types().erasure(mirror),
+				context.types().erasure(model.mirror())) || !model.children().isEmpty())
+			return false;
+		// there has to be a retainer and we have to be able to name it
+		if (!model.containsAnyAnnotation(Retained.class)
+				|| !model.annotation(RetainConfig.class)
+						.orElse(context.config().retainConfig()).enabled())
+			return false;
+		if (model.containsModifier(Modifier.PRIVATE)
+				|| !model.originatingElement().getTypeParameters().isEmpty())
+			return false;
+		// the key table of a type that contains itself never ends
+		return !reaches(model, new HashSet<>());
+	}
+
+	// whether the key table of the model could contain the one of the owner,
+	// through a superclass or any field that might be flattened
+	private boolean reaches(SourceClassModel model, Set<SourceClassModel> visited) {
+		if (model.equals(owner))
+			return true;
+		if (!visited.add(model))
+			return false;
+		final Optional<SourceClassModel> superModel = model.directSuperModel();
+		if (superModel.isPresent() && reaches(superModel.get(), visited))
+			return true;
+		for (FieldModel field : model.fields()) {
+			final SourceClassModel fieldModel = treeModel
+					.findModelWithAssignableMirror(declaredType(field.type()));
+			if (fieldModel != null && reaches(fieldModel, visited))
+				return true;
+		}
+		return false;
+	}
+
+	// arrays of nested types and type variables bound to them are flattened
+	// as well
+	private TypeMirror declaredType(TypeMirror mirror) {
+		if (mirror.getKind() == TypeKind.ARRAY)
+			return declaredType(((ArrayType) mirror).getComponentType());
+		if (mirror.getKind() == TypeKind.TYPEVAR)
+			return declaredType(((TypeVariable) mirror).getUpperBound());
+		return mirror;
+	}
+
+}
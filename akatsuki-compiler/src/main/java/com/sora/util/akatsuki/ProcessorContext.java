@@ -1,7 +1,12 @@
 package com.sora.util.akatsuki;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 
@@ -13,13 +18,15 @@ public class ProcessorContext {
 	private final ProcessorUtils utils;
 	private Configuration config;
 	private TypeAnalyzerResolver bundleTypeResolver;
+	// shared with copies so that every analyzer reports to the same round
+	private final Set<String> serializableFallbacks;
 
 	public ProcessorContext(ProcessingEnvironment environment) {
 		this.environment = environment;
 		this.types = environment.getTypeUtils();
 		this.elements = environment.getElementUtils();
 		this.utils = new ProcessorUtils(this.types, this.elements);
-
+		this.serializableFallbacks = new LinkedHashSet<>();
 	}
 
 	public ProcessorContext(ProcessorContext context) {
@@ -27,6 +34,7 @@ public class ProcessorContext {
 		this.types = context.types;
 		this.elements = context.elements;
 		this.utils = context.utils;
+		this.serializableFallbacks = context.serializableFallbacks;
 	}
 
 	public Types types() {
@@ -72,6 +80,7 @@ public class ProcessorContext {
 	private void clearRoundState() {
 		this.config = null;
 		this.bundleTypeResolver = null;
+		this.serializableFallbacks.clear();
 	}
 
 	public Configuration config() {
@@ -82,4 +91,31 @@ public class ProcessorContext {
 		return bundleTypeResolver;
 	}
 
+	/**
+	 * Notes a field that is saved with Java serialization in this round
+	 */
+	public void serializableFallback(Element field) {
+		serializableFallbacks.add(describe(field));
+	}
+
+	/**
+	 * @return whether the field was noted with
+	 *         {@link #serializableFallback(Element)} in this round
+	 */
+	public boolean isSerializableFallback(Element field) {
+		return serializableFallbacks.contains(describe(field));
+	}
+
+	private static String describe(Element field) {
+		return field.getEnclosingElement() + "." + field.getSimpleName();
+	}
+
+	/**
+	 * @return fields saved with Java serialization in this round, in the
+	 *         order they were found
+	 */
+	public Set<String> serializableFallbacks() {
+		return Collections.unmodifiableSet(serializableFallbacks);
+	}
+
 }
@@ -120,6 +120,14 @@ public class ProcessorUtils {
 		return element.asType();
 	}
 
+	/**
+	 * @return the fully qualified name of the externalizer generated for an
+	 *         {@link Externalized} type
+	 */
+	public String externalizerName(TypeElement element) {
+		return Internal.generateExternalizerClassName(elements.getBinaryName(element).toString());
+	}
+
 	public DeclaredType getClassFromAnnotationMethod(Supplier<Class<?>> supplier) {
 		// JDK suggested way of getting type mirrors, do not waste time here,
 		// just move on
@@ -1,14 +1,28 @@
 package com.sora.util.akatsuki;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.processing.Filer;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
 import com.sora.util.akatsuki.BundleRetainerClassBuilder.AnalysisTransformation;
 import com.sora.util.akatsuki.BundleRetainerClassBuilder.Direction;
+import com.sora.util.akatsuki.RetainConfig.KeyStrategy;
 import com.sora.util.akatsuki.Retained.RestorePolicy;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.Element;
@@ -17,7 +31,13 @@ import com.sora.util.akatsuki.models.FieldModel;
 import com.sora.util.akatsuki.models.SourceClassModel;
 import com.sora.util.akatsuki.models.SourceMappingModel;
 import com.sora.util.akatsuki.models.SourceTreeModel;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
 
 public class RetainedStateModel extends SourceMappingModel
 		implements AnalysisTransformation, Predicate<FieldModel> {
@@ -25,15 +45,23 @@ public class RetainedStateModel extends SourceMappingModel
 	private static final Function<ClassInfo, ClassInfo> CLASS_INFO_FUNCTION = info -> info
 			.withNameTransform(Internal::generateRetainerClassName);
 
+	private static final Function<ClassInfo, ClassInfo> STREAM_CLASS_INFO_FUNCTION = info -> info
+			.withNameTransform(Internal::generateStreamRetainerClassName);
+
+	private static final Function<ClassInfo, ClassInfo> ENTRY_POINT_CLASS_INFO_FUNCTION = info -> info
+			.withNameTransform(Internal::generateEntryPointClassName);
+
 	private final ClassInfo info;
 	private final RetainConfig config;
+	private final Optional<CostReport> costReport;
+	private Map<FieldModel, Integer> ordinals;
 
 	RetainedStateModel(ProcessorContext context, SourceClassModel classModel,
-			SourceTreeModel treeModel) {
+			SourceTreeModel treeModel, Optional<CostReport> costReport) {
 		super(context, classModel, treeModel);
 		this.info = CLASS_INFO_FUNCTION.apply(classModel().asClassInfo());
-		this.config = classModel().annotation(RetainConfig.class)
-				.orElse(context.config().retainConfig());
+		this.config = retainConfig(classModel());
+		this.costReport = costReport;
 	}
 
 	@Override
@@ -48,10 +76,125 @@ public class RetainedStateModel extends SourceMappingModel
 
 		builder.withFieldPredicate(this);
 		builder.withAnalysisTransformation(this);
+		if (config.trackChanges())
+			builder.withChangeTracking();
+		if (config.keyStrategy() == KeyStrategy.SHORT)
+			builder.withKeyNames(writeShortKeys(filer));
+		if (context.config().optFlags().contains(OptFlags.FLATTEN_NESTED))
+			builder.withNestedRetainerFields(
+					new NestedRetainerFields(context, classModel(), treeModel(),
+							CLASS_INFO_FUNCTION));
+		if (context.config().optFlags().contains(OptFlags.SIZE_ESTIMATES))
+			builder.withSizeEstimates();
+		costReport.ifPresent(report -> builder.withCostReport(report
+				.retainer(classModel().asClassInfo().toString(), info.toString())));
 
 		JavaFile javaFile = JavaFile
 				.builder(info.fullyQualifiedPackageName, builder.build().build()).build();
 		javaFile.writeTo(filer);
+		if (context.config().optFlags().contains(OptFlags.ENTRY_POINTS))
+			writeEntryPoint(filer);
+		if (streamEnabled(classModel()))
+			writeStreamRetainer(filer);
+	}
+
+	private void writeStreamRetainer(Filer filer) throws IOException {
+		Optional<SourceClassModel> superModel = classModel().directSuperModel();
+		if (superModel.isPresent() && !streamEnabled(superModel.get())) {
+			context.messager().printMessage(Kind.ERROR,
+					"@RetainConfig(stream = true) requires the superclass "
+							+ superModel.get().asClassInfo() + " to enable stream as well",
+					classModel().originatingElement());
+			return;
+		}
+		StreamRetainerClassBuilder builder = new StreamRetainerClassBuilder(context, classModel(),
+				STREAM_CLASS_INFO_FUNCTION, ordinals(), this::restorePolicy);
+		ClassInfo streamInfo = STREAM_CLASS_INFO_FUNCTION.apply(classModel().asClassInfo());
+		JavaFile.builder(streamInfo.fullyQualifiedPackageName, builder.build().build()).build()
+				.writeTo(filer);
+	}
+
+	// short keys and the stream share the ordinals, invalid ones are only
+	// reported once
+	private Map<FieldModel, Integer> ordinals() {
+		if (ordinals == null)
+			ordinals = FieldOrdinals.assign(context, classModel(), this);
+		return ordinals;
+	}
+
+	private RetainConfig retainConfig(SourceClassModel model) {
+		return model.annotation(RetainConfig.class).orElse(context.config().retainConfig());
+	}
+
+	// subclasses of a streamed class are streamed as well, the retainer of the
+	// superclass would leave their fields out otherwise
+	private boolean streamEnabled(SourceClassModel model) {
+		return retainConfig(model).stream()
+				|| model.directSuperModel().map(this::streamEnabled).orElse(false);
+	}
+
+	// keys only need to be unique within the hierarchy, the depth tells classes
+	// apart and the ordinal tells fields apart. Field names can't start with a
+	// digit so these won't collide with the keys of a superclass that uses
+	// field names
+	private Map<FieldModel, String> writeShortKeys(Filer filer) throws IOException {
+		int depth = 0;
+		TypeMirror superclass = classModel().originatingElement().getSuperclass();
+		while (superclass.getKind() == TypeKind.DECLARED) {
+			depth++;
+			superclass = ((TypeElement) context.types().asElement(superclass)).getSuperclass();
+		}
+		Map<FieldModel, String> keys = new LinkedHashMap<>();
+		for (Entry<FieldModel, Integer> entry : ordinals().entrySet()) {
+			keys.put(entry.getKey(), depth + ":" + Integer.toString(entry.getValue(), 36));
+		}
+
+		// so that keys found in a bundle can be traced back to the fields
+		FileObject mapping = filer.createResource(StandardLocation.CLASS_OUTPUT,
+				info.fullyQualifiedPackageName, classModel().asClassInfo().className
+						+ ".akatsuki-keys",
+				classModel().originatingElement());
+		try (Writer writer = mapping.openWriter()) {
+			for (Entry<FieldModel, String> entry : keys.entrySet()) {
+				writer.write(entry.getValue() + "=" + classModel().asClassInfo() + "#"
+						+ entry.getKey().name() + "\n");
+			}
+		}
+		return keys;
+	}
+
+	// a statically typed shortcut to the retainer so that callers can skip the
+	// runtime lookup and get a monomorphic call site
+	private void writeEntryPoint(Filer filer) throws IOException {
+		ClassInfo entryPointInfo = ENTRY_POINT_CLASS_INFO_FUNCTION
+				.apply(classModel().asClassInfo());
+		ClassName sourceClassName = ClassName.get(classModel().originatingElement());
+		TypeName retainerTypeName = ParameterizedTypeName.get(info.toClassName(), sourceClassName);
+		TypeName bundleTypeName = ClassName.get(AndroidTypes.Bundle.asMirror(context));
+
+		TypeSpec.Builder builder = TypeSpec.classBuilder(entryPointInfo.className)
+				.addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+				.addField(FieldSpec
+						.builder(retainerTypeName, "RETAINER", Modifier.PRIVATE, Modifier.STATIC,
+								Modifier.FINAL)
+						.initializer("new $T()", retainerTypeName).build())
+				.addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE).build());
+
+		for (Direction direction : Direction.values()) {
+			MethodSpec.Builder methodBuilder = MethodSpec.methodBuilder(direction.methodName)
+					.addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+					.addParameter(sourceClassName, "source", Modifier.FINAL)
+					.addParameter(bundleTypeName, "bundle", Modifier.FINAL);
+			// same as Akatsuki.restore, a null state means there's nothing to
+			// restore
+			if (direction == Direction.RESTORE)
+				methodBuilder.addStatement("if (bundle == null) return");
+			methodBuilder.addStatement("RETAINER.$L(source, bundle)", direction.methodName);
+			builder.addMethod(methodBuilder.build());
+		}
+
+		JavaFile.builder(entryPointInfo.fullyQualifiedPackageName, builder.build()).build()
+				.writeTo(filer);
 	}
 
 	@Override
@@ -62,15 +205,8 @@ public class RetainedStateModel extends SourceMappingModel
 	@Override
 	public void transform(ProcessorContext context, Direction direction, Element<?> element,
 			Analysis analysis) {
-		Retained retained = element.model().annotation(Retained.class)
-				.orElseThrow(AssertionError::new);
-		RestorePolicy policy = retained.restorePolicy();
-		if (policy == RestorePolicy.DEFAULT) {
-			// we might have a default in @RetainedConfig
-			if (config.restorePolicy() != policy) {
-				policy = config.restorePolicy();
-			}
-		}
+		RestorePolicy policy = restorePolicy(
+				element.model().annotation(Retained.class).orElseThrow(AssertionError::new));
 
 		// policy only works on objects as primitives have default
 		// values which we can't really check for :(
@@ -91,6 +227,17 @@ public class RetainedStateModel extends SourceMappingModel
 		}
 	}
 
+	private RestorePolicy restorePolicy(Retained retained) {
+		RestorePolicy policy = retained.restorePolicy();
+		if (policy == RestorePolicy.DEFAULT) {
+			// we might have a default in @RetainedConfig
+			if (config.restorePolicy() != policy) {
+				policy = config.restorePolicy();
+			}
+		}
+		return policy;
+	}
+
 	@Override
 	public boolean test(FieldModel fieldModel) {
 		return fieldModel.annotation(Retained.class)
@@ -1,29 +1,37 @@
 package com.sora.util.akatsuki;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.annotation.processing.Filer;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
-import javax.lang.model.type.TypeMirror;
-import javax.lang.model.util.SimpleElementVisitor8;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
 
 import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+import com.sora.util.akatsuki.models.ClassHierarchy;
 import com.sora.util.akatsuki.models.ClassInfo;
 import com.sora.util.akatsuki.models.SourceCollectingModel;
 import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
@@ -38,66 +46,137 @@ import com.squareup.javapoet.WildcardTypeName;
 
 public class RetainerLUTModel extends SourceCollectingModel<RetainedStateModel> {
 
-	private final Collection<? extends Element> rootElements;
+	private static final String SHARD_PREFIX = "Shard";
+	private static final String ORIGINS_FIELD = "ORIGINS";
+	// enough to recognise the table, the names of all classes could exceed
+	// the limit of a constant
+	private static final int MAX_ORIGINS = 16;
+
+	// registers the table so that the runtime can find tables from every
+	// module through ServiceLoader
+	static final String SERVICE_RESOURCE = "META-INF/services/" + RetainerCache.class.getName();
+
+	// BundleRetainer<?>
+	private static final TypeName RETAINER_TYPE = ParameterizedTypeName
+			.get(ClassName.get(BundleRetainer.class), WildcardTypeName.subtypeOf(Object.class));
+
+	private final List<ArgumentBuilderModel> argumentModels;
+	private final ClassHierarchy hierarchy;
 
 	protected RetainerLUTModel(ProcessorContext context, List<RetainedStateModel> models,
-			Collection<? extends Element> rootElements) {
+			List<ArgumentBuilderModel> argumentModels, ClassHierarchy hierarchy) {
 		super(context, models);
-		this.rootElements = rootElements;
+		this.argumentModels = argumentModels;
+		this.hierarchy = hierarchy;
 	}
 
 	public TypeSpec createModel() {
-		final Builder typeBuilder = TypeSpec.classBuilder(Akatsuki.RETAINER_CACHE_NAME)
+		final Builder typeBuilder = TypeSpec.classBuilder(classInfo().className)
 				.addModifiers(Modifier.PUBLIC).addSuperinterface(RetainerCache.class);
 
-		// Class
-		final ClassName classType = ClassName.get(Class.class);
+		final boolean cacheInstances = context.config().optFlags()
+				.contains(OptFlags.CACHE_INSTANCES);
 
-		final ClassName bundlerClassName = ClassName.get(BundleRetainer.class);
-		Function<TypeName, ParameterizedTypeName> valueNameFunction = parameter -> ParameterizedTypeName
-				.get(classType, WildcardTypeName.subtypeOf(parameter == null ? bundlerClassName
-						: ParameterizedTypeName.get(bundlerClassName, parameter)));
+		// sorted so that the generated source is stable across builds
+		final Map<String, ClassName> retainedMap = new TreeMap<>();
+		final Map<String, ClassName> argMap = new TreeMap<>();
 
-		Supplier<TypeName> keyValueFunction = () -> ClassName.get(String.class);
+		Map<String, RetainedStateModel> modelMap = mappingModels().stream()
+				.collect(Collectors.toMap(m -> binaryName(m.classModel().originatingElement()),
+						Function.identity()));
 
-		// Map<Class<?>, Class<? extends BundleRetainer<Object>>>
-		final ParameterizedTypeName mapType = ParameterizedTypeName.get(ClassName.get(Map.class),
-				keyValueFunction.get(), valueNameFunction.apply(null));
+		for (Entry<String, RetainedStateModel> entry : modelMap.entrySet()) {
+			retainedMap.put(entry.getKey(), entry.getValue().classInfo().toClassName());
+		}
 
 		typeBuilder.addField(FieldSpec
-				.builder(mapType, "CACHE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
-				.initializer("new $T<>()", HashMap.class).build());
-
-		final CodeBlock.Builder builder = CodeBlock.builder();
+				.builder(String.class, ORIGINS_FIELD, Modifier.PRIVATE, Modifier.STATIC,
+						Modifier.FINAL)
+				.initializer("$S", origins().stream().limit(MAX_ORIGINS)
+						.collect(Collectors.joining(",")))
+				.build());
 
-		Consumer<Map<String, RetainedStateModel>> modelToMapConsumer = m -> {
-			for (Entry<String, RetainedStateModel> entry : m.entrySet()) {
-				builder.add("CACHE.put($S, $L);\n", entry.getKey(),
-						entry.getValue().classInfo().fullyQualifiedClassName() + ".class");
+		if (context.config().optFlags().contains(OptFlags.VECTORIZE_INHERITANCE)) {
+			// every class without a retainer of its own gets the retainer of
+			// its nearest ancestor, ancestors are resolved once and shared by
+			// all of their subclasses
+			final Map<String, Optional<ClassName>> ancestors = new HashMap<>();
+			for (TypeElement element : hierarchy.classes()) {
+				final String name = binaryName(element);
+				if (!modelMap.containsKey(name)) {
+					findInheritedRetainer(element, modelMap, ancestors)
+							.ifPresent(retainer -> retainedMap.put(name, retainer));
+				}
 			}
-		};
+		}
+
+		// arguments are never looked up through inheritance
+		for (ArgumentBuilderModel model : argumentModels) {
+			model.retainerClassInfo()
+					.ifPresent(info -> argMap.put(
+							binaryName(model.classModel().originatingElement()),
+							info.toClassName()));
+		}
 
-		Map<String, RetainedStateModel> modelMap = mappingModels().stream().collect(
-				Collectors.toMap(m -> m.classModel().fullyQualifiedName(), Function.identity()));
+		// one shard per package, a shard is a nested class that only gets
+		// loaded when a class from that package is looked up for the first
+		// time; this keeps the cost of loading the table independent of the
+		// number of retainers
+		final Map<String, Map<String, ClassName>> retainedShards = shard(retainedMap);
+		final Map<String, Map<String, ClassName>> argShards = shard(argMap);
+		final Set<String> packages = new TreeSet<>(retainedShards.keySet());
+		packages.addAll(argShards.keySet());
 
-		modelToMapConsumer.accept(modelMap);
+		final Map<String, ClassName> shardNames = new HashMap<>();
+		for (String packageName : packages) {
+			ClassName shardName = classInfo().toClassName()
+					.nestedClass(SHARD_PREFIX + shardNames.size());
+			shardNames.put(packageName, shardName);
+			typeBuilder.addType(createShard(shardName.simpleName(),
+					retainedShards.getOrDefault(packageName, Collections.emptyMap()),
+					argShards.getOrDefault(packageName, Collections.emptyMap()),
+					cacheInstances));
+		}
 
-		if (context.config().optFlags().contains(OptFlags.VECTORIZE_INHERITANCE)) {
-			// find all implementing class (for inheritance)
-			for (Element element : rootElements) {
-				modelToMapConsumer.accept(findAllTypes(element, modelMap));
+		// dispatch to the shard by package name
+		BiFunction<String, Map<String, Map<String, ClassName>>, MethodSpec> dispatchFunction = (
+				name, shards) -> {
+			CodeBlock.Builder builder = CodeBlock.builder()
+					.beginControlFlow("switch (packageOf(clazz))");
+			for (String packageName : shards.keySet()) {
+				builder.addStatement("case $S: return $T.$L(clazz)", packageName,
+						shardNames.get(packageName), name);
 			}
-		}
-		typeBuilder.addStaticBlock(builder.build());
+			builder.addStatement("default: return null").endControlFlow();
+			return MethodSpec.methodBuilder(name).addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+					.returns(RETAINER_TYPE).addParameter(String.class, "clazz")
+					.addCode(builder.build()).build();
+		};
+		typeBuilder.addMethod(dispatchFunction.apply("retained", retainedShards));
+		typeBuilder.addMethod(dispatchFunction.apply("arg", argShards));
+		typeBuilder.addMethod(MethodSpec.methodBuilder("packageOf")
+				.addModifiers(Modifier.PRIVATE, Modifier.STATIC).returns(String.class)
+				.addParameter(String.class, "clazz")
+				.addStatement("int index = clazz.lastIndexOf('.')")
+				.addStatement("return index == -1 ? \"\" : clazz.substring(0, index)").build());
 
 		// <T>
 		final TypeVariableName t = TypeVariableName.get("T");
 
-		// Class<? extends BundleRetainer<T>>>
-		final ParameterizedTypeName returnType = valueNameFunction.apply(t);
+		// BundleRetainer<T>
+		final ParameterizedTypeName returnType = ParameterizedTypeName
+				.get(ClassName.get(BundleRetainer.class), t);
+		// Class<? extends Annotation>
+		final ParameterizedTypeName annotationType = ParameterizedTypeName
+				.get(ClassName.get(Class.class), WildcardTypeName.subtypeOf(Annotation.class));
 		MethodSpec methodSpec = MethodSpec.methodBuilder("getCached").returns(returnType)
-				.addParameter(keyValueFunction.get(), "clazz").addModifiers(Modifier.PUBLIC)
-				.addCode("return ($T) CACHE.get(clazz);\n", returnType).addTypeVariable(t)
+				.addParameter(annotationType, "type").addParameter(String.class, "clazz")
+				.addModifiers(Modifier.PUBLIC)
+				.beginControlFlow("if (type == $T.class)", Retained.class)
+				.addStatement("return ($T) retained(clazz)", returnType)
+				.nextControlFlow("else if (type == $T.class)", Arg.class)
+				.addStatement("return ($T) arg(clazz)", returnType).endControlFlow()
+				.addStatement("return null").addTypeVariable(t)
 				.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
 						.addMember("value", "$S", "unchecked").build())
 				.build();
@@ -105,9 +184,87 @@ public class RetainerLUTModel extends SourceCollectingModel<RetainedStateModel>
 		return typeBuilder.build();
 	}
 
+	private Map<String, Map<String, ClassName>> shard(Map<String, ClassName> map) {
+		Map<String, Map<String, ClassName>> shards = new TreeMap<>();
+		for (Entry<String, ClassName> entry : map.entrySet()) {
+			int index = entry.getKey().lastIndexOf('.');
+			String packageName = index == -1 ? "" : entry.getKey().substring(0, index);
+			shards.computeIfAbsent(packageName, k -> new TreeMap<>()).put(entry.getKey(),
+					entry.getValue());
+		}
+		return shards;
+	}
+
+	private TypeSpec createShard(String name, Map<String, ClassName> retainedMap,
+			Map<String, ClassName> argMap, boolean cacheInstances) {
+		final Builder typeBuilder = TypeSpec.classBuilder(name).addModifiers(Modifier.PRIVATE,
+				Modifier.STATIC, Modifier.FINAL);
+
+		// every distinct retainer gets an index, vectorized entries share the
+		// same retainer
+		final Map<ClassName, Integer> retainers = new LinkedHashMap<>();
+		Stream.concat(retainedMap.values().stream(), argMap.values().stream())
+				.forEach(className -> retainers.putIfAbsent(className, retainers.size()));
+
+		final AnnotationSpec suppressWarnings = AnnotationSpec.builder(SuppressWarnings.class)
+				.addMember("value", "{$S, $S}", "unchecked", "rawtypes").build();
+
+		// the factory, plain constructor calls instead of Class.newInstance()
+		CodeBlock.Builder createBuilder = CodeBlock.builder().beginControlFlow("switch (index)");
+		for (Entry<ClassName, Integer> entry : retainers.entrySet()) {
+			createBuilder.addStatement("case $L: return new $T()", entry.getValue(),
+					entry.getKey());
+		}
+		createBuilder.addStatement("default: throw new $T(index)", AssertionError.class)
+				.endControlFlow();
+		typeBuilder.addMethod(MethodSpec.methodBuilder("create")
+				.addModifiers(Modifier.PRIVATE, Modifier.STATIC).returns(RETAINER_TYPE)
+				.addParameter(int.class, "index").addAnnotation(suppressWarnings)
+				.addCode(createBuilder.build()).build());
+
+		final String lookupMethodName;
+		if (cacheInstances) {
+			// a racy lazy initialization is fine, worst case we create the
+			// same retainer more than once and drop one. The only state a
+			// retainer has is the final DirtyTracker field, which is thread
+			// safe and only costs a redundant save when dropped
+			typeBuilder.addField(FieldSpec
+					.builder(ArrayTypeName.of(RETAINER_TYPE), "INSTANCES", Modifier.PRIVATE,
+							Modifier.STATIC, Modifier.FINAL)
+					.initializer("new $T[$L]", BundleRetainer.class, retainers.size()).build());
+			typeBuilder.addMethod(MethodSpec.methodBuilder("instance")
+					.addModifiers(Modifier.PRIVATE, Modifier.STATIC).returns(RETAINER_TYPE)
+					.addParameter(int.class, "index")
+					.addStatement("$T retainer = INSTANCES[index]", RETAINER_TYPE)
+					.addStatement("if (retainer == null) INSTANCES[index] = retainer = create(index)")
+					.addStatement("return retainer").build());
+			lookupMethodName = "instance";
+		} else {
+			lookupMethodName = "create";
+		}
+
+		// one string switch per annotation type
+		BiFunction<String, Map<String, ClassName>, MethodSpec> lookupFunction = (methodName,
+				map) -> {
+			CodeBlock.Builder builder = CodeBlock.builder().beginControlFlow("switch (clazz)");
+			for (Entry<String, ClassName> entry : map.entrySet()) {
+				builder.addStatement("case $S: return $L($L)", entry.getKey(), lookupMethodName,
+						retainers.get(entry.getValue()));
+			}
+			builder.addStatement("default: return null").endControlFlow();
+			return MethodSpec.methodBuilder(methodName).addModifiers(Modifier.STATIC)
+					.returns(RETAINER_TYPE).addParameter(String.class, "clazz")
+					.addCode(builder.build()).build();
+		};
+		typeBuilder.addMethod(lookupFunction.apply("retained", retainedMap));
+		typeBuilder.addMethod(lookupFunction.apply("arg", argMap));
+		return typeBuilder.build();
+	}
+
 	@Override
 	public ClassInfo classInfo() {
-		return new ClassInfo(Akatsuki.RETAINER_CACHE_PACKAGE, Akatsuki.RETAINER_CACHE_NAME);
+		return new ClassInfo(Akatsuki.RETAINER_CACHE_PACKAGE,
+				context.config().retainerCacheName());
 	}
 
 	@Override
@@ -115,38 +272,77 @@ public class RetainerLUTModel extends SourceCollectingModel<RetainedStateModel>
 		JavaFile.builder(Akatsuki.RETAINER_CACHE_PACKAGE, createModel()).build().writeTo(filer);
 	}
 
-	private Map<String, RetainedStateModel> findAllTypes(final Element element,
-			final Map<String, RetainedStateModel> referenceMap) {
-		Map<String, RetainedStateModel> modelMap = new HashMap<>();
-		element.accept(new SimpleElementVisitor8<Void, Map<String, RetainedStateModel>>() {
-
-			@Override
-			public Void visitType(TypeElement e, Map<String, RetainedStateModel> map) {
-				if (e.getKind() == ElementKind.CLASS) {
-					// only process class that isn't in the map
-					if (!referenceMap.containsKey(e.getQualifiedName().toString())) {
-						findInheritedModel(e, referenceMap.values())
-								.ifPresent(m -> map.put(e.getQualifiedName().toString(), m));
-					}
-					e.getEnclosedElements().forEach(ee -> ee.accept(this, map));
-				}
-				return null;
-			}
-		}, modelMap);
-		return modelMap;
+	/**
+	 * Tells whether an existing table of the same name was generated for the
+	 * classes of this module, which is the case when our own output of a
+	 * previous build is on the classpath
+	 */
+	public boolean generatedFor(TypeElement existing) {
+		for (VariableElement field : ElementFilter.fieldsIn(existing.getEnclosedElements())) {
+			if (!field.getSimpleName().contentEquals(ORIGINS_FIELD)
+					|| !(field.getConstantValue() instanceof String))
+				continue;
+			final Set<String> origins = origins();
+			return Arrays.stream(((String) field.getConstantValue()).split(","))
+					.anyMatch(origins::contains);
+		}
+		return false;
+	}
+
+	// binary names of the classes that have a retainer of their own, sorted
+	private Set<String> origins() {
+		final Set<String> origins = new TreeSet<>();
+		for (RetainedStateModel model : mappingModels())
+			origins.add(binaryName(model.classModel().originatingElement()));
+		for (ArgumentBuilderModel model : argumentModels)
+			if (model.retainerClassInfo().isPresent())
+				origins.add(binaryName(model.classModel().originatingElement()));
+		return origins;
+	}
+
+	// keys must match Class.getName() at runtime, nested classes use '$'
+	private String binaryName(TypeElement element) {
+		return context.elements().getBinaryName(element).toString();
+	}
+
+	// ancestors holds the nearest retainer of every superclass seen so far,
+	// keyed by binary name
+	private Optional<ClassName> findInheritedRetainer(TypeElement type,
+			Map<String, RetainedStateModel> models, Map<String, Optional<ClassName>> ancestors) {
+		Element superElement = context.types().asElement(type.getSuperclass());
+		if (superElement == null || superElement.getKind() != ElementKind.CLASS
+				|| !(superElement instanceof TypeElement))
+			return Optional.empty();
+		TypeElement superType = (TypeElement) superElement;
+		String name = binaryName(superType);
+		Optional<ClassName> retainer = ancestors.get(name);
+		if (retainer != null)
+			return retainer;
+		RetainedStateModel model = models.get(name);
+		retainer = model != null ? Optional.of(model.classInfo().toClassName())
+				: findCompiledRetainer(superType);
+		if (!retainer.isPresent())
+			retainer = findInheritedRetainer(superType, models, ancestors);
+		ancestors.put(name, retainer);
+		return retainer;
 	}
 
-	private Optional<RetainedStateModel> findInheritedModel(Element element,
-			Collection<RetainedStateModel> models) {
-		if (element == null || element.getKind() != ElementKind.CLASS
-				|| !(element instanceof TypeElement))
+	// the class might come from another module that has already been compiled,
+	// in that case its retainer is on our classpath
+	private Optional<ClassName> findCompiledRetainer(TypeElement element) {
+		String name = element.getQualifiedName().toString();
+		if (name.startsWith("android.") || name.startsWith("java."))
 			return Optional.empty();
-		TypeElement type = (TypeElement) element;
-		TypeMirror superMirror = type.getSuperclass();
-		return models.stream()
-				.filter(m -> context.utils().isSameType(m.classModel().mirror(), superMirror, true))
-				.findFirst().map(Optional::of)
-				.orElse(findInheritedModel(context.types().asElement(superMirror), models));
+		String packageName = context.elements().getPackageOf(element).getQualifiedName()
+				.toString();
+		String className = binaryName(element);
+		if (!packageName.isEmpty())
+			className = className.substring(packageName.length() + 1);
+		String retainerName = Internal.generateRetainerClassName(className);
+		TypeElement retainer = context.elements().getTypeElement(
+				packageName.isEmpty() ? retainerName : packageName + "." + retainerName);
+		return retainer == null ? Optional.empty()
+				: Optional.of(ClassName.get(packageName, retainerName));
 	}
 
 }
@@ -0,0 +1,123 @@
+package com.sora.util.akatsuki;
+
+import java.io.Serializable;
+import java.util.Optional;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import com.sora.util.akatsuki.models.BaseModel;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.TypeName;
+
+/**
+ * Writes and reads values with {@link StateStreams}, shared by the generated
+ * {@link StreamRetainer}s and {@link Externalizer}s
+ */
+final class StreamCodecs extends BaseModel {
+
+	static final String SERIALIZABLE = "Serializable";
+	private static final String ENUM = "Enum";
+	static final String EXTERNALIZED = "Externalized";
+
+	StreamCodecs(ProcessorContext context) {
+		super(context);
+	}
+
+	/**
+	 * @return the name of the externalizer generated for the given
+	 *         {@link Externalized} type
+	 */
+	static ClassName externalizerName(ProcessorContext context, TypeElement element) {
+		final String packageName = context.elements().getPackageOf(element).getQualifiedName()
+				.toString();
+		final String binaryName = packageName.isEmpty() ? element.getQualifiedName().toString()
+				: element.getQualifiedName().toString().substring(packageName.length() + 1);
+		return ClassName.get(packageName,
+				Internal.generateExternalizerClassName(binaryName.replace('.', '$')));
+	}
+
+	/**
+	 * @return the suffix of the {@link StateStreams} methods for the type,
+	 *         empty if the type can't be written
+	 */
+	Optional<String> codecOf(TypeMirror mirror) {
+		final ProcessorUtils utils = context.utils();
+		if (mirror.getKind().isPrimitive())
+			return Optional.of(primitiveName(mirror));
+		if (utils.isBoxedType(mirror))
+			return Optional.of(primitiveName(context.types().unboxedType(mirror)));
+		if (utils.isSameType(mirror, utils.of(String.class), true))
+			return Optional.of("String");
+		if (mirror.getKind() == TypeKind.DECLARED) {
+			final TypeElement element = (TypeElement) context.types().asElement(mirror);
+			if (element.getKind() == ElementKind.ENUM)
+				return Optional.of(ENUM);
+			if (element.getAnnotation(Externalized.class) != null)
+				return Optional.of(EXTERNALIZED);
+		}
+		if (mirror.getKind() == TypeKind.ARRAY) {
+			final TypeMirror component = ((ArrayType) mirror).getComponentType();
+			if (component.getKind().isPrimitive())
+				return Optional.of(primitiveName(component) + "s");
+			if (utils.isSameType(component, utils.of(String.class), true))
+				return Optional.of("Strings");
+		}
+		if (utils.isAssignable(mirror, utils.of(Serializable.class), true))
+			return Optional.of(SERIALIZABLE);
+		return Optional.empty();
+	}
+
+	private static String primitiveName(TypeMirror mirror) {
+		return Utils.toCapitalCase(mirror.getKind().name());
+	}
+
+	CodeBlock write(TypeMirror mirror, String codec, int ordinal, String accessor) {
+		final CodeBlock.Builder builder = CodeBlock.builder();
+		if (context.utils().isBoxedType(mirror)) {
+			builder.beginControlFlow("if ($L == null)", accessor)
+					.addStatement("$T.writeNull(output, $L)", StateStreams.class, ordinal)
+					.nextControlFlow("else")
+					.addStatement("$T.write$L(output, $L, $L)", StateStreams.class, codec,
+							ordinal, accessor)
+					.endControlFlow();
+		} else if (codec.equals(ENUM)) {
+			builder.addStatement("$T.writeString(output, $L, $L == null ? null : $L.name())",
+					StateStreams.class, ordinal, accessor, accessor);
+		} else if (codec.equals(EXTERNALIZED)) {
+			builder.addStatement("$T.INSTANCE.writeField(output, $L, $L)",
+					externalizerName(mirror), ordinal, accessor);
+		} else {
+			builder.addStatement("$T.write$L(output, $L, $L)", StateStreams.class, codec, ordinal,
+					accessor);
+		}
+		return builder.build();
+	}
+
+	CodeBlock read(TypeMirror mirror, String codec, String accessor) {
+		final CodeBlock.Builder builder = CodeBlock.builder();
+		if (context.utils().isBoxedType(mirror)) {
+			builder.addStatement("$L = $T.isNull(tag) ? null : $T.read$L(input, tag)", accessor,
+					StateStreams.class, StateStreams.class, codec);
+		} else if (codec.equals(ENUM)) {
+			builder.addStatement("$L = $T.readEnum(input, tag, $T.class)", accessor,
+					StateStreams.class, TypeName.get(context.types().erasure(mirror)));
+		} else if (codec.equals(EXTERNALIZED)) {
+			builder.addStatement("$L = $T.INSTANCE.readField(input, tag)", accessor,
+					externalizerName(mirror));
+		} else {
+			builder.addStatement("$L = $T.read$L(input, tag)", accessor, StateStreams.class,
+					codec);
+		}
+		return builder.build();
+	}
+
+	private ClassName externalizerName(TypeMirror mirror) {
+		return externalizerName(context, (TypeElement) context.types().asElement(mirror));
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.sora.util.akatsuki;
+
+import static com.sora.util.akatsuki.SourceUtils.T;
+import static com.sora.util.akatsuki.SourceUtils.type;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.function.Function;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+
+import com.sora.util.akatsuki.Retained.RestorePolicy;
+import com.sora.util.akatsuki.analyzers.Element;
+import com.sora.util.akatsuki.models.BaseModel;
+import com.sora.util.akatsuki.models.ClassInfo;
+import com.sora.util.akatsuki.models.FieldModel;
+import com.sora.util.akatsuki.models.SourceClassModel;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.TypeVariableName;
+
+/**
+ * Builds the {@link StreamRetainer} of a class, fields are written with
+ * {@link StateStreams} under their ordinal
+ */
+public class StreamRetainerClassBuilder extends BaseModel {
+
+	private static final ClassName SNAPSHOT = ClassName.get(StreamRetainer.Snapshot.class);
+
+	private final SourceClassModel classModel;
+	private final Function<ClassInfo, ClassInfo> classInfoFunction;
+	private final Map<FieldModel, Integer> ordinals;
+	private final Function<Retained, RestorePolicy> policyFunction;
+	private final StreamCodecs codecs;
+
+	StreamRetainerClassBuilder(ProcessorContext context, SourceClassModel classModel,
+			Function<ClassInfo, ClassInfo> classInfoFunction, Map<FieldModel, Integer> ordinals,
+			Function<Retained, RestorePolicy> policyFunction) {
+		super(context);
+		this.classModel = classModel;
+		this.classInfoFunction = classInfoFunction;
+		this.ordinals = ordinals;
+		this.policyFunction = policyFunction;
+		this.codecs = new StreamCodecs(context);
+	}
+
+	public TypeSpec.Builder build() {
+		final ClassName sourceClassName = ClassName.get(classModel.originatingElement());
+		final TypeVariableName actualClassCapture = SourceUtils.T_extends(sourceClassName);
+		final ParameterSpec sourceSpec = ParameterSpec
+				.builder(actualClassCapture, "source", Modifier.FINAL).build();
+
+		final MethodSpec.Builder writeBuilder = MethodSpec.methodBuilder("write")
+				.addModifiers(Modifier.PUBLIC).addParameter(sourceSpec)
+				.addParameter(DataOutput.class, "output", Modifier.FINAL)
+				.addException(IOException.class);
+		final MethodSpec.Builder readBuilder = MethodSpec.methodBuilder("read")
+				.addModifiers(Modifier.PUBLIC).addParameter(sourceSpec)
+				.addParameter(DataInput.class, "input", Modifier.FINAL)
+				.addException(IOException.class);
+
+		final MethodSpec.Builder snapshotBuilder = MethodSpec.methodBuilder("snapshot")
+				.addModifiers(Modifier.PUBLIC).addParameter(sourceSpec).returns(SNAPSHOT);
+		final MethodSpec.Builder snapshotWriteBuilder = MethodSpec.methodBuilder("write")
+				.addAnnotation(Override.class).addModifiers(Modifier.PUBLIC)
+				.addParameter(DataOutput.class, "output", Modifier.FINAL)
+				.addException(IOException.class);
+
+		final Optional<SourceClassModel> superModel = classModel.directSuperModel();
+		if (superModel.isPresent()) {
+			writeBuilder.addStatement("super.write(source, output)");
+			readBuilder.addStatement("super.read(source, input)");
+			snapshotBuilder.addStatement("final $T parent = super.snapshot(source)", SNAPSHOT);
+			snapshotWriteBuilder.addStatement("parent.write(output)");
+		}
+
+		final CodeBlock.Builder cases = CodeBlock.builder();
+		for (Entry<FieldModel, Integer> entry : ordinals.entrySet()) {
+			final FieldModel field = entry.getKey();
+			final int ordinal = entry.getValue();
+			final TypeMirror mirror = field.type();
+			final Optional<String> codec = codecs.codecOf(mirror);
+			if (!codec.isPresent()) {
+				context.messager().printMessage(Kind.WARNING, "field of type " + mirror
+						+ " is not written to the StreamRetainer, only primitives, strings, "
+						+ "enums, their arrays, Externalized and Serializable types are supported",
+						field.element);
+				continue;
+			}
+			if (codec.get().equals(StreamCodecs.SERIALIZABLE))
+				context.serializableFallback(field.element);
+			final Retained retained = field.annotation(Retained.class)
+					.orElseThrow(AssertionError::new);
+			if (retained.ordinal() == -1) {
+				// a position would silently read old streams into the wrong
+				// fields once fields are removed or reordered
+				context.messager().printMessage(Kind.ERROR, "field has no explicit ordinal, "
+						+ "streamed fields must set @Retained(ordinal)", field.element);
+				continue;
+			}
+			final RestorePolicy policy = policyFunction.apply(retained);
+			final String accessor = new Element<>(field).accessor(fn -> "source." + fn);
+			writeBuilder.addCode(codecs.write(mirror, codec.get(), ordinal, accessor));
+			// arrays, collections and maps are mutable, everything else is
+			// captured as is
+			final String value = "value" + ordinal;
+			final TypeName erasure = TypeName.get(context.types().erasure(mirror));
+			if (mirror.getKind() == TypeKind.ARRAY) {
+				snapshotBuilder.addStatement("final $T $L = $L == null ? null : $L.clone()",
+						erasure, value, accessor, accessor);
+				snapshotWriteBuilder.addCode(codecs.write(mirror, codec.get(), ordinal, value));
+			} else if (codec.get().equals(StreamCodecs.SERIALIZABLE) && container(mirror)) {
+				snapshotBuilder.addStatement("final Object $L = $T.capture($L, $T.class)", value,
+						StateStreams.class, accessor, erasure);
+				snapshotWriteBuilder.addStatement("$T.writeCaptured(output, $L, $L)",
+						StateStreams.class, ordinal, value);
+			} else {
+				snapshotBuilder.addStatement("final $T $L = $L", erasure, value, accessor);
+				snapshotWriteBuilder.addCode(codecs.write(mirror, codec.get(), ordinal, value));
+			}
+			cases.add("case $L:\n", ordinal).indent()
+					.add(createRead(mirror, codec.get(), accessor, policy))
+					.addStatement("break").unindent();
+		}
+		cases.add("default:\n").indent().addStatement("$T.skip(input, tag)", StateStreams.class)
+				.unindent();
+
+		writeBuilder.addStatement("$T.writeEnd(output)", StateStreams.class);
+		snapshotWriteBuilder.addStatement("$T.writeEnd(output)", StateStreams.class);
+		snapshotBuilder.addStatement("return $L", TypeSpec.anonymousClassBuilder("")
+				.addSuperinterface(SNAPSHOT).addMethod(snapshotWriteBuilder.build()).build());
+		readBuilder
+				.beginControlFlow("for (int tag = $T.readTag(input); tag != $T.END; "
+						+ "tag = $T.readTag(input))", StateStreams.class, StateStreams.class,
+						StateStreams.class)
+				.beginControlFlow("switch ($T.ordinal(tag))", StateStreams.class)
+				.addCode(cases.build())
+				.endControlFlow().endControlFlow();
+
+		final TypeSpec.Builder typeSpecBuilder = TypeSpec
+				.classBuilder(classInfoFunction.apply(classModel.asClassInfo()).className)
+				.addModifiers(Modifier.PUBLIC).addTypeVariable(actualClassCapture)
+				.addMethod(writeBuilder.build()).addMethod(readBuilder.build())
+				.addMethod(snapshotBuilder.build());
+		if (superModel.isPresent()) {
+			typeSpecBuilder.superclass(type(
+					classInfoFunction.apply(superModel.get().asClassInfo()).toClassName(), T));
+		} else {
+			typeSpecBuilder.addSuperinterface(type(StreamRetainer.class, T));
+		}
+		return typeSpecBuilder;
+	}
+
+	private boolean container(TypeMirror mirror) {
+		final TypeMirror erasure = context.types().erasure(mirror);
+		return context.utils().isAssignable(erasure, context.utils().of(Collection.class), true)
+				|| context.utils().isAssignable(erasure, context.utils().of(Map.class), true);
+	}
+
+	private CodeBlock createRead(TypeMirror mirror, String codec, String accessor,
+			RestorePolicy policy) {
+		// same as restoring from a bundle, primitives are always restored
+		if (mirror.getKind().isPrimitive()
+				|| (policy != RestorePolicy.IF_NULL && policy != RestorePolicy.IF_NOT_NULL))
+			return codecs.read(mirror, codec, accessor);
+		return CodeBlock.builder()
+				.beginControlFlow("if ($L $L null)", accessor,
+						policy == RestorePolicy.IF_NULL ? "==" : "!=")
+				.add(codecs.read(mirror, codec, accessor)).nextControlFlow("else")
+				.addStatement("$T.skip(input, tag)", StateStreams.class).endControlFlow().build();
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.sora.util.akatsuki;
 
+import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.util.Arrays;
 import java.util.Collection;
@@ -23,9 +24,12 @@ import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.CollectionTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.ConverterAnalyzer;
 import com.sora.util.akatsuki.analyzers.Element;
+import com.sora.util.akatsuki.analyzers.ExternalizedTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.GenericTypeAnalyzer;
+import com.sora.util.akatsuki.analyzers.MapTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.NestedTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.ObjectTypeAnalyzer;
+import com.sora.util.akatsuki.analyzers.OffloadAnalyzer;
 import com.sora.util.akatsuki.analyzers.PrimitiveTypeAnalyzer;
 import com.sora.util.akatsuki.analyzers.PrimitiveTypeAnalyzer.Type;
 import com.sora.util.akatsuki.analyzers.TemplateAnalyzer;
@@ -55,6 +59,18 @@ public class TypeAnalyzerResolver {
 		CascadingTypeAnalyzer<?, ?, ?> strategy;
 		final TypeMirror mirror = element.refinedMirror();
 
+		if (element.model().annotation(Retained.class).map(Retained::offload).orElse(false)) {
+			if (!context.utils().isAssignable(mirror, context.utils().of(Serializable.class),
+					true)) {
+				context.messager().printMessage(Kind.ERROR,
+						"@Retained(offload = true) requires a Serializable field, " + mirror
+								+ " is not",
+						element.originatingElement());
+				return null;
+			}
+			return new OffloadAnalyzer(transformationContext);
+		}
+
 		strategy = element.model().annotation(With.class).map(with -> {
 			DeclaredType declaredType = context.utils().getClassFromAnnotationMethod(with::value);
 			// @With defaults to a dummy converter, we don't want that
@@ -75,6 +91,11 @@ public class TypeAnalyzerResolver {
 		if (strategy == null)
 			strategy = findTransformationTemplates(templates, element, Execution.BEFORE);
 
+		if (strategy == null && isLazyOfModel(mirror)) {
+			Log.verbose(context, "Lazy nested element found", element.originatingElement());
+			strategy = new NestedTypeAnalyzer(transformationContext, true);
+		}
+
 		if (strategy == null) {
 			SourceClassModel model = treeModel.findModelWithAssignableMirror(mirror);
 			// this field is a type that contains the @Retained
@@ -86,6 +107,11 @@ public class TypeAnalyzerResolver {
 
 		}
 
+		if (strategy == null && mirror.getKind() == TypeKind.DECLARED && context.types()
+				.asElement(mirror).getAnnotation(Externalized.class) != null) {
+			strategy = new ExternalizedTypeAnalyzer(transformationContext);
+		}
+
 		if (strategy == null) {
 
 			// TODO consider discarding the switch and move the test
@@ -101,7 +127,12 @@ public class TypeAnalyzerResolver {
 				strategy = new CollectionTypeAnalyzer(transformationContext);
 			} else if (transformationContext.utils().isAssignable(mirror,
 					transformationContext.utils().of(Map.class), true)) {
-				// TODO: ETS phase 2
+				final MapTypeAnalyzer analyzer = new MapTypeAnalyzer(transformationContext);
+				// maps we can't take apart are saved as a whole
+				if (analyzer.isSupported(element))
+					strategy = analyzer;
+				else if (transformationContext.utils().isObject(mirror))
+					strategy = new ObjectTypeAnalyzer(transformationContext);
 			} else if (transformationContext.utils().isObject(mirror)) {
 				strategy = new ObjectTypeAnalyzer(transformationContext);
 			} else if (mirror.getKind().equals(TypeKind.TYPEVAR)) {
@@ -120,6 +151,15 @@ public class TypeAnalyzerResolver {
 		return strategy;
 	}
 
+	private boolean isLazyOfModel(TypeMirror mirror) {
+		if (mirror.getKind() != TypeKind.DECLARED || !context.utils().isSameType(mirror,
+				context.utils().of(Lazy.class), true))
+			return false;
+		final List<? extends TypeMirror> arguments = ((DeclaredType) mirror).getTypeArguments();
+		return arguments.size() == 1
+				&& treeModel.findModelWithAssignableMirror(arguments.get(0)) != null;
+	}
+
 	private CascadingTypeAnalyzer<?, ?, Analysis> findTransformationTemplates(
 			List<TransformationTemplate> templates, Element<?> element, Execution execution) {
 		return templates.stream().filter(t -> t.execution() == execution)
@@ -83,6 +83,8 @@ public class Utils {
 			Class<?> returnType = method.getReturnType();
 			if (returnType == String.class) {
 				return value;
+			} else if (returnType == boolean.class) {
+				return Boolean.parseBoolean(value);
 			} else if (returnType.isEnum()) {
 				return Enum.valueOf((Class<Enum>) returnType, value);
 			}else if(returnType.isArray() && returnType.getComponentType().isEnum()){
@@ -2,20 +2,29 @@ package com.sora.util.akatsuki.analyzers;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 
 import com.sora.util.akatsuki.AndroidTypes;
-import com.sora.util.akatsuki.MustacheUtils;
+import com.sora.util.akatsuki.BundleContext;
+import com.sora.util.akatsuki.BundleSizes.Encoding;
+import com.sora.util.akatsuki.ConverterFields;
+import com.sora.util.akatsuki.FlatArrays;
+import com.sora.util.akatsuki.NestedRetainerFields;
+import com.sora.util.akatsuki.PackedCollections;
 import com.sora.util.akatsuki.TransformationContext;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.Element.Builder.SetterMode;
 import com.sora.util.akatsuki.analyzers.PrimitiveTypeAnalyzer.Type;
+import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.CodeBlock.Builder;
+import com.squareup.javapoet.TypeName;
 
 public class ArrayTypeAnalyzer
 		extends CascadingTypeAnalyzer<ArrayTypeAnalyzer, ArrayType, Analysis> {
@@ -23,23 +32,19 @@ public class ArrayTypeAnalyzer
 	static final AndroidTypes[] SUPPORTED_ARRAY_TYPES = { AndroidTypes.Parcelable,
 			AndroidTypes.CharSequence, AndroidTypes.String };
 
-	// for nested arrays (multidimensional arrays will have the same type)
-	private final int depth;
 	private static final String LOOP_EXPRESSION = "for (int $L = $L; $L < $L; $L++)";
+	private static final ClassName BUNDLE = ClassName
+			.bestGuess(AndroidTypes.Bundle.className.toString());
+	private static final ClassName PARCELABLE = ClassName
+			.bestGuess(AndroidTypes.Parcelable.className.toString());
 
 	@Override
 	protected ArrayTypeAnalyzer createInstance(TransformationContext context) {
-		return new ArrayTypeAnalyzer(context, depth);
+		return new ArrayTypeAnalyzer(context);
 	}
 
 	public ArrayTypeAnalyzer(TransformationContext context) {
 		super(context);
-		this.depth = 0;
-	}
-
-	private ArrayTypeAnalyzer(TransformationContext context, int depth) {
-		super(context);
-		this.depth = depth;
 	}
 
 	@Override
@@ -47,6 +52,10 @@ public class ArrayTypeAnalyzer
 			throws UnknownTypeException {
 		final TypeMirror component = context.field.refinedMirror().getComponentType();
 
+		// boxed ones are packed into primitive arrays
+		if (utils().isBoxedType(component))
+			return createPackedAnalysis(context, component);
+
 		// bundle supports all primitives
 		if (utils().isPrimitive(component)) {
 			return cascade(new PrimitiveTypeAnalyzer(this, Type.UNBOXED).suffix("Array"), context,
@@ -54,81 +63,210 @@ public class ArrayTypeAnalyzer
 		}
 
 		// bundle also supports some built in types
-		final Optional<AndroidTypes> found = Arrays.stream(SUPPORTED_ARRAY_TYPES).sorted()
-				.filter(t -> utils().isAssignable(component, utils().of(t.className), true))
-				.findFirst();
+		final Optional<AndroidTypes> found = findSupportedType(component);
 
 		if (found.isPresent()) {
 			return cascade(new ObjectTypeAnalyzer(this).suffix("Array")
 					.target(types().getArrayType(found.get().asMirror(this))), context, component);
+		} else if (component.getKind() == TypeKind.ARRAY) {
+			return createFlatAnalysis(context);
 		} else {
-			// everything else
-			final Element<TypeMirror> refined = context.field.refine(component);
-
-			CascadingTypeAnalyzer<?, ? extends TypeMirror, ? extends Analysis> resolved;
-			if (component.getKind() == TypeKind.ARRAY) {
-				throw new ConversionException(
-						context.field + " is a multidimentional array, which is not supported "
-								+ "(open an issue on Github if you want it)");
-				// multidimensional array, we need to supply depth
-				// resolved = new ArrayTypeAnalyzer(this, depth + 1);
-			} else {
-				// TODO, never really happens, handled by found type above
-				resolved = resolve(refined).cast(TypeCastStrategy.NO_CAST);
-			}
-
-			// give up
+			// everything else goes into a bundle per element, all of which
+			// are saved as one array
+			final CascadingTypeAnalyzer<?, ?, ?> resolved = resolve(
+					context.field.refine(component));
 			if (resolved == null)
 				throw new UnknownTypeException(context.field);
 
 			final String accessor = fieldAccessor(context);
+			final String counter = context.field.uniqueName() + "_0";
+			final String elements = "elements_" + counter;
+			final String element = "element_" + counter;
 
-			String currentCounter = counterName(context, depth);
-
-			final Analysis cascade = cascade(resolved, context, f -> {
-				return f.toBuilder().type(component)
-						.keyName(SetterMode.APPEND, " + \"_\"+" + currentCounter)
-						.accessor(SetterMode.APPEND, "[" + currentCounter + "]").build();
-			});
-
-			final HashMap<String, Object> scope = new HashMap<>();
-			scope.put("bundle", context.bundleContext.bundleObjectName());
-			scope.put("accessor", accessor + ".length");
-			scope.put("lengthKey", "\"length_" + currentCounter + "_r\""
-					+ (depth == 0 ? "" : " + " + counterName(context, depth - 1)));
-			scope.put("lengthVar", "length_" + currentCounter);
-
-			final String lengthStatement = MustacheUtils.render(scope,
-					context.type == InvocationType.SAVE
-							? "{{bundle}}.putInt({{lengthKey}}, {{accessor}})"
-							: "int {{lengthVar}} = {{bundle}}.getInt({{lengthKey}})");
+			final BundleContext elementContext = new ElementBundleContext(context.bundleContext,
+					element);
+			final Analysis cascade = cascade(resolved, context, elementContext,
+					f -> f.toBuilder().type(component).keyName(SetterMode.REPLACE, "\"e\"")
+							.accessor(SetterMode.APPEND, "[" + counter + "]").build());
 
+			final String bundle = context.bundleContext.bundleObjectName();
+			final String key = keyExpression(context, context.field.keyName());
 			cascade.wrap(original -> {
-				final Builder builder = CodeBlock.builder();
+				final Builder builder = CodeBlock.builder().add("{\n").indent();
 				if (context.type == InvocationType.SAVE) {
-					builder.beginControlFlow("if($L != null)", accessor)
-							.addStatement(lengthStatement)
-							.beginControlFlow(LOOP_EXPRESSION, currentCounter, 0, currentCounter,
-									accessor + ".length", currentCounter)
-							.add(original).endControlFlow().endControlFlow();
+					builder.addStatement("$T[] $L = null", BUNDLE, elements)
+							.beginControlFlow("if ($L != null)", accessor)
+							.addStatement("$L = new $T[$L.length]", elements, BUNDLE, accessor)
+							.beginControlFlow(LOOP_EXPRESSION, counter, 0, counter,
+									elements + ".length", counter)
+							.beginControlFlow("if ($L[$L] != null)", accessor, counter)
+							.addStatement("final $T $L = new $T()", BUNDLE, element, BUNDLE)
+							.add("$L", original)
+							.addStatement("$L[$L] = $L", elements, counter, element)
+							.endControlFlow().endControlFlow().endControlFlow()
+							.addStatement("$L.putParcelableArray($L, $L)", bundle, key, elements);
 				} else {
-
-					builder.addStatement(lengthStatement)
-							.beginControlFlow(LOOP_EXPRESSION, currentCounter, 0, currentCounter,
-									scope.get("lengthVar"), currentCounter)
-							.add(original).endControlFlow();
-
+					builder.addStatement("final $T[] $L = $L.getParcelableArray($L)",
+							PARCELABLE, elements, bundle, key)
+							.beginControlFlow("if ($L == null)", elements)
+							.addStatement("$L = null", accessor).nextControlFlow("else")
+							.beginControlFlow("if ($L == null || $L.length != $L.length)",
+									accessor, accessor, elements)
+							.addStatement("$L = $L", accessor, createArray(component,
+									elements + ".length"))
+							.endControlFlow()
+							.beginControlFlow(LOOP_EXPRESSION, counter, 0, counter,
+									elements + ".length", counter)
+							.addStatement("final $T $L = ($T) $L[$L]", BUNDLE, element,
+									BUNDLE, elements, counter)
+							.beginControlFlow("if ($L == null)", element)
+							.addStatement("$L[$L] = null", accessor, counter)
+							.nextControlFlow("else").add("$L", original).endControlFlow()
+							.endControlFlow().endControlFlow();
 				}
-				return builder.build().toString();
+				return builder.unindent().add("}\n").build().toString();
 			});
-
 			return cascade;
 		}
 
 	}
 
-	private String counterName(InvocationContext<?> context, int depth) {
-		return context.field.uniqueName() + "_" + depth;
+	/**
+	 * @return how the elements of an array of the given component type are
+	 *         saved; multidimensional arrays are flattened into an array bundle
+	 *         supports, see {@link FlatArrays}
+	 */
+	public Encoding encoding(TypeMirror component) {
+		if (utils().isBoxedType(component))
+			return Encoding.PACKED;
+		if (component.getKind().isPrimitive() || component.getKind() == TypeKind.ARRAY
+				|| findSupportedType(component).isPresent())
+			return Encoding.NATIVE;
+		return Encoding.BUNDLED;
+	}
+
+	private Optional<AndroidTypes> findSupportedType(TypeMirror component) {
+		return Arrays.stream(SUPPORTED_ARRAY_TYPES).sorted()
+				.filter(t -> utils().isAssignable(component, utils().of(t.className), true))
+				.findFirst();
+	}
+
+	// arrays of generic types can't be created, the erasure will do
+	private String createArray(TypeMirror component, String length) {
+		final TypeName erasure = TypeName.get(types().erasure(component));
+		final TypeName type = TypeName.get(component);
+		return erasure.equals(type)
+				? CodeBlock.builder().add("new $T[$L]", type, length).build().toString()
+				: CodeBlock.builder().add("($T[]) new $T[$L]", type, erasure, length).build()
+						.toString();
+	}
+
+	// boxed primitives are saved as a primitive array, see PackedCollections
+	private Analysis createPackedAnalysis(InvocationContext<ArrayType> context,
+			TypeMirror component) {
+		final PrimitiveType primitiveType = types().unboxedType(component);
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("packer", PackedCollections.class.getName());
+		scope.put("primitive", primitiveType.toString());
+		scope.put("name", CollectionTypeAnalyzer.packedName(primitiveType));
+		scope.put("component", TypeName.get(component));
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new InvocationStatement("{{packer}}.put{{name}}s({{bundle}}, {{keyName}}, "
+					+ "{{fieldName}} == null ? null : java.util.Arrays.asList({{fieldName}}))");
+		} else {
+			statement = new BlockStatement("{\n" //
+					+ "final {{primitive}}[] packed = {{bundle}}.get{{name}}Array({{keyName}});\n"
+					+ "{{fieldName}} = packed == null ? null : {{packer}}.unpack{{name}}s(packed, "
+					+ "{{bundle}}.getIntArray({{packer}}.nullsKey({{keyName}})), "
+					+ "new java.util.ArrayList<{{component}}>(packed.length))"
+					+ ".toArray(new {{component}}[packed.length]);\n"
+					+ "}\n");
+		}
+		return DefaultAnalysis.of(this, statement, context, scope);
+	}
+
+	/**
+	 * @return the Bundle method name of the flat array for the innermost
+	 *         component of the array, if there is one
+	 */
+	private Optional<String> flatArrayName(ArrayType mirror) {
+		TypeMirror component = mirror.getComponentType();
+		while (component.getKind() == TypeKind.ARRAY)
+			component = ((ArrayType) component).getComponentType();
+		if (component.getKind().isPrimitive())
+			return Optional.of(CollectionTypeAnalyzer.packedName((PrimitiveType) component));
+		if (utils().isSameType(component, utils().of(String.class), true))
+			return Optional.of("String");
+		if (utils().isSameType(component, utils().of(CharSequence.class), true))
+			return Optional.of("CharSequence");
+		return Optional.empty();
+	}
+
+	// multidimensional arrays are saved as one flat array and a shape, see
+	// FlatArrays
+	private Analysis createFlatAnalysis(InvocationContext<ArrayType> context) {
+		final ArrayType mirror = context.field.refinedMirror();
+		final String name = flatArrayName(mirror).orElseThrow(() -> new ConversionException(
+				context.field + " is a multidimensional array of a type other than primitives, "
+						+ "String or CharSequence, which is not supported"));
+		TypeMirror component = mirror.getComponentType();
+		while (component.getKind() == TypeKind.ARRAY)
+			component = ((ArrayType) component).getComponentType();
+
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("flat", FlatArrays.class.getName());
+		scope.put("name", name);
+		scope.put("type", TypeName.get(mirror));
+		scope.put("component", TypeName.get(component));
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new BlockStatement("{\n" //
+					+ "final {{type}} array = {{fieldName}};\n"
+					+ "{{bundle}}.putIntArray({{flat}}.shapeKey({{keyName}}), "
+					+ "{{flat}}.shape(array));\n"
+					+ "{{bundle}}.put{{name}}Array({{keyName}}, "
+					+ "({{component}}[]) {{flat}}.flatten(array, {{component}}.class));\n"
+					+ "}\n");
+		} else {
+			statement = new InvocationAssignmentStatement("{{fieldName}}",
+					"({{type}}) {{flat}}.unflatten({{bundle}}.get{{name}}Array({{keyName}}), "
+							+ "{{bundle}}.getIntArray({{flat}}.shapeKey({{keyName}})), "
+							+ "{{type}}.class)");
+		}
+		return DefaultAnalysis.of(this, statement, context, scope);
+	}
+
+	// elements are written with a constant key into a bundle of their own
+	private static class ElementBundleContext implements BundleContext {
+
+		private final BundleContext parent;
+		private final String bundleObjectName;
+
+		ElementBundleContext(BundleContext parent, String bundleObjectName) {
+			this.parent = parent;
+			this.bundleObjectName = bundleObjectName;
+		}
+
+		@Override
+		public String sourceObjectName() {
+			return parent.sourceObjectName();
+		}
+
+		@Override
+		public String bundleObjectName() {
+			return bundleObjectName;
+		}
+
+		@Override
+		public Optional<ConverterFields> converterFields() {
+			return parent.converterFields();
+		}
+
+		@Override
+		public Optional<NestedRetainerFields> nestedRetainerFields() {
+			return parent.nestedRetainerFields();
+		}
 	}
 
 }
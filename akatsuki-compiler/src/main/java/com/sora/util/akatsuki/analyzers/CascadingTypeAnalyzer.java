@@ -2,12 +2,21 @@ package com.sora.util.akatsuki.analyzers;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
@@ -16,9 +25,14 @@ import com.google.common.escape.Escaper;
 import com.sora.util.akatsuki.BundleContext;
 import com.sora.util.akatsuki.Log;
 import com.sora.util.akatsuki.MustacheUtils;
+import com.sora.util.akatsuki.PackedCollections;
 import com.sora.util.akatsuki.ProcessorContext;
 import com.sora.util.akatsuki.TransformationContext;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
 
 public abstract class CascadingTypeAnalyzer<S extends CascadingTypeAnalyzer<S, T, A>, T extends TypeMirror, A extends Analysis>
 		extends TransformationContext {
@@ -103,6 +117,61 @@ public abstract class CascadingTypeAnalyzer<S extends CascadingTypeAnalyzer<S, T
 
 	protected abstract A createAnalysis(InvocationContext<T> context) throws UnknownTypeException;
 
+	/**
+	 * @return the given key expression looked up from the key table of the
+	 *         bundle context, if there is one
+	 */
+	protected static String keyExpression(InvocationContext<?> context, String key) {
+		return context.bundleContext.keyTable().map(table -> table.key(key)).orElse(key);
+	}
+
+	/**
+	 * @return an expression that creates an instance of the given collection
+	 *         or map type, presized with the given size expression if there is
+	 *         a capacity constructor; interfaces are instantiated with the first
+	 *         assignable implementation given. Empty if there is no public
+	 *         constructor to call
+	 */
+	protected Optional<String> createInstantiation(DeclaredType mirror,
+			List<Class<?>> implementations, String size) {
+		final TypeElement element = (TypeElement) mirror.asElement();
+		final TypeElement target;
+		if (element.getKind() == ElementKind.INTERFACE) {
+			target = implementations.stream().map(c -> elements().getTypeElement(c.getName()))
+					.filter(e -> utils().isAssignable(e.asType(), mirror, true)).findFirst()
+					.orElse(null);
+		} else {
+			target = element.getModifiers().contains(Modifier.ABSTRACT) ? null : element;
+		}
+		if (target == null || !target.getModifiers().contains(Modifier.PUBLIC)
+				|| target.getTypeParameters().size() != mirror.getTypeArguments().size())
+			return Optional.empty();
+
+		final List<ExecutableElement> constructors = ElementFilter
+				.constructorsIn(target.getEnclosedElements());
+		final boolean sized = constructors.stream()
+				.anyMatch(c -> c.getModifiers().contains(Modifier.PUBLIC)
+						&& c.getParameters().size() == 1
+						&& c.getParameters().get(0).asType().getKind() == TypeKind.INT);
+		final boolean empty = constructors.stream().anyMatch(
+				c -> c.getModifiers().contains(Modifier.PUBLIC) && c.getParameters().isEmpty());
+		final TypeName typeName = ParameterizedTypeName.get(ClassName.get(target),
+				mirror.getTypeArguments().stream().map(TypeName::get).toArray(TypeName[]::new));
+		if (sized) {
+			// hash based types need room for the load factor
+			final boolean hashed = utils().isAssignable(target.asType(),
+					utils().of(HashSet.class), true)
+					|| utils().isAssignable(target.asType(), utils().of(HashMap.class), true);
+			final String capacity = hashed
+					? PackedCollections.class.getName() + ".hashCapacity(" + size + ")" : size;
+			return Optional.of(
+					CodeBlock.builder().add("new $T($L)", typeName, capacity).build().toString());
+		} else if (empty) {
+			return Optional.of(CodeBlock.builder().add("new $T()", typeName).build().toString());
+		}
+		return Optional.empty();
+	}
+
 	protected String fieldAccessor(InvocationContext<?> context) {
 		return context.field.accessor(fn -> {
 			String objectName = context.bundleContext.sourceObjectName();
@@ -127,8 +196,19 @@ public abstract class CascadingTypeAnalyzer<S extends CascadingTypeAnalyzer<S, T
 	protected Analysis cascade(CascadingTypeAnalyzer<?, ?, ?> transformation,
 			InvocationContext<?> context, Function<Element<?>, Element<?>> elementTransformation)
 					throws UnknownTypeException {
+		return cascade(transformation, context, context.bundleContext, elementTransformation);
+	}
+
+	/**
+	 * Same as {@link #cascade(CascadingTypeAnalyzer, InvocationContext, Function)}
+	 * but the cascaded analysis works with the given bundle context instead
+	 */
+	protected Analysis cascade(CascadingTypeAnalyzer<?, ?, ?> transformation,
+			InvocationContext<?> context, BundleContext bundleContext,
+			Function<Element<?>, Element<?>> elementTransformation)
+					throws UnknownTypeException {
 		transformation.cascadeDepth = cascadeDepth + 1;
-		return transformation.transform(context.bundleContext,
+		return transformation.transform(bundleContext,
 				elementTransformation.apply(context.field), context.type);
 
 	}
@@ -241,7 +321,7 @@ public abstract class CascadingTypeAnalyzer<S extends CascadingTypeAnalyzer<S, T
 				Map<String, Object> extraScope) {
 			final HashMap<String, Object> scope = new HashMap<>();
 			scope.put("fieldName", analyzer.fieldAccessor(context));
-			scope.put("keyName", context.field.keyName());
+			scope.put("keyName", keyExpression(context, context.field.keyName()));
 			scope.put("bundle", context.bundleContext.bundleObjectName());
 			if (extraScope != null)
 				scope.putAll(extraScope);
@@ -348,6 +428,28 @@ public abstract class CascadingTypeAnalyzer<S extends CascadingTypeAnalyzer<S, T
 		}
 	}
 
+	/**
+	 * A statement that is complete on its own, such as a block
+	 */
+	public static class BlockStatement implements RawStatement {
+
+		private String template;
+
+		public BlockStatement(String template) {
+			this.template = template;
+		}
+
+		@Override
+		public String render(Object scope) {
+			return MustacheUtils.render(scope, template);
+		}
+
+		@Override
+		public void transform(CodeTransform transform) {
+			template = transform.apply(template);
+		}
+	}
+
 	public static class InvocationAssignmentStatement extends InvocationStatement {
 
 		private final String variable;
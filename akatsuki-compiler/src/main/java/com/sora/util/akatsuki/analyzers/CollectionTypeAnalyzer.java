@@ -1,17 +1,26 @@
 package com.sora.util.akatsuki.analyzers;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
 
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 
 import com.sora.util.akatsuki.AndroidTypes;
+import com.sora.util.akatsuki.PackedCollections;
 import com.sora.util.akatsuki.TransformationContext;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 import com.sora.util.akatsuki.analyzers.PrimitiveTypeAnalyzer.Type;
@@ -27,6 +36,10 @@ public class CollectionTypeAnalyzer
 			.builder().add("new $L($L)", type.toString().replace("<E>", "<>"), source).build()
 			.toString();
 
+	// implementations used for interfaces when restoring packed collections
+	private static final List<Class<?>> PACKED_IMPLEMENTATIONS = Arrays.asList(ArrayList.class,
+			LinkedHashSet.class, TreeSet.class, ArrayDeque.class);
+
 	interface InstantiationStatement {
 		String createStatement(CollectionTypeAnalyzer analyzer, TypeMirror type, String source);
 	}
@@ -44,6 +57,9 @@ public class CollectionTypeAnalyzer
 	public Analysis createAnalysis(InvocationContext<DeclaredType> context)
 			throws UnknownTypeException {
 
+		if (isPacked(context.field))
+			return createPackedAnalysis(context);
+
 		// ArrayList is supported
 		final Optional<TypeMirror> arrayListType = getSupportedArrayListType(context.field);
 		final DeclaredType rawTypeMirror = context.field.refinedMirror();
@@ -124,6 +140,80 @@ public class CollectionTypeAnalyzer
 		}
 	}
 
+	/**
+	 * @return whether the field is a collection of boxed primitives that is
+	 *         saved as a primitive array, see {@link PackedCollections}
+	 */
+	public boolean isPacked(Element<?> field) {
+		final TypeMirror mirror = field.refinedMirror();
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return false;
+		final DeclaredType declaredType = (DeclaredType) mirror;
+		return findPackedElementType(declaredType)
+				.flatMap(elementType -> createInstantiation(declaredType, PACKED_IMPLEMENTATIONS,
+						"0"))
+				.isPresent();
+	}
+
+	private Analysis createPackedAnalysis(InvocationContext<DeclaredType> context) {
+		final DeclaredType mirror = context.field.refinedMirror();
+		final TypeMirror elementType = findPackedElementType(mirror)
+				.orElseThrow(AssertionError::new);
+		final PrimitiveType primitiveType = types().unboxedType(elementType);
+
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("packer", PackedCollections.class.getName());
+		scope.put("primitive", primitiveType.toString());
+		scope.put("name", packedName(primitiveType));
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new InvocationStatement(
+					"{{packer}}.put{{name}}s({{bundle}}, {{keyName}}, {{fieldName}})");
+		} else {
+			scope.put("instantiation", createInstantiation(mirror, PACKED_IMPLEMENTATIONS, "packed.length")
+					.orElseThrow(AssertionError::new));
+			statement = new InvocationAssignmentStatement("{{fieldName}}",
+					"packed == null ? null : {{packer}}.unpack{{name}}s(packed, "
+							+ "{{bundle}}.getIntArray({{packer}}.nullsKey({{keyName}})), "
+							+ "{{instantiation}})");
+		}
+		final Analysis analysis = DefaultAnalysis.of(this, statement, context, scope);
+		if (context.type == InvocationType.RESTORE) {
+			// scoped so that the array does not clash with anything else
+			analysis.wrap(s -> "{\nfinal {{primitive}}[] packed = "
+					+ "{{bundle}}.get{{name}}Array({{keyName}});\n" + s + "}\n");
+		}
+		return analysis;
+	}
+
+	private Optional<TypeMirror> findPackedElementType(DeclaredType mirror) {
+		final List<? extends TypeMirror> arguments = mirror.getTypeArguments();
+		if (arguments.size() != 1 || !utils().isBoxedType(arguments.get(0)))
+			return Optional.empty();
+		final TypeMirror elementType = arguments.get(0);
+		// lists of Integer are still saved with putIntegerArrayList so that
+		// bundles and intents filled elsewhere can be restored
+		if (utils().isSameType(elementType, utils().of(Integer.class), true)
+				&& utils().isAssignable(mirror, utils().of(List.class), true))
+			return Optional.empty();
+		final DeclaredType collectionType = utils()
+				.getDeclaredType((DeclaredType) utils().of(Collection.class), elementType);
+		return types().isAssignable(mirror, collectionType) ? Optional.of(elementType)
+				: Optional.empty();
+	}
+
+	static String packedName(PrimitiveType type) {
+		final String name = type.toString();
+		switch (type.getKind()) {
+		case CHAR:
+			return "Char";
+		case INT:
+			return "Int";
+		default:
+			return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		}
+	}
+
 	private Optional<TypeMirror> getSupportedArrayListType(Element<DeclaredType> field) {
 		if (utils().isAssignable(field.refinedMirror(), utils().of(List.class), true)) {
 			final TypeMirror mirror = field.refinedMirror().getTypeArguments().get(0);
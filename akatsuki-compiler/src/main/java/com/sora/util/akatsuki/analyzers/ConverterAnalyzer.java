@@ -13,32 +13,39 @@ import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
 
 public class ConverterAnalyzer
 		extends CascadingTypeAnalyzer<ConverterAnalyzer, TypeMirror, Analysis> {
+	private final DeclaredType converterType;
 	private final TypeElement converterElement;
 
 	public ConverterAnalyzer(TransformationContext context, DeclaredType converterType) {
 		super(context);
+		this.converterType = converterType;
 		this.converterElement = (TypeElement) converterType.asElement();
 	}
 
 	@Override
 	protected ConverterAnalyzer createInstance(TransformationContext context) {
-		return new ConverterAnalyzer(context, (DeclaredType) converterElement.asType());
+		return new ConverterAnalyzer(context, converterType);
 	}
 
 	@Override
 	protected Analysis createAnalysis(InvocationContext<TypeMirror> context)
 			throws UnknownTypeException {
 		final Map<String, Object> scope = new HashMap<>();
-		scope.put("class", converterElement.getQualifiedName() + ".class");
-		scope.put("akatsuki", Akatsuki.class.getName());
+		// use the field declared by the generated class if we can, a lookup
+		// per call otherwise
+		final String converter = context.bundleContext.converterFields()
+				.flatMap(fields -> fields.fieldFor(converterType))
+				.orElse(Akatsuki.class.getName() + ".converter("
+						+ converterElement.getQualifiedName() + ".class)");
+		scope.put("converter", converter);
 
 		RawStatement statement;
 		if (context.type == InvocationType.SAVE) {
 			statement = new InvocationStatement(
-					"{{akatsuki}}.converter({{class}}).save({{bundle}}, {{fieldName}}, {{keyName}});\n");
+					"{{converter}}.save({{bundle}}, {{fieldName}}, {{keyName}});\n");
 		} else {
 			statement = new InvocationAssignmentStatement("{{fieldName}}",
-					"{{akatsuki}}.converter({{class}}).restore({{bundle}}, {{fieldName}}, {{keyName}});\n");
+					"{{converter}}.restore({{bundle}}, {{fieldName}}, {{keyName}});\n");
 		}
 		return DefaultAnalysis.of(this, statement, context, scope);
 	}
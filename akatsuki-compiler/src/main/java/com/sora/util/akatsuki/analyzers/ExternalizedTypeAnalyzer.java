@@ -0,0 +1,47 @@
+package com.sora.util.akatsuki.analyzers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+
+import com.sora.util.akatsuki.TransformationContext;
+import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
+
+/**
+ * Saves an {@link com.sora.util.akatsuki.Externalized} type as the byte array
+ * written by its generated {@link com.sora.util.akatsuki.Externalizer},
+ * subclasses are put as they are
+ */
+public class ExternalizedTypeAnalyzer
+		extends CascadingTypeAnalyzer<ExternalizedTypeAnalyzer, DeclaredType, Analysis> {
+
+	public ExternalizedTypeAnalyzer(TransformationContext context) {
+		super(context);
+	}
+
+	@Override
+	protected ExternalizedTypeAnalyzer createInstance(TransformationContext context) {
+		return new ExternalizedTypeAnalyzer(context);
+	}
+
+	@Override
+	protected Analysis createAnalysis(InvocationContext<DeclaredType> context)
+			throws UnknownTypeException {
+		final TypeElement element = (TypeElement) types()
+				.asElement(context.field.refinedMirror());
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("externalizer", utils().externalizerName(element) + ".INSTANCE");
+
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new InvocationStatement(
+					"{{externalizer}}.save({{bundle}}, {{keyName}}, {{fieldName}})");
+		} else {
+			statement = new InvocationAssignmentStatement("{{fieldName}}",
+					"{{externalizer}}.restore({{bundle}}, {{keyName}})");
+		}
+		return DefaultAnalysis.of(this, statement, context, scope);
+	}
+}
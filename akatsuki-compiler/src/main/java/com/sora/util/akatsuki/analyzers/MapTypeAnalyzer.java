@@ -0,0 +1,155 @@
+package com.sora.util.akatsuki.analyzers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import com.sora.util.akatsuki.MustacheUtils;
+import com.sora.util.akatsuki.PackedCollections;
+import com.sora.util.akatsuki.TransformationContext;
+import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
+import com.sora.util.akatsuki.analyzers.Element.Builder.SetterMode;
+import com.squareup.javapoet.TypeName;
+
+/**
+ * Saves maps as the size followed by parallel arrays of keys and values, keys
+ * and values of boxed primitives are packed into primitive arrays (see
+ * {@link PackedCollections}), everything else is saved as an array of the type
+ * with whatever analyzer the array resolves to
+ */
+public class MapTypeAnalyzer
+		extends CascadingTypeAnalyzer<MapTypeAnalyzer, DeclaredType, Analysis> {
+
+	// implementations used for interfaces, the first assignable one wins
+	private static final List<Class<?>> IMPLEMENTATIONS = Arrays.asList(LinkedHashMap.class,
+			TreeMap.class, ConcurrentHashMap.class);
+
+	public MapTypeAnalyzer(TransformationContext context) {
+		super(context);
+	}
+
+	@Override
+	protected MapTypeAnalyzer createInstance(TransformationContext context) {
+		return new MapTypeAnalyzer(context);
+	}
+
+	/**
+	 * @return whether the keys and values of the map can be saved as arrays
+	 *         and the map can be instantiated on restore
+	 */
+	public boolean isSupported(Element<?> field) {
+		final TypeMirror mirror = field.refinedMirror();
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return false;
+		final DeclaredType declaredType = (DeclaredType) mirror;
+		final List<? extends TypeMirror> arguments = declaredType.getTypeArguments();
+		if (arguments.size() != 2 || !isArrayable(arguments.get(0))
+				|| !isArrayable(arguments.get(1)))
+			return false;
+		final DeclaredType mapType = utils().getDeclaredType(
+				(DeclaredType) utils().of(Map.class), arguments.get(0), arguments.get(1));
+		return types().isAssignable(mirror, mapType)
+				&& createInstantiation(declaredType, IMPLEMENTATIONS, "0").isPresent();
+	}
+
+	// we have to be able to create an array of it, raw types included
+	private boolean isArrayable(TypeMirror mirror) {
+		return mirror.getKind() == TypeKind.DECLARED && ((TypeElement) ((DeclaredType) mirror)
+				.asElement()).getTypeParameters().isEmpty();
+	}
+
+	@Override
+	protected Analysis createAnalysis(InvocationContext<DeclaredType> context)
+			throws UnknownTypeException {
+		if (!isSupported(context.field))
+			throw new UnknownTypeException(context.field);
+		final DeclaredType mirror = context.field.refinedMirror();
+		final TypeMirror keyType = mirror.getTypeArguments().get(0);
+		final TypeMirror valueType = mirror.getTypeArguments().get(1);
+
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("mapType", TypeName.get(mirror));
+		scope.put("keys", encode(context, keyType, "keys", "map.keySet()"));
+		scope.put("values", encode(context, valueType, "values", "map.values()"));
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new BlockStatement("{\n" //
+					+ "final {{mapType}} map = {{fieldName}};\n"
+					+ "{{bundle}}.putInt({{keyName}}, map == null ? -1 : map.size());\n"
+					+ "if (map != null) {\n" //
+					+ "{{keys}}{{values}}" //
+					+ "}\n" //
+					+ "}\n");
+		} else {
+			scope.put("packer", PackedCollections.class.getName());
+			scope.put("instantiation", createInstantiation(mirror, IMPLEMENTATIONS, "size")
+					.orElseThrow(AssertionError::new));
+			statement = new BlockStatement("{\n" //
+					+ "final int size = {{bundle}}.getInt({{keyName}}, -1);\n"
+					+ "if (size == -1) {\n" //
+					+ "{{fieldName}} = null;\n" //
+					+ "} else {\n" //
+					+ "{{keys}}{{values}}"
+					+ "{{fieldName}} = {{packer}}.zip({{instantiation}}, keys, values);\n"
+					+ "}\n" //
+					+ "}\n");
+		}
+		return DefaultAnalysis.of(this, statement, context, scope);
+	}
+
+	// one side of the map, declares a local variable with the given name on
+	// restore
+	private String encode(InvocationContext<DeclaredType> context, TypeMirror type, String name,
+			String source) throws UnknownTypeException {
+		final String key = keyExpression(context,
+				context.field.keyName() + " + \"$" + name + "\"");
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("bundle", context.bundleContext.bundleObjectName());
+		scope.put("key", key);
+		scope.put("name", name);
+		scope.put("source", source);
+		scope.put("type", TypeName.get(type));
+
+		if (utils().isBoxedType(type)) {
+			final PrimitiveType primitiveType = types().unboxedType(type);
+			scope.put("packer", PackedCollections.class.getName());
+			scope.put("packedName", CollectionTypeAnalyzer.packedName(primitiveType));
+			return MustacheUtils.render(scope, context.type == InvocationType.SAVE
+					? "{{packer}}.put{{packedName}}s({{bundle}}, {{key}}, {{source}});\n"
+					: "final java.util.List<{{type}}> {{name}} = "
+							+ "{{packer}}.unpack{{packedName}}s("
+							+ "{{bundle}}.get{{packedName}}Array({{key}}), "
+							+ "{{bundle}}.getIntArray({{packer}}.nullsKey({{key}})), "
+							+ "new java.util.ArrayList<{{type}}>(size));\n");
+		}
+
+		// the array in the local variable is saved like a field would be
+		final ArrayType arrayType = types().getArrayType(type);
+		final String accessor = fieldAccessor(context);
+		final Element<?> element = context.field.toBuilder().type(arrayType)
+				.keyName(SetterMode.APPEND, " + \"$" + name + "\"")
+				.fieldNameTransforms(o -> o.startsWith(accessor)
+						? name + o.substring(accessor.length()) : o)
+				.build();
+		final CascadingTypeAnalyzer<?, ?, ?> analyzer = resolve(element);
+		if (analyzer == null)
+			throw new UnknownTypeException(context.field);
+		final Analysis analysis = cascade(analyzer, context, f -> element);
+		final String code = analysis.preEmitOnce() + analysis.emit() + analysis.postEmitOnce();
+		return MustacheUtils.render(scope, context.type == InvocationType.SAVE
+				? "final {{type}}[] {{name}} = {{source}}.toArray(new {{type}}[map.size()]);\n"
+				: "{{type}}[] {{name}} = null;\n") + code;
+	}
+
+}
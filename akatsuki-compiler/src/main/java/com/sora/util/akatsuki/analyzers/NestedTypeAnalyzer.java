@@ -2,23 +2,42 @@ package com.sora.util.akatsuki.analyzers;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 
 import com.sora.util.akatsuki.Akatsuki;
 import com.sora.util.akatsuki.TransformationContext;
 import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
+import com.squareup.javapoet.TypeName;
 
 public class NestedTypeAnalyzer
 		extends CascadingTypeAnalyzer<NestedTypeAnalyzer, TypeMirror, Analysis> {
 
+	private final boolean lazy;
+
 	public NestedTypeAnalyzer(TransformationContext context) {
+		this(context, false);
+	}
+
+	/**
+	 * @param lazy
+	 *            whether the field is a {@link com.sora.util.akatsuki.Lazy}
+	 *            holding the nested type
+	 */
+	public NestedTypeAnalyzer(TransformationContext context, boolean lazy) {
 		super(context);
+		this.lazy = lazy;
 	}
 
 	@Override
 	protected NestedTypeAnalyzer createInstance(TransformationContext context) {
-		return new NestedTypeAnalyzer(context);
+		return new NestedTypeAnalyzer(context, lazy);
 	}
 
 	@Override
@@ -27,8 +46,44 @@ public class NestedTypeAnalyzer
 		final Map<String, Object> scope = new HashMap<>();
 		scope.put("akatsuki", Akatsuki.class.getName());
 
+		// written into our own bundle by the retainer of the nested type
+		final Optional<String> retainer = lazy ? Optional.empty()
+				: context.bundleContext.nestedRetainerFields()
+						.flatMap(fields -> fields.fieldFor(context.field.refinedMirror()));
+
 		RawStatement statement;
-		if (context.type == InvocationType.SAVE) {
+		if (retainer.isPresent()) {
+			// the key itself marks whether the field was null
+			scope.put("retainer", retainer.get());
+			scope.put("keys", nestedKeys(context));
+			if (context.type == InvocationType.SAVE) {
+				statement = new BlockStatement(
+						"{{bundle}}.putBoolean({{keyName}}, {{fieldName}} != null);\n"
+								+ "if ({{fieldName}} != null) {{retainer}}.save({{fieldName}}, "
+								+ "{{bundle}}, {{keys}});\n");
+			} else {
+				// without a constructor to call there is nothing to restore into
+				final Optional<TypeName> type = instantiableType(context.field.refinedMirror());
+				scope.put("instantiable", type.isPresent());
+				scope.put("type", type.orElse(null));
+				statement = new BlockStatement("if (!{{bundle}}.getBoolean({{keyName}})) {\n"
+						+ "{{fieldName}} = null;\n"
+						+ "} else {{^instantiable}}if ({{fieldName}} != null) {{/instantiable}}{\n"
+						+ "{{#instantiable}}if ({{fieldName}} == null) "
+						+ "{{fieldName}} = new {{type}}();\n{{/instantiable}}"
+						+ "{{retainer}}.restore({{fieldName}}, {{bundle}}, {{keys}});\n"
+						+ "}\n");
+			}
+		} else if (lazy) {
+			// the bundle is kept as is until the field is used
+			if (context.type == InvocationType.SAVE) {
+				statement = new InvocationStatement("{{bundle}}.putBundle({{keyName}}, "
+						+ "{{akatsuki}}.serializeLazy({{fieldName}}))");
+			} else {
+				statement = new InvocationStatement("{{akatsuki}}.deserializeLazy({{fieldName}}, "
+						+ "{{bundle}}.getBundle({{keyName}}))");
+			}
+		} else if (context.type == InvocationType.SAVE) {
 			statement = new InvocationStatement(
 					"{{bundle}}.putBundle({{keyName}}, {{akatsuki}}.serialize({{fieldName}}))");
 		} else {
@@ -38,4 +93,31 @@ public class NestedTypeAnalyzer
 		}
 		return DefaultAnalysis.of(this, statement, context, scope);
 	}
+
+	/**
+	 * @return the key table and offset arguments for the prefixed overloads of
+	 *         the retainer of the nested type
+	 */
+	public static String nestedKeys(InvocationContext<?> context) {
+		final TypeMirror mirror = context.field.refinedMirror();
+		final String key = context.field.keyName();
+		return context.bundleContext.keyTable().map(table -> table.nested(mirror, key))
+				.orElseGet(() -> context.bundleContext.nestedRetainerFields()
+						.orElseThrow(AssertionError::new).keysFor(mirror, key));
+	}
+
+	// a public class with a public no argument constructor
+	private Optional<TypeName> instantiableType(TypeMirror mirror) {
+		if (mirror.getKind() != TypeKind.DECLARED)
+			return Optional.empty();
+		final TypeElement element = (TypeElement) types().asElement(mirror);
+		if (element.getKind() != ElementKind.CLASS
+				|| !element.getModifiers().contains(Modifier.PUBLIC)
+				|| element.getModifiers().contains(Modifier.ABSTRACT))
+			return Optional.empty();
+		return ElementFilter.constructorsIn(element.getEnclosedElements()).stream()
+				.filter(c -> c.getParameters().isEmpty()
+						&& c.getModifiers().contains(Modifier.PUBLIC))
+				.findFirst().map(c -> TypeName.get(mirror));
+	}
 }
@@ -47,6 +47,9 @@ public class ObjectTypeAnalyzer
 						utils().of(t.className), true))
 				.findFirst().orElseThrow(() -> new UnknownTypeException(context.field));
 
+		if (found == AndroidTypes.Serializable)
+			serializableFallback(context.field.originatingElement());
+
 		String methodName = found.typeAlias != null ? found.typeAlias.toString()
 				: found.asMirror(this).asElement().getSimpleName().toString();
 		methodName += suffix;
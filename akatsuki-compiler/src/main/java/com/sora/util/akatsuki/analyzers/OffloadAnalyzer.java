@@ -0,0 +1,46 @@
+package com.sora.util.akatsuki.analyzers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.lang.model.type.TypeMirror;
+
+import com.sora.util.akatsuki.Akatsuki;
+import com.sora.util.akatsuki.TransformationContext;
+import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.Analysis;
+
+/**
+ * Saves a token from the {@link com.sora.util.akatsuki.OffloadStore} in
+ * place of the value
+ */
+public class OffloadAnalyzer extends CascadingTypeAnalyzer<OffloadAnalyzer, TypeMirror, Analysis> {
+
+	public OffloadAnalyzer(TransformationContext context) {
+		super(context);
+	}
+
+	@Override
+	protected OffloadAnalyzer createInstance(TransformationContext context) {
+		return new OffloadAnalyzer(context);
+	}
+
+	@Override
+	protected Analysis createAnalysis(InvocationContext<TypeMirror> context)
+			throws UnknownTypeException {
+		final Map<String, Object> scope = new HashMap<>();
+		scope.put("akatsuki", Akatsuki.class.getName());
+		scope.put("owner", context.bundleContext.sourceObjectName());
+
+		RawStatement statement;
+		if (context.type == InvocationType.SAVE) {
+			statement = new InvocationStatement(
+					"{{bundle}}.putString({{keyName}}, "
+							+ "{{akatsuki}}.offload({{owner}}, {{keyName}}, {{fieldName}}))");
+		} else {
+			statement = new InvocationAssignmentStatement("{{fieldName}}",
+					"{{akatsuki}}.restoreOffloaded({{owner}}, {{keyName}}, "
+							+ "{{bundle}}.getString({{keyName}}))");
+		}
+		return DefaultAnalysis.of(this, statement, context, scope);
+	}
+}
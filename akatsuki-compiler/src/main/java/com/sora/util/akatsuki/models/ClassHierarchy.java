@@ -0,0 +1,89 @@
+package com.sora.util.akatsuki.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import com.sora.util.akatsuki.ProcessorContext;
+
+/**
+ * Every class of a round along with its subclasses, built with a single walk
+ * of the root elements so that looking up the subclasses of a class does not
+ * have to walk the round again. Classes nested in classes are included,
+ * classes nested in interfaces and enums are not
+ */
+public class ClassHierarchy extends BaseModel {
+
+	private final List<TypeElement> classes = new ArrayList<>();
+	private final List<Element> fields = new ArrayList<>();
+	// all subclasses in the round keyed by the qualified name of the
+	// superclass, in the order they appear in the round
+	private final Map<String, List<TypeElement>> subclasses = new HashMap<>();
+
+	ClassHierarchy(ProcessorContext context, RoundEnvironment environment) {
+		super(context);
+		for (Element root : environment.getRootElements()) {
+			collect(root);
+		}
+		for (TypeElement element : classes) {
+			TypeElement superclass = element;
+			while ((superclass = superclassOf(superclass)) != null) {
+				subclasses.computeIfAbsent(superclass.getQualifiedName().toString(),
+						k -> new ArrayList<>()).add(element);
+			}
+		}
+	}
+
+	private void collect(Element element) {
+		if (element.getKind() == ElementKind.CLASS) {
+			classes.add((TypeElement) element);
+			for (Element enclosed : element.getEnclosedElements()) {
+				collect(enclosed);
+			}
+		} else if (element.getKind() == ElementKind.FIELD) {
+			fields.add(element);
+		}
+	}
+
+	private TypeElement superclassOf(TypeElement element) {
+		final TypeMirror superclass = element.getSuperclass();
+		if (superclass.getKind() != TypeKind.DECLARED)
+			return null;
+		final Element superElement = context.types().asElement(superclass);
+		return superElement instanceof TypeElement ? (TypeElement) superElement : null;
+	}
+
+	/**
+	 * @return every class in the round, enclosing classes come before the
+	 *         classes they enclose
+	 */
+	public List<TypeElement> classes() {
+		return Collections.unmodifiableList(classes);
+	}
+
+	/**
+	 * @return every field of every class in the round, in declaration order
+	 */
+	public List<Element> fields() {
+		return Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * @return every class in the round that directly or indirectly extends
+	 *         the given class, in the order they appear in the round
+	 */
+	public List<TypeElement> subclassesOf(TypeElement element) {
+		return Collections.unmodifiableList(subclasses
+				.getOrDefault(element.getQualifiedName().toString(), Collections.emptyList()));
+	}
+
+}
@@ -12,14 +12,12 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
-import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.TypeMirror;
-import javax.lang.model.util.SimpleElementVisitor8;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
@@ -62,43 +60,22 @@ public class SourceClassModel extends BaseModel {
 		// this.children.forEach(c -> c.linkParent(map));
 	}
 
-	void findChildren(Map<String, SourceClassModel> map, RoundEnvironment environment) {
+	void findChildren(Map<String, SourceClassModel> map, ClassHierarchy hierarchy) {
 		Set<SourceClassModel> models = new HashSet<>();
-		for (Element root : environment.getRootElements()) {
-
-			root.accept(new SimpleElementVisitor8<Void, Set<SourceClassModel>>() {
-
-				@Override
-				public Void visitType(TypeElement element, Set<SourceClassModel> models) {
-					if (element.getKind() == ElementKind.CLASS && element != enclosingClass) {
-						// we're in a class now
-						if (context.utils().isAssignable(element.asType(), mirror(), true)) {
-							// the class extends the source class, add it to the
-							// map
-							SourceClassModel existing = map
-									.get(element.getQualifiedName().toString());
-							if (existing != null) {
-								// class model was instantiated in the
-								// verification phase
-
-								if (existing.parent == null)
-									existing.parent = SourceClassModel.this;
-
-								models.add(existing);
-							} else {
-								// new class found
-								SourceClassModel model = new SourceClassModel(context, element);
-								model.parent = SourceClassModel.this;
-								models.add(model);
-								model.findChildren(map, environment);
-							}
-						}
-						// keep walking
-						element.getEnclosedElements().forEach(e -> e.accept(this, models));
-					}
-					return null;
-				}
-			}, models);
+		for (TypeElement element : hierarchy.subclassesOf(enclosingClass)) {
+			SourceClassModel existing = map.get(element.getQualifiedName().toString());
+			if (existing != null) {
+				// class model was instantiated in the verification phase
+				if (existing.parent == null)
+					existing.parent = this;
+				models.add(existing);
+			} else {
+				// new class found
+				SourceClassModel model = new SourceClassModel(context, element);
+				model.parent = this;
+				models.add(model);
+				model.findChildren(map, hierarchy);
+			}
 		}
 		this.children = Collections.unmodifiableSet(models);
 	}
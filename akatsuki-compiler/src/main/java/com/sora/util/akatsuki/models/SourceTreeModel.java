@@ -33,14 +33,17 @@ public class SourceTreeModel extends BaseModel {
 
 	private final List<SourceClassModel> models;
 	private final List<SourceClassModel> flattenedModel;
+	private final ClassHierarchy hierarchy;
 
 	public enum Arrangement {
 		FLATTENED, HEAD
 	}
 
-	private SourceTreeModel(ProcessorContext context, List<SourceClassModel> models) {
+	private SourceTreeModel(ProcessorContext context, List<SourceClassModel> models,
+			ClassHierarchy hierarchy) {
 		super(context);
 		this.models = models;
+		this.hierarchy = hierarchy;
 		this.flattenedModel = models.stream()
 				.flatMap(m -> Stream.concat(m.children().stream(), Stream.of(m))).distinct()
 				.collect(Collectors.toList());
@@ -50,18 +53,6 @@ public class SourceTreeModel extends BaseModel {
 		return models.stream().anyMatch(m -> m.fullyQualifiedName().equals(fqcn));
 	}
 
-	private static void collectElements(ArrayList<Element> elements, Element root,
-			Set<Class<? extends Annotation>> classes) {
-		if (root.getKind() == ElementKind.CLASS) {
-			for (Element element : root.getEnclosedElements()) {
-				collectElements(elements, element, classes);
-			}
-		} else if (root.getKind() == ElementKind.FIELD
-				&& classes.stream().anyMatch(c -> root.getAnnotation(c) != null)) {
-			elements.add(root);
-		}
-	}
-
 	// create our model here
 	public static SourceTreeModel fromRound(ProcessorContext context, RoundEnvironment roundEnv,
 			Set<Class<? extends Annotation>> classes) {
@@ -71,10 +62,11 @@ public class SourceTreeModel extends BaseModel {
 		// elements.addAll(roundEnv.getElementsAnnotatedWith(clazz));
 		// }
 
-		ArrayList<Element> list = new ArrayList<>();
-		for (Element root : roundEnv.getRootElements()) {
-			collectElements(list, root, classes);
-		}
+		// the round is walked once, finding children uses the same index
+		final ClassHierarchy hierarchy = new ClassHierarchy(context, roundEnv);
+		final List<Element> list = hierarchy.fields().stream()
+				.filter(field -> classes.stream().anyMatch(c -> field.getAnnotation(c) != null))
+				.collect(Collectors.toList());
 
 		Map<String, SourceClassModel> classNameMap = new HashMap<>();
 		int processed = 0;
@@ -117,12 +109,13 @@ public class SourceTreeModel extends BaseModel {
 		} else {
 			// stage 2, initialize them all
 			models.forEach(model -> model.linkParent(classNameMap));
-			models.forEach(model -> model.findChildren(classNameMap, roundEnv));
+			models.forEach(model -> model.findChildren(classNameMap, hierarchy));
 
 			models.forEach(SourceClassModel::markHiddenFields);
 		}
 
-		return verifyOnly ? null : new SourceTreeModel(context, new ArrayList<>(models));
+		return verifyOnly ? null
+				: new SourceTreeModel(context, new ArrayList<>(models), hierarchy);
 	}
 
 	private static boolean annotatedElementValid(ProcessorContext context, Element element) {
@@ -209,6 +202,13 @@ public class SourceTreeModel extends BaseModel {
 		return true;
 	}
 
+	/**
+	 * @return the classes of the round this tree was built from
+	 */
+	public ClassHierarchy hierarchy() {
+		return hierarchy;
+	}
+
 	public List<SourceClassModel> classModels(Arrangement arrangement) {
 		return Collections
 				.unmodifiableList(arrangement == Arrangement.FLATTENED ? flattenedModel : models);
@@ -0,0 +1,131 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.os.Bundle;
+
+public class AkatsukiMetricsIntegrationTest extends IntegrationTestBase {
+
+	private static class RecordingMetrics extends AkatsukiMetrics.Adapter {
+
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onSave(Class<?> clazz, long durationNanos, int keysWritten) {
+			assertTrue(durationNanos >= 0);
+			events.add("save " + clazz.getSimpleName() + " " + keysWritten);
+		}
+
+		@Override
+		public void onRestore(Class<?> clazz, Class<? extends Annotation> type,
+				long durationNanos) {
+			assertTrue(durationNanos >= 0);
+			events.add("restore " + clazz.getSimpleName() + " " + type.getSimpleName());
+		}
+
+		@Override
+		public void onRetainerLookup(Class<?> clazz, Class<? extends Annotation> type,
+				boolean hit) {
+			events.add((hit ? "hit " : "miss ") + clazz.getSimpleName());
+		}
+
+		@Override
+		public void onHierarchyTraversal(Class<?> clazz, int classesVisited) {
+			events.add("traverse " + clazz.getSimpleName() + " " + classesVisited);
+		}
+
+		@Override
+		public void onConverterLookup(Class<?> converterClass, boolean hit) {
+			events.add((hit ? "hit " : "miss ") + converterClass.getSimpleName());
+		}
+	}
+
+	public static class MetricsTestConverter implements TypeConverter<String> {
+
+		@Override
+		public void save(Bundle bundle, String s, String key) {
+			bundle.putString(key, s);
+		}
+
+		@Override
+		public String restore(Bundle bundle, String s, String key) {
+			return bundle.getString(key);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		Akatsuki.setMetrics(null);
+	}
+
+	@Test
+	public void testSaveRestoreAndLookupsAreReported() throws Exception {
+		TestSource base = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(base);
+		BaseTestEnvironment environment = environment(child, base);
+		ClassLoader loader = environment.classLoader();
+		Class<?> childClass = environment.findClass(child.fqcn());
+		Object instance = childClass.newInstance();
+		Bundle bundle = mock(Bundle.class);
+
+		RecordingMetrics metrics = new RecordingMetrics();
+		Akatsuki.setMetrics(metrics);
+		Akatsuki.save(loader, instance, bundle);
+		Akatsuki.restore(loader, instance, bundle, null);
+		Akatsuki.setMetrics(null);
+		Akatsuki.save(loader, instance, bundle);
+
+		String name = childClass.getSimpleName();
+		List<String> events = metrics.events;
+		assertEquals("miss " + name, events.get(0));
+		// child has no retainer of its own
+		assertTrue(events.contains("traverse " + name + " 2"));
+		int save = events.indexOf("save " + name + " 1");
+		assertEquals("hit " + name, events.get(save + 1));
+		assertEquals("restore " + name + " Retained", events.get(save + 2));
+		assertEquals(save + 3, events.size());
+	}
+
+	@Test
+	public void testKeysWrittenIncludeInheritedFields() throws Exception {
+		TestSource base = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "b"),
+						new RetainedTestField(int[][].class, "c"))
+				.superClass(base);
+		BaseTestEnvironment environment = environment(child, base);
+		Class<?> childClass = environment.findClass(child.fqcn());
+
+		RecordingMetrics metrics = new RecordingMetrics();
+		Akatsuki.setMetrics(metrics);
+		Akatsuki.save(environment.classLoader(), childClass.newInstance(), mock(Bundle.class));
+		assertTrue(metrics.events.contains("save " + childClass.getSimpleName() + " 3"));
+	}
+
+	@Test
+	public void testConverterLookupsAreReported() {
+		RecordingMetrics metrics = new RecordingMetrics();
+		Akatsuki.setMetrics(metrics);
+		Akatsuki.converter(MetricsTestConverter.class);
+		Akatsuki.converter(MetricsTestConverter.class);
+		assertEquals(Arrays.asList("miss MetricsTestConverter", "hit MetricsTestConverter"),
+				metrics.events);
+	}
+
+}
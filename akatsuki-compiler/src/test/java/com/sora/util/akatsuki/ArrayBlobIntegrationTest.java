@@ -0,0 +1,84 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+public class ArrayBlobIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private Object createInstance(TestField field) throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		BaseTestEnvironment environment = environment(source);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	@Test
+	public void testBoxedArrayIsPacked() throws Exception {
+		Object instance = createInstance(
+				new TestField(Integer[].class, "a", "new Integer[] { 1, null, 3 }"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putIntArray("a", new int[] { 1, 0, 3 });
+		verify(bundle).putIntArray("a$nulls", new int[] { 1 });
+		verify(bundle, never()).putInt(anyString(), eq(1));
+
+		Bundle state = mock(Bundle.class);
+		when(state.getIntArray("a")).thenReturn(new int[] { 4, 0 });
+		when(state.getIntArray("a$nulls")).thenReturn(new int[] { 1 });
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertArrayEquals(new Integer[] { 4, null }, read(instance, "a"));
+	}
+
+	@Test
+	public void testElementsAreSavedAsOneArray() throws Exception {
+		// the stubs can't create bundles, so only null elements can be saved
+		Object instance = createInstance(
+				new TestField(TimeUnit[].class, "a", "new java.util.concurrent.TimeUnit[2]"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putParcelableArray("a", new Bundle[2]);
+		verify(bundle, never()).putInt(anyString(), eq(2));
+	}
+
+	@Test
+	public void testElementsAreRestoredFromOneArray() throws Exception {
+		Object instance = createInstance(new TestField(TimeUnit[].class, "a"));
+		Bundle first = mock(Bundle.class);
+		when(first.getSerializable("e")).thenReturn(TimeUnit.SECONDS);
+		Bundle third = mock(Bundle.class);
+		when(third.getSerializable("e")).thenReturn(TimeUnit.DAYS);
+		Bundle state = mock(Bundle.class);
+		when(state.getParcelableArray("a")).thenReturn(new Parcelable[] { first, null, third });
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertArrayEquals(new TimeUnit[] { TimeUnit.SECONDS, null, TimeUnit.DAYS },
+				read(instance, "a"));
+	}
+
+	@Test
+	public void testNullArrayIsRestoredAsNull() throws Exception {
+		Object instance = createInstance(new TestField(TimeUnit[].class, "a",
+				"new java.util.concurrent.TimeUnit[] { java.util.concurrent.TimeUnit.DAYS }"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.restore(classLoader, instance, bundle, null);
+		assertNull(read(instance, "a"));
+	}
+
+}
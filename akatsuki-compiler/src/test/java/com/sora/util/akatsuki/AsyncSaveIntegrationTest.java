@@ -0,0 +1,182 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+public class AsyncSaveIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+	private Class<?> type;
+
+	// runs tasks when asked to
+	private final List<Runnable> queued = new ArrayList<>();
+
+	private Object createInstance(TestField... fields) throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (int i = 0; i < fields.length; i++)
+			source.appendFields(fields[i].fieldSpecBuilder().addAnnotation(AnnotationSpec
+					.builder(Retained.class).addMember("ordinal", "$L", i).build()).build());
+		source.appendTransformation((builder, s) -> builder.addAnnotation(
+				AnnotationSpec.builder(RetainConfig.class).addMember("stream", "true").build()));
+		BaseTestEnvironment environment = environment(source);
+		classLoader = environment.classLoader();
+		type = environment.findClass(source.fqcn());
+		return type.newInstance();
+	}
+
+	private void runQueued() {
+		for (Runnable runnable : queued)
+			runnable.run();
+		queued.clear();
+	}
+
+	@Test
+	public void testFieldsAreCapturedOnSave() throws Exception {
+		Object instance = createInstance(new TestField(int.class, "a", "1"),
+				new TestField(int[].class, "b", "new int[] { 2 }"));
+		AsyncSaver saver = new AsyncSaver(queued::add, 1);
+		Future<byte[]> future = saver.save(classLoader, instance, null);
+		// changes after the save aren't written
+		write(instance, "a", 3);
+		((int[]) read(instance, "b"))[0] = 4;
+		runQueued();
+
+		Object restored = type.newInstance();
+		Akatsuki.read(classLoader, restored,
+				new DataInputStream(new ByteArrayInputStream(future.get())));
+		assertEquals(1, (int) read(restored, "a"));
+		assertArrayEquals(new int[] { 2 }, read(restored, "b"));
+	}
+
+	@Test
+	public void testSnapshotMatchesWrite() throws Exception {
+		Object instance = createInstance(new TestField(String.class, "a", "\"a\""),
+				new TestField(Long.class, "b"));
+		AtomicReference<byte[]> saved = new AtomicReference<>();
+		AsyncSaver saver = new AsyncSaver(queued::add, 1);
+		saver.save(classLoader, instance, new AsyncSaver.Callback() {
+			@Override
+			public void onSaved(Object instance, byte[] state) {
+				saved.set(state);
+			}
+
+			@Override
+			public void onFailed(Object instance, Throwable throwable) {
+				throw new AssertionError(throwable);
+			}
+		});
+		runQueued();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Akatsuki.write(classLoader, instance, new DataOutputStream(bytes));
+		assertArrayEquals(bytes.toByteArray(), saved.get());
+	}
+
+	@Test
+	public void testPendingSavesAreBounded() throws Exception {
+		Object instance = createInstance(new TestField(int.class, "a"));
+		AsyncSaver saver = new AsyncSaver(queued::add, 2);
+		saver.save(classLoader, instance, null);
+		saver.save(classLoader, instance, null);
+		assertEquals(2, saver.pending());
+		try {
+			saver.save(classLoader, instance, null);
+			throw new AssertionError("save over capacity should be rejected");
+		} catch (RejectedExecutionException expected) {
+			// nothing was queued
+		}
+		assertEquals(2, queued.size());
+		runQueued();
+		assertEquals(0, saver.pending());
+		assertTrue(saver.save(classLoader, instance, null) != null);
+	}
+
+	@Test
+	public void testCollectionsAreCopiedOnSave() throws Exception {
+		Object instance = createInstance(new TestField(ArrayList.class, "a",
+				"new java.util.ArrayList<String>(java.util.Arrays.asList(\"a\"))", String.class),
+				new TestField(List.class, "b", "java.util.Collections.singletonList(\"b\")",
+						String.class));
+		AsyncSaver saver = new AsyncSaver(queued::add, 1);
+		Future<byte[]> future = saver.save(classLoader, instance, null);
+		List<String> a = read(instance, "a");
+		a.add("c");
+		write(instance, "b", new ArrayList<>());
+		runQueued();
+
+		Object restored = type.newInstance();
+		Akatsuki.read(classLoader, restored,
+				new DataInputStream(new ByteArrayInputStream(future.get())));
+		assertEquals(Collections.singletonList("a"), read(restored, "a"));
+		assertEquals(Collections.singletonList("b"), read(restored, "b"));
+	}
+
+	@Test
+	public void testCollectionsWithoutCloneAreCopiedIfTheFieldCanHoldTheCopy() {
+		List<String> list = Collections.synchronizedList(new ArrayList<>(Arrays.asList("a")));
+		Object copy = StateStreams.capture((Serializable) list, List.class);
+		assertEquals(ArrayList.class, copy.getClass());
+		assertEquals(list, copy);
+		// a field of the exact type has to be restored from the serialized value
+		assertFalse(StateStreams.capture((Serializable) list, list.getClass()) instanceof List);
+
+		SortedSet<String> set = new TreeSet<>(Collections.reverseOrder());
+		set.addAll(Arrays.asList("a", "b"));
+		Object sorted = StateStreams.capture((Serializable) Collections.unmodifiableSortedSet(set),
+				SortedSet.class);
+		assertEquals(Arrays.asList("b", "a"), new ArrayList<>((SortedSet<?>) sorted));
+
+		Map<String, String> map = Collections.unmodifiableMap(Collections.singletonMap("a", "b"));
+		assertEquals(LinkedHashMap.class,
+				StateStreams.capture((Serializable) map, Map.class).getClass());
+	}
+
+	@Test
+	public void testThrowingCallbackReleasesOnce() throws Exception {
+		Object instance = createInstance(new TestField(int.class, "a"));
+		AsyncSaver saver = new AsyncSaver(Runnable::run, 1);
+		try {
+			saver.save(classLoader, instance, new AsyncSaver.Callback() {
+				@Override
+				public void onSaved(Object instance, byte[] state) {
+					throw new IllegalStateException();
+				}
+
+				@Override
+				public void onFailed(Object instance, Throwable throwable) {
+					throw new AssertionError(throwable);
+				}
+			});
+			throw new AssertionError("the callback should have thrown");
+		} catch (IllegalStateException expected) {
+			// ran in place
+		}
+		// releasing twice would leave more permits than the capacity
+		assertEquals(0, saver.pending());
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
 
 import com.google.common.base.Throwables;
@@ -69,6 +70,10 @@ public abstract class BaseTestEnvironment implements TestEnvironment {
 		return result.sources;
 	}
 
+	public List<Diagnostic<? extends JavaFileObject>> diagnostics() {
+		return result.diagnostics;
+	}
+
 	public Class<?>[] sourceClasses() throws Exception {
 		return sources.stream().map(s -> {
 			try {
@@ -0,0 +1,53 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeSpec;
+
+import android.os.Bundle;
+
+public class ClassHierarchyIntegrationTest extends IntegrationTestBase {
+
+	@Test
+	public void testNestedSubclassesOfUnannotatedIntermediatesAreRetained() throws Exception {
+		// A(@Retained) <- B <- Outer.C(@Retained) <- D
+		TestSource a = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "a"));
+		TestSource b = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(a);
+		String outerName = generateClassName();
+		String cName = generateClassName();
+		TestSource outer = new TestSource(TEST_PACKAGE, outerName, Modifier.PUBLIC)
+				.appendTransformation((builder, s) -> builder.addType(TypeSpec
+						.classBuilder(cName).addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+						.superclass(ClassName.get(TEST_PACKAGE, b.className()))
+						.addField(new TestField(String.class, "c").fieldSpecBuilder()
+								.addAnnotation(Retained.class).build())
+						.build()));
+		TestSource d = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTransformation((builder, s) -> builder
+						.superclass(ClassName.get(TEST_PACKAGE, outerName, cName)));
+		BaseTestEnvironment environment = environment(d, a, b, outer);
+
+		Class<?> type = environment.findClass(d.fqcn());
+		Object instance = type.newInstance();
+		write(instance, "a", 1);
+		write(instance, "c", "c");
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		when(bundle.getInt("a")).thenReturn(1);
+		when(bundle.getString("c")).thenReturn("c");
+		Object restored = type.newInstance();
+		Akatsuki.restore(environment.classLoader(), restored, bundle, null);
+		assertEquals(1, (int) read(restored, "a"));
+		assertEquals("c", read(restored, "c"));
+	}
+
+}
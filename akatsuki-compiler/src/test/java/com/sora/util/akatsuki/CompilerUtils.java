@@ -12,6 +12,7 @@ import java.util.Locale;
 import java.util.stream.Collectors;
 
 import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
@@ -49,7 +50,7 @@ public class CompilerUtils {
 		System.out.println(printVertically(diagnosticCollector.getDiagnostics()));
 
 		return new Result(fileManager.getClassLoader(StandardLocation.CLASS_OUTPUT),
-				fileManager.getOutputFiles(),
+				fileManager.getOutputFiles(), diagnosticCollector.getDiagnostics(),
 				exception == null ? null
 						: new RuntimeException(
 								"Compilation failed:\n"
@@ -95,12 +96,15 @@ public class CompilerUtils {
 
 		public final ClassLoader classLoader;
 		public final ImmutableList<JavaFileObject> sources;
+		public final List<Diagnostic<? extends JavaFileObject>> diagnostics;
 		public final Exception compilationException;
 
 		public Result(ClassLoader classLoader, ImmutableList<JavaFileObject> sources,
+				List<Diagnostic<? extends JavaFileObject>> diagnostics,
 				Exception compilationException) {
 			this.classLoader = classLoader;
 			this.sources = sources;
+			this.diagnostics = diagnostics;
 			this.compilationException = compilationException;
 		}
 
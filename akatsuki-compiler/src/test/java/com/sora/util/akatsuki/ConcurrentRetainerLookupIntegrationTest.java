@@ -0,0 +1,151 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+public class ConcurrentRetainerLookupIntegrationTest extends IntegrationTestBase {
+
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 20000;
+
+	private static class LookupTestEnvironment extends BaseTestEnvironment {
+
+		LookupTestEnvironment(IntegrationTestBase base, List<TestSource> sources) {
+			super(base, sources);
+		}
+
+		@Override
+		protected void setupTestEnvironment() throws Exception {
+			// nothing to set up, instances are created per thread
+		}
+	}
+
+	@Test
+	public void testWeakClassMapBasicOperations() {
+		WeakClassMap<String> map = new WeakClassMap<>();
+		assertNull(map.get(String.class));
+		assertEquals("a", map.putIfAbsent(String.class, "a"));
+		assertEquals("a", map.putIfAbsent(String.class, "b"));
+		assertEquals("a", map.get(String.class));
+		assertNull(map.get(Integer.class));
+		// force a few resizes
+		for (Class<?> clazz : new Class<?>[] { int.class, long.class, byte.class, char.class,
+				short.class, float.class, double.class, boolean.class, void.class }) {
+			map.putIfAbsent(clazz, clazz.getName());
+		}
+		assertEquals("long", map.get(long.class));
+		assertEquals(10, map.size());
+		map.clear();
+		assertNull(map.get(String.class));
+	}
+
+	@Test
+	public void testWeakClassMapDoesNotHoldValues() throws Exception {
+		WeakClassMap<Object> map = new WeakClassMap<>();
+		Object value = new Object();
+		map.putIfAbsent(String.class, value);
+		WeakReference<Object> reference = new WeakReference<>(value);
+		value = null;
+		for (int i = 0; i < 50 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(reference.get());
+		assertNull(map.get(String.class));
+		// a collected value reads as absent and can be put again
+		Object replacement = new Object();
+		assertSame(replacement, map.putIfAbsent(String.class, replacement));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testConcurrentSaveRestoreOnMixedClasses() throws Exception {
+		// a mix of standalone classes and a small hierarchy so that both the
+		// direct and the inherited lookup paths are exercised
+		List<TestSource> sources = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			sources.add(new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+					.appendTestFields(new RetainedTestField(String.class, "a"),
+							new RetainedTestField(int.class, "b")));
+		}
+		TestSource base = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(Parcelable.class, "c"));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(long.class, "d")).superClass(base);
+		TestSource unannotated = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC).superClass(child);
+		sources.add(base);
+		sources.add(child);
+		sources.add(unannotated);
+
+		LookupTestEnvironment environment = new LookupTestEnvironment(this, sources);
+		ClassLoader loader = environment.classLoader();
+		Class<?>[] classes = environment.sourceClasses();
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<BundleRetainer<?>[]>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final Object[] instances = new Object[classes.length];
+			for (int i = 0; i < classes.length; i++) {
+				instances[i] = classes[i].newInstance();
+			}
+			final Bundle bundle = mock(Bundle.class, withSettings().stubOnly());
+			final Random random = new Random(t);
+			futures.add(executor.submit(new Callable<BundleRetainer<?>[]>() {
+				@Override
+				public BundleRetainer<?>[] call() throws Exception {
+					start.await();
+					for (int i = 0; i < ITERATIONS; i++) {
+						Object instance = instances[random.nextInt(instances.length)];
+						Akatsuki.save(loader, instance, bundle);
+						Akatsuki.restore(loader, instance, bundle, null);
+					}
+					BundleRetainer<?>[] seen = new BundleRetainer<?>[instances.length];
+					for (int i = 0; i < instances.length; i++) {
+						seen[i] = Akatsuki.findRetainerInstance(loader, instances[i],
+								Retained.class);
+					}
+					return seen;
+				}
+			}));
+		}
+
+		start.countDown();
+		List<BundleRetainer<?>[]> results = new ArrayList<>();
+		for (Future<BundleRetainer<?>[]> future : futures) {
+			results.add(future.get(2, TimeUnit.MINUTES));
+		}
+		executor.shutdown();
+
+		// every thread must observe exactly one retainer per class
+		BundleRetainer<?>[] first = results.get(0);
+		for (BundleRetainer<?>[] result : results) {
+			for (int i = 0; i < result.length; i++) {
+				assertSame(first[i], result[i]);
+			}
+		}
+	}
+
+}
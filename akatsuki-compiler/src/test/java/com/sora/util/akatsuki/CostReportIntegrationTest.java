@@ -0,0 +1,111 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Scanner;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.sora.util.akatsuki.CompilerUtils.Result;
+import com.squareup.javapoet.AnnotationSpec;
+
+public class CostReportIntegrationTest extends IntegrationTestBase {
+
+	private static TestSource createSource(boolean costReport, TestField... fields) {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (TestField field : fields)
+			source.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		return source.appendTransformation((builder, s) -> builder.addAnnotation(AnnotationSpec
+				.builder(AkatsukiConfig.class).addMember("costReport", "$L", costReport).build()));
+	}
+
+	private String report(TestSource source) throws Exception {
+		return report(environment(source).classLoader());
+	}
+
+	private static String report(ClassLoader classLoader) throws Exception {
+		try (InputStream stream = classLoader.getResourceAsStream(CostReport.FILE_NAME)) {
+			if (stream == null)
+				return null;
+			return new Scanner(stream, "UTF-8").useDelimiter("\\A").next();
+		}
+	}
+
+	private static void assertContains(String report, String expected) {
+		assertTrue(expected + " not found in " + report, report.contains(expected));
+	}
+
+	@Test
+	public void testFixedSizeFieldsAreExact() throws Exception {
+		TestSource source = createSource(true, new TestField(int.class, "a"),
+				new TestField(long.class, "b"));
+		String report = report(source);
+		assertContains(report, "{\"class\":\"" + source.fqcn() + "\",\"retainer\":\""
+				+ Internal.generateRetainerClassName(source.fqcn())
+				+ "\",\"fieldCount\":2,\"estimatedBytes\":36,\"exact\":true");
+		assertContains(report, "{\"name\":\"a\",\"key\":\"a\",\"analyzer\":\"Primitive\","
+				+ "\"serializableFallback\":false,\"elementLoop\":false,\"estimatedBytes\":16,"
+				+ "\"exact\":true}");
+		assertContains(report, "{\"name\":\"b\",\"key\":\"b\",\"analyzer\":\"Primitive\","
+				+ "\"serializableFallback\":false,\"elementLoop\":false,\"estimatedBytes\":20,"
+				+ "\"exact\":true}");
+	}
+
+	@Test
+	public void testAnalyzersAreReported() throws Exception {
+		String report = report(createSource(true, new TestField(String.class, "a"),
+				new TestField(int[].class, "b"),
+				new TestField(ArrayList.class, "c", String.class)));
+		assertContains(report, "\"fieldCount\":3,\"estimatedBytes\":48,\"exact\":false");
+		assertContains(report, "\"name\":\"a\",\"key\":\"a\",\"analyzer\":\"Object\"");
+		assertContains(report, "\"name\":\"b\",\"key\":\"b\",\"analyzer\":\"Array\"");
+		assertContains(report, "\"name\":\"c\",\"key\":\"c\",\"analyzer\":\"Collection\"");
+	}
+
+	@Test
+	public void testSerializableFallbacksAndLoopsAreReported() throws Exception {
+		String report = report(createSource(true, new TestField(Date.class, "a"),
+				new TestField(Date[].class, "b")));
+		assertContains(report, "{\"name\":\"a\",\"key\":\"a\",\"analyzer\":\"Serializable\","
+				+ "\"serializableFallback\":true,\"elementLoop\":false");
+		// every element goes into a bundle of its own
+		assertContains(report, "{\"name\":\"b\",\"key\":\"b\",\"analyzer\":\"Array\","
+				+ "\"serializableFallback\":true,\"elementLoop\":true");
+	}
+
+	@Test
+	public void testNoReportByDefault() throws Exception {
+		assertNull(report(createSource(false, new TestField(int.class, "a"))));
+	}
+
+	@Test
+	public void testMapsOfBundledElementsAreReportedAsLoops() throws Exception {
+		String report = report(createSource(true,
+				new TestField(HashMap.class, "a", String.class, Date.class),
+				new TestField(HashMap.class, "b", String.class, Integer.class)));
+		assertContains(report, "{\"name\":\"a\",\"key\":\"a\",\"analyzer\":\"Map\","
+				+ "\"serializableFallback\":true,\"elementLoop\":true");
+		assertContains(report, "{\"name\":\"b\",\"key\":\"b\",\"analyzer\":\"Map\","
+				+ "\"serializableFallback\":false,\"elementLoop\":false");
+	}
+
+	@Test
+	public void testReportCanBeEnabledWithProcessorOption() throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "a"));
+		Result result = CompilerUtils.compile(Thread.currentThread().getContextClassLoader(),
+				processors(), ImmutableList.of("-Aakatsuki.costReport=true"),
+				source.generateFileObject());
+		assertNull(result.compilationException);
+		assertContains(report(result.classLoader), "\"class\":\"" + source.fqcn() + "\"");
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.sora.util.akatsuki;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+public class DirtyTrackingIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private Object createInstance(boolean trackChanges, TestField... fields) throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (TestField field : fields)
+			source.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		source.appendTransformation((builder, s) -> builder.addAnnotation(AnnotationSpec
+				.builder(RetainConfig.class).addMember("trackChanges", "$L", trackChanges)
+				.build()));
+		BaseTestEnvironment environment = environment(source);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	private static Bundle createBundle() {
+		// the bundle still has whatever was saved into it
+		Bundle bundle = mock(Bundle.class);
+		when(bundle.containsKey(anyString())).thenReturn(true);
+		return bundle;
+	}
+
+	@Test
+	public void testUnchangedFieldsAreSkipped() throws Exception {
+		Object instance = createInstance(true,
+				new TestField(String[].class, "a", "new String[] { \"a\" }"),
+				new TestField(String.class, "b", "\"b\""),
+				new TestField(int[].class, "c", "new int[] { 1 }"));
+		Bundle bundle = createBundle();
+		Akatsuki.save(classLoader, instance, bundle);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putStringArray("a", new String[] { "a" });
+		// not tracked
+		verify(bundle, times(2)).putString("b", "b");
+		verify(bundle, times(2)).putIntArray("c", new int[] { 1 });
+	}
+
+	@Test
+	public void testChangedContentIsSaved() throws Exception {
+		Object instance = createInstance(true,
+				new TestField(String[].class, "a", "new String[] { \"a\" }"));
+		Bundle bundle = createBundle();
+		Akatsuki.save(classLoader, instance, bundle);
+		String[] array = read(instance, "a");
+		array[0] = "b";
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle, times(2)).putStringArray("a", array);
+	}
+
+	@Test
+	public void testChangedContentWithSameHashIsSaved() throws Exception {
+		Object instance = createInstance(true,
+				new TestField(Integer[].class, "a", "new Integer[] { 0, 31 }"),
+				new TestField(int[][].class, "b", "new int[][] { { 0, 31 } }"));
+		Bundle bundle = createBundle();
+		Akatsuki.save(classLoader, instance, bundle);
+		Akatsuki.save(classLoader, instance, bundle);
+		Integer[] boxed = read(instance, "a");
+		int[][] nested = read(instance, "b");
+		// same content hash as before
+		boxed[0] = 1;
+		boxed[1] = 0;
+		nested[0][0] = 1;
+		nested[0][1] = 0;
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putIntArray("a", new int[] { 0, 31 });
+		verify(bundle).putIntArray("a", new int[] { 1, 0 });
+		verify(bundle).putIntArray("b", new int[] { 0, 31 });
+		verify(bundle).putIntArray("b", new int[] { 1, 0 });
+	}
+
+	@Test
+	public void testOtherBundlesAndMissingKeysAreSaved() throws Exception {
+		Object instance = createInstance(true, new TestField(ArrayList.class, "a",
+				"new java.util.ArrayList<String>()", String.class));
+		Bundle first = createBundle();
+		Bundle second = createBundle();
+		Akatsuki.save(classLoader, instance, first);
+		Akatsuki.save(classLoader, instance, second);
+		verify(second).putStringArrayList("a", new ArrayList<>());
+
+		// something else cleared the bundle
+		when(first.containsKey("a")).thenReturn(false);
+		Akatsuki.save(classLoader, instance, first);
+		verify(first, times(2)).putStringArrayList("a", new ArrayList<>());
+	}
+
+	@Test
+	public void testMutableElementsAreNotTracked() throws Exception {
+		Object instance = createInstance(true, new TestField(Parcelable[].class, "a",
+				"new android.os.Parcelable[0]"));
+		Bundle bundle = createBundle();
+		Akatsuki.save(classLoader, instance, bundle);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle, times(2)).putParcelableArray("a", new Parcelable[0]);
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.sora.util.akatsuki;
+
+import android.os.Bundle;
+
+/**
+ * What the processor would have generated for {@link ExternalRetainedBase}
+ * in another module
+ */
+public class ExternalRetainedBase$$BundleRetainer<T extends ExternalRetainedBase>
+		implements BundleRetainer<T> {
+
+	@Override
+	public void save(T source, Bundle bundle) {
+		bundle.putString("retained", source.retained);
+	}
+
+	@Override
+	public void restore(T source, Bundle bundle) {
+		source.retained = bundle.getString("retained");
+	}
+}
@@ -0,0 +1,11 @@
+package com.sora.util.akatsuki;
+
+/**
+ * Stands in for a class with {@link Retained} fields that was compiled in
+ * another module, see {@link ExternalRetainedBase$$BundleRetainer}
+ */
+public class ExternalRetainedBase {
+
+	public String retained;
+
+}
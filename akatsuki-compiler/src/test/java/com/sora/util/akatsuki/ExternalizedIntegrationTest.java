@@ -0,0 +1,318 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.lang.model.element.Modifier;
+import javax.tools.Diagnostic.Kind;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+
+import android.os.Bundle;
+
+public class ExternalizedIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private static TestSource createExternalized(TestField... fields) {
+		return new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(fields)
+				.appendTransformation((builder, s) -> builder
+						.addSuperinterface(Serializable.class)
+						.addAnnotation(AnnotationSpec.builder(Externalized.class).build()));
+	}
+
+	private static TestSource createExternalized() {
+		return createExternalized(new TestField(int.class, "x"),
+				new TestField(String.class, "label"), new TestField(long[].class, "values"),
+				new TestField(Date.class, "date"),
+				new TestField(int.class, "cache").appendModifier(Modifier.TRANSIENT));
+	}
+
+	private static TestSource createHolder(TestSource externalized) {
+		ClassName externalizedName = ClassName.get(TEST_PACKAGE, externalized.className());
+		return new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(FieldSpec.builder(externalizedName, "value")
+						.addAnnotation(Retained.class).build());
+	}
+
+	private Class<?> externalizedType;
+
+	private Object createValue(BaseTestEnvironment environment, TestSource externalized)
+			throws Exception {
+		externalizedType = environment.findClass(externalized.fqcn());
+		Object value = externalizedType.newInstance();
+		write(value, "x", 42);
+		write(value, "label", "label");
+		write(value, "values", new long[] { 1, 2, 3 });
+		write(value, "date", new Date(1000));
+		write(value, "cache", 7);
+		return value;
+	}
+
+	@Test
+	public void testRetainedFieldIsSavedAsBytes() throws Exception {
+		TestSource externalized = createExternalized();
+		TestSource holder = createHolder(externalized);
+		BaseTestEnvironment environment = environment(holder, externalized);
+		classLoader = environment.classLoader();
+		Class<?> holderType = environment.findClass(holder.fqcn());
+		Object instance = holderType.newInstance();
+		write(instance, "value", createValue(environment, externalized));
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+		verify(bundle).putByteArray(eq("value"), captor.capture());
+		verify(bundle, never()).putSerializable(anyString(), any());
+
+		Bundle state = mock(Bundle.class);
+		when(state.get("value")).thenReturn(captor.getValue());
+		Object restored = holderType.newInstance();
+		Akatsuki.restore(classLoader, restored, state, null);
+		Object value = read(restored, "value");
+		assertEquals(42, (int) read(value, "x"));
+		assertEquals("label", read(value, "label"));
+		assertArrayEquals(new long[] { 1, 2, 3 }, read(value, "values"));
+		assertEquals(new Date(1000), read(value, "date"));
+		// transient fields are skipped like they would be by serialization
+		assertEquals(0, (int) read(value, "cache"));
+	}
+
+	@Test
+	public void testNullIsSavedAsNull() throws Exception {
+		TestSource externalized = createExternalized();
+		TestSource holder = createHolder(externalized);
+		BaseTestEnvironment environment = environment(holder, externalized);
+		classLoader = environment.classLoader();
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, environment.findClass(holder.fqcn()).newInstance(), bundle);
+		verify(bundle).putByteArray("value", null);
+	}
+
+	@Test
+	public void testSubclassIsSavedAsSerializable() throws Exception {
+		TestSource externalized = createExternalized();
+		TestSource subclass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new TestField(int.class, "extra")).superClass(externalized);
+		TestSource holder = createHolder(externalized);
+		BaseTestEnvironment environment = environment(holder, externalized, subclass);
+		classLoader = environment.classLoader();
+		Class<?> holderType = environment.findClass(holder.fqcn());
+		Object instance = holderType.newInstance();
+		Object value = environment.findClass(subclass.fqcn()).newInstance();
+		write(instance, "value", value);
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putSerializable("value", (Serializable) value);
+		verify(bundle, never()).putByteArray(anyString(), any());
+
+		Bundle state = mock(Bundle.class);
+		when(state.get("value")).thenReturn(value);
+		Object restored = holderType.newInstance();
+		Akatsuki.restore(classLoader, restored, state, null);
+		assertSame(value, read(restored, "value"));
+	}
+
+	@Test
+	public void testNestedSubclassIsSerialized() throws Exception {
+		TestSource inner = createExternalized();
+		TestSource subclass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new TestField(int.class, "extra")).superClass(inner);
+		TestSource outer = createExternalized(new TestField(int.class, "x"))
+				.appendFields(FieldSpec.builder(ClassName.get(TEST_PACKAGE, inner.className()),
+						"inner").build());
+		BaseTestEnvironment environment = environment(outer, inner, subclass);
+		Object value = environment.findClass(outer.fqcn()).newInstance();
+		Object nested = environment.findClass(subclass.fqcn()).newInstance();
+		write(nested, "x", 42);
+		write(nested, "extra", 7);
+		write(value, "inner", nested);
+		Externalizer<Object> externalizer = externalizer(environment, outer);
+
+		Object restored = externalizer.fromBytes(externalizer.toBytes(value));
+		Object restoredNested = read(restored, "inner");
+		assertEquals(nested.getClass(), restoredNested.getClass());
+		assertEquals(42, (int) read(restoredNested, "x"));
+		assertEquals(7, (int) read(restoredNested, "extra"));
+	}
+
+	@Test
+	public void testSelfReferentialFieldKeepsCycles() throws Exception {
+		TestSource externalized = createExternalized(new TestField(int.class, "x"));
+		externalized.appendFields(FieldSpec
+				.builder(ClassName.get(TEST_PACKAGE, externalized.className()), "next").build());
+		BaseTestEnvironment environment = environment(externalized);
+		Object value = environment.findClass(externalized.fqcn()).newInstance();
+		write(value, "x", 42);
+		write(value, "next", value);
+		Externalizer<Object> externalizer = externalizer(environment, externalized);
+
+		// the field is serialized as a whole, the cycle closes on the copy
+		DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(externalizer.toBytes(value)));
+		Object next = null;
+		for (int tag = StateStreams.readTag(input); tag != StateStreams.END; tag = StateStreams
+				.readTag(input)) {
+			if (StateStreams.ordinal(tag) == 1)
+				next = deserialize(StateStreams.readBytes(input, tag), environment.classLoader());
+			else
+				StateStreams.skip(input, tag);
+		}
+		assertEquals(42, (int) read(next, "x"));
+		assertSame(next, read(next, "next"));
+	}
+
+	// serialization resolves classes with the loader of the caller by default
+	private static Object deserialize(byte[] bytes, ClassLoader loader) throws Exception {
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws ClassNotFoundException {
+				return Class.forName(desc.getName(), false, loader);
+			}
+		}) {
+			return input.readObject();
+		}
+	}
+
+	@Test
+	public void testSerializableFallbacksAreReported() {
+		TestSource externalized = createExternalized();
+		TestSource holder = createHolder(externalized)
+				.appendFields(new TestField(Date.class, "other").fieldSpecBuilder()
+						.addAnnotation(Retained.class).build());
+		BaseTestEnvironment environment = environment(holder, externalized);
+		List<String> warnings = environment.diagnostics().stream()
+				.filter(d -> d.getKind() == Kind.WARNING).map(d -> d.getMessage(null))
+				.collect(Collectors.toList());
+		// a single warning lists every field in the round
+		assertEquals(1, warnings.stream().filter(m -> m.contains(externalized.fqcn() + ".date, "
+				+ holder.fqcn() + ".other")).count());
+	}
+
+	@Test
+	public void testPrivateFieldFailsToCompile() {
+		TestSource externalized = createExternalized(
+				new TestField(int.class, "x").appendModifier(Modifier.PRIVATE));
+		assertTestClass(externalized.generateFileObject()).failsToCompile();
+	}
+
+	@Test
+	public void testClassWithoutNoArgConstructorFailsToCompile() {
+		TestSource externalized = createExternalized(new TestField(int.class, "x"))
+				.appendTransformation((builder, s) -> builder.addMethod(
+						MethodSpec.constructorBuilder()
+								.addParameter(int.class, "x").addStatement("this.x = x")
+								.build()));
+		assertTestClass(externalized.generateFileObject()).failsToCompile();
+	}
+
+	@Test
+	public void testExternalizerRoundTripIsSmallerThanSerialization() throws Exception {
+		TestSource externalized = createExternalized(new TestField(int.class, "x"),
+				new TestField(String.class, "label"), new TestField(long[].class, "values"),
+				new TestField(double.class, "ratio"), new TestField(String[].class, "tags"));
+		BaseTestEnvironment environment = environment(externalized);
+		Class<?> type = environment.findClass(externalized.fqcn());
+		Object value = type.newInstance();
+		write(value, "x", 42);
+		write(value, "label", "label");
+		write(value, "values", new long[64]);
+		write(value, "tags", new String[] { "a", "b", "c" });
+		Externalizer<Object> externalizer = externalizer(environment, externalized);
+
+		byte[] bytes = externalizer.toBytes(value);
+		Object restored = externalizer.fromBytes(bytes);
+		assertEquals(42, (int) read(restored, "x"));
+		assertEquals("label", read(restored, "label"));
+		assertArrayEquals(new long[64], (long[]) read(restored, "values"));
+		assertArrayEquals(new String[] { "a", "b", "c" }, (String[]) read(restored, "tags"));
+
+		// no class descriptors or field names in the stream
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(serialized)) {
+			output.writeObject(value);
+		}
+		assertTrue(bytes.length < serialized.size());
+	}
+
+	private static TestField pinned(Class<?> type, String name, int ordinal) {
+		return new TestField(type, name) {
+			@Override
+			protected FieldSpec.Builder fieldSpecBuilder() {
+				return super.fieldSpecBuilder().addAnnotation(AnnotationSpec
+						.builder(Externalized.Ordinal.class).addMember("value", "$L", ordinal)
+						.build());
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Externalizer<Object> externalizer(BaseTestEnvironment environment,
+			TestSource externalized) throws Exception {
+		return (Externalizer<Object>) environment
+				.findClass(Internal.generateExternalizerClassName(externalized.fqcn()))
+				.getField("INSTANCE").get(null);
+	}
+
+	@Test
+	public void testPinnedOrdinalsSurviveRemovedFields() throws Exception {
+		TestSource older = createExternalized(pinned(int.class, "gone", 0),
+				pinned(String.class, "label", 1));
+		TestSource newer = createExternalized(pinned(int.class, "added", 2),
+				pinned(String.class, "label", 1));
+		BaseTestEnvironment environment = environment(older, newer);
+		Object value = environment.findClass(older.fqcn()).newInstance();
+		write(value, "gone", 42);
+		write(value, "label", "label");
+		byte[] bytes = externalizer(environment, older).toBytes(value);
+
+		Object restored = externalizer(environment, newer).fromBytes(bytes);
+		assertEquals("label", read(restored, "label"));
+		assertEquals(0, (int) read(restored, "added"));
+	}
+
+	@Test
+	public void testDuplicateOrdinalsFailToCompile() {
+		TestSource externalized = createExternalized(new TestField(int.class, "x"),
+				pinned(int.class, "y", 0));
+		assertTestClass(externalized.generateFileObject()).failsToCompile();
+	}
+
+	@Test
+	public void testCustomSerializationFailsToCompile() {
+		TestSource externalized = createExternalized(new TestField(int.class, "x"))
+				.appendTransformation((builder, s) -> builder.addMethod(MethodSpec
+						.methodBuilder("readResolve").addModifiers(Modifier.PRIVATE)
+						.returns(Object.class).addStatement("return this").build()));
+		assertTestClass(externalized.generateFileObject()).failsToCompile();
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+
+import android.os.Bundle;
+
+public class FlattenNestedIntegrationTest extends IntegrationTestBase {
+
+	private static TestSource createNested() {
+		return new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(String.class, "s", "\"saved\"").fieldSpecBuilder()
+						.addAnnotation(Retained.class).build());
+	}
+
+	private static TestSource createHolder(TestSource nested) {
+		ClassName nestedName = ClassName.get(TEST_PACKAGE, nested.className());
+		TestSource holder = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(FieldSpec.builder(nestedName, "n").addAnnotation(Retained.class)
+						.initializer("new $T()", nestedName).build());
+		AnnotationSpec spec = AnnotationSpec.builder(AkatsukiConfig.class)
+				.addMember("optFlags", "$T.$L", OptFlags.class, OptFlags.FLATTEN_NESTED)
+				.addMember("optFlags", "$T.$L", OptFlags.class, OptFlags.SIZE_ESTIMATES).build();
+		holder.appendTransformation((b, s) -> b.addAnnotation(spec));
+		return holder;
+	}
+
+	@Test
+	public void testNestedFieldsAreSavedUnderPrefixedKeys() throws Exception {
+		TestSource nested = createNested();
+		TestSource holder = createHolder(nested);
+		BaseTestEnvironment environment = environment(holder, nested);
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		verify(bundle).putBoolean("n", true);
+		verify(bundle).putString("n.s", "saved");
+		verify(bundle, never()).putBundle(anyString(), any(Bundle.class));
+
+		Bundle state = mock(Bundle.class);
+		when(state.getBoolean("n")).thenReturn(true);
+		when(state.getString("n.s")).thenReturn("restored");
+		Akatsuki.restore(environment.classLoader(), instance, state, null);
+		assertEquals("restored", read(read(instance, "n"), "s"));
+	}
+
+	@Test
+	public void testEstimateIncludesNestedFields() throws Exception {
+		TestSource nested = createNested();
+		TestSource holder = createHolder(nested);
+		BaseTestEnvironment environment = environment(holder, nested);
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+		SizeEstimate estimate = Akatsuki.estimateSize(environment.classLoader(), instance);
+		assertEquals(2, estimate.fields().size());
+		// the null marker followed by the nested fields
+		assertEquals("n", estimate.fields().get(0).name);
+		assertEquals("s", estimate.fields().get(1).name);
+		// charged with the prefixed key it is saved under
+		assertEquals(BundleSizes.ofEntry("n.s") + BundleSizes.ofString("saved"),
+				estimate.fields().get(1).bytes);
+	}
+
+	@Test
+	public void testNullNestedFieldIsRestoredAsNull() throws Exception {
+		TestSource nested = createNested();
+		TestSource holder = createHolder(nested);
+		BaseTestEnvironment environment = environment(holder, nested);
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+		write(instance, "n", null);
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		verify(bundle).putBoolean("n", false);
+		verify(bundle, never()).putString(anyString(), anyString());
+
+		// a non null field is cleared
+		Object restored = environment.findClass(holder.fqcn()).newInstance();
+		Akatsuki.restore(environment.classLoader(), restored, mock(Bundle.class), null);
+		assertNull(read(restored, "n"));
+	}
+
+	@Test
+	public void testNullNestedFieldIsCreatedForSavedState() throws Exception {
+		TestSource nested = createNested();
+		TestSource holder = createHolder(nested);
+		BaseTestEnvironment environment = environment(holder, nested);
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+		write(instance, "n", null);
+
+		Bundle state = mock(Bundle.class);
+		when(state.getBoolean("n")).thenReturn(true);
+		when(state.getString("n.s")).thenReturn("restored");
+		Akatsuki.restore(environment.classLoader(), instance, state, null);
+		assertEquals("restored", read(read(instance, "n"), "s"));
+	}
+
+	@Test
+	public void testNestedTypeWithSubclassIsNotFlattened() throws Exception {
+		TestSource nested = createNested();
+		TestSource subclass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "i"));
+		subclass.appendTransformation((b, s) -> b.superclass(ClassName.get(TEST_PACKAGE,
+				nested.className())));
+		TestSource holder = createHolder(nested);
+		BaseTestEnvironment environment = environment(holder, nested, subclass);
+		Class<?> retainer = environment
+				.findClass(Internal.generateRetainerClassName(holder.fqcn()));
+		assertFalse(Arrays.stream(retainer.getDeclaredFields())
+				.anyMatch(f -> f.getName().startsWith("RETAINER_")));
+		// the prefixed overloads are still there for enclosing types
+		assertTrue(Arrays.stream(retainer.getDeclaredMethods())
+				.anyMatch(m -> m.getParameterCount() == 4));
+	}
+
+	@Test
+	public void testDeeplyNestedFieldsAreSavedUnderPrefixedKeys() throws Exception {
+		TestSource base = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(int.class, "i", "1").fieldSpecBuilder()
+						.addAnnotation(Retained.class).build());
+		TestSource nested = createNested();
+		ClassName nestedName = ClassName.get(TEST_PACKAGE, nested.className());
+		TestSource middle = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(FieldSpec.builder(nestedName, "m").addAnnotation(Retained.class)
+						.initializer("new $T()", nestedName).build());
+		middle.appendTransformation(
+				(b, s) -> b.superclass(ClassName.get(TEST_PACKAGE, base.className())));
+		TestSource holder = createHolder(middle);
+		BaseTestEnvironment environment = environment(holder, middle, nested, base);
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		verify(bundle).putBoolean("n", true);
+		verify(bundle).putInt("n.i", 1);
+		verify(bundle).putBoolean("n.m", true);
+		verify(bundle).putString("n.m.s", "saved");
+
+		Bundle state = mock(Bundle.class);
+		when(state.getBoolean("n")).thenReturn(true);
+		when(state.getInt("n.i")).thenReturn(2);
+		when(state.getBoolean("n.m")).thenReturn(true);
+		when(state.getString("n.m.s")).thenReturn("restored");
+		Akatsuki.restore(environment.classLoader(), instance, state, null);
+		assertEquals(2, (int) read(read(instance, "n"), "i"));
+		assertEquals("restored", read(read(read(instance, "n"), "m"), "s"));
+
+		SizeEstimate estimate = Akatsuki.estimateSize(environment.classLoader(), instance);
+		assertEquals(BundleSizes.ofEntry("n.m.s") + BundleSizes.ofString("restored"),
+				estimate.fields().stream().filter(field -> field.name.equals("s")).findFirst()
+						.get().bytes);
+	}
+
+	@Test
+	public void testSelfReferentialTypeIsNotFlattened() throws Exception {
+		TestSource holder = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		ClassName holderName = ClassName.get(TEST_PACKAGE, holder.className());
+		holder.appendFields(FieldSpec.builder(holderName, "next").addAnnotation(Retained.class)
+				.build(),
+				new TestField(String.class, "s", "\"saved\"").fieldSpecBuilder()
+						.addAnnotation(Retained.class).build());
+		AnnotationSpec spec = AnnotationSpec.builder(AkatsukiConfig.class)
+				.addMember("optFlags", "$T.$L", OptFlags.class, OptFlags.FLATTEN_NESTED).build();
+		holder.appendTransformation((b, s) -> b.addAnnotation(spec));
+		BaseTestEnvironment environment = environment(holder);
+		Class<?> retainer = environment
+				.findClass(Internal.generateRetainerClassName(holder.fqcn()));
+		// its key table would contain itself
+		assertFalse(Arrays.stream(retainer.getDeclaredFields())
+				.anyMatch(f -> f.getName().startsWith("RETAINER_")));
+	}
+
+}
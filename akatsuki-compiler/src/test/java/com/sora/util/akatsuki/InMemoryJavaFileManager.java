@@ -24,8 +24,14 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Map.Entry;
 
 import javax.tools.FileObject;
@@ -184,6 +190,47 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
 				throw new RuntimeException(e);
 			}
 		}
+
+		@Override
+		protected URL findResource(String name) {
+			// class files are stored by class name rather than as resources
+			final URI uri = name.endsWith(Kind.CLASS.extension)
+					? uriForJavaFileObject(location, name
+							.substring(0, name.length() - Kind.CLASS.extension.length())
+							.replace('/', '.'), Kind.CLASS)
+					: uriForFileObject(location, "", name);
+			final InMemoryJavaFileObject object = (InMemoryJavaFileObject) InMemoryJavaFileManager.this.inMemoryFileObjects
+					.getIfPresent(uri);
+			if (object == null || object.lastModified == 0)
+				return null;
+			try {
+				return new URL(null, object.toUri().toString(), new URLStreamHandler() {
+					@Override
+					protected URLConnection openConnection(URL url) {
+						return new URLConnection(url) {
+							@Override
+							public void connect() {
+								// nothing to connect to
+							}
+
+							@Override
+							public InputStream getInputStream() throws IOException {
+								return object.openInputStream();
+							}
+						};
+					}
+				});
+			} catch (MalformedURLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		protected Enumeration<URL> findResources(String name) {
+			final URL url = findResource(name);
+			return url == null ? Collections.emptyEnumeration()
+					: Collections.enumeration(Collections.singletonList(url));
+		}
 	}
 
 	static final class InMemoryJavaFileObject extends SimpleJavaFileObject
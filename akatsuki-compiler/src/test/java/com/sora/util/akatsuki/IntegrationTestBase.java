@@ -3,6 +3,7 @@ package com.sora.util.akatsuki;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
 import java.util.Collections;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -66,4 +67,44 @@ public abstract class IntegrationTestBase {
 		return Truth.ASSERT.about(javaSource()).that(testClass).processedWith(processors());
 	}
 
+	// compiles and loads the sources without any further setup
+	public BaseTestEnvironment environment(TestSource source, TestSource... required) {
+		return new BaseTestEnvironment(this, source, required) {
+			@Override
+			protected void setupTestEnvironment() throws Exception {
+				// nah
+			}
+		};
+	}
+
+	// reads a field declared in the class of the instance or any of its
+	// superclasses
+	public static <T> T read(Object instance, String name) throws Exception {
+		return read(instance, instance.getClass(), name);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> T read(Object instance, Class<?> type, String name) throws Exception {
+		Field field = findField(type, name);
+		field.setAccessible(true);
+		return (T) field.get(instance);
+	}
+
+	public static void write(Object instance, String name, Object value) throws Exception {
+		Field field = findField(instance.getClass(), name);
+		field.setAccessible(true);
+		field.set(instance, value);
+	}
+
+	private static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			try {
+				return current.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				// keep looking
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+
 }
@@ -1,9 +1,17 @@
 package com.sora.util.akatsuki;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
+import java.net.URL;
+import java.net.URLClassLoader;
+
 import javax.lang.model.element.Modifier;
 
+import org.junit.Test;
 import org.junit.experimental.theories.DataPoint;
 import org.junit.experimental.theories.Theories;
 import org.junit.experimental.theories.Theory;
@@ -141,4 +149,78 @@ public class InternalClassDiscoveryIntegrationTest extends IntegrationTestBase {
 		argRetainer.restore(base.instance(), base.mockedBundle());
 		bundleRetainer.restore(base.instance(), base.mockedBundle());
 	}
+
+	@Theory
+	public void testRetainerCacheContainsRetainedAndArg(APITestScenario scenario)
+			throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+		APITestBase base = scenario.create(this);
+		ClassLoader loader = base.classLoader();
+		RetainerCache cache = (RetainerCache) loader
+				.loadClass(Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME)
+				.newInstance();
+		Class<?> clazz = base.instance().getClass();
+		// the cache must agree with the reflective lookup
+		assertEquals(Internal.findRetainedRetainerClass(loader, clazz),
+				cache.getCached(Retained.class, clazz.getName()).getClass());
+		assertEquals(Internal.findArgRetainerClass(loader, clazz),
+				cache.getCached(Arg.class, clazz.getName()).getClass());
+	}
+
+	@Test
+	public void testHierarchyLookupIsRecordedForEveryVisitedClass() throws Exception {
+		TestSource parent = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource middle = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(parent);
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(middle);
+		APITestBase base = new APITestBase(this, child, new TestSource[] { parent, middle });
+		ClassLoader loader = base.classLoader();
+		Class<?> parentRetainer = base
+				.findClass(Internal.generateRetainerClassName(parent.fqcn()));
+
+		assertEquals(parentRetainer,
+				Internal.findRetainedRetainerClass(loader, base.findClass(child.fqcn())));
+		// both the child and the class in between now resolve with one probe
+		assertEquals(parentRetainer,
+				Internal.RESOLVED_RETAINERS.get(base.findClass(child.fqcn())));
+		assertEquals(parentRetainer,
+				Internal.RESOLVED_RETAINERS.get(base.findClass(middle.fqcn())));
+		assertEquals(parentRetainer,
+				Internal.findRetainedRetainerClass(loader, base.findClass(middle.fqcn())));
+	}
+
+	@Test
+	public void testMissingRetainerIsRecorded() throws Exception {
+		// a class of its own so that the recorded miss can't affect other tests
+		TestSource retained = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource unannotated = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC);
+		BaseTestEnvironment base = environment(retained, unannotated);
+		Class<?> clazz = base.findClass(unannotated.fqcn());
+		for (int i = 0; i < 2; i++) {
+			try {
+				Internal.findRetainedRetainerClass(base.classLoader(), clazz);
+				fail(clazz + " has no retainer");
+			} catch (RuntimeException expected) {
+				assertNotNull(Internal.RESOLVED_RETAINERS.get(clazz));
+			}
+		}
+	}
+
+	@Test
+	public void testLookupWithAnotherLoaderIsNotRecorded() throws Exception {
+		TestSource parent = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(parent);
+		BaseTestEnvironment base = environment(parent, child);
+		Class<?> clazz = base.findClass(child.fqcn());
+		// resolves through the parent but is a different loader nonetheless
+		ClassLoader other = new URLClassLoader(new URL[0], base.classLoader());
+		assertEquals(base.findClass(Internal.generateRetainerClassName(parent.fqcn())),
+				Internal.findRetainedRetainerClass(other, clazz));
+		assertNull(Internal.RESOLVED_RETAINERS.get(clazz));
+	}
 }
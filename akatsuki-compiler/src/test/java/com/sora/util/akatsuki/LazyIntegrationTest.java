@@ -0,0 +1,152 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+
+import android.os.Bundle;
+
+public class LazyIntegrationTest extends IntegrationTestBase {
+
+	private static final int THREADS = 16;
+
+	private ClassLoader previousLoader;
+	private BaseTestEnvironment environment;
+	private TestSource nested;
+	private TestSource holder;
+
+	@Before
+	public void setUp() {
+		nested = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "s"));
+		ClassName nestedName = ClassName.get(TEST_PACKAGE, nested.className());
+		holder = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(FieldSpec
+						.builder(ParameterizedTypeName.get(ClassName.get(Lazy.class), nestedName),
+								"n")
+						.addAnnotation(Retained.class)
+						.initializer("$T.of(new $T())", Lazy.class, nestedName).build());
+		environment = environment(holder,
+				nested);
+		// nested objects are looked up with the context class loader
+		previousLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(environment.classLoader());
+	}
+
+	@After
+	public void tearDown() {
+		Thread.currentThread().setContextClassLoader(previousLoader);
+	}
+
+	@Test
+	public void testNestedStateIsRestoredOnFirstUse() throws Exception {
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+		Bundle child = mock(Bundle.class);
+		when(child.getString("s")).thenReturn("restored");
+		Bundle state = mock(Bundle.class);
+		when(state.getBundle("n")).thenReturn(child);
+
+		Akatsuki.restore(environment.classLoader(), instance, state, null);
+		Lazy<?> lazy = lazyOf(instance);
+		assertFalse(lazy.isInitialized());
+
+		Object value = lazy.get();
+		assertTrue(lazy.isInitialized());
+		assertEquals("restored", read(value, "s"));
+	}
+
+	@Test
+	public void testUnusedStateIsSavedAsIs() throws Exception {
+		Object instance = environment.findClass(holder.fqcn()).newInstance();
+		Bundle child = mock(Bundle.class);
+		Bundle state = mock(Bundle.class);
+		when(state.getBundle("n")).thenReturn(child);
+		Akatsuki.restore(environment.classLoader(), instance, state, null);
+
+		Bundle outState = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, outState);
+		verify(outState).putBundle("n", child);
+		assertFalse(lazyOf(instance).isInitialized());
+	}
+
+	@Test
+	public void testUnusedInstanceIsNotCreatedToBeSaved() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		Lazy<Object> lazy = Lazy.of(() -> {
+			created.incrementAndGet();
+			return new Object();
+		});
+		assertNull(Akatsuki.serializeLazy(lazy));
+		assertEquals(0, created.get());
+		assertFalse(lazy.isInitialized());
+	}
+
+	@Test
+	public void testConcurrentFirstUseRestoresOnce() throws Exception {
+		Class<?> nestedClass = environment.findClass(nested.fqcn());
+		AtomicInteger created = new AtomicInteger();
+		Lazy<Object> lazy = Lazy.of(() -> {
+			created.incrementAndGet();
+			try {
+				return nestedClass.newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new AssertionError(e);
+			}
+		});
+		Bundle child = mock(Bundle.class);
+		when(child.getString("s")).thenReturn("restored");
+		Akatsuki.deserializeLazy(lazy, child);
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Object>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					start.await();
+					return lazy.get();
+				}
+			}));
+		}
+		start.countDown();
+		Object first = futures.get(0).get(1, TimeUnit.MINUTES);
+		for (Future<Object> future : futures) {
+			assertSame(first, future.get(1, TimeUnit.MINUTES));
+		}
+		executor.shutdown();
+		assertEquals(1, created.get());
+		verify(child).getString("s");
+		assertEquals("restored", read(first, "s"));
+	}
+
+	private static Lazy<?> lazyOf(Object instance) throws Exception {
+		return (Lazy<?>) read(instance, "n");
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+public class MapTypeIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private Object createInstance(TestField field) throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		BaseTestEnvironment environment = environment(source);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	@Test
+	public void testKeysAndValuesAreSavedAsParallelArrays() throws Exception {
+		Object instance = createInstance(new TestField(Map.class, "m",
+				"new java.util.LinkedHashMap<>()", String.class, Long.class));
+		Map<String, Long> map = read(instance, "m");
+		map.put("a", 1L);
+		map.put("b", null);
+		map.put("c", 3L);
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putInt("m", 3);
+		verify(bundle).putStringArray("m$keys", new String[] { "a", "b", "c" });
+		verify(bundle).putLongArray("m$values", new long[] { 1, 0, 3 });
+		verify(bundle).putIntArray("m$values$nulls", new int[] { 1 });
+
+		Bundle state = mock(Bundle.class);
+		when(state.getInt("m", -1)).thenReturn(3);
+		when(state.getStringArray("m$keys")).thenReturn(new String[] { "a", "b", "c" });
+		when(state.getLongArray("m$values")).thenReturn(new long[] { 1, 0, 3 });
+		when(state.getIntArray("m$values$nulls")).thenReturn(new int[] { 1 });
+		Akatsuki.restore(classLoader, instance, state, null);
+		Map<String, Long> restored = read(instance, "m");
+		assertEquals(LinkedHashMap.class, restored.getClass());
+		assertEquals(map, restored);
+		assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(restored.keySet().toArray()));
+	}
+
+	@Test
+	public void testDeclaredMapTypeIsRestored() throws Exception {
+		Object instance = createInstance(new TestField(TreeMap.class, "m", Integer.class,
+				Double.class));
+		Bundle state = mock(Bundle.class);
+		when(state.getInt("m", -1)).thenReturn(2);
+		when(state.getIntArray("m$keys")).thenReturn(new int[] { 2, 1 });
+		when(state.getDoubleArray("m$values")).thenReturn(new double[] { 2.5, 1.5 });
+		Akatsuki.restore(classLoader, instance, state, null);
+		TreeMap<Integer, Double> restored = read(instance, "m");
+		assertEquals(Arrays.asList(1, 2), Arrays.asList(restored.keySet().toArray()));
+		assertEquals(Arrays.asList(1.5, 2.5), Arrays.asList(restored.values().toArray()));
+	}
+
+	@Test
+	public void testNullMapIsRestoredAsNull() throws Exception {
+		Object instance = createInstance(
+				new TestField(HashMap.class, "m", "null", Long.class, String.class));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putInt("m", -1);
+
+		Bundle state = mock(Bundle.class);
+		when(state.getInt("m", -1)).thenReturn(-1);
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertNull(read(instance, "m"));
+	}
+
+	@Test
+	public void testMapOfGenericValuesIsSerialized() throws Exception {
+		TestField field = new TestField(HashMap.class, "m", String.class, List.class);
+		Object instance = createInstance(field);
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putSerializable(anyString(), any(Serializable.class));
+	}
+
+}
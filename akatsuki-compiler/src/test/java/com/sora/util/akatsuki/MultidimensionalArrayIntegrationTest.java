@@ -0,0 +1,121 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.sora.util.akatsuki.analyzers.CascadingTypeAnalyzer.ConversionException;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+public class MultidimensionalArrayIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private Object createInstance(TestField field) throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		BaseTestEnvironment environment = environment(source);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	@Test
+	public void testJaggedArrayIsSavedAsFlatArrayAndShape() throws Exception {
+		Object instance = createInstance(
+				new TestField(int[][].class, "a", "new int[][] { { 1, 2 }, null, { 3 }, {} }"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putIntArray("a$shape", new int[] { 4, 2, -1, 1, 0 });
+		verify(bundle).putIntArray("a", new int[] { 1, 2, 3 });
+
+		Bundle state = mock(Bundle.class);
+		when(state.getIntArray("a$shape")).thenReturn(new int[] { 4, 2, -1, 1, 0 });
+		when(state.getIntArray("a")).thenReturn(new int[] { 3, 2, 1 });
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertArrayEquals(new int[][] { { 3, 2 }, null, { 1 }, {} }, read(instance, "a"));
+	}
+
+	@Test
+	public void testThreeDimensionalArrayRoundTrip() throws Exception {
+		Object instance = createInstance(new TestField(double[][][].class, "a",
+				"new double[][][] { { { 1 }, { 2, 3 } }, null, { null, { 4 } } }"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		ArgumentCaptor<int[]> shape = ArgumentCaptor.forClass(int[].class);
+		ArgumentCaptor<double[]> flat = ArgumentCaptor.forClass(double[].class);
+		verify(bundle).putIntArray(eq("a$shape"), shape.capture());
+		verify(bundle).putDoubleArray(eq("a"), flat.capture());
+		assertArrayEquals(new double[] { 1, 2, 3, 4 }, flat.getValue(), 0);
+
+		Object restored = createInstance(new TestField(double[][][].class, "a"));
+		Bundle state = mock(Bundle.class);
+		when(state.getIntArray("a$shape")).thenReturn(shape.getValue());
+		when(state.getDoubleArray("a")).thenReturn(flat.getValue());
+		Akatsuki.restore(classLoader, restored, state, null);
+		assertArrayEquals(new double[][][] { { { 1 }, { 2, 3 } }, null, { null, { 4 } } },
+				read(restored, "a"));
+	}
+
+	@Test
+	public void testStringArrayRoundTrip() throws Exception {
+		Object instance = createInstance(new TestField(String[][].class, "a",
+				"new String[][] { { \"a\", null }, { \"b\" } }"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putIntArray("a$shape", new int[] { 2, 2, 1 });
+		verify(bundle).putStringArray("a", new String[] { "a", null, "b" });
+
+		Bundle state = mock(Bundle.class);
+		when(state.getIntArray("a$shape")).thenReturn(new int[] { 2, 2, 1 });
+		when(state.getStringArray("a")).thenReturn(new String[] { "a", null, "b" });
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertArrayEquals(new String[][] { { "a", null }, { "b" } }, read(instance, "a"));
+	}
+
+	@Test
+	public void testNullArrayIsRestoredAsNull() throws Exception {
+		Object instance = createInstance(new TestField(long[][].class, "a", "null"));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putIntArray("a$shape", null);
+		verify(bundle).putLongArray("a", null);
+
+		Akatsuki.restore(classLoader, instance, mock(Bundle.class), null);
+		assertNull(read(instance, "a"));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testArrayOfUnsupportedTypeIsRejected() {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(Parcelable[][].class, "a"));
+		assertTestClass(source.generateFileObject()).compilesWithoutError();
+	}
+
+	@Test
+	public void testArrayOfBoxedTypeIsRejected() {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(Integer[][].class, "a"));
+		try {
+			assertTestClass(source.generateFileObject()).compilesWithoutError();
+			fail("Integer[][] should not compile");
+		} catch (RuntimeException e) {
+			Throwable cause = e;
+			while (cause.getCause() != null)
+				cause = cause.getCause();
+			assertTrue(cause.getMessage(), cause instanceof ConversionException);
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.squareup.javapoet.AnnotationSpec;
+
+import android.os.Bundle;
+
+public class OffloadStoreIntegrationTest extends IntegrationTestBase {
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		Akatsuki.setOffloadStore(null);
+	}
+
+	@Test
+	public void testValuesSurviveReopening() throws Exception {
+		File directory = folder.newFolder();
+		OffloadStore store = new OffloadStore(directory, 1024 * 1024, DAY);
+		ArrayList<String> value = new ArrayList<>(Arrays.asList("a", "b", "c"));
+		String token = store.put(value);
+		assertEquals(value, store.get(token));
+		assertNull(store.put(null));
+		assertNull(store.get(null));
+
+		// like a new process
+		OffloadStore reopened = new OffloadStore(directory, 1024 * 1024, DAY);
+		assertEquals(store.size(), reopened.size());
+		assertEquals(value, reopened.get(token));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedValueIsEvicted() throws Exception {
+		OffloadStore store = new OffloadStore(folder.newFolder(), 3000, DAY);
+		String first = store.put(new byte[1000]);
+		String second = store.put(new byte[1000]);
+		// touch the first one so the second one is the eldest
+		store.get(first);
+		String third = store.put(new byte[1000]);
+		assertTrue(store.size() <= 3000);
+		assertNull(store.get(second));
+		assertEquals(1000, store.<byte[]> get(first).length);
+		assertEquals(1000, store.<byte[]> get(third).length);
+	}
+
+	@Test
+	public void testValueLargerThanStoreIsKept() throws Exception {
+		OffloadStore store = new OffloadStore(folder.newFolder(), 100, DAY);
+		String token = store.put(new byte[1000]);
+		assertEquals(1000, store.<byte[]> get(token).length);
+	}
+
+	@Test
+	public void testStaleValuesAreRemoved() throws Exception {
+		File directory = folder.newFolder();
+		OffloadStore store = new OffloadStore(directory, 1024 * 1024, DAY);
+		String stale = store.put("stale");
+		String fresh = store.put("fresh");
+		for (File file : directory.listFiles()) {
+			if (file.getName().startsWith(stale))
+				assertTrue(file.setLastModified(System.currentTimeMillis() - 2 * DAY));
+		}
+		// an interrupted write
+		assertTrue(new File(directory, "interrupted.tmp").createNewFile());
+
+		OffloadStore reopened = new OffloadStore(directory, 1024 * 1024, DAY);
+		assertNull(reopened.get(stale));
+		assertEquals("fresh", reopened.get(fresh));
+		assertFalse(new File(directory, "interrupted.tmp").exists());
+
+		store.trim();
+		assertNull(store.get(stale));
+		assertEquals(1, directory.listFiles().length);
+	}
+
+	@Test
+	public void testFieldValueReplacesTheLastOne() throws Exception {
+		File directory = folder.newFolder();
+		OffloadStore store = new OffloadStore(directory, 1024 * 1024, DAY);
+		Object owner = new Object();
+		String first = store.put(owner, "a", "first");
+		String second = store.put(owner, "a", "second");
+		assertNull(store.get(first));
+		assertEquals("second", store.get(second));
+		// other fields and owners are left alone
+		String other = store.put(owner, "b", "other");
+		String another = store.put(new Object(), "a", "another");
+		assertEquals(3, directory.listFiles().length);
+		assertEquals("other", store.get(other));
+		assertEquals("another", store.get(another));
+
+		// a restored token is replaced by the next save of the new owner
+		Object restored = new Object();
+		assertEquals("second", store.get(restored, "a", second));
+		store.put(restored, "a", null);
+		assertNull(store.get(second));
+		assertEquals(2, directory.listFiles().length);
+	}
+
+	@Test
+	public void testEqualOwnersAreToldApart() throws Exception {
+		File directory = folder.newFolder();
+		OffloadStore store = new OffloadStore(directory, 1024 * 1024, DAY);
+		// equal but not the same
+		String first = store.put(new ArrayList<>(), "a", "first");
+		String second = store.put(new ArrayList<>(), "a", "second");
+		assertEquals("first", store.get(first));
+		assertEquals("second", store.get(second));
+		assertEquals(2, directory.listFiles().length);
+	}
+
+	@Test
+	public void testOffloadedFieldSavesTokenOnly() throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(ArrayList.class, "a",
+						"new java.util.ArrayList(java.util.Arrays.asList(1, 2, 3))",
+						Integer.class).fieldSpecBuilder()
+								.addAnnotation(AnnotationSpec.builder(Retained.class)
+										.addMember("offload", "true").build())
+								.build());
+		BaseTestEnvironment environment = environment(source);
+		File directory = folder.newFolder();
+		Akatsuki.setOffloadStore(new OffloadStore(directory, 1024 * 1024, DAY));
+		Object instance = environment.findClass(source.fqcn()).newInstance();
+
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+		verify(bundle).putString(eq("a"), token.capture());
+
+		// saving again replaces the value instead of adding one
+		Akatsuki.save(environment.classLoader(), instance, mock(Bundle.class));
+		assertEquals(1, directory.listFiles().length);
+		Akatsuki.save(environment.classLoader(), instance, bundle);
+		verify(bundle, times(2)).putString(eq("a"), token.capture());
+
+		Object restored = environment.findClass(source.fqcn()).newInstance();
+		Field field = restored.getClass().getDeclaredField("a");
+		field.setAccessible(true);
+		field.set(restored, null);
+		Bundle state = mock(Bundle.class);
+		when(state.getString(anyString())).thenReturn(token.getValue());
+		Akatsuki.restore(environment.classLoader(), restored, state, null);
+		assertEquals(Arrays.asList(1, 2, 3), field.get(restored));
+	}
+
+	@Test
+	public void testOffloadedFieldMustBeSerializable() {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(Object.class, "a").fieldSpecBuilder()
+						.addAnnotation(AnnotationSpec.builder(Retained.class)
+								.addMember("offload", "true").build())
+						.build());
+		assertTestClass(source.generateFileObject()).failsToCompile();
+	}
+
+}
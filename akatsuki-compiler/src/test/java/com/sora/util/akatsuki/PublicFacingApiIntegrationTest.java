@@ -1,9 +1,21 @@
 package com.sora.util.akatsuki;
 
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Method;
+
+import javax.lang.model.element.Modifier;
 
 import org.junit.Test;
 
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+import com.squareup.javapoet.AnnotationSpec;
+
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.Parcelable;
@@ -47,4 +59,47 @@ public class PublicFacingApiIntegrationTest extends IntegrationTestBase {
 		Akatsuki.save(loader, mock, null);
 	}
 
+	@Test
+	public void testGeneratedEntryPointSavesAndRestores() throws Exception {
+		AnnotationSpec.Builder config = AnnotationSpec.builder(AkatsukiConfig.class);
+		for (OptFlags flag : new OptFlags[] { OptFlags.CLASS_LUT, OptFlags.ENTRY_POINTS })
+			config.addMember("optFlags", "$T.$L", OptFlags.class, flag);
+		TestSource parent = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC)
+						.appendTestFields(new RetainedTestField(String.class, "a"))
+						.appendTransformation((builder, s) -> builder.addAnnotation(config.build()));
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC)
+						.appendTestFields(new RetainedTestField(int.class, "b")).superClass(parent);
+		RetainedStateTestEnvironment environment = new RetainedStateTestEnvironment(this, child,
+				parent);
+
+		Class<?> sourceClass = environment.findClass(child.fqcn());
+		Class<?> entryPoint = environment
+				.findClass(Internal.generateEntryPointClassName(child.fqcn()));
+		Method save = entryPoint.getMethod("save", sourceClass, Bundle.class);
+		Method restore = entryPoint.getMethod("restore", sourceClass, Bundle.class);
+		assertTrue(java.lang.reflect.Modifier.isStatic(save.getModifiers()));
+		assertTrue(java.lang.reflect.Modifier.isStatic(restore.getModifiers()));
+
+		Object instance = sourceClass.newInstance();
+		Bundle bundle = mock(Bundle.class);
+		save.invoke(null, instance, bundle);
+		verify(bundle).putString(eq("a"), anyString());
+		verify(bundle).putInt(eq("b"), anyInt());
+		restore.invoke(null, instance, bundle);
+		verify(bundle).getString("a");
+		verify(bundle).getInt("b");
+		// null state is ignored, same as Akatsuki.restore
+		restore.invoke(null, instance, null);
+	}
+
+	@Test(expected = ClassNotFoundException.class)
+	public void testNoEntryPointByDefault() throws Exception {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		new RetainedStateTestEnvironment(this, source).classLoader()
+				.loadClass(Internal.generateEntryPointClassName(source.fqcn()));
+	}
+
 }
@@ -0,0 +1,328 @@
+package com.sora.util.akatsuki;
+
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Modifier;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.truth.Truth;
+import com.google.testing.compile.JavaFileObjects;
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+import com.squareup.javapoet.AnnotationSpec;
+
+import android.os.Bundle;
+
+public class RetainerCacheIntegrationTest extends IntegrationTestBase {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static class CacheTestEnvironment extends BaseTestEnvironment {
+
+		private RetainerCache cache;
+
+		CacheTestEnvironment(IntegrationTestBase base, TestSource source,
+				TestSource... required) {
+			super(base, source, required);
+		}
+
+		@Override
+		protected void setupTestEnvironment() throws Exception {
+			cache = (RetainerCache) classLoader()
+					.loadClass(Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME)
+					.newInstance();
+		}
+
+		RetainerCache cache() {
+			return cache;
+		}
+	}
+
+	// defines the compiled classes itself so that it sees every class they
+	// load, the loader of the environment would resolve them on its own
+	private static class RecordingClassLoader extends ClassLoader {
+
+		private final ClassLoader classes;
+		final Set<String> loaded = new HashSet<>();
+
+		RecordingClassLoader(ClassLoader classes) {
+			super(classes.getParent());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			try (InputStream stream = classes
+					.getResourceAsStream(name.replace('.', '/') + ".class")) {
+				if (stream == null)
+					throw new ClassNotFoundException(name);
+				byte[] bytes = ByteStreams.toByteArray(stream);
+				loaded.add(name);
+				return defineClass(name, bytes, 0, bytes.length);
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+	}
+
+	private static TestSource createSource(OptFlags... flags) {
+		return createSource(TEST_PACKAGE, flags);
+	}
+
+	private static TestSource createSource(String packageName, OptFlags... flags) {
+		TestSource source = new TestSource(packageName, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		if (flags.length != 0) {
+			AnnotationSpec.Builder builder = AnnotationSpec.builder(AkatsukiConfig.class);
+			for (OptFlags flag : flags) {
+				builder.addMember("optFlags", "$T.$L", OptFlags.class, flag);
+			}
+			AnnotationSpec spec = builder.build();
+			source.appendTransformation((b, s) -> b.addAnnotation(spec));
+		}
+		return source;
+	}
+
+	@Test
+	public void testCacheInstancesReturnsSharedRetainer() {
+		TestSource source = createSource();
+		RetainerCache cache = new CacheTestEnvironment(this, source).cache();
+		BundleRetainer<?> retainer = cache.getCached(Retained.class, source.fqcn());
+		assertNotNull(retainer);
+		assertSame(retainer, cache.getCached(Retained.class, source.fqcn()));
+	}
+
+	@Test
+	public void testWithoutCacheInstancesReturnsNewRetainer() {
+		TestSource source = createSource(OptFlags.CLASS_LUT);
+		RetainerCache cache = new CacheTestEnvironment(this, source).cache();
+		BundleRetainer<?> first = cache.getCached(Retained.class, source.fqcn());
+		BundleRetainer<?> second = cache.getCached(Retained.class, source.fqcn());
+		assertNotNull(first);
+		assertNotSame(first, second);
+		assertEquals(first.getClass(), second.getClass());
+	}
+
+	@Test
+	public void testUnknownClassIsNotCached() {
+		TestSource source = createSource();
+		RetainerCache cache = new CacheTestEnvironment(this, source).cache();
+		assertNull(cache.getCached(Retained.class, String.class.getName()));
+		assertNull(cache.getCached(Arg.class, source.fqcn()));
+	}
+
+	@Test
+	public void testCacheAndReflectionCreateTheSameRetainer() throws Exception {
+		TestSource source = createSource();
+		CacheTestEnvironment environment = new CacheTestEnvironment(this, source);
+		ClassLoader loader = environment.classLoader();
+		Class<?> sourceClass = environment.findClass(source.fqcn());
+		assertEquals(
+				Internal.createRetainer(loader, null, sourceClass, Retained.class).getClass(),
+				Internal.createRetainer(loader, environment.cache(), sourceClass, Retained.class)
+						.getClass());
+	}
+
+	@Test
+	public void testShardsAreLoadedLazily() throws Exception {
+		TestSource first = createSource(TEST_PACKAGE);
+		TestSource second = createSource(TEST_PACKAGE + ".other");
+		RecordingClassLoader loader = new RecordingClassLoader(
+				new CacheTestEnvironment(this, first, second).classLoader());
+		String mappingName = Akatsuki.RETAINER_CACHE_PACKAGE + "."
+				+ Akatsuki.RETAINER_CACHE_NAME;
+		RetainerCache cache = (RetainerCache) loader.loadClass(mappingName).newInstance();
+
+		assertNotNull(cache.getCached(Retained.class, first.fqcn()));
+		// shards are numbered in package order
+		assertTrue(loader.loaded.contains(mappingName + "$Shard0"));
+		assertFalse(loader.loaded.contains(mappingName + "$Shard1"));
+		assertFalse(loader.loaded.contains(Internal.generateRetainerClassName(second.fqcn())));
+
+		assertNotNull(cache.getCached(Retained.class, second.fqcn()));
+		assertTrue(loader.loaded.contains(mappingName + "$Shard1"));
+	}
+
+	@Test
+	public void testEntriesAcrossPackagesAreFound() throws Exception {
+		// spread over a few packages like a real app would
+		List<TestSource> sources = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			sources.add(createSource(TEST_PACKAGE + ".p" + (i % 10)));
+		}
+		RetainerCache cache = new CacheTestEnvironment(this, sources.get(0),
+				sources.subList(1, sources.size()).toArray(new TestSource[sources.size() - 1]))
+						.cache();
+		for (TestSource source : sources) {
+			assertNotNull(cache.getCached(Retained.class, source.fqcn()));
+		}
+	}
+
+	@Test
+	public void testModuleNameGivesUniqueTableRegisteredAsService() throws Exception {
+		TestSource source = createSource().appendTransformation((b, s) -> b.addAnnotation(
+				AnnotationSpec.builder(AkatsukiConfig.class).addMember("moduleName", "$S",
+						"feature-a").build()));
+		ClassLoader loader = environment(source)
+				.classLoader();
+		Class<?> mapping = loader.loadClass(
+				Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME + "_feature_a");
+		assertFalse(isLoadable(loader,
+				Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME));
+
+		RetainerCache cache = Internal.loadRetainerCache(loader);
+		assertNotNull(cache);
+		assertEquals(mapping, cache.getClass());
+		assertNotNull(cache.getCached(Retained.class, source.fqcn()));
+	}
+
+	@Test
+	public void testUnnamedTableOfAnotherModuleFailsToCompile() {
+		// stands in for the table of a module on the classpath
+		JavaFileObject otherModule = JavaFileObjects.forSourceString(
+				Akatsuki.RETAINER_CACHE_PACKAGE + "." + Akatsuki.RETAINER_CACHE_NAME,
+				"package " + Akatsuki.RETAINER_CACHE_PACKAGE + ";\npublic class "
+						+ Akatsuki.RETAINER_CACHE_NAME + " {}\n");
+		Truth.ASSERT.about(javaSources())
+				.that(Arrays.asList(createSource().generateFileObject(), otherModule))
+				.processedWith(processors()).failsToCompile()
+				.withErrorContaining("another module has generated it");
+	}
+
+	@Test
+	public void testTableOfPreviousBuildIsReplaced() throws Exception {
+		TestSource source = createSource();
+		// our own output of a previous build, compiled onto the classpath
+		File output = folder.newFolder();
+		File table = new File(folder.newFolder(), Akatsuki.RETAINER_CACHE_NAME + ".java");
+		Files.write("package " + Akatsuki.RETAINER_CACHE_PACKAGE + ";\npublic class "
+				+ Akatsuki.RETAINER_CACHE_NAME + " {\n\tprivate static final String ORIGINS = \""
+				+ source.fqcn() + "\";\n}\n", table, StandardCharsets.UTF_8);
+		assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+				output.getPath(), table.getPath()));
+
+		CompilerUtils.Result result = CompilerUtils.compile(
+				Thread.currentThread().getContextClassLoader(), processors(),
+				Arrays.asList("-classpath",
+						output.getPath() + File.pathSeparator
+								+ System.getProperty("java.class.path")),
+				source.generateFileObject());
+		assertNull(result.compilationException);
+		RetainerCache cache = Internal.loadRetainerCache(result.classLoader);
+		assertNotNull(cache.getCached(Retained.class, source.fqcn()));
+	}
+
+	@Test
+	public void testInheritedRetainerFromAnotherModuleIsMapped() throws Exception {
+		TestSource retained = createSource();
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTransformation((b, s) -> b.superclass(ExternalRetainedBase.class));
+		RetainerCache cache = new CacheTestEnvironment(this, retained, child).cache();
+		BundleRetainer<?> retainer = cache.getCached(Retained.class, child.fqcn());
+		assertNotNull(retainer);
+		assertEquals(ExternalRetainedBase$$BundleRetainer.class, retainer.getClass());
+	}
+
+	@Test
+	public void testVectorizedSubclassesMapToNearestRetainer() {
+		// A(@Retained) <- B <- C(@Retained) <- D, B <- E
+		TestSource a = createSource();
+		TestSource b = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(a);
+		TestSource c = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(b).appendTestFields(new RetainedTestField(String.class, "c"));
+		TestSource d = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(c);
+		TestSource e = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.superClass(b);
+		RetainerCache cache = new CacheTestEnvironment(this, a, b, c, d, e).cache();
+		assertRetainer(cache, b, a);
+		assertRetainer(cache, d, c);
+		assertRetainer(cache, e, a);
+	}
+
+	private static void assertRetainer(RetainerCache cache, TestSource source,
+			TestSource expected) {
+		BundleRetainer<?> retainer = cache.getCached(Retained.class, source.fqcn());
+		assertNotNull(retainer);
+		assertEquals(Internal.generateRetainerClassName(expected.fqcn()),
+				retainer.getClass().getName());
+	}
+
+	@Test
+	public void testCompositeCacheFirstMatchWins() {
+		BundleRetainer<Object> first = new NoopRetainer();
+		BundleRetainer<Object> second = new NoopRetainer();
+		RetainerCache cache = new CompositeRetainerCache(Arrays.asList(
+				new SingleRetainerCache("a", first), new SingleRetainerCache("a", second),
+				new SingleRetainerCache("b", second)));
+		assertSame(first, cache.getCached(Retained.class, "a"));
+		assertSame(second, cache.getCached(Retained.class, "b"));
+		assertNull(cache.getCached(Retained.class, "c"));
+	}
+
+	private static class NoopRetainer implements BundleRetainer<Object> {
+
+		@Override
+		public void save(Object source, Bundle bundle) {
+			// no-op
+		}
+
+		@Override
+		public void restore(Object source, Bundle bundle) {
+			// no-op
+		}
+	}
+
+	private static class SingleRetainerCache implements RetainerCache {
+
+		private final String clazz;
+		private final BundleRetainer<?> retainer;
+
+		SingleRetainerCache(String clazz, BundleRetainer<?> retainer) {
+			this.clazz = clazz;
+			this.retainer = retainer;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> BundleRetainer<T> getCached(Class<? extends Annotation> type, String clazz) {
+			return this.clazz.equals(clazz) ? (BundleRetainer<T>) retainer : null;
+		}
+	}
+
+	private static boolean isLoadable(ClassLoader loader, String className) {
+		try {
+			loader.loadClass(className);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+}
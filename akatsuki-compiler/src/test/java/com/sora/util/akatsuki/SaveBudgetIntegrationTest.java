@@ -0,0 +1,224 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.sora.util.akatsuki.AkatsukiConfig.OptFlags;
+import com.sora.util.akatsuki.BundleSizes.Encoding;
+import com.sora.util.akatsuki.RetainConfig.KeyStrategy;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.FieldSpec;
+
+import android.os.Bundle;
+
+public class SaveBudgetIntegrationTest extends IntegrationTestBase {
+
+	private static class BudgetTestEnvironment extends BaseTestEnvironment {
+
+		private Object instance;
+
+		BudgetTestEnvironment(IntegrationTestBase base, TestSource source,
+				TestSource... required) {
+			super(base, source, required);
+		}
+
+		@Override
+		protected void setupTestEnvironment() throws Exception {
+			instance = findClass(sources.get(0).fqcn()).newInstance();
+		}
+
+		Object instance() {
+			return instance;
+		}
+	}
+
+	private static TestSource createSource() {
+		return estimated(new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "a", "1"),
+						new RetainedTestField(long.class, "b", "2L"),
+						new RetainedTestField(String.class, "c", "\"abc\""),
+						new RetainedTestField(int[].class, "d", "new int[100]"),
+						new RetainedTestField(String.class, "e")));
+	}
+
+	private static TestSource estimated(TestSource source) {
+		AnnotationSpec spec = AnnotationSpec.builder(AkatsukiConfig.class)
+				.addMember("optFlags", "$T.$L", OptFlags.class, OptFlags.SIZE_ESTIMATES).build();
+		return source.appendTransformation((b, s) -> b.addAnnotation(spec));
+	}
+
+	private static TestSource createSource(TestField... fields) {
+		return estimated(new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(Arrays.stream(fields)
+						.map(f -> f.fieldSpecBuilder().addAnnotation(Retained.class).build())
+						.toArray(FieldSpec[]::new)));
+	}
+
+	private SizeEstimate estimate(TestSource source) {
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, source);
+		return Akatsuki.estimateSize(environment.classLoader(), environment.instance());
+	}
+
+	@Test
+	public void testEstimateIsExactForPrimitivesStringsAndArrays() {
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, createSource());
+		SizeEstimate estimate = Akatsuki.estimateSize(environment.classLoader(),
+				environment.instance());
+		// key(length + 2 chars padded) + type tag + value
+		int entry = 4 + 4 + 4;
+		int[] expected = { entry + 4, entry + 8, entry + 4 + 8, entry + 4 + 400, entry + 4 };
+		assertEquals(5, estimate.fields().size());
+		int total = 0;
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], estimate.fields().get(i).bytes);
+			total += expected[i];
+		}
+		assertEquals(total, estimate.total());
+		assertEquals("d", estimate.heaviest(1).get(0).name);
+	}
+
+	@Test
+	public void testNoEstimateWithoutFlag() {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(int.class, "a"));
+		assertNull(estimate(source));
+	}
+
+	@Test
+	public void testEstimateChargesTheSavedKey() {
+		TestSource source = createSource(new TestField(int.class, "longFieldName"));
+		source.appendTransformation((b, s) -> b.addAnnotation(AnnotationSpec
+				.builder(RetainConfig.class)
+				.addMember("keyStrategy", "$T.$L", KeyStrategy.class, KeyStrategy.SHORT)
+				.build()));
+		SizeEstimate estimate = estimate(source);
+		assertEquals("longFieldName", estimate.fields().get(0).name);
+		assertEquals(BundleSizes.ofEntry("0:0") + 4, estimate.fields().get(0).bytes);
+	}
+
+	@Test
+	public void testEstimateOfFlattenedArray() {
+		SizeEstimate estimate = estimate(
+				createSource(new TestField(int[][].class, "grid", "{ { 1, 2 }, { 3 } }")));
+		// flat array of 3, shape entry and a shape of 3
+		int expected = BundleSizes.ofEntry("grid") + (4 + 12)
+				+ BundleSizes.ofEntry(FlatArrays.shapeKey("grid")) + (4 + 12);
+		assertEquals(expected, estimate.total());
+	}
+
+	@Test
+	public void testEstimateOfPackedArray() {
+		SizeEstimate estimate = estimate(createSource(
+				new TestField(Integer[].class, "boxed", "{ 1, null, 3 }")));
+		// int array of 3, nulls entry and an int array of 1
+		int expected = BundleSizes.ofEntry("boxed") + (4 + 12)
+				+ BundleSizes.ofEntry(PackedCollections.nullsKey("boxed")) + (4 + 4);
+		assertEquals(expected, estimate.total());
+	}
+
+	@Test
+	public void testEstimateOfBundledArray() {
+		SizeEstimate estimate = estimate(createSource(
+				new TestField(java.util.Date[].class, "dates", "{ null }")));
+		assertEquals(BundleSizes.ofEntry("dates") + (4 + 4), estimate.total());
+	}
+
+	@Test
+	public void testEstimateOfMap() {
+		SizeEstimate estimate = estimate(createSource(new TestField(HashMap.class, "map",
+				"new java.util.HashMap<>(java.util.Collections.singletonMap(\"a\", 1))",
+				String.class, Integer.class)));
+		Map<String, Integer> map = Collections.singletonMap("a", 1);
+		assertEquals(BundleSizes.ofEntry("map") + BundleSizes.ofMap("map", map,
+				Encoding.NATIVE, Encoding.PACKED), estimate.total());
+		// size, string array entry and int array entry
+		assertEquals(BundleSizes.ofEntry("map") + 4
+				+ BundleSizes.ofEntry("map$keys") + BundleSizes.ofObject(map.keySet())
+				+ BundleSizes.ofEntry("map$values") + (4 + 4), estimate.total());
+	}
+
+	@Test
+	public void testEstimateIncludesInheritedFields() {
+		TestSource base = createSource();
+		TestSource child = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(double.class, "f")).superClass(base);
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, child, base);
+		SizeEstimate estimate = Akatsuki.estimateSize(environment.classLoader(),
+				environment.instance());
+		assertEquals(6, estimate.fields().size());
+		assertEquals("f", estimate.fields().get(5).name);
+	}
+
+	@Test
+	public void testOverBudgetThrowsBeforeSaving() {
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, createSource());
+		Bundle bundle = mock(Bundle.class);
+		try {
+			Akatsuki.save(environment.classLoader(), environment.instance(), bundle,
+					SaveBudget.fail(100));
+			fail("over budget save did not throw");
+		} catch (RuntimeException e) {
+			// the heaviest field should be named
+			assertTrue(e.getMessage().contains("d=416"));
+		}
+		verifyZeroInteractions(bundle);
+	}
+
+	@Test
+	public void testOverBudgetCallbackReceivesEstimate() {
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, createSource());
+		Object[] received = new Object[3];
+		Akatsuki.save(environment.classLoader(), environment.instance(), mock(Bundle.class),
+				SaveBudget.callback(100, (instance, estimate, budget) -> {
+					received[0] = instance;
+					received[1] = estimate;
+					received[2] = budget;
+				}));
+		assertSame(environment.instance(), received[0]);
+		assertEquals(100, received[2]);
+		assertEquals("d", ((SizeEstimate) received[1]).heaviest(1).get(0).name);
+	}
+
+	@Test
+	public void testWithinBudgetSavesQuietly() {
+		BudgetTestEnvironment environment = new BudgetTestEnvironment(this, createSource());
+		Object[] received = new Object[1];
+		Akatsuki.save(environment.classLoader(), environment.instance(), mock(Bundle.class),
+				SaveBudget.callback(1024, (instance, estimate, budget) -> received[0] = estimate));
+		assertNull(received[0]);
+	}
+
+	@Test
+	public void testObjectEstimates() throws Exception {
+		assertEquals(4, BundleSizes.ofObject(null));
+		assertEquals(8, BundleSizes.ofObject(1L));
+		assertEquals(BundleSizes.of(new byte[5]), BundleSizes.ofObject(new byte[5]));
+		assertEquals(4 + (4 + 8) + (4 + 12), BundleSizes.ofObject(Arrays.asList("a", "bc")));
+		// serializables are the class name followed by the serialized bytes
+		Date date = new Date(0);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+			output.writeObject(date);
+		}
+		assertEquals(BundleSizes.ofString("java.util.Date") + 4 + (bytes.size() + 3) / 4 * 4,
+				BundleSizes.ofSerializable(date));
+	}
+
+}
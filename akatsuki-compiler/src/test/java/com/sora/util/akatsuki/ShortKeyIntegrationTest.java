@@ -0,0 +1,89 @@
+package com.sora.util.akatsuki;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.lang.model.element.Modifier;
+import javax.tools.StandardLocation;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteSource;
+import com.sora.util.akatsuki.RetainConfig.KeyStrategy;
+import com.squareup.javapoet.AnnotationSpec;
+
+import android.os.Bundle;
+
+public class ShortKeyIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	private static TestSource createSource(TestField... fields) {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (TestField field : fields)
+			source.appendFields(field.fieldSpecBuilder().addAnnotation(Retained.class).build());
+		return source.appendTransformation((builder, s) -> builder.addAnnotation(AnnotationSpec
+				.builder(RetainConfig.class)
+				.addMember("keyStrategy", "$T.$L", KeyStrategy.class, KeyStrategy.SHORT).build()));
+	}
+
+	private Object createInstance(TestSource source, TestSource... required) throws Exception {
+		BaseTestEnvironment environment = environment(source, required);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	@Test
+	public void testFieldsAreKeyedByDepthAndOrdinal() throws Exception {
+		Object instance = createInstance(createSource(
+				new TestField(String.class, "aReasonablyLongFieldName", "\"a\""),
+				new TestField(int.class, "b", "2")));
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putString("1:0", "a");
+		verify(bundle).putInt("1:1", 2);
+
+		Bundle state = mock(Bundle.class);
+		when(state.getString("1:0")).thenReturn("c");
+		Akatsuki.restore(classLoader, instance, state, null);
+		assertEquals("c", read(instance, instance.getClass(), "aReasonablyLongFieldName"));
+	}
+
+	@Test
+	public void testHiddenFieldsDoNotCollide() throws Exception {
+		TestSource superClass = createSource(new TestField(String.class, "a", "\"super\""));
+		TestSource subclass = createSource(new TestField(String.class, "a", "\"sub\""))
+				.superClass(superClass);
+		Object instance = createInstance(subclass, superClass);
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putString("1:0", "super");
+		verify(bundle).putString("2:0", "sub");
+	}
+
+	@Test
+	public void testOrdinalsAreUsedForKeys() throws Exception {
+		TestSource source = createSource().appendFields(new TestField(int.class, "a", "1")
+				.fieldSpecBuilder().addAnnotation(AnnotationSpec.builder(Retained.class)
+						.addMember("ordinal", "40").build())
+				.build());
+		Object instance = createInstance(source);
+		Bundle bundle = mock(Bundle.class);
+		Akatsuki.save(classLoader, instance, bundle);
+		verify(bundle).putInt("1:14", 1);
+	}
+
+	@Test
+	public void testMappingFileIsWritten() {
+		TestSource source = createSource(new TestField(String.class, "a"),
+				new TestField(int.class, "b"));
+		assertTestClass(source.generateFileObject()).compilesWithoutError().and()
+				.generatesFileNamed(StandardLocation.CLASS_OUTPUT, TEST_PACKAGE,
+						source.className() + ".akatsuki-keys")
+				.withContents(ByteSource.wrap(("1:0=" + source.fqcn() + "#a\n1:1="
+						+ source.fqcn() + "#b\n").getBytes()));
+	}
+
+}
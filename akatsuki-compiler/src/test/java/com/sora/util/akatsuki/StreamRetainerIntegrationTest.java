@@ -0,0 +1,200 @@
+package com.sora.util.akatsuki;
+
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Modifier;
+
+import org.junit.Test;
+
+import com.google.common.truth.Truth;
+import com.squareup.javapoet.AnnotationSpec;
+
+public class StreamRetainerIntegrationTest extends IntegrationTestBase {
+
+	private ClassLoader classLoader;
+
+	// fields are numbered in order
+	private static TestSource createSource(TestField... fields) {
+		TestSource source = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC);
+		for (int i = 0; i < fields.length; i++)
+			source.appendFields(fields[i].fieldSpecBuilder().addAnnotation(ordinal(i)).build());
+		return enableStream(source);
+	}
+
+	private static AnnotationSpec ordinal(int ordinal) {
+		return AnnotationSpec.builder(Retained.class).addMember("ordinal", "$L", ordinal)
+				.build();
+	}
+
+	private static TestSource enableStream(TestSource source) {
+		return source.appendTransformation((builder, s) -> builder.addAnnotation(
+				AnnotationSpec.builder(RetainConfig.class).addMember("stream", "true").build()));
+	}
+
+	private Object createInstance(TestSource source, TestSource... required) throws Exception {
+		BaseTestEnvironment environment = environment(source, required);
+		classLoader = environment.classLoader();
+		return environment.findClass(source.fqcn()).newInstance();
+	}
+
+	private byte[] write(Object instance) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Akatsuki.write(classLoader, instance, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private void read(Object instance, byte[] bytes) throws Exception {
+		Akatsuki.read(classLoader, instance,
+				new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	@Test
+	public void testSupportedTypesRoundTrip() throws Exception {
+		TestSource source = createSource(new TestField(int.class, "a", "42"),
+				new TestField(boolean.class, "b", "true"), new TestField(double.class, "c", "1.5"),
+				new TestField(Long.class, "d", "7L"), new TestField(Character.class, "e"),
+				new TestField(String.class, "f", "\"foo\""),
+				new TestField(TimeUnit.class, "g", "java.util.concurrent.TimeUnit.DAYS"),
+				new TestField(int[].class, "h", "new int[] { 1, 2 }"),
+				new TestField(String[].class, "i", "new String[] { \"x\", null }"),
+				new TestField(Date.class, "j", "new java.util.Date(0)"));
+		Object instance = createInstance(source);
+		byte[] bytes = write(instance);
+
+		Object restored = createInstance(createSource(new TestField(int.class, "a"),
+				new TestField(boolean.class, "b"), new TestField(double.class, "c"),
+				new TestField(Long.class, "d"), new TestField(Character.class, "e", "'z'"),
+				new TestField(String.class, "f"), new TestField(TimeUnit.class, "g"),
+				new TestField(int[].class, "h"), new TestField(String[].class, "i"),
+				new TestField(Date.class, "j")));
+		read(restored, bytes);
+		assertEquals(42, (int) read(restored, "a"));
+		assertEquals(true, read(restored, "b"));
+		assertEquals(1.5, read(restored, "c"), 0);
+		assertEquals(7L, (long) read(restored, "d"));
+		assertNull(read(restored, "e"));
+		assertEquals("foo", read(restored, "f"));
+		assertEquals(TimeUnit.DAYS, read(restored, "g"));
+		assertArrayEquals(new int[] { 1, 2 }, read(restored, "h"));
+		assertArrayEquals(new String[] { "x", null }, read(restored, "i"));
+		assertEquals(new Date(0), read(restored, "j"));
+	}
+
+	@Test
+	public void testUnknownOrdinalsAreSkippedAndMissingOnesUntouched() throws Exception {
+		Object older = createInstance(createSource(new TestField(int.class, "a", "1"),
+				new TestField(String.class, "b", "\"b\""),
+				new TestField(long[].class, "gone", "new long[] { 3 }")));
+		byte[] bytes = write(older);
+
+		// b keeps its ordinal, c is new and gone was removed
+		TestSource newer = enableStream(
+				new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC).appendFields(
+						new TestField(String.class, "b").fieldSpecBuilder()
+								.addAnnotation(ordinal(1)).build(),
+						new TestField(int.class, "c", "9").fieldSpecBuilder()
+								.addAnnotation(ordinal(3)).build()));
+		Object restored = createInstance(newer);
+		read(restored, bytes);
+		assertEquals("b", read(restored, "b"));
+		assertEquals(9, (int) read(restored, "c"));
+	}
+
+	@Test
+	public void testSuperclassFieldsAreWritten() throws Exception {
+		TestSource superClass = createSource(new TestField(String.class, "a", "\"a\""));
+		TestSource subclass = createSource(new TestField(int.class, "b", "2"))
+				.superClass(superClass);
+		Object instance = createInstance(subclass, superClass);
+		byte[] bytes = write(instance);
+
+		Object restored = createInstance(subclass, superClass);
+		Field a = restored.getClass().getSuperclass().getDeclaredField("a");
+		a.setAccessible(true);
+		a.set(restored, null);
+		Field b = restored.getClass().getDeclaredField("b");
+		b.setAccessible(true);
+		b.set(restored, 0);
+		read(restored, bytes);
+		assertEquals("a", a.get(restored));
+		assertEquals(2, b.get(restored));
+	}
+
+	@Test
+	public void testSubclassOfStreamedClassIsStreamed() throws Exception {
+		TestSource superClass = createSource(new TestField(String.class, "a", "\"a\""));
+		TestSource subclass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(int.class, "b", "2").fieldSpecBuilder()
+						.addAnnotation(ordinal(0)).build())
+				.superClass(superClass);
+		Object instance = createInstance(subclass, superClass);
+		byte[] bytes = write(instance);
+
+		Object restored = createInstance(subclass, superClass);
+		write(restored, "a", null);
+		write(restored, "b", 0);
+		read(restored, bytes);
+		assertEquals("a", read(restored, "a"));
+		assertEquals(2, (int) read(restored, "b"));
+	}
+
+	@Test
+	public void testMissingOrdinalsFailToCompile() {
+		TestSource source = enableStream(
+				new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC).appendFields(
+						new TestField(int.class, "a").fieldSpecBuilder()
+								.addAnnotation(Retained.class).build(),
+						new TestField(int.class, "b").fieldSpecBuilder().addAnnotation(ordinal(1))
+								.build()));
+		assertTestClass(source.generateFileObject()).failsToCompile()
+				.withErrorContaining("no explicit ordinal");
+	}
+
+	@Test
+	public void testMissingOrdinalsOfSubclassFailToCompile() {
+		TestSource superClass = createSource(new TestField(String.class, "a"));
+		TestSource subclass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendFields(new TestField(int.class, "b").fieldSpecBuilder()
+						.addAnnotation(Retained.class).build())
+				.superClass(superClass);
+		Truth.ASSERT.about(javaSources())
+				.that(Arrays.asList(subclass.generateFileObject(), superClass.generateFileObject()))
+				.processedWith(processors()).failsToCompile()
+				.withErrorContaining("no explicit ordinal");
+	}
+
+	@Test
+	public void testDuplicateOrdinalsFailToCompile() {
+		AnnotationSpec retained = ordinal(0);
+		TestSource source = enableStream(
+				new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC).appendFields(
+						new TestField(int.class, "a").fieldSpecBuilder().addAnnotation(retained)
+								.build(),
+						new TestField(int.class, "b").fieldSpecBuilder().addAnnotation(retained)
+								.build()));
+		assertTestClass(source.generateFileObject()).failsToCompile();
+	}
+
+	@Test
+	public void testSuperclassWithoutStreamFailsToCompile() {
+		TestSource superClass = new TestSource(TEST_PACKAGE, generateClassName(), Modifier.PUBLIC)
+				.appendTestFields(new RetainedTestField(String.class, "a"));
+		TestSource subclass = createSource(new TestField(int.class, "b")).superClass(superClass);
+		Truth.ASSERT.about(javaSources())
+				.that(Arrays.asList(subclass.generateFileObject(), superClass.generateFileObject()))
+				.processedWith(processors()).failsToCompile();
+	}
+
+}
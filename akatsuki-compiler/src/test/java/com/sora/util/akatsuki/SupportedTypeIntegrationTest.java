@@ -1,11 +1,23 @@
 package com.sora.util.akatsuki;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import java.io.Serializable;
 import java.nio.CharBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Function;
 
 import javax.lang.model.element.Modifier;
@@ -178,6 +190,65 @@ public class SupportedTypeIntegrationTest extends RetainedStateIntegrationTestBa
 
 	}
 
+	@Test
+	public void testPackedCollectionTypes() {
+		// one collection type for each element type, every combination would
+		// take too long to compile
+		final ImmutableMap<Class<?>, Class<?>[]> packed = ImmutableMap
+				.<Class<?>, Class<?>[]> builder()
+				.put(Queue.class, new Class<?>[] { Integer.class, int[].class })
+				.put(List.class, new Class<?>[] { Long.class, long[].class })
+				.put(ArrayList.class, new Class<?>[] { Long.class, long[].class })
+				.put(Set.class, new Class<?>[] { Double.class, double[].class })
+				.put(LinkedList.class, new Class<?>[] { Float.class, float[].class })
+				.put(TreeSet.class, new Class<?>[] { Short.class, short[].class })
+				.put(HashSet.class, new Class<?>[] { Byte.class, byte[].class })
+				.put(Collection.class, new Class<?>[] { Character.class, char[].class })
+				.put(ArrayDeque.class, new Class<?>[] { Boolean.class, boolean[].class })
+				.build();
+		for (Entry<Class<?>, Class<?>[]> entry : packed.entrySet()) {
+			final Class<?> arrayType = entry.getValue()[1];
+			testParameterizedTypes(n -> n.endsWith("Array"), (f, t, a) -> t.equals(arrayType),
+					entry.getKey(), entry.getValue()[0]);
+		}
+	}
+
+	@Test
+	public void testPackedCollectionKeepsNulls() {
+		final Bundle bundle = mock(Bundle.class);
+		PackedCollections.putLongs(bundle, "a", Arrays.asList(1L, null, 3L, null));
+		verify(bundle).putLongArray("a", new long[] { 1, 0, 3, 0 });
+		verify(bundle).putIntArray("a$nulls", new int[] { 1, 3 });
+
+		final List<Long> restored = PackedCollections.unpackLongs(new long[] { 1, 0, 3, 0 },
+				new int[] { 1, 3 }, new ArrayList<>());
+		assertEquals(Arrays.asList(1L, null, 3L, null), restored);
+
+		// nulls of a previous save are removed
+		PackedCollections.putLongs(bundle, "a", Arrays.asList(1L, 2L));
+		verify(bundle).remove("a$nulls");
+	}
+
+	@Test
+	public void testConsumedPackedArgRemovesItsNulls() throws Exception {
+		final TestSource source = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC)
+						.appendFields(new ArgTestField(Set.class, "ids", Long.class)
+								.createFieldSpec())
+						.appendTransformation((b, s) -> b.superclass(
+								InternalClassDiscoveryIntegrationTest.MockedFragment.class));
+		final BaseTestEnvironment environment = new AkatsukiConfigIntegrationTest.SimpleTestEnvironment(
+				this, source);
+		final Object instance = environment.findClass(source.fqcn()).newInstance();
+		final Bundle bundle = mock(Bundle.class);
+		when(bundle.getLongArray("ids")).thenReturn(new long[] { 1, 0 });
+		when(bundle.getIntArray("ids$nulls")).thenReturn(new int[] { 1 });
+		Akatsuki.findRetainerInstance(environment.classLoader(), instance, Arg.class)
+				.restore(instance, bundle);
+		verify(bundle).remove("ids");
+		verify(bundle).remove("ids$nulls");
+	}
+
 	@Test
 	public void testSimpleInheritance1() {
 		testInheritance(true, new RetainedTestField(String.class, "a"),
@@ -1,11 +1,17 @@
 package com.sora.util.akatsuki;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import javax.lang.model.element.Modifier;
 
@@ -111,6 +117,37 @@ public class TransformationTemplateIntegrationTest extends RetainedStateIntegrat
 		testTypeConverter(true);
 	}
 
+	@Test
+	public void testTypeConverterIsResolvedOncePerRetainer() throws Exception {
+		final AnnotationSpec with = AnnotationSpec.builder(With.class)
+				.addMember("value", "$T.class", StringObjectTypeConverter.class).build();
+		final TestSource testClass = new TestSource(TEST_PACKAGE, generateClassName(),
+				Modifier.PUBLIC);
+		// two fields sharing the same converter
+		for (String name : new String[] { "a", "b" }) {
+			testClass.appendFields(new TestField(StringObject.class, name,
+					"new " + StringObject.class.getCanonicalName() + "(\"A\")").fieldSpecBuilder()
+							.addAnnotation(Retained.class).addAnnotation(with).build());
+		}
+		final RetainedStateTestEnvironment environment = new RetainedStateTestEnvironment(this,
+				testClass);
+		environment.tester().invokeSaveAndRestore();
+
+		final Class<?> retainerClass = environment
+				.findClass(Internal.generateRetainerClassName(testClass.fqcn()));
+		final List<Field> converterFields = new ArrayList<>();
+		for (Field field : retainerClass.getDeclaredFields()) {
+			if (TypeConverter.class.equals(field.getType()))
+				converterFields.add(field);
+		}
+		assertEquals(1, converterFields.size());
+		final Field field = converterFields.get(0);
+		assertTrue(java.lang.reflect.Modifier.isStatic(field.getModifiers()));
+		assertTrue(java.lang.reflect.Modifier.isFinal(field.getModifiers()));
+		field.setAccessible(true);
+		assertSame(Akatsuki.converter(StringObjectTypeConverter.class), field.get(null));
+	}
+
 	protected AnnotationSpec createTransformationTemplate(Bound bound, Class<?> staticClass,
 			Class<?>... constraints) {
 		final String objectFqcn = staticClass.getCanonicalName();